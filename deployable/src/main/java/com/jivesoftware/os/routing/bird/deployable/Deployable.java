@@ -17,6 +17,7 @@ package com.jivesoftware.os.routing.bird.deployable;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
+import com.google.common.base.Strings;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.jivesoftware.os.mlogger.core.LoggerSummary;
 import com.jivesoftware.os.mlogger.core.MetricLogger;
@@ -59,6 +60,8 @@ import com.jivesoftware.os.routing.bird.shared.BoundedExecutor;
 import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptorsProvider;
 import com.jivesoftware.os.routing.bird.shared.MonitoredExecutorService;
 import com.jivesoftware.os.routing.bird.shared.RSAKeyPairGenerator;
+import com.jivesoftware.os.routing.bird.shared.RouteSnapshots;
+import com.jivesoftware.os.routing.bird.shared.RoutingChangesSource;
 import com.jivesoftware.os.routing.bird.shared.TenantRoutingProvider;
 import java.io.File;
 import java.nio.charset.StandardCharsets;
@@ -97,6 +100,8 @@ public class Deployable implements ConfigProvider {
     private final AtomicBoolean serverStarted = new AtomicBoolean(false);
     private final ScheduledExecutorService connectionRefresh = Executors.newScheduledThreadPool(1, new ThreadFactoryBuilder().setNameFormat(
         "connectionRefresh-%d").build());
+    private final ExecutorService routingChanges = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat(
+        "routingChanges-%d").setDaemon(true).build());
 
     public Deployable(String[] args) throws Exception {
         this.mainProperties = new MainProperties(args);
@@ -118,14 +123,36 @@ public class Deployable implements ConfigProvider {
 
     private void init(ConnectionDescriptorsProvider connectionsDescriptorProvider) throws Exception {
 
+        RoutingChangesSource routingChangesSource = null;
         if (connectionsDescriptorProvider == null) {
 
             TenantRoutingBirdProviderBuilder tenantRoutingBirdBuilder = new TenantRoutingBirdProviderBuilder(instanceConfig.getRoutesHost(),
-                instanceConfig.getRoutesPort(), instanceConfig.getRoutesPath());
+                instanceConfig.getRoutesPort(), instanceConfig.getRoutesPath(), instanceConfig.getRoutesBatchPath());
             connectionsDescriptorProvider = tenantRoutingBirdBuilder.build(null);
+            if (instanceConfig.getRoutesChangesEnabled()) {
+                routingChangesSource = tenantRoutingBirdBuilder.buildChangesSource(null,
+                    instanceConfig.getRoutesChangesPath(), instanceConfig.getRoutesChangesAwaitMillis());
+            }
         }
 
-        tenantRoutingProvider = new TenantRoutingProvider(connectionRefresh, instanceConfig.getInstanceKey(), connectionsDescriptorProvider);
+        RouteSnapshots routeSnapshots = null;
+        if (!Strings.isNullOrEmpty(instanceConfig.getRoutesSnapshotPath())) {
+            // relative paths resolve against the working directory, like ./certs
+            File routesSnapshotDirectory = new File(instanceConfig.getRoutesSnapshotPath()).getAbsoluteFile();
+            LOG.info("Snapshotting routes to {}", routesSnapshotDirectory);
+            routeSnapshots = new RouteSnapshots(routesSnapshotDirectory, instanceConfig.getRoutesSnapshotEveryMillis(),
+                instanceConfig.getRoutesSnapshotMaxAgeMillis());
+        }
+        tenantRoutingProvider = new TenantRoutingProvider(connectionRefresh, instanceConfig.getInstanceKey(), connectionsDescriptorProvider,
+            routeSnapshots);
+        if (instanceConfig.getRoutesMissWaitMillis() >= 0) {
+            tenantRoutingProvider.setRouteMissWait(BoundedExecutor.newBoundedExecutor(instanceConfig.getRoutesMissMaxLookups(), "routeMiss"),
+                instanceConfig.getRoutesMissWaitMillis());
+        }
+        if (routingChangesSource != null) {
+            tenantRoutingProvider.subscribe(routingChanges, routingChangesSource,
+                instanceConfig.getRoutesChangesAwaitMillis(), instanceConfig.getRoutesSafetyNetRefreshMillis());
+        }
 
 
         String keyStorePassword = null;
@@ -174,6 +201,9 @@ public class Deployable implements ConfigProvider {
             keyStorePath,
             instanceConfig.getMainMaxThreads(),
             instanceConfig.getMainMaxQueuedRequests());
+        if (instanceConfig.getMainCompressionEnabled()) {
+            restfulServer.enableCompression(instanceConfig.getMainCompressionMinSizeInBytes(), instanceConfig.getMainCompressionLevel());
+        }
     }
 
     public ServiceHandle buildMetricPublisher() {
@@ -19,6 +19,7 @@ import org.merlin.config.Config;
 import org.merlin.config.defaults.BooleanDefault;
 import org.merlin.config.defaults.Default;
 import org.merlin.config.defaults.IntDefault;
+import org.merlin.config.defaults.LongDefault;
 
 public interface InstanceConfig extends Config {
 
@@ -72,6 +73,42 @@ public interface InstanceConfig extends Config {
 
     void setRoutesPath(String path);
 
+    @Default("/request/connections/batch")
+    String getRoutesBatchPath();
+
+    void setRoutesBatchPath(String path);
+
+    @Default("/request/connections/changes")
+    String getRoutesChangesPath();
+
+    void setRoutesChangesPath(String path);
+
+    @BooleanDefault(false)
+    boolean getRoutesChangesEnabled();
+
+    @LongDefault(30_000)
+    Long getRoutesChangesAwaitMillis();
+
+    @LongDefault(600_000)
+    Long getRoutesSafetyNetRefreshMillis();
+
+    @Default("./var/routes")
+    String getRoutesSnapshotPath();
+
+    void setRoutesSnapshotPath(String path);
+
+    @LongDefault(300_000)
+    Long getRoutesSnapshotEveryMillis();
+
+    @LongDefault(3_600_000)
+    Long getRoutesSnapshotMaxAgeMillis();
+
+    @LongDefault(2_000)
+    Long getRoutesMissWaitMillis();
+
+    @IntDefault(16)
+    Integer getRoutesMissMaxLookups();
+
     @Default("/connections/health")
     String getConnectionsHealth();
 
@@ -149,4 +186,13 @@ public interface InstanceConfig extends Config {
     @IntDefault(10000)
     Integer getManageMaxQueuedRequests();
 
+    @BooleanDefault(false)
+    Boolean getMainCompressionEnabled();
+
+    @IntDefault(8192)
+    Integer getMainCompressionMinSizeInBytes();
+
+    @IntDefault(-1)
+    Integer getMainCompressionLevel();
+
 }
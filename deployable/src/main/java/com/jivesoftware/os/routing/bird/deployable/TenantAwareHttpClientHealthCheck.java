@@ -33,8 +33,17 @@ public class TenantAwareHttpClientHealthCheck implements HealthCheck {
                 .append(" leased:").append(poolStats.leased)
                 .append(" pending:").append(poolStats.pending)
                 .append(" max:").append(poolStats.max)
-                .append(" health:").append(poolStats.max)
-                .append("\n");
+                .append(" health:").append(poolStats.max);
+            if (poolStats.concurrencyLimit >= 0) {
+                messages.append(" concurrencyLimit:").append(poolStats.concurrencyLimit)
+                    .append(" concurrencyInflight:").append(poolStats.concurrencyInflight)
+                    .append(" concurrencyRejected:").append(poolStats.concurrencyRejected);
+            }
+            if (poolStats.coalesceCalls >= 0) {
+                messages.append(" coalesceCalls:").append(poolStats.coalesceCalls)
+                    .append(" coalesced:").append(poolStats.coalesced);
+            }
+            messages.append("\n");
 
 
             return true;
@@ -16,6 +16,7 @@
 package com.jivesoftware.os.routing.bird.deployable;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
@@ -27,25 +28,47 @@ import com.jivesoftware.os.routing.bird.shared.HttpClientException;
 import com.jivesoftware.os.routing.bird.http.client.HttpClientFactoryProvider;
 import com.jivesoftware.os.routing.bird.http.client.HttpResponse;
 import com.jivesoftware.os.routing.bird.http.client.OAuthSigner;
+import com.jivesoftware.os.routing.bird.shared.BatchConnectionDescriptorsProvider;
 import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptorsProvider;
+import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptorsRequest;
 import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptorsResponse;
+import com.jivesoftware.os.routing.bird.shared.RoutingChanges;
+import com.jivesoftware.os.routing.bird.shared.RoutingChangesSource;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class TenantRoutingBirdProviderBuilder {
 
     private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+    private static final TypeReference<List<ConnectionDescriptorsResponse>> RESPONSES = new TypeReference<List<ConnectionDescriptorsResponse>>() {
+    };
 
     private final String routesHost;
     private final int routesPort;
     private final String routesPath;
+    private final String routesBatchPath;
 
     public TenantRoutingBirdProviderBuilder(String routesHost, int routesPort, String routesPath) {
+        this(routesHost, routesPort, routesPath, null);
+    }
+
+    /**
+     * @param routesBatchPath accepts a JSON array of requests and answers with an array of responses; null to always ask one tenant at a
+     * time
+     */
+    public TenantRoutingBirdProviderBuilder(String routesHost, int routesPort, String routesPath, String routesBatchPath) {
         this.routesHost = routesHost;
         this.routesPort = routesPort;
         this.routesPath = routesPath;
+        this.routesBatchPath = routesBatchPath;
     }
 
     public ConnectionDescriptorsProvider build(OAuthSigner signer) {
@@ -54,11 +77,81 @@ public class TenantRoutingBirdProviderBuilder {
             .createHttpClientFactory(Collections.singletonList(httpClientConfig), false)
             .createClient(signer, routesHost, routesPort);
 
-        AtomicLong activeCount = new AtomicLong();
         final ObjectMapper mapper = new ObjectMapper();
         mapper.configure(SerializationFeature.INDENT_OUTPUT, true);
         mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        ConnectionDescriptorsProvider connectionsProvider = (connectionsRequest, expectedReleaseGroup) -> {
+        return new HttpConnectionDescriptorsProvider(httpClient, mapper, routesPath, routesBatchPath);
+    }
+
+    /**
+     * Long polls routesChangesPath, which is expected to hold each request open for up to awaitMillis and answer with
+     * {@link RoutingChanges}.
+     */
+    public RoutingChangesSource buildChangesSource(OAuthSigner signer, String routesChangesPath, long awaitChangesMillis) {
+        HttpClientConfig httpClientConfig = HttpClientConfig.newBuilder()
+            .setSocketTimeoutInMillis((int) Math.min(Integer.MAX_VALUE, awaitChangesMillis + 10_000))
+            .build();
+        final HttpClient httpClient = new HttpClientFactoryProvider()
+            .createHttpClientFactory(Collections.singletonList(httpClientConfig), false)
+            .createClient(signer, routesHost, routesPort);
+
+        final ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return (instanceId, sinceCursor, awaitMillis) -> {
+            String path;
+            try {
+                path = routesChangesPath
+                    + "?instanceId=" + URLEncoder.encode(instanceId, "UTF-8")
+                    + "&cursor=" + sinceCursor
+                    + "&awaitMillis=" + awaitMillis;
+            } catch (UnsupportedEncodingException x) {
+                throw new IllegalStateException(x);
+            }
+
+            HttpResponse response;
+            try {
+                response = httpClient.get(path, null);
+            } catch (HttpClientException e) {
+                LOG.warn("Error awaiting routing changes from {}. {}", routesChangesPath, e.getMessage());
+                return null;
+            }
+
+            int statusCode = response.getStatusCode();
+            if (statusCode == 404) {
+                throw new UnsupportedOperationException("Routes service has no changes endpoint at " + routesChangesPath);
+            }
+            if (statusCode < 200 || statusCode >= 300) {
+                LOG.warn("Awaiting routing changes from {} failed with status {}", routesChangesPath, statusCode);
+                return null;
+            }
+            try {
+                return mapper.readValue(response.getResponseBody(), RoutingChanges.class);
+            } catch (IOException x) {
+                LOG.error("Failed to deserialize routing changes. " + x.getMessage());
+                return null;
+            }
+        };
+    }
+
+    private static class HttpConnectionDescriptorsProvider implements BatchConnectionDescriptorsProvider {
+
+        private final HttpClient httpClient;
+        private final ObjectMapper mapper;
+        private final String routesPath;
+        private final String routesBatchPath;
+        private final AtomicLong activeCount = new AtomicLong();
+        private volatile boolean batchUnsupported;
+
+        HttpConnectionDescriptorsProvider(HttpClient httpClient, ObjectMapper mapper, String routesPath, String routesBatchPath) {
+            this.httpClient = httpClient;
+            this.mapper = mapper;
+            this.routesPath = routesPath;
+            this.routesBatchPath = routesBatchPath;
+            this.batchUnsupported = routesBatchPath == null;
+        }
+
+        @Override
+        public ConnectionDescriptorsResponse requestConnections(ConnectionDescriptorsRequest connectionsRequest, String expectedReleaseGroup) {
             activeCount.incrementAndGet();
             try {
                 LOG.debug("Requesting connections:{}", connectionsRequest);
@@ -107,7 +200,99 @@ public class TenantRoutingBirdProviderBuilder {
             } finally {
                 activeCount.decrementAndGet();
             }
-        };
-        return connectionsProvider;
+        }
+
+        /**
+         * Routes services which predate the batch endpoint answer 404 or 405, after which this falls back to one request per tenant.
+         */
+        @Override
+        public List<ConnectionDescriptorsResponse> requestConnections(List<ConnectionDescriptorsRequest> connectionsRequests,
+            List<String> expectedReleaseGroups) {
+
+            if (batchUnsupported) {
+                return requestEach(connectionsRequests, expectedReleaseGroups);
+            }
+
+            activeCount.incrementAndGet();
+            try {
+                LOG.debug("Requesting connections for {} tenants", connectionsRequests.size());
+
+                String postEntity;
+                try {
+                    postEntity = mapper.writeValueAsString(connectionsRequests);
+                } catch (JsonProcessingException e) {
+                    LOG.error("Error serializing {} connections requests. {}", connectionsRequests.size(), e.getMessage());
+                    return null;
+                }
+
+                HttpResponse response;
+                try {
+                    response = httpClient.postJson(routesBatchPath, postEntity, null);
+                } catch (HttpClientException e) {
+                    LOG.error("Error posting {} connections requests to {}", new Object[]{connectionsRequests.size(), routesBatchPath}, e);
+                    return null;
+                }
+
+                int statusCode = response.getStatusCode();
+                if (statusCode == 404 || statusCode == 405) {
+                    LOG.warn("Routes service does not support batched requests at {}, falling back to one request per tenant", routesBatchPath);
+                    batchUnsupported = true;
+                    return requestEach(connectionsRequests, expectedReleaseGroups);
+                }
+                if (statusCode < 200 || statusCode >= 300) {
+                    LOG.warn("Batched connections request for {} tenants failed with status {}", connectionsRequests.size(), statusCode);
+                    return null;
+                }
+
+                List<ConnectionDescriptorsResponse> batch;
+                try {
+                    batch = mapper.readValue(response.getResponseBody(), RESPONSES);
+                } catch (IOException x) {
+                    LOG.error("Failed to deserialize batched connections response. " + x.getMessage());
+                    return null;
+                }
+
+                Map<String, ConnectionDescriptorsResponse> byRequestUuid = new HashMap<>();
+                for (ConnectionDescriptorsResponse connectionDescriptorsResponse : batch) {
+                    if (connectionDescriptorsResponse != null && connectionDescriptorsResponse.getRequestUuid() != null) {
+                        byRequestUuid.put(connectionDescriptorsResponse.getRequestUuid(), connectionDescriptorsResponse);
+                    }
+                }
+                List<ConnectionDescriptorsResponse> responses = new ArrayList<>(connectionsRequests.size());
+                for (int i = 0; i < connectionsRequests.size(); i++) {
+                    ConnectionDescriptorsRequest connectionsRequest = connectionsRequests.get(i);
+                    ConnectionDescriptorsResponse connectionDescriptorsResponse = byRequestUuid.get(connectionsRequest.getRequestUuid());
+                    if (connectionDescriptorsResponse == null) {
+                        LOG.warn("Batched connections response is missing request:{}", connectionsRequest);
+                    } else {
+                        checkReleaseGroup(connectionsRequest, expectedReleaseGroups.get(i), connectionDescriptorsResponse);
+                    }
+                    responses.add(connectionDescriptorsResponse);
+                }
+                return responses;
+            } finally {
+                activeCount.decrementAndGet();
+            }
+        }
+
+        private List<ConnectionDescriptorsResponse> requestEach(List<ConnectionDescriptorsRequest> connectionsRequests,
+            List<String> expectedReleaseGroups) {
+            List<ConnectionDescriptorsResponse> responses = new ArrayList<>(connectionsRequests.size());
+            for (int i = 0; i < connectionsRequests.size(); i++) {
+                responses.add(requestConnections(connectionsRequests.get(i), expectedReleaseGroups.get(i)));
+            }
+            return responses;
+        }
+
+        private void checkReleaseGroup(ConnectionDescriptorsRequest connectionsRequest,
+            String expectedReleaseGroup,
+            ConnectionDescriptorsResponse connectionDescriptorsResponse) {
+            if (connectionDescriptorsResponse.getReturnCode() >= 0
+                && expectedReleaseGroup != null
+                && !expectedReleaseGroup.equals(connectionDescriptorsResponse.getReleaseGroup())) {
+                LOG.warn("Release group changed, active:{} request:{} response:{}",
+                    activeCount.get(), connectionsRequest, connectionDescriptorsResponse);
+            }
+        }
     }
 }
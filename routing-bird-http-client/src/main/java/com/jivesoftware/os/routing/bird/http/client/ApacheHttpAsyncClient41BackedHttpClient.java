@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.routing.bird.shared.Deadline;
+import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import com.jivesoftware.os.routing.bird.shared.HttpClientPoolStats;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import oauth.signpost.exception.OAuthCommunicationException;
+import oauth.signpost.exception.OAuthExpectationFailedException;
+import oauth.signpost.exception.OAuthMessageSignerException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.StatusLine;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+
+class ApacheHttpAsyncClient41BackedHttpClient implements AsyncHttpClient {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger(true);
+
+    private static final int JSON_POST_LOG_LENGTH_LIMIT = 2048;
+    private static final byte[] EMPTY_RESPONSE = new byte[0];
+
+    private final String scheme;
+    private final String host;
+    private final int port;
+    private final OAuthSigner oauthSigner;
+    private final CloseableHttpAsyncClient client;
+    private final ConnPoolControl<HttpRoute> connPoolControl;
+    private final HttpRoute route;
+    private final Map<String, String> headersForEveryRequest;
+    private final RequestConfig defaultRequestConfig;
+    private final AtomicLong activeCount = new AtomicLong(0);
+
+    public ApacheHttpAsyncClient41BackedHttpClient(String scheme,
+        String host,
+        int port,
+        OAuthSigner signer,
+        CloseableHttpAsyncClient client,
+        ConnPoolControl<HttpRoute> connPoolControl,
+        Map<String, String> headersForEveryRequest,
+        RequestConfig defaultRequestConfig) {
+
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        this.oauthSigner = signer;
+        this.client = client;
+        this.connPoolControl = connPoolControl;
+        this.route = new HttpRoute(new HttpHost(host, port, scheme), null, "https".equals(scheme));
+        this.headersForEveryRequest = headersForEveryRequest;
+        this.defaultRequestConfig = defaultRequestConfig;
+    }
+
+    @Override
+    public HttpClientPoolStats getPoolStats() {
+        PoolStats routeStats = connPoolControl.getStats(route);
+        return new HttpClientPoolStats(routeStats.getLeased(),
+            routeStats.getPending(),
+            routeStats.getAvailable(),
+            routeStats.getMax());
+    }
+
+    /**
+     * The underlying reactor and connection pool are owned by the {@link AsyncHttpClientFactory} and shared by every client it created,
+     * so closing a single client only abandons its route.
+     */
+    @Override
+    public void close() {
+    }
+
+    private URI toURI(String path) throws HttpClientException {
+        try {
+            return new URI(scheme + "://" + host + ':' + port + (path.startsWith("/") ? path : '/' + path));
+        } catch (URISyntaxException e) {
+            throw new HttpClientException("Bad URI", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> get(String path, Map<String, String> headers) {
+        try {
+            HttpGet get = new HttpGet(toURI(path));
+            setRequestHeaders(headers, get);
+            return execute(get, "GET request to: " + host + ':' + port + " path: " + path);
+        } catch (HttpClientException e) {
+            return failed(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> delete(String path, Map<String, String> headers) {
+        try {
+            HttpDelete delete = new HttpDelete(toURI(path));
+            setRequestHeaders(headers, delete);
+            return execute(delete, "DELETE request to: " + host + ':' + port + " path: " + path);
+        } catch (HttpClientException e) {
+            return failed(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> postJson(String path, String postJsonBody, Map<String, String> headers) {
+        try {
+            HttpPost post = new HttpPost(toURI(path));
+            setRequestHeaders(headers, post);
+            post.setEntity(new StringEntity(postJsonBody, ContentType.APPLICATION_JSON));
+            post.setHeader(ApacheHttpClient441BackedHttpClient.CONTENT_TYPE_HEADER_NAME, ApacheHttpClient441BackedHttpClient.APPLICATION_JSON_CONTENT_TYPE);
+            String trimmedPostBody = (postJsonBody.length() > JSON_POST_LOG_LENGTH_LIMIT)
+                ? postJsonBody.substring(0, JSON_POST_LOG_LENGTH_LIMIT) : postJsonBody;
+            return execute(post, "POST request to: " + host + ':' + port + " path: " + path + " JSON body: " + trimmedPostBody);
+        } catch (HttpClientException e) {
+            return failed(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> postBytes(String path, byte[] postBytes, Map<String, String> headers) {
+        try {
+            HttpPost post = new HttpPost(toURI(path));
+            setRequestHeaders(headers, post);
+            post.setEntity(new ByteArrayEntity(postBytes, ContentType.APPLICATION_OCTET_STREAM));
+            post.setHeader(ApacheHttpClient441BackedHttpClient.CONTENT_TYPE_HEADER_NAME, ApacheHttpClient441BackedHttpClient.APPLICATION_OCTET_STREAM_TYPE);
+            return execute(post, "POST request to: " + host + ':' + port + " path: " + path + " body of length: " + postBytes.length);
+        } catch (HttpClientException e) {
+            return failed(e);
+        }
+    }
+
+    private CompletableFuture<HttpResponse> execute(HttpRequestBase requestBase, String description) {
+        try {
+            applyHeadersCommonToAllRequests(requestBase);
+        } catch (OAuthMessageSignerException | OAuthExpectationFailedException | OAuthCommunicationException e) {
+            return failed(new HttpClientException("Error signing " + description, e));
+        } catch (IOException e) {
+            return failed(new HttpClientException("Error executing " + description, e));
+        }
+
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        activeCount.incrementAndGet();
+        client.execute(requestBase, new FutureCallback<org.apache.http.HttpResponse>() {
+            @Override
+            public void completed(org.apache.http.HttpResponse response) {
+                activeCount.decrementAndGet();
+                try {
+                    StatusLine statusLine = response.getStatusLine();
+                    HttpEntity entity = response.getEntity();
+                    byte[] responseBody = entity == null ? EMPTY_RESPONSE : EntityUtils.toByteArray(entity);
+                    future.complete(new HttpResponse(statusLine.getStatusCode(), statusLine.getReasonPhrase(), responseBody));
+                } catch (IOException e) {
+                    future.completeExceptionally(new HttpClientException("Error reading response for " + description, e));
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                activeCount.decrementAndGet();
+                LOG.debug("Failed executing {}", new Object[] { description }, ex);
+                future.completeExceptionally(new HttpClientException("Error executing " + description, ex));
+            }
+
+            @Override
+            public void cancelled() {
+                activeCount.decrementAndGet();
+                future.completeExceptionally(new HttpClientException("Cancelled " + description, new InterruptedIOException("cancelled")));
+            }
+        });
+        return future;
+    }
+
+    private static CompletableFuture<HttpResponse> failed(HttpClientException e) {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private void setRequestHeaders(Map<String, String> headers, HttpRequestBase requestBase) {
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                requestBase.setHeader(header.getKey(), header.getValue());
+            }
+        }
+    }
+
+    private void applyHeadersCommonToAllRequests(HttpRequestBase requestBase) throws OAuthMessageSignerException,
+        OAuthExpectationFailedException, OAuthCommunicationException, IOException {
+
+        for (Map.Entry<String, String> headerEntry : headersForEveryRequest.entrySet()) {
+            requestBase.setHeader(headerEntry.getKey(), headerEntry.getValue());
+        }
+
+        Deadline deadline = Deadline.current();
+        if (deadline != null) {
+            long remainingMillis = deadline.remainingMillis();
+            if (remainingMillis <= 0) {
+                throw new SocketTimeoutException("Deadline passed before sending " + requestBase.getMethod() + " " + requestBase.getURI());
+            }
+            RequestConfig configured = defaultRequestConfig == null ? RequestConfig.DEFAULT : defaultRequestConfig;
+            requestBase.setConfig(RequestConfig.copy(configured)
+                .setConnectionRequestTimeout(deadline.capTimeoutMillis(configured.getConnectionRequestTimeout()))
+                .setConnectTimeout(deadline.capTimeoutMillis(configured.getConnectTimeout()))
+                .setSocketTimeout(deadline.capTimeoutMillis(configured.getSocketTimeout()))
+                .build());
+            requestBase.setHeader(Deadline.HEADER, String.valueOf(remainingMillis));
+        }
+
+        if (oauthSigner != null) {
+            oauthSigner.sign(requestBase);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ApacheHttpAsyncClient41BackedHttpClient{"
+            + "scheme=" + scheme
+            + ", host=" + host
+            + ", port=" + port
+            + ", activeCount=" + activeCount
+            + ", headersForEveryRequest=" + headersForEveryRequest
+            + '}';
+    }
+}
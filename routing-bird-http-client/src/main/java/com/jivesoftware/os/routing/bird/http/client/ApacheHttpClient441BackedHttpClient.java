@@ -17,16 +17,22 @@ package com.jivesoftware.os.routing.bird.http.client;
 
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.routing.bird.shared.ContentCodec;
+import com.jivesoftware.os.routing.bird.shared.Deadline;
 import com.jivesoftware.os.routing.bird.shared.HttpClientException;
 import com.jivesoftware.os.routing.bird.shared.HttpClientPoolStats;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 import oauth.signpost.exception.OAuthCommunicationException;
@@ -35,8 +41,11 @@ import oauth.signpost.exception.OAuthMessageSignerException;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.StatusLine;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.Configurable;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
@@ -46,11 +55,11 @@ import org.apache.http.client.utils.HttpClientUtils;
 import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.pool.ConnPoolControl;
 import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
 
 class ApacheHttpClient441BackedHttpClient implements HttpClient {
 
@@ -58,6 +67,9 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
 
     private static final int JSON_POST_LOG_LENGTH_LIMIT = 2048;
     private static final String TIMER_NAME = "OutboundHttpRequest";
+    private static final int DEFAULT_PRESIZE = 4096;
+    private static final long MAX_PRESIZE = 16 * 1024 * 1024;
+    private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
 
     public static final String CONTENT_TYPE_HEADER_NAME = "Content-Type";
     public static final String APPLICATION_JSON_CONTENT_TYPE = "application/json";
@@ -69,8 +81,11 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
     private final OAuthSigner oauthSigner;
     private final CloseableHttpClient client;
     private final ConnPoolControl<HttpRoute> connPoolControl;
+    private final HttpRoute route;
     private final Closeable onClose;
     private final Map<String, String> headersForEveryRequest;
+    private final ContentCodec requestCodec;
+    private final int requestCompressionThreshold;
     private final AtomicLong activeCount = new AtomicLong(0);
 
     public ApacheHttpClient441BackedHttpClient(String scheme,
@@ -81,6 +96,19 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
         Closeable onClose,
         ConnPoolControl<HttpRoute> connPoolControl,
         Map<String, String> headersForEveryRequest) {
+        this(scheme, host, port, signer, client, onClose, connPoolControl, headersForEveryRequest, null, -1);
+    }
+
+    public ApacheHttpClient441BackedHttpClient(String scheme,
+        String host,
+        int port,
+        OAuthSigner signer,
+        CloseableHttpClient client,
+        Closeable onClose,
+        ConnPoolControl<HttpRoute> connPoolControl,
+        Map<String, String> headersForEveryRequest,
+        ContentCodec requestCodec,
+        int requestCompressionThreshold) {
 
         this.scheme = scheme;
         this.host = host;
@@ -90,16 +118,19 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
         this.client = client;
         this.onClose = onClose;
         this.connPoolControl = connPoolControl;
+        this.route = new HttpRoute(new HttpHost(host, port, scheme), null, "https".equals(scheme));
         this.headersForEveryRequest = headersForEveryRequest;
+        this.requestCodec = requestCompressionThreshold < 0 ? null : requestCodec;
+        this.requestCompressionThreshold = requestCompressionThreshold;
     }
 
     @Override
     public HttpClientPoolStats getPoolStats() {
-        PoolStats totalStats = connPoolControl.getTotalStats();
-        return new HttpClientPoolStats(totalStats.getLeased(),
-            totalStats.getPending(),
-            totalStats.getAvailable(),
-            totalStats.getMax());
+        PoolStats routeStats = connPoolControl.getStats(route);
+        return new HttpClientPoolStats(routeStats.getLeased(),
+            routeStats.getPending(),
+            routeStats.getAvailable(),
+            routeStats.getMax());
     }
 
     @Override
@@ -134,7 +165,7 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
         try {
             setRequestHeaders(headers, requestBase);
 
-            requestBase.setEntity(new StringEntity(jsonBody, ContentType.APPLICATION_JSON));
+            requestBase.setEntity(requestEntity(jsonBody.getBytes(StandardCharsets.UTF_8), ContentType.APPLICATION_JSON));
             requestBase.addHeader(CONTENT_TYPE_HEADER_NAME, APPLICATION_JSON_CONTENT_TYPE);
             return executeStream(requestBase);
         } catch (IOException | UnsupportedCharsetException | OAuthCommunicationException | OAuthExpectationFailedException |
@@ -150,6 +181,13 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
         OAuthExpectationFailedException,
         OAuthCommunicationException,
         IOException {
+        return executeStream(requestBase, true);
+    }
+
+    private HttpStreamResponse executeStream(HttpRequestBase requestBase, boolean requireSuccess) throws OAuthMessageSignerException,
+        OAuthExpectationFailedException,
+        OAuthCommunicationException,
+        IOException {
 
         applyHeadersCommonToAllRequests(requestBase);
 
@@ -158,16 +196,17 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
         StatusLine statusLine = response.getStatusLine();
         int status = statusLine.getStatusCode();
         LOG.debug("Got status: {} {}", status, statusLine.getReasonPhrase());
-        if (status < 200 || status >= 300) {
+        if (requireSuccess && (status < 200 || status >= 300)) {
             activeCount.decrementAndGet();
             HttpClientUtils.closeQuietly(response);
             requestBase.reset();
             throw new IOException("Bad status : " + statusLine);
         }
+        HttpEntity entity = response.getEntity();
         return new HttpStreamResponse(statusLine.getStatusCode(),
             statusLine.getReasonPhrase(),
             response,
-            response.getEntity().getContent(),
+            entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]),
             requestBase,
             activeCount);
     }
@@ -207,7 +246,7 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
 
             setRequestHeaders(headers, post);
 
-            post.setEntity(new StringEntity(postJsonBody, ContentType.APPLICATION_JSON));
+            post.setEntity(requestEntity(postJsonBody.getBytes(StandardCharsets.UTF_8), ContentType.APPLICATION_JSON));
             post.setHeader(CONTENT_TYPE_HEADER_NAME, APPLICATION_JSON_CONTENT_TYPE);
             return execute(post);
         } catch (IOException | UnsupportedCharsetException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
@@ -225,7 +264,7 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
 
             setRequestHeaders(headers, post);
 
-            post.setEntity(new ByteArrayEntity(postBytes, ContentType.APPLICATION_OCTET_STREAM));
+            post.setEntity(requestEntity(postBytes, ContentType.APPLICATION_OCTET_STREAM));
             post.setHeader(CONTENT_TYPE_HEADER_NAME, APPLICATION_OCTET_STREAM_TYPE);
             return execute(post);
         } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
@@ -242,7 +281,7 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
             HttpPost post = new HttpPost(toURI(path));
 
             setRequestHeaders(headers, post);
-            post.setEntity(new StreamableEntity(streamable));
+            post.setEntity(new StreamableEntity(streamable, APPLICATION_OCTET_STREAM_TYPE, requestCodec));
             post.setHeader(CONTENT_TYPE_HEADER_NAME, APPLICATION_OCTET_STREAM_TYPE);
             return executeStream(post);
         } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
@@ -257,7 +296,7 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
             HttpPost post = new HttpPost(toURI(path));
 
             setRequestHeaders(headers, post);
-            post.setEntity(new StreamableEntity(streamable));
+            post.setEntity(new StreamableEntity(streamable, APPLICATION_OCTET_STREAM_TYPE, requestCodec));
             post.setHeader(CONTENT_TYPE_HEADER_NAME, APPLICATION_OCTET_STREAM_TYPE);
             return execute(post);
         } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
@@ -266,12 +305,37 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
         }
     }
 
+    @Override
+    public HttpStreamResponse streamingPostJson(String path, StreamableRequest jsonRequest, Map<String, String> headers) throws HttpClientException {
+        try {
+            HttpPost post = new HttpPost(toURI(path));
+
+            String contentType = headers != null && headers.containsKey(CONTENT_TYPE_HEADER_NAME)
+                ? headers.get(CONTENT_TYPE_HEADER_NAME) : APPLICATION_JSON_CONTENT_TYPE;
+            setRequestHeaders(headers, post);
+            post.setEntity(new StreamableEntity(jsonRequest, contentType, requestCodec));
+            post.setHeader(CONTENT_TYPE_HEADER_NAME, contentType);
+            return executeStream(post, false);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing POST request to: "
+                + clientToString() + " path: " + path + " streamable: " + jsonRequest, e);
+        }
+    }
+
     static class StreamableEntity implements HttpEntity {
 
         private final StreamableRequest streamable;
+        private final String contentType;
+        private final ContentCodec codec;
 
         public StreamableEntity(StreamableRequest streamable) {
+            this(streamable, APPLICATION_OCTET_STREAM_TYPE, null);
+        }
+
+        public StreamableEntity(StreamableRequest streamable, String contentType, ContentCodec codec) {
             this.streamable = streamable;
+            this.contentType = contentType;
+            this.codec = codec;
         }
 
         @Override
@@ -291,12 +355,12 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
 
         @Override
         public Header getContentType() {
-            return new BasicHeader(CONTENT_TYPE_HEADER_NAME, APPLICATION_OCTET_STREAM_TYPE);
+            return new BasicHeader(CONTENT_TYPE_HEADER_NAME, contentType);
         }
 
         @Override
         public Header getContentEncoding() {
-            return null;
+            return codec == null ? null : new BasicHeader(HTTP.CONTENT_ENCODING, codec.getEncoding());
         }
 
         @Override
@@ -306,7 +370,20 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
 
         @Override
         public void writeTo(OutputStream outstream) throws IOException {
-            streamable.writeRequest(outstream);
+            writeTo(streamable, codec, outstream);
+        }
+
+        static void writeTo(StreamableRequest streamable, ContentCodec codec, OutputStream outstream) throws IOException {
+            if (codec == null) {
+                streamable.writeRequest(outstream);
+                return;
+            }
+            ContentEncodingMetrics.CountingOutputStream compressed = new ContentEncodingMetrics.CountingOutputStream(outstream);
+            OutputStream encoder = codec.compress(compressed);
+            ContentEncodingMetrics.CountingOutputStream uncompressed = new ContentEncodingMetrics.CountingOutputStream(encoder);
+            streamable.writeRequest(uncompressed);
+            encoder.close();
+            ContentEncodingMetrics.request(uncompressed.count, compressed.count);
         }
 
         @Override
@@ -346,15 +423,18 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
         try {
             response = client.execute(requestBase);
 
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            InputStream responseBodyAsStream = response.getEntity().getContent();
+            HttpEntity entity = response.getEntity();
+            long contentLength = entity != null ? entity.getContentLength() : 0;
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(contentLength >= 0 && contentLength < MAX_PRESIZE
+                ? (int) contentLength : DEFAULT_PRESIZE);
+            InputStream responseBodyAsStream = entity != null ? entity.getContent() : null;
             if (responseBodyAsStream != null) {
-                IOUtils.copy(responseBodyAsStream, outputStream);
+                IOUtils.copyLarge(responseBodyAsStream, outputStream, COPY_BUFFER.get());
             }
 
             responseBody = outputStream.toByteArray();
             statusLine = response.getStatusLine();
-            return new HttpResponse(statusLine.getStatusCode(), statusLine.getReasonPhrase(), responseBody);
+            return new HttpResponse(statusLine.getStatusCode(), statusLine.getReasonPhrase(), responseBody, responseHeaders(response));
 
         } finally {
             if (response != null) {
@@ -377,6 +457,23 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
         }
     }
 
+    private HttpEntity requestEntity(byte[] body, ContentType contentType) throws IOException {
+        if (requestCodec == null || body.length < requestCompressionThreshold) {
+            return new ByteArrayEntity(body, contentType);
+        }
+        ByteArrayEntity entity = new ByteArrayEntity(ContentEncodingMetrics.compressRequest(requestCodec, body), contentType);
+        entity.setContentEncoding(requestCodec.getEncoding());
+        return entity;
+    }
+
+    private static Map<String, String> responseHeaders(CloseableHttpResponse response) {
+        Map<String, String> headers = new HashMap<>();
+        for (Header header : response.getAllHeaders()) {
+            headers.merge(header.getName(), header.getValue(), (a, b) -> a + ", " + b);
+        }
+        return headers;
+    }
+
     private void setRequestHeaders(Map<String, String> headers, HttpRequestBase requestBase) {
         if (headers != null) {
             for (Map.Entry<String, String> header : headers.entrySet()) {
@@ -386,12 +483,30 @@ class ApacheHttpClient441BackedHttpClient implements HttpClient {
     }
 
     private void applyHeadersCommonToAllRequests(HttpRequestBase requestBase) throws OAuthMessageSignerException,
-        OAuthExpectationFailedException, OAuthCommunicationException {
+        OAuthExpectationFailedException, OAuthCommunicationException, IOException {
 
         for (Map.Entry<String, String> headerEntry : headersForEveryRequest.entrySet()) {
             requestBase.setHeader(headerEntry.getKey(), headerEntry.getValue());
         }
 
+        Deadline deadline = Deadline.current();
+        if (deadline != null) {
+            long remainingMillis = deadline.remainingMillis();
+            if (remainingMillis <= 0) {
+                throw new SocketTimeoutException("Deadline passed before sending " + requestBase.getMethod() + " " + requestBase.getURI());
+            }
+            RequestConfig configured = requestBase.getConfig();
+            if (configured == null) {
+                configured = client instanceof Configurable ? ((Configurable) client).getConfig() : RequestConfig.DEFAULT;
+            }
+            requestBase.setConfig(RequestConfig.copy(configured)
+                .setConnectionRequestTimeout(deadline.capTimeoutMillis(configured.getConnectionRequestTimeout()))
+                .setConnectTimeout(deadline.capTimeoutMillis(configured.getConnectTimeout()))
+                .setSocketTimeout(deadline.capTimeoutMillis(configured.getSocketTimeout()))
+                .build());
+            requestBase.setHeader(Deadline.HEADER, String.valueOf(remainingMillis));
+        }
+
         if (oauthSigner != null) {
             oauthSigner.sign(requestBase);
         }
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.routing.bird.shared.HasHttpClientPoolStats;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking sibling of {@link HttpClient}. Every method returns immediately; transport failures complete the future exceptionally
+ * with an {@link com.jivesoftware.os.routing.bird.shared.HttpClientException} whose cause is the underlying IOException.
+ */
+public interface AsyncHttpClient extends HasHttpClientPoolStats {
+
+    CompletableFuture<HttpResponse> get(String path, Map<String, String> headers);
+
+    CompletableFuture<HttpResponse> delete(String path, Map<String, String> headers);
+
+    CompletableFuture<HttpResponse> postBytes(String path, byte[] postBytes, Map<String, String> headers);
+
+    CompletableFuture<HttpResponse> postJson(String path, String postJsonBody, Map<String, String> headers);
+
+    void close();
+
+}
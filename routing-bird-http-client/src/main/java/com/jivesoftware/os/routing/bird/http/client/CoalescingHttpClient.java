@@ -0,0 +1,243 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.routing.bird.shared.ConcurrencyLimitExceededException;
+import com.jivesoftware.os.routing.bird.shared.Deadline;
+import com.jivesoftware.os.routing.bird.shared.DeadlineExceededException;
+import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import com.jivesoftware.os.routing.bird.shared.HttpClientPoolStats;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent identical GETs (same path and headers) against one instance into a single in-flight call. Callers which arrive
+ * while a call is in flight wait for it and get the same response, including the same body array, so response bodies must be treated as
+ * read only. Nothing is cached once the call completes. A leader which times out or runs past its deadline is not shared; each caller
+ * retries on its own deadline instead. Every other failure is rethrown as a fresh exception per caller. The number of gets and how many
+ * were coalesced are reported through {@link #getPoolStats()}. Every other method passes straight through.
+ */
+public class CoalescingHttpClient implements HttpClient {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+
+    private final HttpClient delegate;
+    private final ConcurrentHashMap<GetKey, CompletableFuture<HttpResponse>> inflight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public CoalescingHttpClient(HttpClient delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public HttpResponse get(String path, Map<String, String> headers) throws HttpClientException {
+        calls.incrementAndGet();
+        GetKey key = new GetKey(path, headers);
+        CompletableFuture<HttpResponse> leader = new CompletableFuture<>();
+        CompletableFuture<HttpResponse> existing = inflight.putIfAbsent(key, leader);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            LOG.inc("coalesce>get>shared");
+            return await(existing, path, headers);
+        }
+
+        LOG.inc("coalesce>get>leader");
+        try {
+            HttpResponse response = delegate.get(path, headers);
+            leader.complete(response);
+            return response;
+        } catch (HttpClientException | RuntimeException e) {
+            leader.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflight.remove(key, leader);
+        }
+    }
+
+    private HttpResponse await(CompletableFuture<HttpResponse> future, String path, Map<String, String> headers) throws HttpClientException {
+        Deadline deadline = Deadline.current();
+        try {
+            if (deadline == null) {
+                return future.get();
+            }
+            return future.get(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException("Deadline:" + deadline + " passed while waiting on a coalesced get for path:" + path, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpClientException("Interrupted while waiting on a coalesced get for path:" + path, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (isTimeout(cause)) {
+                // the leader ran out of its own time, which says nothing about how much this caller has left
+                if (deadline != null && deadline.isExpired()) {
+                    throw new DeadlineExceededException("Deadline:" + deadline + " passed while waiting on a coalesced get for path:" + path,
+                        cause);
+                }
+                LOG.inc("coalesce>get>retried");
+                return delegate.get(path, headers);
+            } else if (cause instanceof ConcurrencyLimitExceededException) {
+                throw new ConcurrencyLimitExceededException(cause.getMessage());
+            } else if (cause instanceof HttpClientException) {
+                // keep an io cause at the top so callers still fail over, but never hand the leader's instance to another thread
+                throw new HttpClientException("Coalesced get failed for path:" + path + " " + cause.getMessage(),
+                    cause.getCause() instanceof IOException ? cause.getCause() : cause);
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException("Coalesced get failed for path:" + path, cause);
+        }
+    }
+
+    private static boolean isTimeout(Throwable cause) {
+        return cause instanceof DeadlineExceededException
+            || (cause instanceof HttpClientException && cause.getCause() instanceof InterruptedIOException);
+    }
+
+    /**
+     * @return the total number of gets this client has been asked for
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return the number of gets which shared another caller's in-flight request rather than issuing their own
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the fraction of gets which were served by another caller's request, 0 when there have been none
+     */
+    public double getCoalescingRatio() {
+        long c = calls.get();
+        return c == 0 ? 0d : (double) coalesced.get() / c;
+    }
+
+    @Override
+    public HttpClientPoolStats getPoolStats() {
+        HttpClientPoolStats poolStats = delegate.getPoolStats();
+        return new HttpClientPoolStats(poolStats.leased,
+            poolStats.pending,
+            poolStats.available,
+            poolStats.max,
+            poolStats.concurrencyLimit,
+            poolStats.concurrencyInflight,
+            poolStats.concurrencyRejected,
+            calls.get(),
+            coalesced.get());
+    }
+
+    @Override
+    public HttpResponse delete(String path, Map<String, String> headers) throws HttpClientException {
+        return delegate.delete(path, headers);
+    }
+
+    @Override
+    public HttpResponse postBytes(String path, byte[] postBytes, Map<String, String> headers) throws HttpClientException {
+        return delegate.postBytes(path, postBytes, headers);
+    }
+
+    @Override
+    public HttpResponse postJson(String path, String postJsonBody, Map<String, String> headers) throws HttpClientException {
+        return delegate.postJson(path, postJsonBody, headers);
+    }
+
+    @Override
+    public HttpStreamResponse streamingPost(String path, String postJsonBody, Map<String, String> headers) throws HttpClientException {
+        return delegate.streamingPost(path, postJsonBody, headers);
+    }
+
+    @Override
+    public HttpStreamResponse streamingPostStreamableRequest(String path,
+        HttpClient.StreamableRequest streamableRequest,
+        Map<String, String> headers) throws HttpClientException {
+        return delegate.streamingPostStreamableRequest(path, streamableRequest, headers);
+    }
+
+    @Override
+    public HttpResponse postStreamableRequest(String path,
+        HttpClient.StreamableRequest streamableRequest,
+        Map<String, String> headers) throws HttpClientException {
+        return delegate.postStreamableRequest(path, streamableRequest, headers);
+    }
+
+    @Override
+    public HttpStreamResponse streamingPostJson(String path,
+        HttpClient.StreamableRequest jsonRequest,
+        Map<String, String> headers) throws HttpClientException {
+        return delegate.streamingPostJson(path, jsonRequest, headers);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return "CoalescingHttpClient{"
+            + "delegate=" + delegate
+            + ", calls=" + calls
+            + ", coalesced=" + coalesced
+            + '}';
+    }
+
+    private static final class GetKey {
+
+        private final String path;
+        private final Map<String, String> headers;
+        private final int hashCode;
+
+        private GetKey(String path, Map<String, String> headers) {
+            this.path = path;
+            this.headers = headers == null || headers.isEmpty() ? Collections.emptyMap() : new HashMap<>(headers);
+            this.hashCode = 31 * Objects.hashCode(path) + this.headers.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            GetKey getKey = (GetKey) o;
+            return Objects.equals(path, getKey.path) && headers.equals(getKey.headers);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
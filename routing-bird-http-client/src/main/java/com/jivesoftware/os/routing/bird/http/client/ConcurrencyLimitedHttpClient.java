@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.routing.bird.shared.ConcurrencyLimit;
+import com.jivesoftware.os.routing.bird.shared.ConcurrencyLimitExceededException;
+import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import com.jivesoftware.os.routing.bird.shared.HttpClientPoolStats;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caps concurrent requests to one instance with an adaptive {@link ConcurrencyLimit}. Over the limit a call fails fast with
+ * {@link ConcurrencyLimitExceededException}, which the next client strategies treat as "try the next client".
+ */
+public class ConcurrencyLimitedHttpClient implements HttpClient {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+
+    private final HttpClient delegate;
+    private final ConcurrencyLimit limit;
+
+    public ConcurrencyLimitedHttpClient(HttpClient delegate, ConcurrencyLimit limit) {
+        this.delegate = delegate;
+        this.limit = limit;
+    }
+
+    private interface LimitedCall<R> {
+
+        R call() throws HttpClientException;
+    }
+
+    private void acquire() throws ConcurrencyLimitExceededException {
+        if (!limit.tryAcquire()) {
+            LOG.inc("concurrencyLimit>rejected");
+            throw new ConcurrencyLimitExceededException("Client:" + delegate + " is at its concurrency limit:" + limit);
+        }
+    }
+
+    private <R> R limited(LimitedCall<R> call) throws HttpClientException {
+        acquire();
+        long start = System.nanoTime();
+        boolean dropped = false;
+        try {
+            return call.call();
+        } catch (HttpClientException e) {
+            dropped = e.getCause() instanceof IOException;
+            throw e;
+        } finally {
+            limit.release(System.nanoTime() - start, dropped);
+        }
+    }
+
+    /**
+     * A streamed response is still using the instance until its body has been read, so the permit goes back when the caller closes or
+     * aborts it rather than when the headers arrive.
+     */
+    private HttpStreamResponse limitedStream(LimitedCall<HttpStreamResponse> call) throws HttpClientException {
+        acquire();
+        long start = System.nanoTime();
+        boolean dropped = false;
+        HttpStreamResponse response = null;
+        try {
+            response = call.call();
+        } catch (HttpClientException e) {
+            dropped = e.getCause() instanceof IOException;
+            throw e;
+        } finally {
+            if (response == null) {
+                limit.release(System.nanoTime() - start, dropped);
+            }
+        }
+        return new LimitedStreamResponse(response, start);
+    }
+
+    @Override
+    public HttpClientPoolStats getPoolStats() {
+        HttpClientPoolStats poolStats = delegate.getPoolStats();
+        return new HttpClientPoolStats(poolStats.leased,
+            poolStats.pending,
+            poolStats.available,
+            poolStats.max,
+            limit.getLimit(),
+            limit.getInflight(),
+            limit.getRejected());
+    }
+
+    @Override
+    public HttpResponse get(String path, Map<String, String> headers)
+        throws HttpClientException {
+        return limited(() -> delegate.get(path, headers));
+    }
+
+    @Override
+    public HttpResponse delete(String path, Map<String, String> headers)
+        throws HttpClientException {
+        return limited(() -> delegate.delete(path, headers));
+    }
+
+    @Override
+    public HttpResponse postBytes(String path, byte[] postBytes, Map<String, String> headers)
+        throws HttpClientException {
+        return limited(() -> delegate.postBytes(path, postBytes, headers));
+    }
+
+    @Override
+    public HttpResponse postJson(String path, String postJsonBody, Map<String, String> headers)
+        throws HttpClientException {
+        return limited(() -> delegate.postJson(path, postJsonBody, headers));
+    }
+
+    @Override
+    public HttpStreamResponse streamingPost(String path, String postJsonBody, Map<String, String> headers)
+        throws HttpClientException {
+        return limitedStream(() -> delegate.streamingPost(path, postJsonBody, headers));
+    }
+
+    @Override
+    public HttpStreamResponse streamingPostStreamableRequest(String path,
+        HttpClient.StreamableRequest streamableRequest,
+        Map<String, String> headers) throws HttpClientException {
+        return limitedStream(() -> delegate.streamingPostStreamableRequest(path, streamableRequest, headers));
+    }
+
+    @Override
+    public HttpResponse postStreamableRequest(String path,
+        HttpClient.StreamableRequest streamableRequest,
+        Map<String, String> headers) throws HttpClientException {
+        return limited(() -> delegate.postStreamableRequest(path, streamableRequest, headers));
+    }
+
+    @Override
+    public HttpStreamResponse streamingPostJson(String path,
+        HttpClient.StreamableRequest jsonRequest,
+        Map<String, String> headers) throws HttpClientException {
+        return limitedStream(() -> delegate.streamingPostJson(path, jsonRequest, headers));
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimitedHttpClient{"
+            + "delegate=" + delegate
+            + ", limit=" + limit
+            + '}';
+    }
+
+    private class LimitedStreamResponse extends HttpStreamResponse {
+
+        private final HttpStreamResponse delegate;
+        private final long start;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private LimitedStreamResponse(HttpStreamResponse delegate, long start) {
+            super(delegate.statusCode,
+                delegate.statusReasonPhrase,
+                delegate.closeableHttpResponse,
+                delegate.inputStream,
+                delegate.requestBase,
+                delegate.activeCount);
+            this.delegate = delegate;
+            this.start = start;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return delegate.getInputStream();
+        }
+
+        @Override
+        public int getStatusCode() {
+            return delegate.getStatusCode();
+        }
+
+        @Override
+        public String getStatusReasonPhrase() {
+            return delegate.getStatusReasonPhrase();
+        }
+
+        @Override
+        public String getContentType() {
+            return delegate.getContentType();
+        }
+
+        @Override
+        public void abort() {
+            try {
+                delegate.abort();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                delegate.close();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public long getActiveCount() {
+            return delegate.getActiveCount();
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                limit.release(System.nanoTime() - start, false);
+            }
+        }
+    }
+}
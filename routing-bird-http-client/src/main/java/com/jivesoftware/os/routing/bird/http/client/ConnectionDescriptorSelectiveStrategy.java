@@ -15,6 +15,7 @@
  */
 package com.jivesoftware.os.routing.bird.http.client;
 
+import com.jivesoftware.os.routing.bird.shared.CircuitBreaker;
 import com.jivesoftware.os.routing.bird.shared.ClientCall;
 import com.jivesoftware.os.routing.bird.shared.ClientHealth;
 import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptor;
@@ -25,8 +26,6 @@ import com.jivesoftware.os.routing.bird.shared.NextClientStrategy;
 import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure;
 import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure.Favored;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class ConnectionDescriptorSelectiveStrategy implements NextClientStrategy, IndexedClientStrategy {
@@ -46,10 +45,7 @@ public class ConnectionDescriptorSelectiveStrategy implements NextClientStrategy
         long connectionDescriptorsVersion,
         C[] clients,
         ClientHealth[] clientHealths,
-        int deadAfterNErrors,
-        long checkDeadEveryNMillis,
-        AtomicInteger[] clientsErrors,
-        AtomicLong[] clientsDeathTimestamp,
+        CircuitBreaker[] clientBreakers,
         Favored favored) throws HttpClientException {
         return returnFirstNonFailure.call(this,
             family,
@@ -58,10 +54,7 @@ public class ConnectionDescriptorSelectiveStrategy implements NextClientStrategy
             connectionDescriptorsVersion,
             clients,
             clientHealths,
-            deadAfterNErrors,
-            checkDeadEveryNMillis,
-            clientsErrors,
-            clientsDeathTimestamp,
+            clientBreakers,
             favored);
     }
 
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.routing.bird.shared.ContentCodec;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Publishes compressed and uncompressed byte counts for request and response bodies as compression&gt;request and
+ * compression&gt;response counters. Response bodies are counted on both sides of HttpClient's own content decoding, so
+ * {@link #BEFORE_DECODING} has to run first among the response interceptors and {@link #AFTER_DECODING} last.
+ */
+final class ContentEncodingMetrics {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+    private static final String ENCODED = ContentEncodingMetrics.class.getName() + ".encoded";
+
+    static final HttpResponseInterceptor BEFORE_DECODING = (response, context) -> {
+        HttpEntity entity = response.getEntity();
+        Header contentEncoding = entity != null ? entity.getContentEncoding() : null;
+        if (contentEncoding != null && ContentCodec.forEncoding(contentEncoding.getValue()) != null) {
+            response.setEntity(new CountingEntity(entity, "compression>response>compressedBytes"));
+            context.setAttribute(ENCODED, Boolean.TRUE);
+        }
+    };
+
+    static final HttpResponseInterceptor AFTER_DECODING = (response, context) -> {
+        if (Boolean.TRUE.equals(context.getAttribute(ENCODED))) {
+            context.removeAttribute(ENCODED);
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                response.setEntity(new CountingEntity(entity, "compression>response>uncompressedBytes"));
+            }
+        }
+    };
+
+    private ContentEncodingMetrics() {
+    }
+
+    static void request(long uncompressedBytes, long compressedBytes) {
+        LOG.inc("compression>request>uncompressedBytes", uncompressedBytes);
+        LOG.inc("compression>request>compressedBytes", compressedBytes);
+    }
+
+    /**
+     * Compresses a buffered request body with codec and counts both sizes.
+     */
+    static byte[] compressRequest(ContentCodec codec, byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        try (OutputStream out = codec.compress(compressed)) {
+            out.write(body);
+        }
+        request(body.length, compressed.size());
+        return compressed.toByteArray();
+    }
+
+    /**
+     * For transports which do not decode responses themselves: decodes in with codec, counting bytes on both sides.
+     */
+    static InputStream decodeResponse(InputStream in, ContentCodec codec) throws IOException {
+        InputStream decoded = codec.decompress(new CountingInputStream(in, "compression>response>compressedBytes"));
+        return new CountingInputStream(decoded, "compression>response>uncompressedBytes");
+    }
+
+    /**
+     * Counts what passes through on its way to out. Closing finishes nothing below it; it only flushes.
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static class CountingEntity extends HttpEntityWrapper {
+
+        private final String counter;
+
+        CountingEntity(HttpEntity wrappedEntity, String counter) {
+            super(wrappedEntity);
+            this.counter = counter;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            InputStream content = super.getContent();
+            return content == null ? null : new CountingInputStream(content, counter);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final String counter;
+        private long count;
+        private boolean reported;
+
+        CountingInputStream(InputStream in, String counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                report();
+            } else {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) {
+                report();
+            } else {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                report();
+            }
+        }
+
+        private void report() {
+            if (!reported) {
+                reported = true;
+                LOG.inc(counter, count);
+            }
+        }
+    }
+}
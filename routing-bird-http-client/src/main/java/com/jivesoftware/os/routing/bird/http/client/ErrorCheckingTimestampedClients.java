@@ -17,29 +17,34 @@ package com.jivesoftware.os.routing.bird.http.client;
 
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.routing.bird.shared.AsyncClientCall;
+import com.jivesoftware.os.routing.bird.shared.CircuitBreaker;
 import com.jivesoftware.os.routing.bird.shared.ClientCall;
 import com.jivesoftware.os.routing.bird.shared.ClientHealth;
 import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptor;
+import com.jivesoftware.os.routing.bird.shared.Deadline;
+import com.jivesoftware.os.routing.bird.shared.DeadlineAsyncClientCall;
+import com.jivesoftware.os.routing.bird.shared.DeadlineClientCall;
 import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import com.jivesoftware.os.routing.bird.shared.IndexedClientStrategy;
 import com.jivesoftware.os.routing.bird.shared.NextClientStrategy;
+import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure;
 import com.jivesoftware.os.routing.bird.shared.TimestampedClients;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.CompletableFuture;
 
 public class ErrorCheckingTimestampedClients<C> implements TimestampedClients<C, HttpClientException> {
 
     private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+    private static final IndexedClientStrategy IN_ORDER = new RoundRobinStrategy();
 
     private final String routingGroup;
     private final long timestamp;
     private final ConnectionDescriptor[] connectionDescriptors;
     private final C[] clients;
     private final ClientHealth[] clientHealths;
-    private final int deadAfterNErrors;
-    private final long checkDeadEveryNMillis;
-    private final AtomicInteger[] clientsErrors;
-    private final AtomicLong[] clientsDeathTimestamp;
+    private final CircuitBreaker[] clientBreakers;
+    private final ReturnFirstNonFailure returnFirstNonFailure = new ReturnFirstNonFailure();
 
     public ErrorCheckingTimestampedClients(String routingGroup,
         long timestamp,
@@ -49,38 +54,73 @@ public class ErrorCheckingTimestampedClients<C> implements TimestampedClients<C,
         int deadAfterNErrors,
         long checkDeadEveryNMillis) {
 
+        this(routingGroup,
+            timestamp,
+            connectionDescriptors,
+            clients,
+            clientHealths,
+            newBreakers(clients.length, deadAfterNErrors, checkDeadEveryNMillis));
+    }
+
+    /**
+     * Breakers are expected to be shared by every routing group which talks to the same instance, and to outlive routing refreshes.
+     */
+    public ErrorCheckingTimestampedClients(String routingGroup,
+        long timestamp,
+        ConnectionDescriptor[] connectionDescriptors,
+        C[] clients,
+        ClientHealth[] clientHealths,
+        CircuitBreaker[] clientBreakers) {
+
         this.routingGroup = routingGroup;
         this.timestamp = timestamp;
         this.connectionDescriptors = connectionDescriptors;
         this.clients = clients;
         this.clientHealths = clientHealths;
-        this.deadAfterNErrors = deadAfterNErrors;
-        this.checkDeadEveryNMillis = checkDeadEveryNMillis;
-        int l = clients.length;
-        this.clientsErrors = new AtomicInteger[l];
-        this.clientsDeathTimestamp = new AtomicLong[l];
-        for (int i = 0; i < l; i++) {
-            clientsErrors[i] = new AtomicInteger(0);
-            clientsDeathTimestamp[i] = new AtomicLong(0);
+        this.clientBreakers = clientBreakers;
+    }
+
+    private static CircuitBreaker[] newBreakers(int count, int deadAfterNErrors, long checkDeadEveryNMillis) {
+        CircuitBreaker[] breakers = new CircuitBreaker[count];
+        for (int i = 0; i < count; i++) {
+            breakers[i] = new CircuitBreaker(deadAfterNErrors, checkDeadEveryNMillis);
         }
+        return breakers;
     }
 
+    /**
+     * Calls inherit the calling thread's {@link Deadline}, if it has one and it is earlier than the call's own.
+     */
     @Override
     public <R> R call(NextClientStrategy strategy, String family, ClientCall<C, R, HttpClientException> httpCall) throws HttpClientException {
 
         return strategy.call(family,
-            httpCall,
+            DeadlineClientCall.bind(httpCall),
             connectionDescriptors,
             timestamp,
             clients,
             clientHealths,
-            deadAfterNErrors,
-            checkDeadEveryNMillis,
-            clientsErrors,
-            clientsDeathTimestamp,
+            clientBreakers,
             null);
     }
 
+    /**
+     * Strategies which can rank clients up front (round robin, stable shuffle, selective) drive the async failover order directly.
+     * Anything else falls back to round robin since there is no thread to park on while the strategy deliberates. Calls inherit the
+     * calling thread's {@link Deadline} the same way sync calls do.
+     */
+    @Override
+    public <R> CompletableFuture<R> callAsync(NextClientStrategy strategy, String family, AsyncClientCall<C, R> httpCall) {
+        IndexedClientStrategy indexedStrategy = strategy instanceof IndexedClientStrategy ? (IndexedClientStrategy) strategy : IN_ORDER;
+        return returnFirstNonFailure.callAsync(indexedStrategy,
+            family,
+            DeadlineAsyncClientCall.bind(httpCall),
+            connectionDescriptors,
+            timestamp,
+            clients,
+            clientHealths,
+            clientBreakers);
+    }
 
     @Override
     public String getRoutingGroup() {
@@ -97,6 +137,18 @@ public class ErrorCheckingTimestampedClients<C> implements TimestampedClients<C,
         return clients;
     }
 
+    public ConnectionDescriptor[] getConnectionDescriptors() {
+        return connectionDescriptors;
+    }
+
+    public ClientHealth[] getClientHealths() {
+        return clientHealths;
+    }
+
+    public CircuitBreaker[] getClientBreakers() {
+        return clientBreakers;
+    }
+
     @Override
     public String toString() {
         return "TimestampedClient{"
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds how much extra load {@link TailAtScaleStrategy} may add by hedging. Every primary request earns budgetRatio of a hedge and every
+ * hedge spends one, with at most maxBudget hedges banked, so over any stretch of traffic hedges stay near budgetRatio of primaries. The
+ * default budget is 5% with a burst of 10; a negative budgetRatio explicitly opts out of the budget.
+ */
+public class HedgePolicy {
+
+    static final double DEFAULT_BUDGET_RATIO = 0.05d;
+    static final int DEFAULT_MAX_BUDGET = 10;
+
+    private static final long UNIT = 1_000_000L;
+
+    private final int maxHedges;
+    private final long minHedgeDelayMillis;
+    private final boolean dragRandomReplica;
+    private final long earnedPerPrimary;
+    private final long maxTokens;
+    private final AtomicLong tokens;
+
+    private HedgePolicy(int maxHedges, long minHedgeDelayMillis, boolean dragRandomReplica, double budgetRatio, int maxBudget) {
+        this.maxHedges = maxHedges;
+        this.minHedgeDelayMillis = minHedgeDelayMillis;
+        this.dragRandomReplica = dragRandomReplica;
+        this.earnedPerPrimary = budgetRatio < 0 ? -1 : (long) (budgetRatio * UNIT);
+        this.maxTokens = (long) maxBudget * UNIT;
+        this.tokens = new AtomicLong(maxTokens);
+    }
+
+    public int getMaxHedges() {
+        return maxHedges;
+    }
+
+    public long getMinHedgeDelayMillis() {
+        return minHedgeDelayMillis;
+    }
+
+    public boolean isDragRandomReplica() {
+        return dragRandomReplica;
+    }
+
+    void primary() {
+        if (earnedPerPrimary < 0) {
+            return;
+        }
+        long current = tokens.get();
+        while (current < maxTokens) {
+            long next = Math.min(maxTokens, current + earnedPerPrimary);
+            if (tokens.compareAndSet(current, next)) {
+                return;
+            }
+            current = tokens.get();
+        }
+    }
+
+    boolean tryAcquireHedge() {
+        if (earnedPerPrimary < 0) {
+            return true;
+        }
+        long current = tokens.get();
+        while (current >= UNIT) {
+            if (tokens.compareAndSet(current, current - UNIT)) {
+                return true;
+            }
+            current = tokens.get();
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "HedgePolicy{"
+            + "maxHedges=" + maxHedges
+            + ", minHedgeDelayMillis=" + minHedgeDelayMillis
+            + ", dragRandomReplica=" + dragRandomReplica
+            + ", earnedPerPrimary=" + earnedPerPrimary
+            + ", maxTokens=" + maxTokens
+            + ", tokens=" + tokens
+            + '}';
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    final public static class Builder {
+
+        private int maxHedges = 2;
+        private long minHedgeDelayMillis = 0;
+        private boolean dragRandomReplica = true;
+        private double budgetRatio = DEFAULT_BUDGET_RATIO;
+        private int maxBudget = DEFAULT_MAX_BUDGET;
+
+        private Builder() {
+        }
+
+        /**
+         * Number of additional ranked replicas tried after the primary.
+         */
+        public Builder setMaxHedges(int maxHedges) {
+            this.maxHedges = maxHedges;
+            return this;
+        }
+
+        /**
+         * Floor on how long the primary gets before the first hedge, regardless of how fast the best replica's percentile says it is.
+         */
+        public Builder setMinHedgeDelayMillis(long minHedgeDelayMillis) {
+            this.minHedgeDelayMillis = minHedgeDelayMillis;
+            return this;
+        }
+
+        /**
+         * Whether a random unranked replica is pulled in once every ranked attempt is slow.
+         */
+        public Builder setDragRandomReplica(boolean dragRandomReplica) {
+            this.dragRandomReplica = dragRandomReplica;
+            return this;
+        }
+
+        /**
+         * @param budgetRatio hedges allowed per primary request, e.g. 0.05 for 5%, or negative for no limit
+         * @param maxBudget hedges which can be banked for a burst
+         */
+        public Builder setBudget(double budgetRatio, int maxBudget) {
+            this.budgetRatio = budgetRatio;
+            this.maxBudget = maxBudget;
+            return this;
+        }
+
+        public HedgePolicy build() {
+            if (maxHedges < 0) {
+                throw new IllegalArgumentException("maxHedges cannot be negative");
+            }
+            return new HedgePolicy(maxHedges, minHedgeDelayMillis, dragRandomReplica, budgetRatio, maxBudget);
+        }
+    }
+}
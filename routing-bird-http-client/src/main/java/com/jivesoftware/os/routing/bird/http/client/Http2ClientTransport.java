@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.eclipse.jetty.http2.ErrorCode;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.Promise;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Multiplexes requests over a few cleartext HTTP/2 (h2c, prior knowledge) connections per instance instead of holding one
+ * connection per in-flight request, so hedged and fan-out calls no longer queue for a pooled socket. A cancelled or timed out
+ * request resets only its own stream. Instances are expected to serve h2c, which {@code RestfulServer} does on its plaintext
+ * connector.
+ * <p>
+ * Negotiating h2 over TLS needs ALPN, which this Jetty only offers through alpn-boot on the boot classpath, so ssl configurations
+ * fall back to {@link HttpClientFactoryProvider}'s HTTP/1.1 clients.
+ */
+public class Http2ClientTransport implements HttpClientTransport {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+
+    private final int connectionsPerHost;
+
+    public Http2ClientTransport() {
+        this(2);
+    }
+
+    /**
+     * @param connectionsPerHost connections each instance's streams are spread across
+     */
+    public Http2ClientTransport(int connectionsPerHost) {
+        this.connectionsPerHost = Math.max(1, connectionsPerHost);
+    }
+
+    @Override
+    public SharedHttpClientFactory createSharedHttpClientFactory(Collection<HttpClientConfiguration> configurations) throws HttpClientException {
+
+        HttpClientConfig httpClientConfig = HttpClientFactoryProvider.locateConfig(configurations, HttpClientConfig.class,
+            HttpClientConfig.newBuilder().build());
+        HttpClientSSLConfig sslConfig = HttpClientFactoryProvider.locateConfig(configurations, HttpClientSSLConfig.class, null);
+        if (sslConfig != null && sslConfig.isUseSsl()) {
+            LOG.info("HTTP/2 over TLS needs ALPN which is unavailable, ssl connections will use HTTP/1.1");
+            return new HttpClientFactoryProvider().createSharedHttpClientFactory(configurations);
+        }
+
+        QueuedThreadPool executor = new QueuedThreadPool();
+        executor.setName("http2-client");
+        HTTP2Client http2Client = new HTTP2Client();
+        http2Client.setExecutor(executor);
+        http2Client.setIdleTimeout(httpClientConfig.getSocketTimeoutInMillis() > 0 ? httpClientConfig.getSocketTimeoutInMillis() : -1);
+        try {
+            http2Client.start();
+        } catch (Exception e) {
+            throw new HttpClientException("Failed to start HTTP/2 client", e);
+        }
+
+        Map<String, Sessions> sessionsByHost = new ConcurrentHashMap<>();
+        return new SharedHttpClientFactory() {
+            @Override
+            public HttpClient createClient(OAuthSigner signer, String host, int port) {
+                String key = host + ':' + port;
+                Sessions sessions = sessionsByHost.compute(key, (k, existing) -> {
+                    Sessions retained = existing != null ? existing
+                        : new Sessions(http2Client, new InetSocketAddress(host, port), connectionsPerHost);
+                    retained.clients++;
+                    return retained;
+                });
+                return new JettyHttp2BackedHttpClient(host,
+                    port,
+                    signer,
+                    sessions,
+                    () -> sessionsByHost.computeIfPresent(key, (k, existing) -> {
+                        if (existing != sessions || --existing.clients > 0) {
+                            return existing;
+                        }
+                        existing.close();
+                        return null;
+                    }),
+                    httpClientConfig.getSocketTimeoutInMillis(),
+                    httpClientConfig.getCopyOfHeadersForEveryRequest(),
+                    httpClientConfig.getRequestCompressionCodec(),
+                    httpClientConfig.getRequestCompressionThresholdInBytes());
+            }
+
+            @Override
+            public void close() {
+                try {
+                    http2Client.stop();
+                } catch (Exception e) {
+                    throw new RuntimeException("Failed to stop HTTP/2 client", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * The connections to one instance, opened on first use and reopened once closed by either side. Streams are dealt across
+     * them round robin. They are shared by every client for the instance and closed along with the last of those clients.
+     */
+    static class Sessions {
+
+        private final HTTP2Client http2Client;
+        private final InetSocketAddress address;
+        private final AtomicReferenceArray<CompletableFuture<Session>> slots;
+        private final AtomicInteger next = new AtomicInteger();
+        private int clients; // guarded by the factory's sessionsByHost entry
+        private volatile boolean closed;
+
+        Sessions(HTTP2Client http2Client, InetSocketAddress address, int connections) {
+            this.http2Client = http2Client;
+            this.address = address;
+            this.slots = new AtomicReferenceArray<>(connections);
+        }
+
+        Session acquire(long timeoutMillis) throws IOException {
+            if (closed) {
+                throw new ConnectException("Connections to " + address + " are closed");
+            }
+            int index = (next.getAndIncrement() & Integer.MAX_VALUE) % slots.length();
+            CompletableFuture<Session> slot = slots.get(index);
+            if (slot == null || isDead(slot)) {
+                CompletableFuture<Session> connecting = new CompletableFuture<>();
+                if (slots.compareAndSet(index, slot, connecting)) {
+                    LOG.inc("http2>connect");
+                    http2Client.connect(address, new Session.Listener.Adapter(), new Promise<Session>() {
+                        @Override
+                        public void succeeded(Session session) {
+                            connecting.complete(session);
+                            if (closed) {
+                                close(session);
+                            }
+                        }
+
+                        @Override
+                        public void failed(Throwable x) {
+                            connecting.completeExceptionally(x);
+                        }
+                    });
+                }
+                slot = slots.get(index);
+            }
+            try {
+                return timeoutMillis > 0 ? slot.get(timeoutMillis, TimeUnit.MILLISECONDS) : slot.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted connecting to " + address);
+            } catch (TimeoutException e) {
+                throw new SocketTimeoutException("Timed out connecting to " + address);
+            } catch (ExecutionException e) {
+                ConnectException connectException = new ConnectException("Failed to connect to " + address);
+                connectException.initCause(e.getCause());
+                throw connectException;
+            }
+        }
+
+        void close() {
+            closed = true;
+            for (int i = 0; i < slots.length(); i++) {
+                CompletableFuture<Session> slot = slots.getAndSet(i, null);
+                if (slot != null) {
+                    slot.thenAccept(Sessions::close);
+                }
+            }
+            LOG.inc("http2>closed");
+        }
+
+        private static void close(Session session) {
+            if (!session.isClosed()) {
+                session.close(ErrorCode.NO_ERROR.code, "closed", Callback.NOOP);
+            }
+        }
+
+        int open() {
+            int open = 0;
+            for (int i = 0; i < slots.length(); i++) {
+                CompletableFuture<Session> slot = slots.get(i);
+                if (slot != null && slot.isDone() && !isDead(slot)) {
+                    open++;
+                }
+            }
+            return open;
+        }
+
+        int size() {
+            return slots.length();
+        }
+
+        private static boolean isDead(CompletableFuture<Session> slot) {
+            return slot.isCompletedExceptionally() || (slot.isDone() && slot.join().isClosed());
+        }
+    }
+}
@@ -38,6 +38,12 @@ public interface HttpClient extends HasHttpClientPoolStats {
 
     HttpResponse postStreamableRequest(String path, StreamableRequest streamableRequest, Map<String, String> headers) throws HttpClientException;
 
+    /**
+     * Writes a JSON request body straight to the connection and hands back the response stream whatever its status, so the caller can
+     * parse or report it without buffering. The caller must close the response. A Content-Type in headers, e.g. Smile, replaces JSON.
+     */
+    HttpStreamResponse streamingPostJson(String path, StreamableRequest jsonRequest, Map<String, String> headers) throws HttpClientException;
+
     void close();
 
     interface StreamableRequest {
@@ -15,6 +15,7 @@
  */
 package com.jivesoftware.os.routing.bird.http.client;
 
+import com.jivesoftware.os.routing.bird.shared.ContentCodec;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -24,14 +25,20 @@ final public class HttpClientConfig implements HttpClientConfiguration {
     private final int socketTimeoutInMillis;
     private final int maxConnections;
     private final int maxConnectionsPerHost;
+    private final int ioThreadCount;
     private final Map<String, String> headersForEveryRequest;
+    private final ContentCodec requestCompressionCodec;
+    private final int requestCompressionThresholdInBytes;
 
-    private HttpClientConfig(int socketTimeoutInMillis, int maxConnections, int maxConnectionsPerHost,
-        Map<String, String> headersForEveryRequest) {
+    private HttpClientConfig(int socketTimeoutInMillis, int maxConnections, int maxConnectionsPerHost, int ioThreadCount,
+        Map<String, String> headersForEveryRequest, ContentCodec requestCompressionCodec, int requestCompressionThresholdInBytes) {
         this.socketTimeoutInMillis = socketTimeoutInMillis;
         this.maxConnections = maxConnections;
         this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.ioThreadCount = ioThreadCount;
         this.headersForEveryRequest = new HashMap<>(headersForEveryRequest);
+        this.requestCompressionCodec = requestCompressionCodec;
+        this.requestCompressionThresholdInBytes = requestCompressionThresholdInBytes;
     }
 
     public int getSocketTimeoutInMillis() {
@@ -46,15 +53,34 @@ final public class HttpClientConfig implements HttpClientConfiguration {
         return maxConnectionsPerHost;
     }
 
+    /**
+     * Number of reactor threads driving the non-blocking client; values less than 1 mean one per available processor.
+     */
+    public int getIoThreadCount() {
+        return ioThreadCount;
+    }
+
     public Map<String, String> getCopyOfHeadersForEveryRequest() {
         return new HashMap<>(headersForEveryRequest);
     }
 
+    /**
+     * Codec used to compress request bodies, or null when requests are sent uncompressed.
+     */
+    public ContentCodec getRequestCompressionCodec() {
+        return requestCompressionCodec;
+    }
+
+    public int getRequestCompressionThresholdInBytes() {
+        return requestCompressionThresholdInBytes;
+    }
+
     @Override
     public String toString() {
         return "HttpClientConfig{" + "socketTimeoutInMillis=" + socketTimeoutInMillis + ", maxConnections="
-            + maxConnections + ", maxConnectionsPerHost=" + maxConnectionsPerHost + ", headersForEveryRequest="
-            + headersForEveryRequest + '}';
+            + maxConnections + ", maxConnectionsPerHost=" + maxConnectionsPerHost + ", ioThreadCount=" + ioThreadCount + ", headersForEveryRequest="
+            + headersForEveryRequest + ", requestCompressionCodec=" + requestCompressionCodec
+            + ", requestCompressionThresholdInBytes=" + requestCompressionThresholdInBytes + '}';
     }
 
     public static Builder newBuilder() {
@@ -66,7 +92,10 @@ final public class HttpClientConfig implements HttpClientConfiguration {
         private int socketTimeoutInMillis = -1;
         private int maxConnections = -1;
         private int maxConnectionsPerHost = -1;
+        private int ioThreadCount = -1;
         private Map<String, String> headersForEveryRequest = Collections.emptyMap();
+        private ContentCodec requestCompressionCodec = null;
+        private int requestCompressionThresholdInBytes = -1;
 
         private Builder() {
         }
@@ -86,15 +115,30 @@ final public class HttpClientConfig implements HttpClientConfiguration {
             return this;
         }
 
+        public Builder setIoThreadCount(int ioThreadCount) {
+            this.ioThreadCount = ioThreadCount;
+            return this;
+        }
+
         public Builder setHeadersForEveryRequest(Map<String, String> headersForEveryRequest) {
             this.headersForEveryRequest = headersForEveryRequest;
             return this;
         }
 
+        /**
+         * Buffered request bodies of at least thresholdInBytes are compressed with codec. Streamed bodies are always compressed once a codec
+         * is set, since their size is unknown when the headers go out. Responses are always decoded.
+         */
+        public Builder setRequestCompression(ContentCodec codec, int thresholdInBytes) {
+            this.requestCompressionCodec = codec;
+            this.requestCompressionThresholdInBytes = thresholdInBytes;
+            return this;
+        }
+
         public HttpClientConfig build() {
             return new HttpClientConfig(
-                socketTimeoutInMillis, maxConnections, maxConnectionsPerHost,
-                headersForEveryRequest);
+                socketTimeoutInMillis, maxConnections, maxConnectionsPerHost, ioThreadCount,
+                headersForEveryRequest, requestCompressionCodec, requestCompressionThresholdInBytes);
         }
     }
 }
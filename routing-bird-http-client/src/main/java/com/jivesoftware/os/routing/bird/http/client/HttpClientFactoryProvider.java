@@ -15,8 +15,11 @@
  */
 package com.jivesoftware.os.routing.bird.http.client;
 
+import com.jivesoftware.os.routing.bird.shared.HttpClientException;
 import java.io.Closeable;
+import java.io.IOException;
 import java.util.Collection;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.config.SocketConfig;
 import org.apache.http.conn.HttpClientConnectionManager;
@@ -28,16 +31,100 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.pool.PoolStats;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
 
-public class HttpClientFactoryProvider {
+public class HttpClientFactoryProvider implements HttpClientTransport {
 
     public HttpClientFactory createHttpClientFactory(Collection<HttpClientConfiguration> configurations, boolean latentClient) {
 
         HttpClientConfig httpClientConfig = locateConfig(configurations, HttpClientConfig.class, HttpClientConfig.newBuilder().build());
         HttpClientSSLConfig sslConfig = locateConfig(configurations, HttpClientSSLConfig.class, null);
 
-        String scheme;
+        String scheme = sslConfig != null && sslConfig.isUseSsl() ? "https" : "http";
+        PoolingHttpClientConnectionManager poolingHttpClientConnectionManager = createConnectionManager(httpClientConfig, sslConfig);
+
+        Closeable closeable;
+        HttpClientConnectionManager clientConnectionManager;
+        clientConnectionManager = poolingHttpClientConnectionManager;
+        closeable = poolingHttpClientConnectionManager;
+
+        return (OAuthSigner signer, String host, int port) -> {
+            HttpClientBuilder httpClientBuilder = HttpClients.custom()
+                .setConnectionManager(clientConnectionManager)
+                .setDefaultRequestConfig(defaultRequestConfig(httpClientConfig))
+                .addInterceptorFirst(ContentEncodingMetrics.BEFORE_DECODING)
+                .addInterceptorLast(ContentEncodingMetrics.AFTER_DECODING);
+
+            CloseableHttpClient client = httpClientBuilder.build();
+            HttpClient httpClient = new ApacheHttpClient441BackedHttpClient(scheme,
+                host,
+                port,
+                signer,
+                client,
+                closeable,
+                poolingHttpClientConnectionManager,
+                httpClientConfig.getCopyOfHeadersForEveryRequest(),
+                httpClientConfig.getRequestCompressionCodec(),
+                httpClientConfig.getRequestCompressionThresholdInBytes());
+
+            if (latentClient) {
+                httpClient = new LatentHttpClient(httpClient);
+            }
+            return httpClient;
+        };
+    }
+
+    /**
+     * Unlike {@link #createHttpClientFactory(Collection, boolean)} every client shares a single connection manager, so max connections
+     * is enforced across all hosts and pooled sockets outlive the clients which leased them.
+     */
+    @Override
+    public SharedHttpClientFactory createSharedHttpClientFactory(Collection<HttpClientConfiguration> configurations) {
+
+        HttpClientConfig httpClientConfig = locateConfig(configurations, HttpClientConfig.class, HttpClientConfig.newBuilder().build());
+        HttpClientSSLConfig sslConfig = locateConfig(configurations, HttpClientSSLConfig.class, null);
+
+        String scheme = sslConfig != null && sslConfig.isUseSsl() ? "https" : "http";
+        PoolingHttpClientConnectionManager poolingHttpClientConnectionManager = createConnectionManager(httpClientConfig, sslConfig);
+
+        return new SharedHttpClientFactory() {
+            @Override
+            public HttpClient createClient(OAuthSigner signer, String host, int port) {
+                CloseableHttpClient client = HttpClients.custom()
+                    .setConnectionManager(poolingHttpClientConnectionManager)
+                    .setConnectionManagerShared(true)
+                    .setDefaultRequestConfig(defaultRequestConfig(httpClientConfig))
+                    .addInterceptorFirst(ContentEncodingMetrics.BEFORE_DECODING)
+                    .addInterceptorLast(ContentEncodingMetrics.AFTER_DECODING)
+                    .build();
+                return new ApacheHttpClient441BackedHttpClient(scheme,
+                    host,
+                    port,
+                    signer,
+                    client,
+                    poolingHttpClientConnectionManager::closeExpiredConnections,
+                    poolingHttpClientConnectionManager,
+                    httpClientConfig.getCopyOfHeadersForEveryRequest(),
+                    httpClientConfig.getRequestCompressionCodec(),
+                    httpClientConfig.getRequestCompressionThresholdInBytes());
+            }
+
+            @Override
+            public void close() {
+                poolingHttpClientConnectionManager.close();
+            }
+        };
+    }
+
+    private PoolingHttpClientConnectionManager createConnectionManager(HttpClientConfig httpClientConfig, HttpClientSSLConfig sslConfig) {
         PoolingHttpClientConnectionManager poolingHttpClientConnectionManager;
         if (sslConfig != null && sslConfig.isUseSsl()) {
             LayeredConnectionSocketFactory sslSocketFactory;
@@ -47,13 +134,11 @@ public class HttpClientFactoryProvider {
                 sslSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
             }
 
-            scheme = "https";
             poolingHttpClientConnectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
                 .register("http", PlainConnectionSocketFactory.getSocketFactory())
                 .register("https", sslSocketFactory)
                 .build());
         } else {
-            scheme = "http";
             poolingHttpClientConnectionManager = new PoolingHttpClientConnectionManager();
         }
 
@@ -63,49 +148,118 @@ public class HttpClientFactoryProvider {
             poolingHttpClientConnectionManager.setMaxTotal(Integer.MAX_VALUE);
         }
 
-        if (httpClientConfig.getMaxConnectionsPerHost() > 0) {
-            poolingHttpClientConnectionManager.setDefaultMaxPerRoute(httpClientConfig.getMaxConnectionsPerHost());
-        } else {
-            poolingHttpClientConnectionManager.setDefaultMaxPerRoute(Integer.MAX_VALUE);
-        }
+        poolingHttpClientConnectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute(httpClientConfig));
 
         poolingHttpClientConnectionManager
             .setDefaultSocketConfig(SocketConfig.custom()
                 .setSoTimeout(httpClientConfig.getSocketTimeoutInMillis() > 0 ? httpClientConfig.getSocketTimeoutInMillis() : 0)
                 .build());
+        return poolingHttpClientConnectionManager;
+    }
+
+    /**
+     * Carries the configured socket timeout on every request so that a caller's deadline caps it rather than replaces it.
+     */
+    private static RequestConfig defaultRequestConfig(HttpClientConfig httpClientConfig) {
+        return RequestConfig.custom()
+            .setSocketTimeout(httpClientConfig.getSocketTimeoutInMillis() > 0 ? httpClientConfig.getSocketTimeoutInMillis() : 0)
+            .build();
+    }
 
+    /**
+     * The pool is shared by every host, so an unset per host limit falls back to the overall limit rather than letting one host take
+     * an unbounded share of it.
+     */
+    private static int maxConnectionsPerRoute(HttpClientConfig httpClientConfig) {
+        int maxTotal = httpClientConfig.getMaxConnections() > 0 ? httpClientConfig.getMaxConnections() : Integer.MAX_VALUE;
+        if (httpClientConfig.getMaxConnectionsPerHost() > 0) {
+            return Math.min(httpClientConfig.getMaxConnectionsPerHost(), maxTotal);
+        }
+        return maxTotal;
+    }
 
-        PoolStats poolStats = poolingHttpClientConnectionManager.getTotalStats();
+    /**
+     * All clients handed out by the returned factory share a single IO reactor and connection pool, so thread count stays fixed no
+     * matter how many hosts are being talked to.
+     */
+    public AsyncHttpClientFactory createAsyncHttpClientFactory(Collection<HttpClientConfiguration> configurations) throws HttpClientException {
 
-        Closeable closeable;
-        HttpClientConnectionManager clientConnectionManager;
-        clientConnectionManager = poolingHttpClientConnectionManager;
-        closeable = poolingHttpClientConnectionManager;
+        HttpClientConfig httpClientConfig = locateConfig(configurations, HttpClientConfig.class, HttpClientConfig.newBuilder().build());
+        HttpClientSSLConfig sslConfig = locateConfig(configurations, HttpClientSSLConfig.class, null);
 
-        return (OAuthSigner signer, String host, int port) -> {
-            HttpClientBuilder httpClientBuilder = HttpClients.custom()
-                .setConnectionManager(clientConnectionManager);
+        String scheme;
+        SchemeIOSessionStrategy sslStrategy;
+        if (sslConfig != null && sslConfig.isUseSsl()) {
+            scheme = "https";
+            if (sslConfig.getCustomSSLIOSessionStrategy() != null) {
+                sslStrategy = sslConfig.getCustomSSLIOSessionStrategy();
+            } else {
+                sslStrategy = SSLIOSessionStrategy.getDefaultStrategy();
+            }
+        } else {
+            scheme = "http";
+            sslStrategy = SSLIOSessionStrategy.getDefaultStrategy();
+        }
 
-            CloseableHttpClient client = httpClientBuilder.build();
-            HttpClient httpClient = new ApacheHttpClient441BackedHttpClient(scheme,
-                host,
-                port,
-                signer,
-                client,
-                closeable,
-                poolingHttpClientConnectionManager,
-                httpClientConfig.getCopyOfHeadersForEveryRequest()
-                );
+        int ioThreadCount = httpClientConfig.getIoThreadCount() > 0
+            ? httpClientConfig.getIoThreadCount()
+            : Runtime.getRuntime().availableProcessors();
 
-            if (latentClient) {
-                httpClient = new LatentHttpClient(httpClient);
+        PoolingNHttpClientConnectionManager connectionManager;
+        try {
+            DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                .setIoThreadCount(ioThreadCount)
+                .setSoTimeout(httpClientConfig.getSocketTimeoutInMillis() > 0 ? httpClientConfig.getSocketTimeoutInMillis() : 0)
+                .build());
+            connectionManager = new PoolingNHttpClientConnectionManager(ioReactor, RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", sslStrategy)
+                .build());
+        } catch (IOReactorException e) {
+            throw new HttpClientException("Failed to create IO reactor", e);
+        }
+
+        if (httpClientConfig.getMaxConnections() > 0) {
+            connectionManager.setMaxTotal(httpClientConfig.getMaxConnections());
+        } else {
+            connectionManager.setMaxTotal(Integer.MAX_VALUE);
+        }
+
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute(httpClientConfig));
+
+        RequestConfig defaultRequestConfig = defaultRequestConfig(httpClientConfig);
+        CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(defaultRequestConfig)
+            .build();
+        client.start();
+
+        return new AsyncHttpClientFactory() {
+            @Override
+            public AsyncHttpClient createClient(OAuthSigner signer, String host, int port) {
+                return new ApacheHttpAsyncClient41BackedHttpClient(scheme,
+                    host,
+                    port,
+                    signer,
+                    client,
+                    connectionManager,
+                    httpClientConfig.getCopyOfHeadersForEveryRequest(),
+                    defaultRequestConfig);
+            }
+
+            @Override
+            public void close() {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to close async http client", e);
+                }
             }
-            return httpClient;
         };
     }
 
     @SuppressWarnings("unchecked")
-    private <T> T locateConfig(Collection<HttpClientConfiguration> configurations, Class<? extends T> _class, T defaultConfiguration) {
+    static <T> T locateConfig(Collection<HttpClientConfiguration> configurations, Class<? extends T> _class, T defaultConfiguration) {
         for (HttpClientConfiguration configuration : configurations) {
             if (_class.isInstance(configuration)) {
                 return (T) configuration;
@@ -15,16 +15,29 @@
  */
 package com.jivesoftware.os.routing.bird.http.client;
 
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
 import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
 
 public class HttpClientSSLConfig implements HttpClientConfiguration {
 
     private final boolean useSSL;
     private final LayeredConnectionSocketFactory customSSLSocketFactory;
+    private final SSLIOSessionStrategy customSSLIOSessionStrategy;
+    private final SSLContext customSSLContext;
+    private final HostnameVerifier customHostnameVerifier;
 
-    private HttpClientSSLConfig(boolean useSSL, LayeredConnectionSocketFactory customSSLSocketFactory) {
+    private HttpClientSSLConfig(boolean useSSL,
+        LayeredConnectionSocketFactory customSSLSocketFactory,
+        SSLIOSessionStrategy customSSLIOSessionStrategy,
+        SSLContext customSSLContext,
+        HostnameVerifier customHostnameVerifier) {
         this.useSSL = useSSL;
         this.customSSLSocketFactory = customSSLSocketFactory;
+        this.customSSLIOSessionStrategy = customSSLIOSessionStrategy;
+        this.customSSLContext = customSSLContext;
+        this.customHostnameVerifier = customHostnameVerifier;
     }
 
     public boolean isUseSsl() {
@@ -35,10 +48,27 @@ public class HttpClientSSLConfig implements HttpClientConfiguration {
         return customSSLSocketFactory;
     }
 
+    public SSLIOSessionStrategy getCustomSSLIOSessionStrategy() {
+        return customSSLIOSessionStrategy;
+    }
+
+    /**
+     * Used by transports which are not built on Apache HttpClient, such as {@link JdkHttpClientTransport}.
+     */
+    public SSLContext getCustomSSLContext() {
+        return customSSLContext;
+    }
+
+    public HostnameVerifier getCustomHostnameVerifier() {
+        return customHostnameVerifier;
+    }
+
     @Override
     public String toString() {
         return "HttpClientConfig{"
             + ", customSSLSocketFactory=" + customSSLSocketFactory
+            + ", customSSLIOSessionStrategy=" + customSSLIOSessionStrategy
+            + ", customSSLContext=" + customSSLContext
             + '}';
     }
 
@@ -50,6 +80,9 @@ public class HttpClientSSLConfig implements HttpClientConfiguration {
 
         private boolean useSSL = false;
         private LayeredConnectionSocketFactory customSSLSocketFactory = null;
+        private SSLIOSessionStrategy customSSLIOSessionStrategy = null;
+        private SSLContext customSSLContext = null;
+        private HostnameVerifier customHostnameVerifier = null;
 
         private Builder() {
         }
@@ -68,8 +101,27 @@ public class HttpClientSSLConfig implements HttpClientConfiguration {
             return this;
         }
 
+        public Builder setUseSslWithCustomSSLIOSessionStrategy(SSLIOSessionStrategy sslIOSessionStrategy) {
+            if (sslIOSessionStrategy == null) {
+                throw new IllegalArgumentException("sslIOSessionStrategy cannot be null");
+            }
+            this.useSSL = true;
+            this.customSSLIOSessionStrategy = sslIOSessionStrategy;
+            return this;
+        }
+
+        public Builder setUseSslWithCustomSSLContext(SSLContext sslContext, HostnameVerifier hostnameVerifier) {
+            if (sslContext == null) {
+                throw new IllegalArgumentException("sslContext cannot be null");
+            }
+            this.useSSL = true;
+            this.customSSLContext = sslContext;
+            this.customHostnameVerifier = hostnameVerifier;
+            return this;
+        }
+
         public HttpClientSSLConfig build() {
-            return new HttpClientSSLConfig(useSSL, customSSLSocketFactory);
+            return new HttpClientSSLConfig(useSSL, customSSLSocketFactory, customSSLIOSessionStrategy, customSSLContext, customHostnameVerifier);
         }
     }
 }
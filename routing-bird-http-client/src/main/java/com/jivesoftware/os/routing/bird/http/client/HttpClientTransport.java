@@ -0,0 +1,30 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import java.util.Collection;
+
+/**
+ * The library which actually moves bytes for the blocking {@link HttpClient}s handed out by {@link TenantRoutingHttpClientInitializer}.
+ * {@link HttpClientFactoryProvider} is the Apache HttpClient backed default and {@link JdkHttpClientTransport} uses the JDK's own
+ * HttpURLConnection. Every client created by one factory shares its connection limits, and closing the factory releases them.
+ */
+public interface HttpClientTransport {
+
+    SharedHttpClientFactory createSharedHttpClientFactory(Collection<HttpClientConfiguration> configurations) throws HttpClientException;
+
+}
@@ -15,13 +15,22 @@
  */
 package com.jivesoftware.os.routing.bird.http.client;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
 import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import com.jivesoftware.os.routing.bird.shared.JacksonSmile;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 public class HttpRequestHelper {
 
@@ -30,16 +39,42 @@ public class HttpRequestHelper {
 
     private final HttpClient httpClient;
     private final ObjectMapper mapper;
+    private final HttpResponseCache responseCache;
+    private final ObjectMapper smileMapper;
+    private volatile boolean smileRequestsRejected;
 
     private static final byte[] EMPTY_RESPONSE = new byte[0];
     private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_ERROR_BODY_BYTES = 1024;
+    private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
 
     public HttpRequestHelper(HttpClient httpClient, ObjectMapper mapper) {
+        this(httpClient, mapper, null);
+    }
+
+    /**
+     * @param responseCache when not null, gets made through this helper honour the server's Cache-Control and ETag. Results are only
+     *                      shared between callers, and so must not be mutated, when the cache was built to share values.
+     */
+    public HttpRequestHelper(HttpClient httpClient, ObjectMapper mapper, HttpResponseCache responseCache) {
+        this(httpClient, mapper, responseCache, false);
+    }
+
+    /**
+     * @param negotiateSmile when true, typed requests ask for Smile ahead of JSON and post their bodies as Smile. Should a server answer a
+     *                       Smile body with 415 the helper goes back to posting JSON.
+     */
+    public HttpRequestHelper(HttpClient httpClient, ObjectMapper mapper, HttpResponseCache responseCache, boolean negotiateSmile) {
         this.httpClient = httpClient;
         this.mapper = mapper;
+        this.responseCache = responseCache;
+        this.smileMapper = negotiateSmile ? JacksonSmile.mirror(mapper) : null;
     }
 
     public byte[] executeGet(String endpointUrl) {
+        if (responseCache != null) {
+            return executeCachedGet(endpointUrl, null).getBody();
+        }
         return executeGet(httpClient, endpointUrl);
     }
 
@@ -56,14 +91,61 @@ public class HttpRequestHelper {
      */
     public <T> T executeGetRequest(String endpointUrl, Class<T> resultClass, T emptyResult) {
 
-        byte[] responseBody = executeGet(httpClient, endpointUrl);
+        String accept = smileMapper != null ? JacksonSmile.ACCEPT : null;
+        HttpResponseCache.CachedResponse cached = null;
+        byte[] responseBody = null;
+        String contentType;
+        if (responseCache != null) {
+            cached = executeCachedGet(endpointUrl, accept);
+            contentType = cached.getContentType();
+        } else {
+            HttpResponse response = executeGet(httpClient, endpointUrl, accept == null ? null : Collections.singletonMap("Accept", accept));
+            responseBody = response.getResponseBody() == null ? EMPTY_RESPONSE : response.getResponseBody();
+            contentType = response.getHeader("Content-Type");
+        }
 
-        if (responseBody.length == 0) {
+        if (cached != null ? cached.getBodyLength() == 0 : responseBody.length == 0) {
             LOG.warn("Received empty response from http call. The endpoint posted to was " + endpointUrl + "\".");
             return emptyResult;
         }
 
-        return extractResultFromResponse(responseBody, resultClass);
+        ObjectMapper responseMapper = mapperFor(contentType);
+        if (cached != null) {
+            return cached.getValue(resultClass, body -> extractResultFromResponse(responseMapper, body, resultClass));
+        }
+        return extractResultFromResponse(responseMapper, responseBody, resultClass);
+    }
+
+    private HttpResponseCache.CachedResponse executeCachedGet(String endpointUrl, String accept) {
+        String cacheKey = accept == null ? endpointUrl : endpointUrl + " Accept:" + accept;
+        long now = System.currentTimeMillis();
+        HttpResponseCache.CachedResponse cached = responseCache.get(cacheKey, now);
+        if (cached != null && cached.isFresh(now)) {
+            return cached;
+        }
+
+        Map<String, String> headers = null;
+        if (accept != null || (cached != null && cached.getETag() != null)) {
+            headers = new HashMap<>();
+            if (accept != null) {
+                headers.put("Accept", accept);
+            }
+            if (cached != null && cached.getETag() != null) {
+                headers.put("If-None-Match", cached.getETag());
+            }
+        }
+        HttpResponse response;
+        try {
+            response = httpClient.get(endpointUrl, headers);
+        } catch (HttpClientException e) {
+            throw new RuntimeException("Error posting query request to server.  The endpoint posted to was \"" + endpointUrl + "\".", e);
+        }
+
+        if (cached != null && response.getStatusCode() == 304) {
+            return responseCache.revalidated(cacheKey, cached, response, now);
+        }
+        checkSuccess(response, response.getResponseBody() == null ? EMPTY_RESPONSE : response.getResponseBody());
+        return responseCache.put(cacheKey, response, now);
     }
 
     public <T> T executeDeleteRequest(String endpointUrl, Class<T> resultClass, T emptyResult) {
@@ -77,27 +159,12 @@ public class HttpRequestHelper {
     }
 
     public byte[] executeRequest(Object requestParamsObject, String endpointUrl, byte[] emptyResult) {
-
-        String postEntity;
-        try {
-            postEntity = mapper.writeValueAsString(requestParamsObject);
-        } catch (IOException e) {
-            throw new RuntimeException("Error serializing request parameters object to a string.  Object "
-                + "was " + requestParamsObject, e);
-        }
-
-        byte[] responseBody = executePostJson(httpClient, endpointUrl, postEntity);
-
-        if (responseBody.length == 0) {
-            LOG.warn("Received empty response from http call.  Posted request body was: " + postEntity);
-            return emptyResult;
-        }
-
-        return responseBody;
+        return executePostJson(requestParamsObject, endpointUrl, (responseMapper, in) -> readFully(in), emptyResult, false);
     }
 
     /**
-     * Sends the request to the server and returns the deserialized results.
+     * Sends the request to the server and returns the deserialized results. The request is serialized straight onto the connection and
+     * the result is parsed straight off it.
      * <p>
      * If the response body is empty, and the status code is successful, the client returns an empty (but valid) result.
      *
@@ -109,27 +176,12 @@ public class HttpRequestHelper {
      * @throws RuntimeException on marshalling, request, or deserialization failure
      */
     public <T> T executeRequest(Object requestParamsObject, String endpointUrl, Class<T> resultClass, T emptyResult) {
-
-        String postEntity;
-        try {
-            postEntity = mapper.writeValueAsString(requestParamsObject);
-        } catch (IOException e) {
-            throw new RuntimeException("Error serializing request parameters object to a string.  Object "
-                + "was " + requestParamsObject, e);
-        }
-
-        byte[] responseBody = executePostJson(httpClient, endpointUrl, postEntity);
-
-        if (responseBody.length == 0) {
-            LOG.warn("Received empty response from http call.  Posted request body was: " + postEntity);
-            return emptyResult;
-        }
-
-        return extractResultFromResponse(responseBody, resultClass);
+        return executePostJson(requestParamsObject, endpointUrl, (responseMapper, in) -> responseMapper.readValue(in, resultClass), emptyResult, true);
     }
 
     /**
-     * Sends the request to the server and returns the deserialized results.
+     * Sends the request to the server and returns the deserialized results. The request is serialized straight onto the connection and
+     * the result is parsed straight off it.
      * <p>
      * If the response body is empty, and the status code is successful, the client returns an empty (but valid) result.
      *
@@ -142,59 +194,132 @@ public class HttpRequestHelper {
      * @throws RuntimeException on marshalling, request, or deserialization failure
      */
     public <T> T executeRequest(Object requestParamsObject, String endpointUrl, Class<T> parametrized, Class<?>[] parameterClasses, T emptyResult) {
+        JavaType resultType = mapper.getTypeFactory().constructParametricType(parametrized, parameterClasses);
+        return executePostJson(requestParamsObject, endpointUrl, (responseMapper, in) -> responseMapper.readValue(in, resultType), emptyResult, true);
+    }
+
+    public HttpStreamResponse executeStreamingPostRequest(Object requestParamsObject, String endpointUrl) throws HttpClientException {
+        return httpClient.streamingPostJson(endpointUrl, out -> writeBody(mapper, out, requestParamsObject), null);
+    }
+
+    private interface ResponseParser<T> {
 
-        String postEntity;
+        T parse(ObjectMapper responseMapper, InputStream in) throws IOException;
+    }
+
+    private <T> T executePostJson(Object requestParamsObject, String endpointUrl, ResponseParser<T> parser, T emptyResult, boolean negotiate) {
+        boolean smileRequest = negotiate && smileMapper != null && !smileRequestsRejected;
+        Map<String, String> headers = null;
+        if (negotiate && smileMapper != null) {
+            headers = new HashMap<>();
+            headers.put("Accept", JacksonSmile.ACCEPT);
+            if (smileRequest) {
+                headers.put("Content-Type", JacksonSmile.CONTENT_TYPE);
+            }
+        }
+        ObjectMapper requestMapper = smileRequest ? smileMapper : mapper;
+
+        HttpStreamResponse response;
         try {
-            postEntity = mapper.writeValueAsString(requestParamsObject);
-        } catch (IOException e) {
-            throw new RuntimeException("Error serializing request parameters object to a string.  Object "
-                + "was " + requestParamsObject, e);
+            response = httpClient.streamingPostJson(endpointUrl, out -> writeBody(requestMapper, out, requestParamsObject), headers);
+        } catch (HttpClientException e) {
+            throw new RuntimeException("Error posting query request to server.  The endpoint posted to was \"" + endpointUrl + "\".", e);
         }
 
-        byte[] responseBody = executePostJson(httpClient, endpointUrl, postEntity);
+        if (smileRequest && response.getStatusCode() == 415) {
+            response.close();
+            LOG.inc("smile>requestRejected");
+            smileRequestsRejected = true;
+            return executePostJson(requestParamsObject, endpointUrl, parser, emptyResult, negotiate);
+        }
 
-        if (responseBody.length == 0) {
-            LOG.warn("Received empty response from http call.  Posted request body was: " + postEntity);
-            return emptyResult;
+        try {
+            if (!isSuccessStatusCode(response.getStatusCode())) {
+                throw new NonSuccessStatusCodeException(response.getStatusCode(), "Received non success status code (" + response.getStatusCode() + ") "
+                    + "from the server.  The reason phrase on the response was \"" + response.getStatusReasonPhrase() + "\" "
+                    + "and the body of the response was \"" + truncatedBody(response.getInputStream()) + "\".");
+            }
+
+            PushbackInputStream in = new PushbackInputStream(response.getInputStream(), 1);
+            int first = in.read();
+            if (first == -1) {
+                LOG.warn("Received empty response from http call.  Posted request object was: " + requestParamsObject);
+                return emptyResult;
+            }
+            in.unread(first);
+            return parser.parse(mapperFor(response.getContentType()), in);
+        } catch (IOException e) {
+            throw new RuntimeException("Error deserializing response body into result "
+                + "object.  The endpoint posted to was \"" + endpointUrl + "\".", e);
+        } finally {
+            response.close();
         }
-        JavaType resultType = mapper.getTypeFactory().constructParametricType(parametrized, parameterClasses);
-        return extractResultFromResponse(responseBody, resultType);
     }
 
-    public HttpStreamResponse executeStreamingPostRequest(Object requestParamsObject, String endpointUrl) throws HttpClientException {
-
-        String postEntity;
+    private static void writeBody(ObjectMapper requestMapper, OutputStream out, Object requestParamsObject) throws IOException {
+        JsonGenerator generator = requestMapper.getFactory().createGenerator(out);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
         try {
-            postEntity = mapper.writeValueAsString(requestParamsObject);
+            requestMapper.writeValue(generator, requestParamsObject);
         } catch (IOException e) {
-            throw new RuntimeException("Error serializing request parameters object to a string.  Object "
-                + "was " + requestParamsObject, e);
+            throw new IOException("Error serializing request parameters object.  Object was " + requestParamsObject, e);
+        } finally {
+            generator.close();
         }
+    }
 
-        return httpClient.streamingPost(endpointUrl, postEntity, null);
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = COPY_BUFFER.get();
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads at most the first {@link #MAX_ERROR_BODY_BYTES} of an error body for the exception message and drains the rest.
+     */
+    private static String truncatedBody(InputStream in) throws IOException {
+        byte[] buffer = COPY_BUFFER.get();
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        long length = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (length < MAX_ERROR_BODY_BYTES) {
+                head.write(buffer, 0, (int) Math.min(read, MAX_ERROR_BODY_BYTES - length));
+            }
+            length += read;
+        }
+        String body = new String(head.toByteArray(), UTF_8);
+        return length > MAX_ERROR_BODY_BYTES ? body + "... (" + length + " bytes)" : body;
     }
 
     public byte[] executeGet(HttpClient httpClient, String endpointUrl) {
+        HttpResponse response = executeGet(httpClient, endpointUrl, null);
+        byte[] responseBody = response.getResponseBody();
+        return responseBody == null ? EMPTY_RESPONSE : responseBody;
+    }
+
+    private HttpResponse executeGet(HttpClient httpClient, String endpointUrl, Map<String, String> headers) {
         HttpResponse response;
         try {
-            response = httpClient.get(endpointUrl, null);
+            response = httpClient.get(endpointUrl, headers);
         } catch (HttpClientException e) {
             throw new RuntimeException("Error posting query request to server.  The endpoint posted to was \"" + endpointUrl + "\".", e);
         }
 
-        byte[] responseBody = response.getResponseBody();
-
-        if (responseBody == null) {
-            responseBody = EMPTY_RESPONSE;
-        }
+        checkSuccess(response, response.getResponseBody() == null ? EMPTY_RESPONSE : response.getResponseBody());
+        return response;
+    }
 
+    private void checkSuccess(HttpResponse response, byte[] responseBody) {
         if (!isSuccessStatusCode(response.getStatusCode())) {
             throw new NonSuccessStatusCodeException(response.getStatusCode(), "Received non success status code (" + response.getStatusCode() + ") "
                 + "from the server.  The reason phrase on the response was \"" + response.getStatusReasonPhrase() + "\" "
                 + "and the body of the response was \"" + new String(responseBody, UTF_8) + "\".");
         }
-
-        return responseBody;
     }
 
     private byte[] executeDeleteJson(HttpClient httpClient, String endpointUrl) {
@@ -220,34 +345,14 @@ public class HttpRequestHelper {
         }
     }
 
-    private byte[] executePostJson(HttpClient httpClient, String endpointUrl, String postEntity) {
-        HttpResponse response;
-        try {
-            response = httpClient.postJson(endpointUrl, postEntity, null);
-        } catch (HttpClientException e) {
-            throw new RuntimeException("Error posting query request to server.  The entity posted "
-                + "was length \"" + postEntity.length() + "\" and the endpoint posted to was \"" + endpointUrl + "\".", e);
-        }
-
-        byte[] responseBody = response.getResponseBody();
-
-        if (responseBody == null) {
-            responseBody = EMPTY_RESPONSE;
-        }
-
-        if (!isSuccessStatusCode(response.getStatusCode())) {
-            throw new NonSuccessStatusCodeException(response.getStatusCode(), "Received non success status code (" + response.getStatusCode() + ") "
-                + "from the server.  The reason phrase on the response was \"" + response.getStatusReasonPhrase() + "\" "
-                + "and the body of the response was length \"" + responseBody.length + "\".");
-        }
-
-        return responseBody;
+    public <T> T extractResultFromResponse(byte[] responseBody, Class<T> resultClass) {
+        return extractResultFromResponse(mapper, responseBody, resultClass);
     }
 
-    public <T> T extractResultFromResponse(byte[] responseBody, Class<T> resultClass) {
+    private static <T> T extractResultFromResponse(ObjectMapper responseMapper, byte[] responseBody, Class<T> resultClass) {
         T result;
         try {
-            result = mapper.readValue(responseBody, 0, responseBody.length, resultClass);
+            result = responseMapper.readValue(responseBody, 0, responseBody.length, resultClass);
         } catch (Exception e) {
             throw new RuntimeException("Error deserializing response body into result "
                 + "object.  Response body was length \"" + responseBody.length
@@ -270,6 +375,10 @@ public class HttpRequestHelper {
         return result;
     }
 
+    private ObjectMapper mapperFor(String contentType) {
+        return smileMapper != null && JacksonSmile.isSmile(contentType) ? smileMapper : mapper;
+    }
+
     private boolean isSuccessStatusCode(int statusCode) {
         return statusCode >= 200 && statusCode < 300;
     }
@@ -15,16 +15,35 @@
  */
 package com.jivesoftware.os.routing.bird.http.client;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
 public class HttpResponse {
 
     private final int statusCode;
     private final String statusReasonPhrase;
     private final byte[] responseBody;
+    private final Map<String, String> headers;
 
     public HttpResponse(int statusCode, String statusReasonPhrase, byte[] responseBody) {
+        this(statusCode, statusReasonPhrase, responseBody, null);
+    }
+
+    /**
+     * Header names are matched case insensitively. Repeated headers are expected to have been joined with ", ".
+     */
+    public HttpResponse(int statusCode, String statusReasonPhrase, byte[] responseBody, Map<String, String> headers) {
         this.statusCode = statusCode;
         this.statusReasonPhrase = statusReasonPhrase;
         this.responseBody = responseBody;
+        if (headers == null || headers.isEmpty()) {
+            this.headers = Collections.emptyMap();
+        } else {
+            TreeMap<String, String> caseInsensitive = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            caseInsensitive.putAll(headers);
+            this.headers = Collections.unmodifiableMap(caseInsensitive);
+        }
     }
 
     public int getStatusCode() {
@@ -38,4 +57,15 @@ public class HttpResponse {
     public byte[] getResponseBody() {
         return responseBody;
     }
+
+    /**
+     * @return the header's value, or null if the response did not carry it
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
 }
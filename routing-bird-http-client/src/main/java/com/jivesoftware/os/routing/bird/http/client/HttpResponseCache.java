@@ -0,0 +1,455 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A bounded cache of GET responses which follows the server's Cache-Control max-age and ETag. Fresh entries are served without a request,
+ * and stale entries which carry an ETag are revalidated with If-None-Match. Every hit gets its own copy of the body and, by default, its
+ * own deserialized value. {@link Builder#setShareValues(boolean)} keeps the deserialized form of a body per result class so a hit skips
+ * parsing as well, at the price of handing every caller the same instance.
+ * <p>
+ * Entries are weighed by body size. Eviction is W-TinyLFU style: new entries land in a small LRU window, and an entry leaving the window
+ * only displaces the main region's LRU victim if a frequency sketch says it has been asked for more often. Scans and one-off reads therefore
+ * cannot flush the hot set. Bodies can be kept off heap once they have been admitted to the main region; the window, rejected candidates
+ * and deserialized values always live on heap.
+ */
+public class HttpResponseCache {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+    private static final long ENTRY_OVERHEAD = 96;
+
+    private final long maxWeight;
+    private final long windowMaxWeight;
+    private final long protectedMaxWeight;
+    private final boolean offHeap;
+    private final boolean shareValues;
+    private final FrequencySketch sketch;
+
+    private final LinkedHashMap<String, CachedResponse> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, CachedResponse> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, CachedResponse> protectedRegion = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private HttpResponseCache(long maxWeight, int expectedEntries, boolean offHeap, boolean shareValues) {
+        this.maxWeight = maxWeight;
+        this.windowMaxWeight = Math.max(1, maxWeight / 100);
+        this.protectedMaxWeight = (maxWeight - windowMaxWeight) * 4 / 5;
+        this.offHeap = offHeap;
+        this.shareValues = shareValues;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    /**
+     * @return the entry for the key, fresh or stale, or null. Only a fresh entry counts as a hit.
+     */
+    CachedResponse get(String key, long now) {
+        CachedResponse cached;
+        synchronized (this) {
+            sketch.increment(key.hashCode());
+            cached = window.get(key);
+            if (cached == null) {
+                cached = protectedRegion.get(key);
+            }
+            if (cached == null) {
+                cached = probation.remove(key);
+                if (cached != null) {
+                    probationWeight -= cached.weight;
+                    promote(key, cached);
+                }
+            }
+        }
+        if (cached != null && cached.isFresh(now)) {
+            hits.incrementAndGet();
+            LOG.inc("httpCache>hit");
+        } else {
+            misses.incrementAndGet();
+            LOG.inc("httpCache>miss");
+        }
+        return cached;
+    }
+
+    /**
+     * Stores a successful response if its Cache-Control allows it and it is either fresh for a while or can be revalidated.
+     *
+     * @return the entry for the response, whether or not it was stored
+     */
+    CachedResponse put(String key, HttpResponse response, long now) {
+        CacheControl cacheControl = CacheControl.parse(response.getHeader("Cache-Control"));
+        String eTag = response.getHeader("ETag");
+        byte[] body = response.getResponseBody() == null ? new byte[0] : response.getResponseBody();
+        CachedResponse cached = new CachedResponse(eTag, response.getHeader("Content-Type"), cacheControl.expiresAt(now),
+            body, shareValues ? new ConcurrentHashMap<>() : null, weigh(key, body));
+        if (response.getStatusCode() == 200 && !cacheControl.noStore && (eTag != null || cached.isFresh(now))) {
+            insert(key, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Records a 304 for a stale entry. The body and any deserialized values carry over and freshness restarts from the 304's headers.
+     */
+    CachedResponse revalidated(String key, CachedResponse stale, HttpResponse notModified, long now) {
+        revalidations.incrementAndGet();
+        LOG.inc("httpCache>revalidated");
+        CacheControl cacheControl = CacheControl.parse(notModified.getHeader("Cache-Control"));
+        String eTag = notModified.getHeader("ETag");
+        CachedResponse cached = new CachedResponse(eTag != null ? eTag : stale.eTag, stale.contentType, cacheControl.expiresAt(now), stale.body,
+            stale.values, stale.weight);
+        if (cacheControl.noStore) {
+            invalidate(key);
+        } else {
+            insert(key, cached);
+        }
+        return cached;
+    }
+
+    public synchronized void invalidate(String key) {
+        CachedResponse removed = window.remove(key);
+        if (removed != null) {
+            windowWeight -= removed.weight;
+        }
+        removed = probation.remove(key);
+        if (removed != null) {
+            probationWeight -= removed.weight;
+        }
+        removed = protectedRegion.remove(key);
+        if (removed != null) {
+            protectedWeight -= removed.weight;
+        }
+    }
+
+    private synchronized void insert(String key, CachedResponse cached) {
+        if (cached.weight > maxWeight) {
+            return;
+        }
+        CachedResponse existing = window.get(key);
+        if (existing != null) {
+            window.put(key, cached);
+            windowWeight += cached.weight - existing.weight;
+        } else if ((existing = protectedRegion.get(key)) != null) {
+            protectedRegion.put(key, store(cached));
+            protectedWeight += cached.weight - existing.weight;
+        } else if ((existing = probation.get(key)) != null) {
+            probation.put(key, store(cached));
+            probationWeight += cached.weight - existing.weight;
+        } else {
+            window.put(key, cached);
+            windowWeight += cached.weight;
+        }
+        evict();
+    }
+
+    private void promote(String key, CachedResponse cached) {
+        protectedRegion.put(key, cached);
+        protectedWeight += cached.weight;
+        while (protectedWeight > protectedMaxWeight && protectedRegion.size() > 1) {
+            Map.Entry<String, CachedResponse> eldest = protectedRegion.entrySet().iterator().next();
+            protectedRegion.remove(eldest.getKey());
+            protectedWeight -= eldest.getValue().weight;
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationWeight += eldest.getValue().weight;
+        }
+    }
+
+    private void evict() {
+        while (windowWeight > windowMaxWeight && !window.isEmpty()) {
+            Iterator<Map.Entry<String, CachedResponse>> iterator = window.entrySet().iterator();
+            Map.Entry<String, CachedResponse> candidate = iterator.next();
+            iterator.remove();
+            windowWeight -= candidate.getValue().weight;
+            admit(candidate.getKey(), candidate.getValue());
+        }
+        while (windowWeight + probationWeight + protectedWeight > maxWeight) {
+            LinkedHashMap<String, CachedResponse> region = !probation.isEmpty() ? probation : !protectedRegion.isEmpty() ? protectedRegion : window;
+            Map.Entry<String, CachedResponse> victim = region.entrySet().iterator().next();
+            evict(region, victim.getKey());
+        }
+    }
+
+    private void admit(String key, CachedResponse candidate) {
+        long mainMaxWeight = maxWeight - windowMaxWeight;
+        int candidateFrequency = sketch.frequency(key.hashCode());
+        while (probationWeight + protectedWeight + candidate.weight > mainMaxWeight) {
+            LinkedHashMap<String, CachedResponse> region = !probation.isEmpty() ? probation : protectedRegion;
+            if (region.isEmpty()) {
+                break;
+            }
+            String victimKey = region.keySet().iterator().next();
+            if (candidateFrequency <= sketch.frequency(victimKey.hashCode())) {
+                evictions.incrementAndGet();
+                LOG.inc("httpCache>evicted");
+                return;
+            }
+            evict(region, victimKey);
+        }
+        probation.put(key, store(candidate));
+        probationWeight += candidate.weight;
+    }
+
+    private void evict(LinkedHashMap<String, CachedResponse> region, String key) {
+        CachedResponse evicted = region.remove(key);
+        if (region == window) {
+            windowWeight -= evicted.weight;
+        } else if (region == probation) {
+            probationWeight -= evicted.weight;
+        } else {
+            protectedWeight -= evicted.weight;
+        }
+        evictions.incrementAndGet();
+        LOG.inc("httpCache>evicted");
+    }
+
+    /**
+     * Moves an admitted entry's body off heap. Only the main region holds direct buffers, so a candidate which loses admission never
+     * allocated one.
+     */
+    private CachedResponse store(CachedResponse cached) {
+        if (!offHeap || !(cached.body instanceof byte[])) {
+            return cached;
+        }
+        byte[] body = (byte[]) cached.body;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(body.length);
+        buffer.put(body);
+        buffer.flip();
+        return new CachedResponse(cached.eTag, cached.contentType, cached.expiresAtMillis, buffer, cached.values, cached.weight);
+    }
+
+    private static long weigh(String key, byte[] body) {
+        return ENTRY_OVERHEAD + 2L * key.length() + body.length;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getWeight() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedRegion.size();
+    }
+
+    @Override
+    public String toString() {
+        return "HttpResponseCache{"
+            + "maxWeight=" + maxWeight
+            + ", offHeap=" + offHeap
+            + ", shareValues=" + shareValues
+            + ", hits=" + hits
+            + ", misses=" + misses
+            + ", revalidations=" + revalidations
+            + ", evictions=" + evictions
+            + '}';
+    }
+
+    static final class CachedResponse {
+
+        private final String eTag;
+        private final String contentType;
+        private final long expiresAtMillis;
+        private final Object body;
+        private final ConcurrentMap<Class<?>, Object> values;
+        private final long weight;
+
+        private CachedResponse(String eTag,
+            String contentType,
+            long expiresAtMillis,
+            Object body,
+            ConcurrentMap<Class<?>, Object> values,
+            long weight) {
+            this.eTag = eTag;
+            this.contentType = contentType;
+            this.expiresAtMillis = expiresAtMillis;
+            this.body = body;
+            this.values = values;
+            this.weight = weight;
+        }
+
+        boolean isFresh(long now) {
+            return now < expiresAtMillis;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        String getContentType() {
+            return contentType;
+        }
+
+        boolean isOffHeap() {
+            return body instanceof ByteBuffer;
+        }
+
+        int getBodyLength() {
+            return body instanceof ByteBuffer ? ((ByteBuffer) body).remaining() : ((byte[]) body).length;
+        }
+
+        /**
+         * @return a copy of the body which the caller is free to modify
+         */
+        byte[] getBody() {
+            if (body instanceof ByteBuffer) {
+                ByteBuffer buffer = ((ByteBuffer) body).duplicate();
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                return bytes;
+            }
+            return ((byte[]) body).clone();
+        }
+
+        /**
+         * @return a freshly deserialized value, or when the cache shares values the one instance every caller gets, which must be
+         * treated as immutable
+         */
+        @SuppressWarnings("unchecked")
+        <T> T getValue(Class<T> resultClass, Function<byte[], T> deserializer) {
+            if (values == null) {
+                return deserializer.apply(getBody());
+            }
+            return (T) values.computeIfAbsent(resultClass, key -> deserializer.apply(getBody()));
+        }
+    }
+
+    private static final class CacheControl {
+
+        private static final CacheControl NONE = new CacheControl(false, false, 0);
+
+        private final boolean noStore;
+        private final boolean noCache;
+        private final long maxAgeSeconds;
+
+        private CacheControl(boolean noStore, boolean noCache, long maxAgeSeconds) {
+            this.noStore = noStore;
+            this.noCache = noCache;
+            this.maxAgeSeconds = maxAgeSeconds;
+        }
+
+        private long expiresAt(long now) {
+            return noCache || maxAgeSeconds <= 0 ? now : now + maxAgeSeconds * 1000;
+        }
+
+        private static CacheControl parse(String header) {
+            if (header == null) {
+                return NONE;
+            }
+            boolean noStore = false;
+            boolean noCache = false;
+            long maxAgeSeconds = 0;
+            for (String directive : header.split(",")) {
+                String d = directive.trim().toLowerCase();
+                if (d.equals("no-store")) {
+                    noStore = true;
+                } else if (d.equals("no-cache")) {
+                    noCache = true;
+                } else if (d.startsWith("max-age=")) {
+                    try {
+                        maxAgeSeconds = Long.parseLong(d.substring("max-age=".length()).replace("\"", ""));
+                    } catch (NumberFormatException e) {
+                        noCache = true;
+                    }
+                }
+            }
+            return new CacheControl(noStore, noCache, maxAgeSeconds);
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    final public static class Builder {
+
+        private long maxWeightInBytes = 64L * 1024 * 1024;
+        private int expectedEntries = 10_000;
+        private boolean offHeap = false;
+        private boolean shareValues = false;
+
+        private Builder() {
+        }
+
+        /**
+         * Upper bound on the summed size of cached bodies, plus a small per entry overhead.
+         */
+        public Builder setMaxWeightInBytes(long maxWeightInBytes) {
+            this.maxWeightInBytes = maxWeightInBytes;
+            return this;
+        }
+
+        /**
+         * Sizes the frequency sketch which decides admission.
+         */
+        public Builder setExpectedEntries(int expectedEntries) {
+            this.expectedEntries = expectedEntries;
+            return this;
+        }
+
+        /**
+         * Keeps the bodies of entries admitted to the main region in direct buffers.
+         */
+        public Builder setOffHeap(boolean offHeap) {
+            this.offHeap = offHeap;
+            return this;
+        }
+
+        /**
+         * Keeps each body's deserialized value so fresh hits skip parsing. Every caller then gets the same instance, so only turn this on
+         * when the result classes are immutable or callers never modify what they get back.
+         */
+        public Builder setShareValues(boolean shareValues) {
+            this.shareValues = shareValues;
+            return this;
+        }
+
+        public HttpResponseCache build() {
+            if (maxWeightInBytes <= 0) {
+                throw new IllegalArgumentException("maxWeightInBytes must be positive");
+            }
+            return new HttpResponseCache(maxWeightInBytes, expectedEntries, offHeap, shareValues);
+        }
+    }
+}
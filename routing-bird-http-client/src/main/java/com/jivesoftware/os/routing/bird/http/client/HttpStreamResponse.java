@@ -4,6 +4,7 @@ import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
 import java.io.InputStream;
 import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.Header;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.HttpClientUtils;
@@ -45,6 +46,14 @@ public class HttpStreamResponse {
         return statusReasonPhrase;
     }
 
+    /**
+     * @return the response's Content-Type, or null if it did not carry one
+     */
+    public String getContentType() {
+        Header header = closeableHttpResponse == null ? null : closeableHttpResponse.getFirstHeader("Content-Type");
+        return header == null ? null : header.getValue();
+    }
+
     public void abort() {
         requestBase.reset();
         activeCount.decrementAndGet();
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Clients built on the JDK's HttpURLConnection rather than Apache HttpClient. Request compression, response decoding, deadlines and
+ * signing behave the same as on the Apache transport. Like the Apache transport's per route limit, maxConnectionsPerHost is shared by
+ * every client the factory hands out for the same host and port. Idle sockets are kept in the JVM wide keep-alive cache, so closing the
+ * factory only stops it from handing out new clients.
+ */
+public class JdkHttpClientTransport implements HttpClientTransport {
+
+    @Override
+    public SharedHttpClientFactory createSharedHttpClientFactory(Collection<HttpClientConfiguration> configurations) {
+
+        HttpClientConfig httpClientConfig = HttpClientFactoryProvider.locateConfig(configurations, HttpClientConfig.class,
+            HttpClientConfig.newBuilder().build());
+        HttpClientSSLConfig sslConfig = HttpClientFactoryProvider.locateConfig(configurations, HttpClientSSLConfig.class, null);
+
+        String scheme = sslConfig != null && sslConfig.isUseSsl() ? "https" : "http";
+        SSLSocketFactory sslSocketFactory = sslConfig != null && sslConfig.getCustomSSLContext() != null
+            ? sslConfig.getCustomSSLContext().getSocketFactory() : null;
+        HostnameVerifier hostnameVerifier = sslConfig != null ? sslConfig.getCustomHostnameVerifier() : null;
+        Semaphore sharedPermits = httpClientConfig.getMaxConnections() > 0 ? new Semaphore(httpClientConfig.getMaxConnections(), true) : null;
+        int maxConnectionsPerHost = httpClientConfig.getMaxConnectionsPerHost();
+        Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+        return new SharedHttpClientFactory() {
+            @Override
+            public HttpClient createClient(OAuthSigner signer, String host, int port) {
+                return new JdkHttpURLConnectionBackedHttpClient(scheme,
+                    host,
+                    port,
+                    signer,
+                    sslSocketFactory,
+                    hostnameVerifier,
+                    httpClientConfig.getSocketTimeoutInMillis(),
+                    sharedPermits,
+                    maxConnectionsPerHost > 0
+                        ? hostPermits.computeIfAbsent(host + ':' + port, key -> new Semaphore(maxConnectionsPerHost, true)) : null,
+                    maxConnectionsPerHost,
+                    httpClientConfig.getCopyOfHeadersForEveryRequest(),
+                    httpClientConfig.getRequestCompressionCodec(),
+                    httpClientConfig.getRequestCompressionThresholdInBytes());
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
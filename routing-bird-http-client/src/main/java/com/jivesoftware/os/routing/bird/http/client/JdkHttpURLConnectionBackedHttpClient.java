@@ -0,0 +1,514 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.routing.bird.shared.ContentCodec;
+import com.jivesoftware.os.routing.bird.shared.Deadline;
+import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import com.jivesoftware.os.routing.bird.shared.HttpClientPoolStats;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import oauth.signpost.exception.OAuthCommunicationException;
+import oauth.signpost.exception.OAuthExpectationFailedException;
+import oauth.signpost.exception.OAuthMessageSignerException;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Blocking client on the JDK's HttpURLConnection. Idle keep-alive sockets live in the JVM wide cache HttpURLConnection maintains, sized
+ * by the http.maxConnections system property, so connection limits are enforced here with permits instead of by a pool. Responses
+ * are decoded the same way Apache HttpClient decodes them, so callers cannot tell the transports apart.
+ */
+class JdkHttpURLConnectionBackedHttpClient implements HttpClient {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger(true);
+
+    private static final int JSON_POST_LOG_LENGTH_LIMIT = 2048;
+    private static final int DEFAULT_PRESIZE = 4096;
+    private static final long MAX_PRESIZE = 16 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 8192;
+    private static final String ACCEPT_ENCODING = "gzip,deflate";
+    private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private static final String CONTENT_TYPE_HEADER_NAME = ApacheHttpClient441BackedHttpClient.CONTENT_TYPE_HEADER_NAME;
+    private static final String APPLICATION_JSON_CONTENT_TYPE = ApacheHttpClient441BackedHttpClient.APPLICATION_JSON_CONTENT_TYPE;
+    private static final String APPLICATION_OCTET_STREAM_TYPE = ApacheHttpClient441BackedHttpClient.APPLICATION_OCTET_STREAM_TYPE;
+
+    private final String scheme;
+    private final String host;
+    private final int port;
+    private final OAuthSigner oauthSigner;
+    private final SSLSocketFactory sslSocketFactory;
+    private final HostnameVerifier hostnameVerifier;
+    private final int socketTimeoutInMillis;
+    private final Semaphore sharedPermits;
+    private final Semaphore hostPermits;
+    private final int maxConnectionsPerHost;
+    private final Map<String, String> headersForEveryRequest;
+    private final ContentCodec requestCodec;
+    private final int requestCompressionThreshold;
+    private final AtomicLong activeCount = new AtomicLong(0);
+
+    /**
+     * @param sharedPermits bounds connections across every client of the same factory, or null when unbounded
+     * @param hostPermits bounds connections across every client of the same factory to this host and port, or null when unbounded
+     */
+    JdkHttpURLConnectionBackedHttpClient(String scheme,
+        String host,
+        int port,
+        OAuthSigner signer,
+        SSLSocketFactory sslSocketFactory,
+        HostnameVerifier hostnameVerifier,
+        int socketTimeoutInMillis,
+        Semaphore sharedPermits,
+        Semaphore hostPermits,
+        int maxConnectionsPerHost,
+        Map<String, String> headersForEveryRequest,
+        ContentCodec requestCodec,
+        int requestCompressionThreshold) {
+
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        this.oauthSigner = signer;
+        this.sslSocketFactory = sslSocketFactory;
+        this.hostnameVerifier = hostnameVerifier;
+        this.socketTimeoutInMillis = Math.max(0, socketTimeoutInMillis);
+        this.sharedPermits = sharedPermits;
+        this.hostPermits = hostPermits;
+        this.maxConnectionsPerHost = hostPermits != null ? maxConnectionsPerHost : Integer.MAX_VALUE;
+        this.headersForEveryRequest = headersForEveryRequest;
+        this.requestCodec = requestCompressionThreshold < 0 ? null : requestCodec;
+        this.requestCompressionThreshold = requestCompressionThreshold;
+    }
+
+    @Override
+    public HttpClientPoolStats getPoolStats() {
+        int leased = (int) activeCount.get();
+        return new HttpClientPoolStats(leased,
+            hostPermits != null ? hostPermits.getQueueLength() : 0,
+            hostPermits != null ? hostPermits.availablePermits() : Integer.MAX_VALUE - leased,
+            maxConnectionsPerHost);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public HttpResponse get(String path, Map<String, String> headers) throws HttpClientException {
+        try {
+            return execute("GET", path, headers, null);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing GET request to: " + this + " path: " + path, e);
+        }
+    }
+
+    @Override
+    public HttpResponse delete(String path, Map<String, String> headers) throws HttpClientException {
+        try {
+            return execute("DELETE", path, headers, null);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing DELETE request to: " + this + " path: " + path, e);
+        }
+    }
+
+    @Override
+    public HttpResponse postJson(String path, String postJsonBody, Map<String, String> headers) throws HttpClientException {
+        try {
+            byte[] body = postJsonBody.getBytes(StandardCharsets.UTF_8);
+            return execute("POST", path, headers, connection -> writeBody(connection, APPLICATION_JSON_CONTENT_TYPE, body));
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing POST request to: " + this + " path: " + path + " JSON body: " + trim(postJsonBody), e);
+        }
+    }
+
+    @Override
+    public HttpResponse postBytes(String path, byte[] postBytes, Map<String, String> headers) throws HttpClientException {
+        try {
+            return execute("POST", path, headers, connection -> writeBody(connection, APPLICATION_OCTET_STREAM_TYPE, postBytes));
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing POST request to: " + this + " path: " + path + " body of length: " + postBytes.length, e);
+        }
+    }
+
+    @Override
+    public HttpStreamResponse streamingPost(String path, String postJsonBody, Map<String, String> headers) throws HttpClientException {
+        try {
+            byte[] body = postJsonBody.getBytes(StandardCharsets.UTF_8);
+            return executeStream("POST", path, headers, connection -> writeBody(connection, APPLICATION_JSON_CONTENT_TYPE, body), true);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing POST request to: " + this + " path: " + path + " JSON body: " + trim(postJsonBody), e);
+        }
+    }
+
+    @Override
+    public HttpStreamResponse streamingPostStreamableRequest(String path,
+        StreamableRequest streamable,
+        Map<String, String> headers) throws HttpClientException {
+        try {
+            return executeStream("POST", path, headers, connection -> writeBody(connection, APPLICATION_OCTET_STREAM_TYPE, streamable), true);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing POST request to: " + this + " path: " + path + " streamable: " + streamable, e);
+        }
+    }
+
+    @Override
+    public HttpResponse postStreamableRequest(String path, StreamableRequest streamable, Map<String, String> headers) throws HttpClientException {
+        try {
+            return execute("POST", path, headers, connection -> writeBody(connection, APPLICATION_OCTET_STREAM_TYPE, streamable));
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing POST request to: " + this + " path: " + path + " streamable: " + streamable, e);
+        }
+    }
+
+    @Override
+    public HttpStreamResponse streamingPostJson(String path, StreamableRequest jsonRequest, Map<String, String> headers) throws HttpClientException {
+        String contentType = headers != null && headers.containsKey(CONTENT_TYPE_HEADER_NAME)
+            ? headers.get(CONTENT_TYPE_HEADER_NAME) : APPLICATION_JSON_CONTENT_TYPE;
+        try {
+            return executeStream("POST", path, headers, connection -> writeBody(connection, contentType, jsonRequest), false);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing POST request to: " + this + " path: " + path + " streamable: " + jsonRequest, e);
+        }
+    }
+
+    private interface RequestBody {
+
+        void write(HttpURLConnection connection) throws IOException;
+    }
+
+    private HttpResponse execute(String method, String path, Map<String, String> headers, RequestBody body) throws IOException,
+        OAuthMessageSignerException,
+        OAuthExpectationFailedException,
+        OAuthCommunicationException {
+
+        acquire();
+        activeCount.incrementAndGet();
+        HttpURLConnection connection = null;
+        try {
+            connection = open(method, path, headers);
+            if (body != null) {
+                body.write(connection);
+            }
+            int status = connection.getResponseCode();
+            long contentLength = connection.getContentLengthLong();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(contentLength >= 0 && contentLength < MAX_PRESIZE
+                ? (int) contentLength : DEFAULT_PRESIZE);
+            try (InputStream responseBodyAsStream = responseStream(connection, status)) {
+                IOUtils.copyLarge(responseBodyAsStream, outputStream, COPY_BUFFER.get());
+            }
+            LOG.debug("Got status: {} {}", status, connection.getResponseMessage());
+            return new HttpResponse(status, connection.getResponseMessage(), outputStream.toByteArray(), responseHeaders(connection));
+        } catch (IOException | RuntimeException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            throw e;
+        } finally {
+            activeCount.decrementAndGet();
+            release();
+        }
+    }
+
+    private HttpStreamResponse executeStream(String method,
+        String path,
+        Map<String, String> headers,
+        RequestBody body,
+        boolean requireSuccess) throws IOException,
+        OAuthMessageSignerException,
+        OAuthExpectationFailedException,
+        OAuthCommunicationException {
+
+        acquire();
+        activeCount.incrementAndGet();
+        HttpURLConnection connection = null;
+        try {
+            connection = open(method, path, headers);
+            body.write(connection);
+            int status = connection.getResponseCode();
+            LOG.debug("Got status: {} {}", status, connection.getResponseMessage());
+            if (requireSuccess && (status < 200 || status >= 300)) {
+                throw new IOException("Bad status : " + status + " " + connection.getResponseMessage());
+            }
+            return new UrlConnectionStreamResponse(status,
+                connection.getResponseMessage(),
+                connection,
+                responseStream(connection, status),
+                activeCount,
+                this::release);
+        } catch (IOException | RuntimeException | OAuthMessageSignerException | OAuthExpectationFailedException | OAuthCommunicationException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            activeCount.decrementAndGet();
+            release();
+            throw e;
+        }
+    }
+
+    private HttpURLConnection open(String method, String path, Map<String, String> headers) throws IOException,
+        OAuthMessageSignerException,
+        OAuthExpectationFailedException,
+        OAuthCommunicationException {
+
+        URI uri = toURI(path);
+        HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            if (sslSocketFactory != null) {
+                ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+            }
+            if (hostnameVerifier != null) {
+                ((HttpsURLConnection) connection).setHostnameVerifier(hostnameVerifier);
+            }
+        }
+        connection.setRequestMethod(method);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+        for (Map.Entry<String, String> header : headersForEveryRequest.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+
+        int timeout = socketTimeoutInMillis;
+        Deadline deadline = Deadline.current();
+        if (deadline != null) {
+            long remainingMillis = deadline.remainingMillis();
+            if (remainingMillis <= 0) {
+                throw new SocketTimeoutException("Deadline passed before sending " + method + " " + uri);
+            }
+            timeout = deadline.capTimeoutMillis(socketTimeoutInMillis);
+            connection.setRequestProperty(Deadline.HEADER, String.valueOf(remainingMillis));
+        }
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+
+        if (oauthSigner != null) {
+            sign(connection, method, uri);
+        }
+        return connection;
+    }
+
+    private void sign(HttpURLConnection connection, String method, URI uri) throws OAuthMessageSignerException,
+        OAuthExpectationFailedException,
+        OAuthCommunicationException {
+
+        for (Header header : signStandIn(oauthSigner, method, uri)) {
+            connection.setRequestProperty(header.getName(), header.getValue());
+        }
+    }
+
+    /**
+     * OAuthSigner speaks Apache requests, so sign a stand-in carrying the same method and URI and return what the signer added.
+     */
+    static Header[] signStandIn(OAuthSigner signer, String method, URI uri) throws OAuthMessageSignerException,
+        OAuthExpectationFailedException,
+        OAuthCommunicationException {
+
+        HttpRequestBase standIn = new HttpRequestBase() {
+            @Override
+            public String getMethod() {
+                return method;
+            }
+        };
+        standIn.setURI(uri);
+        signer.sign(standIn);
+        return standIn.getAllHeaders();
+    }
+
+    private void writeBody(HttpURLConnection connection, String contentType, byte[] body) throws IOException {
+        connection.setRequestProperty(CONTENT_TYPE_HEADER_NAME, contentType);
+        byte[] payload = body;
+        if (requestCodec != null && body.length >= requestCompressionThreshold) {
+            payload = ContentEncodingMetrics.compressRequest(requestCodec, body);
+            connection.setRequestProperty("Content-Encoding", requestCodec.getEncoding());
+        }
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(payload.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(payload);
+        }
+    }
+
+    private void writeBody(HttpURLConnection connection, String contentType, StreamableRequest streamable) throws IOException {
+        connection.setRequestProperty(CONTENT_TYPE_HEADER_NAME, contentType);
+        if (requestCodec != null) {
+            connection.setRequestProperty("Content-Encoding", requestCodec.getEncoding());
+        }
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(CHUNK_SIZE);
+        try (OutputStream out = connection.getOutputStream()) {
+            ApacheHttpClient441BackedHttpClient.StreamableEntity.writeTo(streamable, requestCodec, out);
+        }
+    }
+
+    private static InputStream responseStream(HttpURLConnection connection, int status) throws IOException {
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (in == null) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        ContentCodec codec = ContentCodec.forEncoding(connection.getContentEncoding());
+        return codec != null ? ContentEncodingMetrics.decodeResponse(in, codec) : in;
+    }
+
+    private static Map<String, String> responseHeaders(HttpURLConnection connection) {
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            if (header.getKey() != null) {
+                headers.put(header.getKey(), String.join(", ", header.getValue()));
+            }
+        }
+        return headers;
+    }
+
+    private URI toURI(String path) throws IOException {
+        try {
+            return new URI(scheme + "://" + host + ':' + port + (path.startsWith("/") ? path : '/' + path));
+        } catch (URISyntaxException e) {
+            throw new IOException("Bad URI", e);
+        }
+    }
+
+    private static String trim(String body) {
+        return body.length() > JSON_POST_LOG_LENGTH_LIMIT ? body.substring(0, JSON_POST_LOG_LENGTH_LIMIT) : body;
+    }
+
+    private void acquire() throws IOException {
+        acquire(hostPermits);
+        try {
+            acquire(sharedPermits);
+        } catch (IOException e) {
+            if (hostPermits != null) {
+                hostPermits.release();
+            }
+            throw e;
+        }
+    }
+
+    private void acquire(Semaphore permits) throws IOException {
+        if (permits == null) {
+            return;
+        }
+        Deadline deadline = Deadline.current();
+        try {
+            if (deadline == null) {
+                permits.acquire();
+            } else if (!permits.tryAcquire(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("Deadline passed waiting for a connection to " + host + ':' + port);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection to " + host + ':' + port);
+        }
+    }
+
+    private void release() {
+        if (sharedPermits != null) {
+            sharedPermits.release();
+        }
+        if (hostPermits != null) {
+            hostPermits.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JdkHttpURLConnectionBackedHttpClient{"
+            + "scheme=" + scheme
+            + ", host=" + host
+            + ", port=" + port
+            + ", headersForEveryRequest=" + headersForEveryRequest
+            + '}';
+    }
+
+    /**
+     * Closing after reading to the end hands the socket back to the keep-alive cache; aborting drops it.
+     */
+    private static class UrlConnectionStreamResponse extends HttpStreamResponse {
+
+        private final HttpURLConnection connection;
+        private final Runnable onDone;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        UrlConnectionStreamResponse(int statusCode,
+            String statusReasonPhrase,
+            HttpURLConnection connection,
+            InputStream inputStream,
+            AtomicLong activeCount,
+            Runnable onDone) {
+            super(statusCode, statusReasonPhrase, null, inputStream, null, activeCount);
+            this.connection = connection;
+            this.onDone = onDone;
+        }
+
+        @Override
+        public String getContentType() {
+            return connection.getContentType();
+        }
+
+        @Override
+        public void abort() {
+            if (done.compareAndSet(false, true)) {
+                connection.disconnect();
+                finish();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (done.compareAndSet(false, true)) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    connection.disconnect();
+                } finally {
+                    finish();
+                }
+            }
+        }
+
+        private void finish() {
+            activeCount.decrementAndGet();
+            onDone.run();
+        }
+    }
+}
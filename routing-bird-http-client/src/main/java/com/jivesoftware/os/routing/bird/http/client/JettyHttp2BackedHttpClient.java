@@ -0,0 +1,712 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.routing.bird.shared.ContentCodec;
+import com.jivesoftware.os.routing.bird.shared.Deadline;
+import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import com.jivesoftware.os.routing.bird.shared.HttpClientPoolStats;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import oauth.signpost.exception.OAuthCommunicationException;
+import oauth.signpost.exception.OAuthExpectationFailedException;
+import oauth.signpost.exception.OAuthMessageSignerException;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.ErrorCode;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.http2.frames.PushPromiseFrame;
+import org.eclipse.jetty.http2.frames.ResetFrame;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.FutureCallback;
+import org.eclipse.jetty.util.Promise;
+
+/**
+ * Blocking client whose requests are streams on a shared HTTP/2 connection. Every wait is bounded by the socket timeout or the
+ * caller's {@link Deadline}, and giving up on a request, including being interrupted because a hedge won, resets just that stream.
+ */
+class JettyHttp2BackedHttpClient implements HttpClient {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger(true);
+
+    private static final int JSON_POST_LOG_LENGTH_LIMIT = 2048;
+    private static final int DEFAULT_PRESIZE = 4096;
+    private static final long MAX_PRESIZE = 16 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 8192;
+    private static final String ACCEPT_ENCODING = "gzip,deflate";
+    private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private static final String CONTENT_TYPE_HEADER_NAME = ApacheHttpClient441BackedHttpClient.CONTENT_TYPE_HEADER_NAME;
+    private static final String APPLICATION_JSON_CONTENT_TYPE = ApacheHttpClient441BackedHttpClient.APPLICATION_JSON_CONTENT_TYPE;
+    private static final String APPLICATION_OCTET_STREAM_TYPE = ApacheHttpClient441BackedHttpClient.APPLICATION_OCTET_STREAM_TYPE;
+
+    private final String host;
+    private final int port;
+    private final OAuthSigner oauthSigner;
+    private final Http2ClientTransport.Sessions sessions;
+    private final Runnable releaseSessions;
+    private final int socketTimeoutInMillis;
+    private final Map<String, String> headersForEveryRequest;
+    private final ContentCodec requestCodec;
+    private final int requestCompressionThreshold;
+    private final AtomicLong activeCount = new AtomicLong(0);
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    JettyHttp2BackedHttpClient(String host,
+        int port,
+        OAuthSigner signer,
+        Http2ClientTransport.Sessions sessions,
+        Runnable releaseSessions,
+        int socketTimeoutInMillis,
+        Map<String, String> headersForEveryRequest,
+        ContentCodec requestCodec,
+        int requestCompressionThreshold) {
+
+        this.host = host;
+        this.port = port;
+        this.oauthSigner = signer;
+        this.sessions = sessions;
+        this.releaseSessions = releaseSessions;
+        this.socketTimeoutInMillis = Math.max(0, socketTimeoutInMillis);
+        this.headersForEveryRequest = headersForEveryRequest;
+        this.requestCodec = requestCompressionThreshold < 0 ? null : requestCodec;
+        this.requestCompressionThreshold = requestCompressionThreshold;
+    }
+
+    /**
+     * Leased counts in-flight streams; available and max count this instance's connections, which are shared by every client for it.
+     */
+    @Override
+    public HttpClientPoolStats getPoolStats() {
+        return new HttpClientPoolStats((int) activeCount.get(), 0, sessions.open(), sessions.size());
+    }
+
+    /**
+     * Releases this client's share of the instance's connections, which close once no client for the instance remains.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            releaseSessions.run();
+        }
+    }
+
+    @Override
+    public HttpResponse get(String path, Map<String, String> headers) throws HttpClientException {
+        try {
+            return execute("GET", path, headers, null, null, null);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing GET request to: " + this + " path: " + path, e);
+        }
+    }
+
+    @Override
+    public HttpResponse delete(String path, Map<String, String> headers) throws HttpClientException {
+        try {
+            return execute("DELETE", path, headers, null, null, null);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing DELETE request to: " + this + " path: " + path, e);
+        }
+    }
+
+    @Override
+    public HttpResponse postJson(String path, String postJsonBody, Map<String, String> headers) throws HttpClientException {
+        try {
+            return execute("POST", path, headers, APPLICATION_JSON_CONTENT_TYPE, postJsonBody.getBytes(StandardCharsets.UTF_8), null);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing POST request to: " + this + " path: " + path + " JSON body: " + trim(postJsonBody), e);
+        }
+    }
+
+    @Override
+    public HttpResponse postBytes(String path, byte[] postBytes, Map<String, String> headers) throws HttpClientException {
+        try {
+            return execute("POST", path, headers, APPLICATION_OCTET_STREAM_TYPE, postBytes, null);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing POST request to: " + this + " path: " + path + " body of length: " + postBytes.length, e);
+        }
+    }
+
+    @Override
+    public HttpStreamResponse streamingPost(String path, String postJsonBody, Map<String, String> headers) throws HttpClientException {
+        try {
+            return executeStream(path, headers, APPLICATION_JSON_CONTENT_TYPE, postJsonBody.getBytes(StandardCharsets.UTF_8), null, true);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing POST request to: " + this + " path: " + path + " JSON body: " + trim(postJsonBody), e);
+        }
+    }
+
+    @Override
+    public HttpStreamResponse streamingPostStreamableRequest(String path,
+        StreamableRequest streamable,
+        Map<String, String> headers) throws HttpClientException {
+        try {
+            return executeStream(path, headers, APPLICATION_OCTET_STREAM_TYPE, null, streamable, true);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing POST request to: " + this + " path: " + path + " streamable: " + streamable, e);
+        }
+    }
+
+    @Override
+    public HttpResponse postStreamableRequest(String path, StreamableRequest streamable, Map<String, String> headers) throws HttpClientException {
+        try {
+            return execute("POST", path, headers, APPLICATION_OCTET_STREAM_TYPE, null, streamable);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing POST request to: " + this + " path: " + path + " streamable: " + streamable, e);
+        }
+    }
+
+    @Override
+    public HttpStreamResponse streamingPostJson(String path, StreamableRequest jsonRequest, Map<String, String> headers) throws HttpClientException {
+        String contentType = headers != null && headers.containsKey(CONTENT_TYPE_HEADER_NAME)
+            ? headers.get(CONTENT_TYPE_HEADER_NAME) : APPLICATION_JSON_CONTENT_TYPE;
+        try {
+            return executeStream(path, headers, contentType, null, jsonRequest, false);
+        } catch (IOException | OAuthCommunicationException | OAuthExpectationFailedException | OAuthMessageSignerException e) {
+            throw new HttpClientException("Error executing POST request to: " + this + " path: " + path + " streamable: " + jsonRequest, e);
+        }
+    }
+
+    private HttpResponse execute(String method,
+        String path,
+        Map<String, String> headers,
+        String contentType,
+        byte[] body,
+        StreamableRequest streamable) throws IOException,
+        OAuthMessageSignerException,
+        OAuthExpectationFailedException,
+        OAuthCommunicationException {
+
+        activeCount.incrementAndGet();
+        ResponseStream response = null;
+        try {
+            response = send(method, path, headers, contentType, body, streamable);
+            MetaData.Response metaData = response.awaitHeaders();
+            long contentLength = metaData.getContentLength();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(contentLength >= 0 && contentLength < MAX_PRESIZE
+                ? (int) contentLength : DEFAULT_PRESIZE);
+            try (InputStream responseBodyAsStream = response.decoded()) {
+                IOUtils.copyLarge(responseBodyAsStream, outputStream, COPY_BUFFER.get());
+            }
+            LOG.debug("Got status: {}", metaData.getStatus());
+            return new HttpResponse(metaData.getStatus(),
+                HttpStatus.getMessage(metaData.getStatus()),
+                outputStream.toByteArray(),
+                responseHeaders(metaData));
+        } catch (IOException | RuntimeException e) {
+            if (response != null) {
+                response.close();
+            }
+            throw e;
+        } finally {
+            activeCount.decrementAndGet();
+        }
+    }
+
+    private HttpStreamResponse executeStream(String path,
+        Map<String, String> headers,
+        String contentType,
+        byte[] body,
+        StreamableRequest streamable,
+        boolean requireSuccess) throws IOException,
+        OAuthMessageSignerException,
+        OAuthExpectationFailedException,
+        OAuthCommunicationException {
+
+        activeCount.incrementAndGet();
+        ResponseStream response = null;
+        try {
+            response = send("POST", path, headers, contentType, body, streamable);
+            MetaData.Response metaData = response.awaitHeaders();
+            int status = metaData.getStatus();
+            LOG.debug("Got status: {}", status);
+            if (requireSuccess && (status < 200 || status >= 300)) {
+                throw new IOException("Bad status : " + status + " " + HttpStatus.getMessage(status));
+            }
+            return new StreamResponse(status, metaData, response, activeCount);
+        } catch (IOException | RuntimeException | OAuthMessageSignerException | OAuthExpectationFailedException | OAuthCommunicationException e) {
+            if (response != null) {
+                response.close();
+            }
+            activeCount.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private ResponseStream send(String method,
+        String path,
+        Map<String, String> headers,
+        String contentType,
+        byte[] body,
+        StreamableRequest streamable) throws IOException,
+        OAuthMessageSignerException,
+        OAuthExpectationFailedException,
+        OAuthCommunicationException {
+
+        URI uri = toURI(path);
+        long timeoutMillis = socketTimeoutInMillis;
+        HttpFields fields = new HttpFields();
+        fields.put("Accept-Encoding", ACCEPT_ENCODING);
+        for (Map.Entry<String, String> header : headersForEveryRequest.entrySet()) {
+            fields.put(header.getKey(), header.getValue());
+        }
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                fields.put(header.getKey(), header.getValue());
+            }
+        }
+        Deadline deadline = Deadline.current();
+        if (deadline != null) {
+            long remainingMillis = deadline.remainingMillis();
+            if (remainingMillis <= 0) {
+                throw new SocketTimeoutException("Deadline passed before sending " + method + " " + uri);
+            }
+            timeoutMillis = deadline.capTimeoutMillis(socketTimeoutInMillis);
+            fields.put(Deadline.HEADER, String.valueOf(remainingMillis));
+        }
+        if (oauthSigner != null) {
+            for (Header header : JdkHttpURLConnectionBackedHttpClient.signStandIn(oauthSigner, method, uri)) {
+                fields.put(header.getName(), header.getValue());
+            }
+        }
+
+        byte[] payload = body;
+        if (contentType != null) {
+            fields.put(CONTENT_TYPE_HEADER_NAME, contentType);
+        }
+        if (body != null) {
+            if (requestCodec != null && body.length >= requestCompressionThreshold) {
+                payload = ContentEncodingMetrics.compressRequest(requestCodec, body);
+                fields.put("Content-Encoding", requestCodec.getEncoding());
+            }
+            fields.put("Content-Length", String.valueOf(payload.length));
+        } else if (streamable != null && requestCodec != null) {
+            fields.put("Content-Encoding", requestCodec.getEncoding());
+        }
+
+        Session session = sessions.acquire(timeoutMillis);
+        MetaData.Request request = new MetaData.Request(method, new HttpURI(uri.toString()), HttpVersion.HTTP_2, fields);
+        boolean endStream = payload == null && streamable == null;
+        ResponseStream response = new ResponseStream(timeoutMillis);
+        StreamPromise promise = new StreamPromise();
+        session.newStream(new HeadersFrame(0, request, null, endStream), promise, response);
+        Stream stream;
+        try {
+            stream = await(promise.opened, timeoutMillis, null);
+        } catch (IOException e) {
+            promise.abandon();
+            throw e;
+        }
+        response.opened(stream);
+        try {
+            if (payload != null) {
+                sendData(stream, ByteBuffer.wrap(payload), true, timeoutMillis);
+            } else if (streamable != null) {
+                try (OutputStream out = new DataOutputStream(stream, timeoutMillis)) {
+                    ApacheHttpClient441BackedHttpClient.StreamableEntity.writeTo(streamable, requestCodec, out);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            throw e;
+        }
+        return response;
+    }
+
+    private static void sendData(Stream stream, ByteBuffer data, boolean endStream, long timeoutMillis) throws IOException {
+        FutureCallback sent = new FutureCallback();
+        stream.data(new DataFrame(stream.getId(), data, endStream), sent);
+        await(sent, timeoutMillis, stream);
+    }
+
+    /**
+     * Waits on a Jetty future the same way the response side waits for frames: up to timeoutMillis, resetting stream, when there is
+     * one, if the wait is abandoned.
+     */
+    private static <V> V await(Future<V> future, long timeoutMillis, Stream stream) throws IOException {
+        try {
+            return timeoutMillis > 0 ? future.get(timeoutMillis, TimeUnit.MILLISECONDS) : future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(stream);
+            throw new InterruptedIOException("Interrupted");
+        } catch (TimeoutException e) {
+            cancel(stream);
+            throw new SocketTimeoutException("Timed out after " + timeoutMillis + "ms");
+        } catch (ExecutionException e) {
+            cancel(stream);
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private static void cancel(Stream stream) {
+        if (stream != null && !stream.isReset() && !stream.isClosed()) {
+            LOG.inc("http2>reset");
+            stream.reset(new ResetFrame(stream.getId(), ErrorCode.CANCEL_STREAM_ERROR.code), Callback.NOOP);
+        }
+    }
+
+    private static Map<String, String> responseHeaders(MetaData.Response metaData) {
+        Map<String, String> headers = new HashMap<>();
+        for (HttpField field : metaData.getFields()) {
+            headers.merge(field.getName(), field.getValue(), (a, b) -> a + ", " + b);
+        }
+        return headers;
+    }
+
+    private URI toURI(String path) throws IOException {
+        try {
+            return new URI("http://" + host + ':' + port + (path.startsWith("/") ? path : '/' + path));
+        } catch (URISyntaxException e) {
+            throw new IOException("Bad URI", e);
+        }
+    }
+
+    private static String trim(String body) {
+        return body.length() > JSON_POST_LOG_LENGTH_LIMIT ? body.substring(0, JSON_POST_LOG_LENGTH_LIMIT) : body;
+    }
+
+    @Override
+    public String toString() {
+        return "JettyHttp2BackedHttpClient{"
+            + "host=" + host
+            + ", port=" + port
+            + ", headersForEveryRequest=" + headersForEveryRequest
+            + '}';
+    }
+
+    /**
+     * Sends a request body as data frames of up to CHUNK_SIZE, waiting for each to be written so flow control paces the writer.
+     */
+    private static class DataOutputStream extends OutputStream {
+
+        private final Stream stream;
+        private final long timeoutMillis;
+        private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        private boolean closed;
+
+        DataOutputStream(Stream stream, long timeoutMillis) {
+            this.stream = stream;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                send(false);
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    send(false);
+                }
+                int chunk = Math.min(len, buffer.remaining());
+                buffer.put(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                send(true);
+            }
+        }
+
+        private void send(boolean endStream) throws IOException {
+            buffer.flip();
+            sendData(stream, buffer, endStream, timeoutMillis);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Opens a stream. Should the caller stop waiting before it opens, abandoning resets it as soon as it does, rather than leaving a
+     * request nobody will read running on the server.
+     */
+    static final class StreamPromise implements Promise<Stream> {
+
+        final CompletableFuture<Stream> opened = new CompletableFuture<>();
+
+        @Override
+        public void succeeded(Stream stream) {
+            opened.complete(stream);
+        }
+
+        @Override
+        public void failed(Throwable x) {
+            opened.completeExceptionally(x);
+        }
+
+        void abandon() {
+            opened.thenAccept(JettyHttp2BackedHttpClient::cancel);
+        }
+    }
+
+    /**
+     * Receives one stream's response. Data frames are queued as they arrive and only acknowledged once read, so a slow reader holds
+     * back the sender's flow control window for this stream alone. Closing before the end resets the stream.
+     */
+    private static class ResponseStream extends InputStream implements Stream.Listener {
+
+        private final long timeoutMillis;
+        private final CompletableFuture<MetaData.Response> headers = new CompletableFuture<>();
+        private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+        private volatile Stream stream;
+        private Chunk current;
+        private boolean ended;
+        private boolean closed;
+        private IOException failure;
+        private MetaData.Response metaData;
+
+        ResponseStream(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        void opened(Stream stream) {
+            this.stream = stream;
+        }
+
+        MetaData.Response awaitHeaders() throws IOException {
+            metaData = await(headers, timeoutMillis, stream);
+            return metaData;
+        }
+
+        InputStream decoded() throws IOException {
+            ContentCodec codec = ContentCodec.forEncoding(metaData.getFields().get("Content-Encoding"));
+            return codec != null ? ContentEncodingMetrics.decodeResponse(this, codec) : this;
+        }
+
+        @Override
+        public void onHeaders(Stream stream, HeadersFrame frame) {
+            this.stream = stream;
+            if (frame.getMetaData().isResponse()) {
+                MetaData.Response response = (MetaData.Response) frame.getMetaData();
+                if (response.getStatus() >= 100 && response.getStatus() < 200) {
+                    return;
+                }
+                headers.complete(response);
+            }
+            if (frame.isEndStream()) {
+                synchronized (this) {
+                    chunks.add(new Chunk(ByteBuffer.allocate(0), Callback.NOOP, true));
+                    notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public Stream.Listener onPush(Stream stream, PushPromiseFrame frame) {
+            return null;
+        }
+
+        @Override
+        public void onData(Stream stream, DataFrame frame, Callback callback) {
+            synchronized (this) {
+                if (closed) {
+                    callback.succeeded();
+                    return;
+                }
+                // the frame's buffer goes back to the connection once this returns, only the flow control credit may be held onto
+                ByteBuffer data = frame.getData();
+                ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+                copy.put(data).flip();
+                chunks.add(new Chunk(copy, callback, frame.isEndStream()));
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void onReset(Stream stream, ResetFrame frame) {
+            fail(new IOException("Stream reset by peer: " + ErrorCode.from(frame.getError())));
+        }
+
+        @Override
+        public void onTimeout(Stream stream, Throwable x) {
+            fail(new SocketTimeoutException("Stream idle timeout"));
+        }
+
+        private void fail(IOException cause) {
+            headers.completeExceptionally(cause);
+            synchronized (this) {
+                if (failure == null) {
+                    failure = cause;
+                }
+                notifyAll();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int read = read(one, 0, 1);
+            return read == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            Chunk chunk = nextChunk();
+            if (chunk == null) {
+                return -1;
+            }
+            int read = Math.min(len, chunk.data.remaining());
+            chunk.data.get(b, off, read);
+            return read;
+        }
+
+        private synchronized Chunk nextChunk() throws IOException {
+            long waitUntil = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+            while (true) {
+                if (current != null) {
+                    if (current.data.hasRemaining()) {
+                        return current;
+                    }
+                    current.callback.succeeded();
+                    ended |= current.last;
+                    current = null;
+                }
+                if (ended || closed) {
+                    return null;
+                }
+                current = chunks.poll();
+                if (current != null) {
+                    continue;
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                long waitMillis = waitUntil - System.currentTimeMillis();
+                if (waitMillis <= 0) {
+                    cancel(stream);
+                    throw new SocketTimeoutException("Timed out after " + timeoutMillis + "ms waiting for response data");
+                }
+                try {
+                    wait(waitMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel(stream);
+                    throw new InterruptedIOException("Interrupted waiting for response data");
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            boolean reset;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                reset = !ended;
+                if (current != null) {
+                    current.callback.succeeded();
+                    current = null;
+                }
+                for (Chunk chunk : chunks) {
+                    chunk.callback.succeeded();
+                }
+                chunks.clear();
+            }
+            headers.completeExceptionally(new IOException("Closed"));
+            if (reset) {
+                cancel(stream);
+            }
+        }
+    }
+
+    private static class Chunk {
+
+        private final ByteBuffer data;
+        private final Callback callback;
+        private final boolean last;
+
+        Chunk(ByteBuffer data, Callback callback, boolean last) {
+            this.data = data;
+            this.callback = callback;
+            this.last = last;
+        }
+    }
+
+    private static class StreamResponse extends HttpStreamResponse {
+
+        private final MetaData.Response metaData;
+        private final ResponseStream response;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        StreamResponse(int statusCode, MetaData.Response metaData, ResponseStream response, AtomicLong activeCount) throws IOException {
+            super(statusCode, HttpStatus.getMessage(statusCode), null, response.decoded(), null, activeCount);
+            this.metaData = metaData;
+            this.response = response;
+        }
+
+        @Override
+        public String getContentType() {
+            return metaData.getFields().get(CONTENT_TYPE_HEADER_NAME);
+        }
+
+        @Override
+        public void abort() {
+            close();
+        }
+
+        @Override
+        public void close() {
+            if (done.compareAndSet(false, true)) {
+                response.close();
+                activeCount.decrementAndGet();
+            }
+        }
+    }
+}
@@ -98,6 +98,14 @@ public class LatentHttpClient implements HttpClient {
         return delegate.postStreamableRequest(path, streamableRequest, headers);
     }
 
+    @Override
+    public HttpStreamResponse streamingPostJson(String path,
+        HttpClient.StreamableRequest jsonRequest,
+        Map<String, String> headers) throws HttpClientException {
+        randSleep();
+        return delegate.streamingPostJson(path, jsonRequest, headers);
+    }
+
     @Override
     public void close() {
         delegate.close();
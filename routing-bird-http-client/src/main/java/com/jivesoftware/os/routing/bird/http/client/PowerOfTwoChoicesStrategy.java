@@ -0,0 +1,245 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.jivesoftware.os.routing.bird.shared.CircuitBreaker;
+import com.jivesoftware.os.routing.bird.shared.ClientCall;
+import com.jivesoftware.os.routing.bird.shared.ClientCall.ClientResponse;
+import com.jivesoftware.os.routing.bird.shared.ClientHealth;
+import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptor;
+import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import com.jivesoftware.os.routing.bird.shared.LoadTrackingClientStrategy;
+import com.jivesoftware.os.routing.bird.shared.NextClientStrategy;
+import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure;
+import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure.Favored;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Power of two choices: sample two live clients and send the request to the one with the lower (in flight + 1) * EWMA latency score.
+ * The loser is the first fallback, then everything else in index order. Load is tracked per instance so it carries over routing
+ * refreshes, and is shared by every routing group this strategy serves. Async calls contribute to load the same way sync calls do.
+ * Instances no live routing group references any more are forgotten whenever a new descriptor array is first seen.
+ */
+public class PowerOfTwoChoicesStrategy implements NextClientStrategy, LoadTrackingClientStrategy {
+
+    private final double decay;
+    private final ReturnFirstNonFailure returnFirstNonFailure = new ReturnFirstNonFailure();
+    private final ConcurrentHashMap<String, Load> instanceLoads = new ConcurrentHashMap<>();
+    // keyed by identity, one entry per routing group's live descriptors, dropped once that routing group lets go of them
+    private final Cache<ConnectionDescriptor[], Load[]> loads = CacheBuilder.newBuilder().weakKeys().build();
+
+    public PowerOfTwoChoicesStrategy() {
+        this(0.2d);
+    }
+
+    /**
+     * @param decay weight given to each new latency sample, between 0 and 1
+     */
+    public PowerOfTwoChoicesStrategy(double decay) {
+        this.decay = decay;
+    }
+
+    @Override
+    public <C, R> R call(String family,
+        ClientCall<C, R, HttpClientException> httpCall,
+        ConnectionDescriptor[] connectionDescriptors,
+        long connectionDescriptorsVersion,
+        C[] clients,
+        ClientHealth[] clientHealths,
+        CircuitBreaker[] clientBreakers,
+        Favored favored) throws HttpClientException {
+
+        long now = System.currentTimeMillis();
+        Load[] load = loads(connectionDescriptors);
+        int[] clientIndexes = order(load, clientBreakers, now);
+        int attempt = 0;
+        for (int clientIndex : clientIndexes) {
+            long start = System.currentTimeMillis();
+            ClientResponse<R> clientResponse;
+            load[clientIndex].inflight.incrementAndGet();
+            try {
+                clientResponse = returnFirstNonFailure.indexedCall(this, family, start, httpCall, clientIndex, clients, clientHealths,
+                    clientBreakers);
+            } finally {
+                load[clientIndex].inflight.decrementAndGet();
+            }
+            if (clientResponse != null) {
+                load[clientIndex].observe(System.currentTimeMillis() - start, decay);
+                if (favored != null) {
+                    favored.favored(attempt, attempt, connectionDescriptors[clientIndex], System.currentTimeMillis() - now);
+                }
+                return clientResponse.response;
+            }
+            attempt++;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < connectionDescriptors.length; i++) {
+            sb.append(", client[").append(i).append("]={").append(connectionDescriptors[i].getHostPort())
+                .append(", breaker:").append(clientBreakers[i])
+                .append(", inflight:").append(load[i].inflight)
+                .append(", ewma:").append(load[i].ewma())
+                .append('}');
+        }
+
+        throw new HttpClientException("No clients are available. possible:" + sb + " filteredIndexes:" + Arrays.toString(clientIndexes));
+    }
+
+    /**
+     * Used by the async path, which has no view of dead clients here; ReturnFirstNonFailure skips those itself.
+     */
+    @Override
+    public int[] getClients(ConnectionDescriptor[] connectionDescriptors) {
+        return order(loads(connectionDescriptors), null, 0);
+    }
+
+    @Override
+    public void usedClientAtIndex(int index) {
+    }
+
+    @Override
+    public void startedClientAtIndex(ConnectionDescriptor[] connectionDescriptors, int index) {
+        loads(connectionDescriptors)[index].inflight.incrementAndGet();
+    }
+
+    @Override
+    public void finishedClientAtIndex(ConnectionDescriptor[] connectionDescriptors, int index, long latencyMillis, boolean succeeded) {
+        Load load = loads(connectionDescriptors)[index];
+        load.inflight.decrementAndGet();
+        if (succeeded) {
+            load.observe(latencyMillis, decay);
+        }
+    }
+
+    private int[] order(Load[] load, CircuitBreaker[] clientBreakers, long now) {
+        int length = load.length;
+        int[] order = new int[length];
+        if (length == 0) {
+            return order;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = live(random.nextInt(length), -1, length, clientBreakers, now);
+        int b = a == -1 ? -1 : live(random.nextInt(length), a, length, clientBreakers, now);
+
+        int count = 0;
+        if (a != -1 && b != -1) {
+            boolean aWins = load[a].score() <= load[b].score();
+            order[count++] = aWins ? a : b;
+            order[count++] = aWins ? b : a;
+        } else if (a != -1) {
+            order[count++] = a;
+        }
+        for (int i = 0; i < length; i++) {
+            if (i != a && i != b) {
+                order[count++] = i;
+            }
+        }
+        return order;
+    }
+
+    private static int live(int offset, int exclude, int length, CircuitBreaker[] clientBreakers, long now) {
+        for (int i = 0; i < length; i++) {
+            int index = (offset + i) % length;
+            if (index == exclude) {
+                continue;
+            }
+            if (clientBreakers != null && !clientBreakers[index].isAvailable(now)) {
+                continue;
+            }
+            return index;
+        }
+        return -1;
+    }
+
+    private Load[] loads(ConnectionDescriptor[] connectionDescriptors) {
+        Load[] load = loads.getIfPresent(connectionDescriptors);
+        if (load != null) {
+            return load;
+        }
+        synchronized (instanceLoads) {
+            load = loads.getIfPresent(connectionDescriptors);
+            if (load != null) {
+                return load;
+            }
+            load = new Load[connectionDescriptors.length];
+            for (int i = 0; i < connectionDescriptors.length; i++) {
+                load[i] = instanceLoads.computeIfAbsent(connectionDescriptors[i].getInstanceDescriptor().instanceKey, key -> new Load());
+            }
+            loads.put(connectionDescriptors, load);
+
+            Set<String> live = new HashSet<>();
+            for (ConnectionDescriptor[] descriptors : loads.asMap().keySet()) {
+                for (ConnectionDescriptor descriptor : descriptors) {
+                    live.add(descriptor.getInstanceDescriptor().instanceKey);
+                }
+            }
+            instanceLoads.keySet().retainAll(live);
+            return load;
+        }
+    }
+
+    int trackedInstances() {
+        return instanceLoads.size();
+    }
+
+    @Override
+    public String toString() {
+        return "PowerOfTwoChoicesStrategy{"
+            + "decay=" + decay
+            + ", instances=" + instanceLoads.size()
+            + '}';
+    }
+
+    private static class Load {
+
+        private final AtomicInteger inflight = new AtomicInteger();
+        private final AtomicLong ewmaBits = new AtomicLong(Double.doubleToLongBits(0d));
+
+        private double ewma() {
+            return Double.longBitsToDouble(ewmaBits.get());
+        }
+
+        private double score() {
+            return (ewma() + 1d) * (inflight.get() + 1);
+        }
+
+        private void observe(long latency, double decay) {
+            long bits = ewmaBits.get();
+            while (true) {
+                double current = Double.longBitsToDouble(bits);
+                double next = current == 0d ? latency : current + decay * (latency - current);
+                if (ewmaBits.compareAndSet(bits, Double.doubleToLongBits(next))) {
+                    return;
+                }
+                bits = ewmaBits.get();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "{inflight=" + inflight + ", ewma=" + ewma() + '}';
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.jivesoftware.os.routing.bird.shared.CircuitBreaker;
+import com.jivesoftware.os.routing.bird.shared.ClientCall;
+import com.jivesoftware.os.routing.bird.shared.ClientCall.ClientResponse;
+import com.jivesoftware.os.routing.bird.shared.ClientHealth;
+import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptor;
+import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import com.jivesoftware.os.routing.bird.shared.LoadTrackingClientStrategy;
+import com.jivesoftware.os.routing.bird.shared.NextClientStrategy;
+import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure;
+import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure.Favored;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rendezvous (highest random weight) hashing of an affinity key over instance keys, so the same tenant or partition keeps landing on
+ * the same instance and its caches stay warm. Adding or removing an instance only moves the keys which ranked it first.
+ * <p>
+ * Load is bounded: an instance whose in flight count would exceed (1 + epsilon) times the average is pushed behind every instance
+ * which still has room, in rank order. In flight counts are shared by instance key across routing groups and refreshes, and include
+ * async calls.
+ * <p>
+ * Use {@link #forKey(String)} to get the strategy for a given key, or pass the key to
+ * {@link TenantAwareHttpClient#call(Object, String, RendezvousStrategy, String, ClientCall)}.
+ */
+public class RendezvousStrategy {
+
+    private final double epsilon;
+    private final ReturnFirstNonFailure returnFirstNonFailure = new ReturnFirstNonFailure();
+    private final ConcurrentHashMap<String, AtomicInteger> instanceInflight = new ConcurrentHashMap<>();
+    // keyed by identity, one entry per routing group's live descriptors, dropped once that routing group lets go of them
+    private final Cache<ConnectionDescriptor[], Instances> instances = CacheBuilder.newBuilder().weakKeys().build();
+
+    public RendezvousStrategy() {
+        this(0.25d);
+    }
+
+    /**
+     * @param epsilon how far above the average in flight count an instance may go before keys spill to their next choice
+     */
+    public RendezvousStrategy(double epsilon) {
+        this.epsilon = epsilon;
+    }
+
+    public KeyedStrategy forKey(String affinityKey) {
+        return new KeyedStrategy(affinityKey, hash(affinityKey));
+    }
+
+    int[] rank(long keyHash, ConnectionDescriptor[] connectionDescriptors) {
+        return rank(keyHash, instances(connectionDescriptors));
+    }
+
+    private int[] rank(long keyHash, Instances current) {
+        int length = current.instanceHashes.length;
+        long[] weights = new long[length];
+        int[] ranked = new int[length];
+        long totalInflight = 0;
+        for (int i = 0; i < length; i++) {
+            weights[i] = mix(keyHash ^ current.instanceHashes[i]);
+            ranked[i] = i;
+            totalInflight += current.inflight[i].get();
+        }
+
+        // highest weight first
+        for (int i = 1; i < length; i++) {
+            for (int j = i; j > 0 && weights[ranked[j - 1]] < weights[ranked[j]]; j--) {
+                int t = ranked[j];
+                ranked[j] = ranked[j - 1];
+                ranked[j - 1] = t;
+            }
+        }
+
+        if (length == 0) {
+            return ranked;
+        }
+        long capacity = (long) Math.ceil((1d + epsilon) * (totalInflight + 1) / length);
+        int[] order = new int[length];
+        int count = 0;
+        for (int index : ranked) {
+            if (current.inflight[index].get() < capacity) {
+                order[count++] = index;
+            }
+        }
+        for (int index : ranked) {
+            if (current.inflight[index].get() >= capacity) {
+                order[count++] = index;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Instances no live routing group references any more are forgotten whenever a new descriptor array is first seen.
+     */
+    private Instances instances(ConnectionDescriptor[] connectionDescriptors) {
+        Instances current = instances.getIfPresent(connectionDescriptors);
+        if (current != null) {
+            return current;
+        }
+        synchronized (instanceInflight) {
+            current = instances.getIfPresent(connectionDescriptors);
+            if (current != null) {
+                return current;
+            }
+            long[] instanceHashes = new long[connectionDescriptors.length];
+            AtomicInteger[] inflight = new AtomicInteger[connectionDescriptors.length];
+            for (int i = 0; i < connectionDescriptors.length; i++) {
+                String instanceKey = connectionDescriptors[i].getInstanceDescriptor().instanceKey;
+                instanceHashes[i] = hash(instanceKey);
+                inflight[i] = instanceInflight.computeIfAbsent(instanceKey, key -> new AtomicInteger());
+            }
+            current = new Instances(instanceHashes, inflight);
+            instances.put(connectionDescriptors, current);
+
+            Set<String> live = new HashSet<>();
+            for (ConnectionDescriptor[] descriptors : instances.asMap().keySet()) {
+                for (ConnectionDescriptor descriptor : descriptors) {
+                    live.add(descriptor.getInstanceDescriptor().instanceKey);
+                }
+            }
+            instanceInflight.keySet().retainAll(live);
+            return current;
+        }
+    }
+
+    int trackedInstances() {
+        return instanceInflight.size();
+    }
+
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    @Override
+    public String toString() {
+        return "RendezvousStrategy{"
+            + "epsilon=" + epsilon
+            + ", instances=" + instanceInflight.size()
+            + '}';
+    }
+
+    public class KeyedStrategy implements NextClientStrategy, LoadTrackingClientStrategy {
+
+        private final String affinityKey;
+        private final long keyHash;
+
+        private KeyedStrategy(String affinityKey, long keyHash) {
+            this.affinityKey = affinityKey;
+            this.keyHash = keyHash;
+        }
+
+        @Override
+        public <C, R> R call(String family,
+            ClientCall<C, R, HttpClientException> httpCall,
+            ConnectionDescriptor[] connectionDescriptors,
+            long connectionDescriptorsVersion,
+            C[] clients,
+            ClientHealth[] clientHealths,
+            CircuitBreaker[] clientBreakers,
+            Favored favored) throws HttpClientException {
+
+            long now = System.currentTimeMillis();
+            Instances current = instances(connectionDescriptors);
+            int[] clientIndexes = rank(keyHash, current);
+            AtomicInteger[] inflight = current.inflight;
+            int attempt = 0;
+            for (int clientIndex : clientIndexes) {
+                ClientResponse<R> clientResponse;
+                inflight[clientIndex].incrementAndGet();
+                try {
+                    clientResponse = returnFirstNonFailure.indexedCall(this, family, now, httpCall, clientIndex, clients, clientHealths,
+                        clientBreakers);
+                } finally {
+                    inflight[clientIndex].decrementAndGet();
+                }
+                if (clientResponse != null) {
+                    if (favored != null) {
+                        favored.favored(attempt, attempt, connectionDescriptors[clientIndex], System.currentTimeMillis() - now);
+                    }
+                    return clientResponse.response;
+                }
+                attempt++;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("affinityKey:").append(affinityKey);
+            for (int i = 0; i < connectionDescriptors.length; i++) {
+                sb.append(", client[").append(i).append("]={").append(connectionDescriptors[i].getHostPort())
+                    .append(", breaker:").append(clientBreakers[i])
+                    .append(", inflight:").append(inflight[i])
+                    .append('}');
+            }
+
+            throw new HttpClientException("No clients are available. possible:" + sb + " filteredIndexes:" + Arrays.toString(clientIndexes));
+        }
+
+        /**
+         * Used by the async path, which reports in flight calls through {@link #startedClientAtIndex} and {@link #finishedClientAtIndex}.
+         */
+        @Override
+        public int[] getClients(ConnectionDescriptor[] connectionDescriptors) {
+            return rank(keyHash, connectionDescriptors);
+        }
+
+        @Override
+        public void usedClientAtIndex(int index) {
+        }
+
+        @Override
+        public void startedClientAtIndex(ConnectionDescriptor[] connectionDescriptors, int index) {
+            instances(connectionDescriptors).inflight[index].incrementAndGet();
+        }
+
+        @Override
+        public void finishedClientAtIndex(ConnectionDescriptor[] connectionDescriptors, int index, long latencyMillis, boolean succeeded) {
+            instances(connectionDescriptors).inflight[index].decrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return "KeyedStrategy{"
+                + "affinityKey=" + affinityKey
+                + ", strategy=" + RendezvousStrategy.this
+                + '}';
+        }
+    }
+
+    private static class Instances {
+
+        private final long[] instanceHashes;
+        private final AtomicInteger[] inflight;
+
+        private Instances(long[] instanceHashes, AtomicInteger[] inflight) {
+            this.instanceHashes = instanceHashes;
+            this.inflight = inflight;
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.jivesoftware.os.routing.bird.http.client;
 
+import com.jivesoftware.os.routing.bird.shared.CircuitBreaker;
 import com.jivesoftware.os.routing.bird.shared.ClientCall;
 import com.jivesoftware.os.routing.bird.shared.ClientHealth;
 import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptor;
@@ -24,7 +25,6 @@ import com.jivesoftware.os.routing.bird.shared.NextClientStrategy;
 import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure;
 import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure.Favored;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class RoundRobinStrategy implements NextClientStrategy, IndexedClientStrategy {
 
@@ -38,10 +38,7 @@ public class RoundRobinStrategy implements NextClientStrategy, IndexedClientStra
         long connectionDescriptorsVersion,
         C[] clients,
         ClientHealth[] clientHealths,
-        int deadAfterNErrors,
-        long checkDeadEveryNMillis,
-        AtomicInteger[] clientsErrors,
-        AtomicLong[] clientsDeathTimestamp,
+        CircuitBreaker[] clientBreakers,
         Favored favored) throws HttpClientException {
 
         return returnFirstNonFailure.call(this,
@@ -51,10 +48,7 @@ public class RoundRobinStrategy implements NextClientStrategy, IndexedClientStra
             connectionDescriptorsVersion,
             clients,
             clientHealths,
-            deadAfterNErrors,
-            checkDeadEveryNMillis,
-            clientsErrors,
-            clientsDeathTimestamp,
+            clientBreakers,
             favored);
     }
 
@@ -0,0 +1,25 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+/**
+ * Hands out clients which all lease from one route-keyed connection pool. Closing an individual client leaves the pool and its
+ * keep-alive sockets intact; {@link #close()} tears the pool down.
+ */
+public interface SharedHttpClientFactory extends HttpClientFactory {
+
+    void close();
+}
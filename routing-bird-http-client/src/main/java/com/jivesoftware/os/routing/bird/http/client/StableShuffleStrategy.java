@@ -15,6 +15,7 @@
  */
 package com.jivesoftware.os.routing.bird.http.client;
 
+import com.jivesoftware.os.routing.bird.shared.CircuitBreaker;
 import com.jivesoftware.os.routing.bird.shared.ClientCall;
 import com.jivesoftware.os.routing.bird.shared.ClientHealth;
 import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptor;
@@ -24,8 +25,6 @@ import com.jivesoftware.os.routing.bird.shared.NextClientStrategy;
 import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure;
 import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure.Favored;
 import java.util.Random;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class StableShuffleStrategy implements NextClientStrategy, IndexedClientStrategy {
 
@@ -44,10 +43,7 @@ public class StableShuffleStrategy implements NextClientStrategy, IndexedClientS
         long connectionDescriptorsVersion,
         C[] clients,
         ClientHealth[] clientHealths,
-        int deadAfterNErrors,
-        long checkDeadEveryNMillis,
-        AtomicInteger[] clientsErrors,
-        AtomicLong[] clientsDeathTimestamp,
+        CircuitBreaker[] clientBreakers,
         Favored favored) throws HttpClientException {
         return returnFirstNonFailure.call(this,
             family,
@@ -56,10 +52,7 @@ public class StableShuffleStrategy implements NextClientStrategy, IndexedClientS
             connectionDescriptorsVersion,
             clients,
             clientHealths,
-            deadAfterNErrors,
-            checkDeadEveryNMillis,
-            clientsErrors,
-            clientsDeathTimestamp,
+            clientBreakers,
             favored);
     }
 
@@ -2,34 +2,31 @@ package com.jivesoftware.os.routing.bird.http.client;
 
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.routing.bird.shared.CircuitBreaker;
 import com.jivesoftware.os.routing.bird.shared.ClientCall;
 import com.jivesoftware.os.routing.bird.shared.ClientCall.ClientResponse;
 import com.jivesoftware.os.routing.bird.shared.ClientHealth;
 import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptor;
+import com.jivesoftware.os.routing.bird.shared.Deadline;
+import com.jivesoftware.os.routing.bird.shared.DeadlineClientCall;
+import com.jivesoftware.os.routing.bird.shared.DeadlineExceededException;
 import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import com.jivesoftware.os.routing.bird.shared.LatencyRecorder;
 import com.jivesoftware.os.routing.bird.shared.NextClientStrategy;
 import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure;
 import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure.Favored;
 import java.io.InterruptedIOException;
 import java.nio.channels.ClosedByInterruptException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.LongAdder;
-import org.apache.commons.math.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math.stat.descriptive.SynchronizedDescriptiveStatistics;
 
 public class TailAtScaleStrategy implements NextClientStrategy {
 
@@ -37,18 +34,26 @@ public class TailAtScaleStrategy implements NextClientStrategy {
 
     private volatile AtomicLong versions = new AtomicLong();
     private final AtomicReference<Map<String, Tail>> familyTails = new AtomicReference<>();
+    private final AtomicReference<Tail[]> ranking = new AtomicReference<>();
+    private final ThreadLocal<Hedge> hedges = ThreadLocal.withInitial(Hedge::new);
     private final ReturnFirstNonFailure returnFirstNonFailure = new ReturnFirstNonFailure();
 
     private final Executor executor;
     private final int windowSize;
     private final float percentile;
     private final long initialSLAMillis;
+    private final HedgePolicy hedgePolicy;
 
     public TailAtScaleStrategy(Executor executor, int windowSize, float percentile, long initialSLAMillis) {
+        this(executor, windowSize, percentile, initialSLAMillis, HedgePolicy.newBuilder().build());
+    }
+
+    public TailAtScaleStrategy(Executor executor, int windowSize, float percentile, long initialSLAMillis, HedgePolicy hedgePolicy) {
         this.executor = executor;
         this.windowSize = windowSize;
         this.percentile = percentile;
         this.initialSLAMillis = initialSLAMillis;
+        this.hedgePolicy = hedgePolicy;
     }
 
 
@@ -61,7 +66,7 @@ public class TailAtScaleStrategy implements NextClientStrategy {
         Map<String, Tail> currentTails = familyTails.get();
         Tail tail = currentTails.get(connectionDescriptor.getInstanceDescriptor().instanceKey);
         if (tail != null) {
-            tail.completed(1);
+            completed(tail, 1);
         }
     }
 
@@ -72,10 +77,7 @@ public class TailAtScaleStrategy implements NextClientStrategy {
         long connectionDescriptorsVersion,
         C[] clients,
         ClientHealth[] clientHealths,
-        int deadAfterNErrors,
-        long checkDeadEveryNMillis,
-        AtomicInteger[] clientsErrors,
-        AtomicLong[] clientsDeathTimestamp,
+        CircuitBreaker[] clientBreakers,
         Favored favored) throws HttpClientException {
 
 
@@ -95,198 +97,212 @@ public class TailAtScaleStrategy implements NextClientStrategy {
         if (won) {
             Map<String, Tail> newTails = new ConcurrentHashMap<>();
             Map<String, Tail> currentTails = familyTails.get();
-            if (currentTails != null) {
-                Set<String> retainTheseConnections = new HashSet<>();
-                for (ConnectionDescriptor connectionDescriptor : connectionDescriptors) {
-                    retainTheseConnections.add(connectionDescriptor.getInstanceDescriptor().instanceKey);
-                }
-
-                for (int i = 0; i < connectionDescriptors.length; i++) {
-                    ConnectionDescriptor connectionDescriptor = connectionDescriptors[i];
-                    String instanceKey = connectionDescriptor.getInstanceDescriptor().instanceKey;
-                    Tail tail;
-                    if (retainTheseConnections.contains(instanceKey)) {
-                        Tail oldTail = currentTails.get(instanceKey);
-                        tail = new Tail(oldTail.statistics, percentile, i, initialSLAMillis, Math.random());
-
-                    } else {
-                        tail = new Tail(new SynchronizedDescriptiveStatistics(windowSize), percentile, i, initialSLAMillis, Math.random());
-                    }
-                    newTails.put(instanceKey, tail);
-                }
-
-            } else {
-                for (int i = 0; i < connectionDescriptors.length; i++) {
-                    ConnectionDescriptor connectionDescriptor = connectionDescriptors[i];
-                    Tail tail = new Tail(new SynchronizedDescriptiveStatistics(windowSize), percentile, i, initialSLAMillis, Math.random());
-                    newTails.put(connectionDescriptor.getInstanceDescriptor().instanceKey, tail);
+            Tail[] newRanking = new Tail[connectionDescriptors.length];
+            for (int i = 0; i < connectionDescriptors.length; i++) {
+                ConnectionDescriptor connectionDescriptor = connectionDescriptors[i];
+                String instanceKey = connectionDescriptor.getInstanceDescriptor().instanceKey;
+                Tail oldTail = currentTails == null ? null : currentTails.get(instanceKey);
+                Tail tail;
+                if (oldTail != null) {
+                    tail = new Tail(oldTail.statistics, percentile, i, initialSLAMillis, Math.random());
+                } else {
+                    tail = new Tail(new LatencyRecorder(windowSize), percentile, i, initialSLAMillis, Math.random());
                 }
+                newTails.put(instanceKey, tail);
+                newRanking[i] = tail;
             }
 
             familyTails.set(newTails);
+            ranking.set(sorted(newRanking));
         }
 
-        Map<String, Tail> connectionTails = familyTails.get();
-        while (connectionTails == null) {
+        Tail[] tails = ranking.get();
+        while (tails == null) {
             try {
                 Thread.sleep(10);
-                connectionTails = familyTails.get();
+                tails = ranking.get();
             } catch (InterruptedException ie) {
                 throw new HttpClientException("family tails was null", ie);
             }
         }
-        Tail[] tails = connectionTails.values().toArray(new Tail[0]);
         if (tails.length == 0) {
             throw new HttpClientException("No tails");
         }
-        Arrays.sort(tails);
-
 
-        int maxNumberOfClient = Math.min(3, tails.length); // TODO config?
+        int maxNumberOfClient = Math.min(1 + hedgePolicy.getMaxHedges(), tails.length);
         double percentile = tails[0].statistics.getPercentile(this.percentile);
-        long tryAnotherInNMillis = Double.isNaN(percentile) ? 1 : (long) percentile;
+        long tryAnotherInNMillis = Math.max(hedgePolicy.getMinHedgeDelayMillis(), Double.isNaN(percentile) ? 1 : (long) percentile);
 
-        ExecutorCompletionService<Solution<ClientResponse<R>>> executorCompletionService = new ExecutorCompletionService<>(executor);
-        List<Future<Solution<ClientResponse<R>>>> futures = new ArrayList<>(maxNumberOfClient);
+        hedgePolicy.primary();
+        Deadline deadline = DeadlineClientCall.deadline(httpCall);
+        Hedge hedge = hedges.get();
+        int generation = hedge.begin();
+        boolean suppressed = false;
         try {
-            AtomicInteger totalAttempts = new AtomicInteger();
-            AtomicInteger remaining = new AtomicInteger(0);
             for (int submitted = 0; submitted < maxNumberOfClient; submitted++) {
-                int idx = submitted;
-                totalAttempts.incrementAndGet();
-                remaining.incrementAndGet();
-                futures.add(executorCompletionService.submit(() -> {
-
-                    long now = System.currentTimeMillis();
-                    ClientResponse<R> clientResponse = returnFirstNonFailure.indexedCall(null,
-                        family,
-                        now,
-                        httpCall,
-                        tails[idx].index,
-                        clients,
-                        clientHealths,
-                        deadAfterNErrors,
-                        checkDeadEveryNMillis,
-                        clientsErrors,
-                        clientsDeathTimestamp);
-
-                    long latency = System.currentTimeMillis() - now;
-                    return new Solution<>(clientResponse, idx, tails[idx].index, latency);
-                }));
-
-                Solution<ClientResponse<R>> solution = waitForSolution(family, tryAnotherInNMillis, executorCompletionService, remaining);
+                if (submitted > 0 && deadline != null && deadline.isExpired()) {
+                    break;
+                }
+                if (submitted > 0 && !hedge(family)) {
+                    suppressed = true;
+                    break;
+                }
+                hedge.submit(executor, generation, submitted, tails[submitted], false, family, httpCall, clients, clientHealths, clientBreakers);
+
+                Attempt solution = waitForSolution(family, tryAnotherInNMillis, hedge, generation, deadline);
                 if (solution != null && solution.answer != null) {
-                    try {
-                        if (favored != null) {
-                            favored.favored(solution.attempt, totalAttempts.get(), connectionDescriptors[solution.index], solution.latency);
-                        }
-                    } catch (Exception x) {
-                        LOG.warn("Favored failure.", x);
-                    }
-                    return solution.answer.response;
+                    return solved(solution, hedge, connectionDescriptors, favored);
                 }
             }
 
             // Everyone is slow so lets drag somebody else into the party
-            if (tails.length > maxNumberOfClient) {
+            if (!suppressed && (deadline == null || !deadline.isExpired()) && hedgePolicy.isDragRandomReplica() && tails.length > maxNumberOfClient && hedge(family)) {
                 int count = tails.length - maxNumberOfClient;
-                int idx = (int) (count * Math.random()) + maxNumberOfClient;
-                if (idx < tails.length) {
-                    totalAttempts.incrementAndGet();
-                    remaining.incrementAndGet();
-                    futures.add(executorCompletionService.submit(() -> {
-
-                        long now = System.currentTimeMillis();
-                        ClientResponse<R> clientResponse = returnFirstNonFailure.indexedCall(null,
-                            family,
-                            now,
-                            httpCall,
-                            tails[idx].index,
-                            clients,
-                            clientHealths,
-                            deadAfterNErrors,
-                            checkDeadEveryNMillis,
-                            clientsErrors,
-                            clientsDeathTimestamp);
-
-                        long latency = System.currentTimeMillis() - now;
-                        tails[idx].completed(latency);
-                        return new Solution<>(clientResponse, maxNumberOfClient, tails[idx].index, latency);
-                    }));
-                }
+                int idx = ThreadLocalRandom.current().nextInt(count) + maxNumberOfClient;
+                hedge.submit(executor, generation, maxNumberOfClient, tails[idx], true, family, httpCall, clients, clientHealths, clientBreakers);
             }
 
-            while (remaining.get() > 0) {
-                Solution<ClientResponse<R>> solution = waitForSolution(family, -1, executorCompletionService, remaining);
+            while (hedge.remaining > 0 && (deadline == null || !deadline.isExpired())) {
+                Attempt solution = waitForSolution(family, -1, hedge, generation, deadline);
                 if (solution != null && solution.answer != null) {
-                    try {
-                        if (favored != null) {
-                            favored.favored(solution.attempt, totalAttempts.get(), connectionDescriptors[solution.index], solution.latency);
-                        }
-                    } catch (Exception x) {
-                        LOG.warn("Favored failure.", x);
-                    }
-                    return solution.answer.response;
+                    return solved(solution, hedge, connectionDescriptors, favored);
                 }
             }
 
         } finally {
-            for (Future<Solution<ClientResponse<R>>> f : futures) {
-                f.cancel(true);
-            }
+            hedge.end(generation);
+        }
+
+        if (deadline != null && deadline.isExpired()) {
+            // whatever is still running was cancelled by end()
+            throw new DeadlineExceededException("Deadline passed waiting on family:" + family + " tails:" + Arrays.toString(tails));
         }
 
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < connectionDescriptors.length; i++) {
-            long deathTimestamp = clientsDeathTimestamp[i].get();
             sb.append(", client[").append(i).append("]={").append(connectionDescriptors[i].getHostPort())
-                .append(", isDead:").append((deathTimestamp != 0 && System.currentTimeMillis() < deathTimestamp))
-                .append(", errors:").append(clientsErrors[i])
-                .append(", deathTimestamp:").append(deathTimestamp)
+                .append(", breaker:").append(clientBreakers[i])
                 .append('}');
         }
 
         throw new HttpClientException("No clients are available. possible:" + sb + " filteredIndexes:" + Arrays.toString(tails));
     }
 
-    private <R> Solution<ClientResponse<R>> waitForSolution(String family,
-        long tryAnotherInNMillis,
-        ExecutorCompletionService<Solution<ClientResponse<R>>> executorCompletionService,
-        AtomicInteger remaining) throws HttpClientException {
+    private boolean hedge(String family) {
+        if (hedgePolicy.tryAcquireHedge()) {
+            LOG.inc("hedge>issued");
+            LOG.inc("hedge>" + family + ">issued");
+            return true;
+        }
+        LOG.inc("hedge>suppressed");
+        LOG.inc("hedge>" + family + ">suppressed");
+        return false;
+    }
 
+    @SuppressWarnings("unchecked")
+    private <R> R solved(Attempt solution, Hedge hedge, ConnectionDescriptor[] connectionDescriptors, Favored favored) {
+        if (solution.attempt > 0) {
+            LOG.inc("hedge>won");
+            LOG.inc("hedge>" + solution.family + ">won");
+        }
         try {
-            Future<Solution<ClientResponse<R>>> future = tryAnotherInNMillis < 0
-                ? executorCompletionService.take()
-                : executorCompletionService.poll(tryAnotherInNMillis, TimeUnit.MILLISECONDS);
-
-            if (future != null) {
-                remaining.decrementAndGet();
-                try {
-                    return future.get();
-                } catch (ExecutionException e) {
-                    boolean interrupted = false;
-                    Throwable cause = e;
-                    for (int i = 0; i < 10 && cause != null; i++) {
-                        if (cause instanceof InterruptedException
-                            || cause instanceof InterruptedIOException
-                            || cause instanceof ClosedByInterruptException) {
-                            interrupted = true;
-                            break;
-                        }
-                        cause = cause.getCause();
-                    }
+            if (favored != null) {
+                favored.favored(solution.attempt, hedge.submitted, connectionDescriptors[solution.index], solution.latency);
+            }
+        } catch (Exception x) {
+            LOG.warn("Favored failure.", x);
+        }
+        return ((ClientResponse<R>) solution.answer).response;
+    }
+
+    private void completed(Tail tail, long latency) {
+        tail.completed(latency);
+        Tail[] current = ranking.get();
+        while (current != null && tail.outOfOrder(current)) {
+            Tail[] reranked = sorted(current.clone());
+            if (ranking.compareAndSet(current, reranked)) {
+                break;
+            }
+            current = ranking.get();
+        }
+    }
+
+    /**
+     * Insertion sort over a snapshot of each tail's percentile so concurrent completions can't break the ordering contract. Tails are
+     * nearly sorted between calls and there are only as many as there are instances, so this stays cheap.
+     */
+    private static Tail[] sorted(Tail[] tails) {
+        double[] latencies = new double[tails.length];
+        for (int i = 0; i < tails.length; i++) {
+            latencies[i] = tails[i].percentileLatency;
+        }
+        for (int i = 1; i < tails.length; i++) {
+            Tail tail = tails[i];
+            double latency = latencies[i];
+            int j = i - 1;
+            while (j >= 0 && Tail.compare(latency, tail, latencies[j], tails[j]) < 0) {
+                tails[j + 1] = tails[j];
+                latencies[j + 1] = latencies[j];
+                j--;
+            }
+            tails[j + 1] = tail;
+            latencies[j + 1] = latency;
+        }
+        for (int i = 0; i < tails.length; i++) {
+            tails[i].rank = i;
+        }
+        return tails;
+    }
+
+    private Attempt waitForSolution(String family,
+        long tryAnotherInNMillis,
+        Hedge hedge,
+        int generation,
+        Deadline deadline) throws HttpClientException {
+
+        long waitMillis = tryAnotherInNMillis;
+        if (deadline != null) {
+            long remainingMillis = Math.max(0, deadline.remainingMillis());
+            waitMillis = waitMillis < 0 ? remainingMillis : Math.min(waitMillis, remainingMillis);
+        }
+        try {
+            Attempt attempt;
+            do {
+                attempt = waitMillis < 0
+                    ? hedge.solved.take()
+                    : hedge.solved.poll(waitMillis, TimeUnit.MILLISECONDS);
+            }
+            while (attempt != null && attempt.generation != generation);
+
+            if (attempt != null) {
+                hedge.remaining--;
+                attempt.busy = false;
+                if (attempt.failure == null) {
+                    return attempt;
+                }
 
-                    // todo disambiguate stat (i.e. requestName, queryKey)
-                    if (interrupted) {
-                        LOG.inc("solve>" + family + "request>>solvableInterrupted");
-                    } else {
-                        LOG.inc("solve>" + family + "request>>solvableError>" + e.getCause().getClass().getSimpleName());
+                boolean interrupted = false;
+                Throwable cause = attempt.failure;
+                for (int i = 0; i < 10 && cause != null; i++) {
+                    if (cause instanceof InterruptedException
+                        || cause instanceof InterruptedIOException
+                        || cause instanceof ClosedByInterruptException) {
+                        interrupted = true;
+                        break;
                     }
+                    cause = cause.getCause();
+                }
 
-                    LOG.debug("Solver failed to execute", e.getCause());
-                    LOG.incBucket("solve>" + family + "throughput>failure", 1_000L, 100);
-                    LOG.incBucket("solve>" + family + "throughput>failure>", 1_000L, 100);
+                // todo disambiguate stat (i.e. requestName, queryKey)
+                if (interrupted) {
+                    LOG.inc("solve>" + family + "request>>solvableInterrupted");
+                } else {
+                    LOG.inc("solve>" + family + "request>>solvableError>" + attempt.failure.getClass().getSimpleName());
                 }
+
+                LOG.debug("Solver failed to execute", attempt.failure);
+                LOG.incBucket("solve>" + family + "throughput>failure", 1_000L, 100);
+                LOG.incBucket("solve>" + family + "throughput>failure>", 1_000L, 100);
             }
         } catch (InterruptedException x) {
             throw new HttpClientException("InterruptedException", x);
@@ -294,31 +310,171 @@ public class TailAtScaleStrategy implements NextClientStrategy {
         return null;
     }
 
-    private static class Solution<A> {
+    /**
+     * Per calling thread hedging state which is reused from one call to the next. Attempts left running by a previous call (because a
+     * faster replica answered) are never reused; they are replaced and their late results are dropped by generation.
+     */
+    private class Hedge {
+
+        private final ArrayBlockingQueue<Attempt> solved = new ArrayBlockingQueue<>((hedgePolicy.getMaxHedges() + 2) * 4);
+        private final Attempt[] attempts = new Attempt[hedgePolicy.getMaxHedges() + 2];
+        private volatile int generation;
+        private int submitted;
+        private int remaining;
+
+        private int begin() {
+            solved.clear();
+            submitted = 0;
+            remaining = 0;
+            return generation;
+        }
+
+        private void submit(Executor executor,
+            int generation,
+            int attempt,
+            Tail tail,
+            boolean recordLatency,
+            String family,
+            ClientCall<?, ?, HttpClientException> httpCall,
+            Object[] clients,
+            ClientHealth[] clientHealths,
+            CircuitBreaker[] clientBreakers) {
+
+            Attempt a = attempts[submitted];
+            if (a == null || a.busy) {
+                a = new Attempt(this);
+                attempts[submitted] = a;
+            }
+            a.prepare(generation, attempt, tail, recordLatency, family, httpCall, clients, clientHealths, clientBreakers);
+            submitted++;
+            remaining++;
+            executor.execute(a);
+        }
+
+        private void end(int generation) {
+            this.generation = generation + 1;
+            for (int i = 0; i < submitted; i++) {
+                Attempt a = attempts[i];
+                if (a.busy) {
+                    a.cancel(generation);
+                }
+            }
+        }
+    }
+
+    private class Attempt implements Runnable {
+
+        private final Hedge hedge;
+
+        private int generation;
+        private int attempt;
+        private Tail tail;
+        private boolean recordLatency;
+        private String family;
+        private ClientCall<?, ?, HttpClientException> httpCall;
+        private Object[] clients;
+        private ClientHealth[] clientHealths;
+        private CircuitBreaker[] clientBreakers;
+
+        private volatile boolean busy;
+        private volatile boolean cancelled;
+        private Thread runner;
+
+        private int index;
+        private long latency;
+        private ClientResponse<?> answer;
+        private Throwable failure;
 
-        public final A answer;
-        public final int attempt;
-        public final int index;
-        public final long latency;
+        private Attempt(Hedge hedge) {
+            this.hedge = hedge;
+        }
 
-        private Solution(A answer, int attempt, int index, long latency) {
-            this.answer = answer;
+        private void prepare(int generation,
+            int attempt,
+            Tail tail,
+            boolean recordLatency,
+            String family,
+            ClientCall<?, ?, HttpClientException> httpCall,
+            Object[] clients,
+            ClientHealth[] clientHealths,
+            CircuitBreaker[] clientBreakers) {
+
+            this.generation = generation;
             this.attempt = attempt;
-            this.index = index;
-            this.latency = latency;
+            this.tail = tail;
+            this.recordLatency = recordLatency;
+            this.family = family;
+            this.httpCall = httpCall;
+            this.clients = clients;
+            this.clientHealths = clientHealths;
+            this.clientBreakers = clientBreakers;
+            this.index = tail.index;
+            this.latency = 0;
+            this.answer = null;
+            this.failure = null;
+            this.cancelled = false;
+            this.busy = true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            try {
+                long now = System.currentTimeMillis();
+                answer = returnFirstNonFailure.indexedCall(null,
+                    family,
+                    now,
+                    (ClientCall<Object, Object, HttpClientException>) httpCall,
+                    index,
+                    clients,
+                    clientHealths,
+                    clientBreakers);
+
+                latency = System.currentTimeMillis() - now;
+                if (recordLatency) {
+                    completed(tail, latency);
+                }
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                }
+                // Swallow an interrupt from a cancel which raced with completion so it can't leak into the executor's next task.
+                Thread.interrupted();
+            }
+            if (hedge.generation == generation) {
+                hedge.solved.offer(this);
+            }
+        }
+
+        private synchronized void cancel(int generation) {
+            if (this.generation == generation) {
+                cancelled = true;
+                if (runner != null) {
+                    runner.interrupt();
+                }
+            }
         }
     }
 
-    private static class Tail implements Comparable<Tail> {
-        private final DescriptiveStatistics statistics;
+    private static class Tail {
+        private final LatencyRecorder statistics;
         private final float percentile;
         private final int index;
         private final double shuffle;
 
         private volatile double percentileLatency;
+        private volatile int rank;
         private LongAdder completed = new LongAdder();
 
-        private Tail(DescriptiveStatistics statistics, float percentile, int index, long initialSLAMillis, double shuffle) {
+        private Tail(LatencyRecorder statistics, float percentile, int index, long initialSLAMillis, double shuffle) {
             this.statistics = statistics;
             this.percentile = percentile;
             this.index = index;
@@ -327,22 +483,37 @@ public class TailAtScaleStrategy implements NextClientStrategy {
         }
 
         public void completed(long latency) {
-            statistics.addValue(latency);
+            statistics.record(latency);
             percentileLatency = statistics.getPercentile(percentile);
             completed.increment();
         }
 
-        @Override
-        public int compareTo(Tail o) {
-            int c = Double.compare(percentileLatency, o.percentileLatency);
+        /**
+         * True when this tail's latency has crossed one of its neighbours in the given ranking, or its rank was assigned by a ranking
+         * which lost the race to be published.
+         */
+        private boolean outOfOrder(Tail[] ranking) {
+            int r = rank;
+            if (r >= ranking.length || ranking[r] != this) {
+                return true;
+            }
+            double latency = percentileLatency;
+            if (r > 0 && compare(latency, this, ranking[r - 1].percentileLatency, ranking[r - 1]) < 0) {
+                return true;
+            }
+            return r < ranking.length - 1 && compare(latency, this, ranking[r + 1].percentileLatency, ranking[r + 1]) > 0;
+        }
+
+        private static int compare(double aLatency, Tail a, double bLatency, Tail b) {
+            int c = Double.compare(aLatency, bLatency);
             if (c != 0) {
                 return c;
             }
-            c = Double.compare(shuffle, o.shuffle);
+            c = Double.compare(a.shuffle, b.shuffle);
             if (c != 0) {
                 return c;
             }
-            c = Integer.compare(index, o.index);
+            c = Integer.compare(a.index, b.index);
             return c;
         }
 
@@ -15,10 +15,12 @@
  */
 package com.jivesoftware.os.routing.bird.http.client;
 
+import com.jivesoftware.os.routing.bird.shared.AsyncClientCall;
 import com.jivesoftware.os.routing.bird.shared.ClientCall;
 import com.jivesoftware.os.routing.bird.shared.HttpClientException;
 import com.jivesoftware.os.routing.bird.shared.HttpClientPoolStatsStream;
 import com.jivesoftware.os.routing.bird.shared.NextClientStrategy;
+import java.util.concurrent.CompletableFuture;
 
 public interface TenantAwareHttpClient<T> {
 
@@ -28,6 +30,26 @@ public interface TenantAwareHttpClient<T> {
         ClientCall<HttpClient, R, HttpClientException> clientCall)
         throws HttpClientException;
 
+    <R> CompletableFuture<R> callAsync(T tenant,
+        NextClientStrategy strategy,
+        String family,
+        AsyncClientCall<AsyncHttpClient, R> clientCall);
+
+    /**
+     * Routes by affinityKey (typically a tenant id or partition key) so repeat calls for the same key land on the same instance.
+     */
+    <R> R call(T tenant,
+        String affinityKey,
+        RendezvousStrategy strategy,
+        String family,
+        ClientCall<HttpClient, R, HttpClientException> clientCall)
+        throws HttpClientException;
+
+    <R> CompletableFuture<R> callAsync(T tenant,
+        String affinityKey,
+        RendezvousStrategy strategy,
+        String family,
+        AsyncClientCall<AsyncHttpClient, R> clientCall);
 
     void gatherPoolStats(HttpClientPoolStatsStream poolStats);
 }
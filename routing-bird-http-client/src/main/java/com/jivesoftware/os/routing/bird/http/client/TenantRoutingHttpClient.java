@@ -15,18 +15,23 @@
  */
 package com.jivesoftware.os.routing.bird.http.client;
 
+import com.jivesoftware.os.routing.bird.shared.AsyncClientCall;
 import com.jivesoftware.os.routing.bird.shared.ClientCall;
 import com.jivesoftware.os.routing.bird.shared.HttpClientException;
 import com.jivesoftware.os.routing.bird.shared.HttpClientPoolStatsStream;
 import com.jivesoftware.os.routing.bird.shared.NextClientStrategy;
 import com.jivesoftware.os.routing.bird.shared.TenantRoutingClient;
+import java.util.concurrent.CompletableFuture;
 
 public class TenantRoutingHttpClient<T> implements TenantAwareHttpClient<T> {
 
     private final TenantRoutingClient<T, HttpClient, HttpClientException> tenantRoutingClient;
+    private final TenantRoutingClient<T, AsyncHttpClient, HttpClientException> asyncTenantRoutingClient;
 
-    public TenantRoutingHttpClient(TenantRoutingClient<T, HttpClient, HttpClientException> tenantRoutingClient) {
+    public TenantRoutingHttpClient(TenantRoutingClient<T, HttpClient, HttpClientException> tenantRoutingClient,
+        TenantRoutingClient<T, AsyncHttpClient, HttpClientException> asyncTenantRoutingClient) {
         this.tenantRoutingClient = tenantRoutingClient;
+        this.asyncTenantRoutingClient = asyncTenantRoutingClient;
     }
 
     @Override
@@ -38,8 +43,36 @@ public class TenantRoutingHttpClient<T> implements TenantAwareHttpClient<T> {
         return tenantRoutingClient.tenantAwareCall(tenant, strategy, family, clientCall);
     }
 
+    @Override
+    public <R> CompletableFuture<R> callAsync(T tenant,
+        NextClientStrategy strategy,
+        String family,
+        AsyncClientCall<AsyncHttpClient, R> clientCall) {
+        return asyncTenantRoutingClient.tenantAwareCallAsync(tenant, strategy, family, clientCall);
+    }
+
+    @Override
+    public <R> R call(T tenant,
+        String affinityKey,
+        RendezvousStrategy strategy,
+        String family,
+        ClientCall<HttpClient, R, HttpClientException> clientCall)
+        throws HttpClientException {
+        return tenantRoutingClient.tenantAwareCall(tenant, strategy.forKey(affinityKey), family, clientCall);
+    }
+
+    @Override
+    public <R> CompletableFuture<R> callAsync(T tenant,
+        String affinityKey,
+        RendezvousStrategy strategy,
+        String family,
+        AsyncClientCall<AsyncHttpClient, R> clientCall) {
+        return asyncTenantRoutingClient.tenantAwareCallAsync(tenant, strategy.forKey(affinityKey), family, clientCall);
+    }
+
     @Override
     public void gatherPoolStats(HttpClientPoolStatsStream poolStats) {
         tenantRoutingClient.gatherPoolStats(poolStats);
+        asyncTenantRoutingClient.gatherPoolStats(poolStats);
     }
 }
@@ -17,19 +17,32 @@ package com.jivesoftware.os.routing.bird.http.client;
 
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.routing.bird.shared.CircuitBreaker;
 import com.jivesoftware.os.routing.bird.shared.ClientConnectionsFactory;
 import com.jivesoftware.os.routing.bird.shared.ClientHealth;
 import com.jivesoftware.os.routing.bird.shared.ClientsCloser;
+import com.jivesoftware.os.routing.bird.shared.ConcurrencyLimit;
 import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptor;
+import com.jivesoftware.os.routing.bird.shared.ContentCodec;
+import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptors;
 import com.jivesoftware.os.routing.bird.shared.HttpClientException;
 import com.jivesoftware.os.routing.bird.shared.TenantRoutingClient;
 import com.jivesoftware.os.routing.bird.shared.TenantsServiceConnectionDescriptorProvider;
+import com.jivesoftware.os.routing.bird.shared.TimestampedClients;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import javax.net.ssl.SSLContext;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
 import org.apache.http.ssl.SSLContexts;
 
 public class TenantRoutingHttpClientInitializer<T> {
@@ -55,12 +68,30 @@ public class TenantRoutingHttpClientInitializer<T> {
 
         private int deadAfterNErrors = 10;
         private long checkDeadEveryNMillis = 10_000;
+        private double breakerFailureRatio = 0.5d;
+        private long breakerWindowMillis = 10_000;
+        private int breakerHalfOpenProbes = 1;
 
         private int maxConnections = 32;
         private int maxConnectionsPerHost = -1;
 
         private int socketTimeoutInMillis = 600_000;
 
+        private int asyncIoThreadCount = -1;
+
+        private int initialConcurrencyLimit = -1;
+        private int maxConcurrencyLimit = -1;
+
+        private boolean coalesceGets = false;
+
+        private double hedgeBudgetRatio = HedgePolicy.DEFAULT_BUDGET_RATIO;
+        private int maxHedgeBudget = HedgePolicy.DEFAULT_MAX_BUDGET;
+
+        private ContentCodec requestCompressionCodec = null;
+        private int requestCompressionThresholdInBytes = -1;
+
+        private HttpClientTransport transport = new HttpClientFactoryProvider();
+
         private long debugClientCount = -1;
         private long debugClientCountInterval = -1;
 
@@ -83,6 +114,17 @@ public class TenantRoutingHttpClientInitializer<T> {
             return this;
         }
 
+        /**
+         * An instance's breaker opens once deadAfterNErrors connectivity errors make up at least failureRatio of the calls to it within
+         * windowMillis. It stays open for checkDeadEveryNMillis and then admits up to halfOpenProbes concurrent probes.
+         */
+        public Builder<T> circuitBreaker(double failureRatio, long windowMillis, int halfOpenProbes) {
+            this.breakerFailureRatio = failureRatio;
+            this.breakerWindowMillis = windowMillis;
+            this.breakerHalfOpenProbes = halfOpenProbes;
+            return this;
+        }
+
         public Builder<T> maxConnections(int maxConnections) {
             this.maxConnections = maxConnections;
             return this;
@@ -98,6 +140,64 @@ public class TenantRoutingHttpClientInitializer<T> {
             return this;
         }
 
+        public Builder<T> asyncIoThreadCount(int asyncIoThreadCount) {
+            this.asyncIoThreadCount = asyncIoThreadCount;
+            return this;
+        }
+
+        /**
+         * Adaptively caps concurrent requests to each instance, starting at initialConcurrencyLimit. Requests over the cap move on to
+         * the next client the strategy offers.
+         */
+        public Builder<T> concurrencyLimit(int initialConcurrencyLimit, int maxConcurrencyLimit) {
+            this.initialConcurrencyLimit = initialConcurrencyLimit;
+            this.maxConcurrencyLimit = maxConcurrencyLimit;
+            return this;
+        }
+
+        /**
+         * Concurrent identical gets (same path and headers) to the same instance share one in-flight request and its response.
+         */
+        public Builder<T> coalesceGets(boolean coalesceGets) {
+            this.coalesceGets = coalesceGets;
+            return this;
+        }
+
+        /**
+         * Hedges a strategy made by {@link #tailAtScaleStrategy} may send per primary request, with at most maxBudget banked for a burst.
+         * A negative ratio lets it hedge without limit.
+         */
+        public Builder<T> hedgeBudget(double ratio, int maxBudget) {
+            this.hedgeBudgetRatio = ratio;
+            this.maxHedgeBudget = maxBudget;
+            return this;
+        }
+
+        /**
+         * A {@link TailAtScaleStrategy} whose hedges are bounded by {@link #hedgeBudget}. Each strategy keeps its own budget.
+         */
+        public TailAtScaleStrategy tailAtScaleStrategy(Executor executor, int windowSize, float percentile, long initialSLAMillis) {
+            return new TailAtScaleStrategy(executor, windowSize, percentile, initialSLAMillis,
+                HedgePolicy.newBuilder().setBudget(hedgeBudgetRatio, maxHedgeBudget).build());
+        }
+
+        /**
+         * Request bodies of at least thresholdInBytes, and all streamed request bodies, are compressed with codec.
+         */
+        public Builder<T> requestCompression(ContentCodec codec, int thresholdInBytes) {
+            this.requestCompressionCodec = codec;
+            this.requestCompressionThresholdInBytes = thresholdInBytes;
+            return this;
+        }
+
+        /**
+         * Library the blocking clients are built on; defaults to Apache HttpClient. The async clients always use Apache's reactor.
+         */
+        public Builder<T> transport(HttpClientTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
         public Builder<T> debugClient(long debugClientCount, long debugClientCountInterval) {
             this.debugClientCount = debugClientCount;
             this.debugClientCountInterval = debugClientCountInterval;
@@ -105,24 +205,176 @@ public class TenantRoutingHttpClientInitializer<T> {
         }
 
         public TenantAwareHttpClient<T> build() {
-            ClientConnectionsFactory<HttpClient, HttpClientException> clientConnectionsFactory = (routingGroup, connectionDescriptors) -> {
-                List<ConnectionDescriptor> descriptors = connectionDescriptors.getConnectionDescriptors();
-                ConnectionDescriptor[] connections = descriptors.toArray(new ConnectionDescriptor[descriptors.size()]);
-                HttpClient[] httpClients = new HttpClient[descriptors.size()];
-                ClientHealth[] clientHealths = new ClientHealth[descriptors.size()];
-                HttpClientFactoryProvider httpClientFactoryProvider = new HttpClientFactoryProvider();
+            CircuitBreakers breakers = new CircuitBreakers();
+            SharedHttpClientFactory[] sharedHttpClientFactories = new SharedHttpClientFactory[2];
+            ClientConnectionsFactory<HttpClient, HttpClientException> clientConnectionsFactory = (routingGroup, connectionDescriptors, existing) ->
+                reconcileClients("sync", routingGroup, connectionDescriptors, existing, breakers, new HttpClient[0], connection -> {
+                    boolean latentClient = connection.getMonkeys() != null && connection.getMonkeys().containsKey("RANDOM_CONNECTION_LATENCY");
+
+                    SharedHttpClientFactory sharedHttpClientFactory = sharedHttpClientFactory(sharedHttpClientFactories, connection.getSslEnabled());
+                    HttpClient httpClient = sharedHttpClientFactory.createClient(
+                        (connection.getServiceAuthEnabled() ? signerProvider.get() : null),
+                        connection.getHostPort().getHost(),
+                        connection.getHostPort().getPort());
+                    if (latentClient) {
+                        httpClient = new LatentHttpClient(httpClient);
+                    }
+                    if (initialConcurrencyLimit > 0) {
+                        httpClient = new ConcurrencyLimitedHttpClient(httpClient,
+                            new ConcurrencyLimit(initialConcurrencyLimit, 1, Math.max(initialConcurrencyLimit, maxConcurrencyLimit)));
+                    }
+                    if (coalesceGets) {
+                        httpClient = new CoalescingHttpClient(httpClient);
+                    }
+                    return httpClient;
+                });
+
+            ClientsCloser<HttpClient> clientsCloser = clients -> {
+                for (HttpClient client : clients) {
+                    client.close();
+                }
+            };
+
+            TenantRoutingClient<T, HttpClient, HttpClientException> tenantRoutingClient = new TenantRoutingClient<>(connectionPoolProvider,
+                clientConnectionsFactory, clientsCloser);
+
+            AsyncHttpClientFactory[] asyncHttpClientFactories = new AsyncHttpClientFactory[2];
+            ClientConnectionsFactory<AsyncHttpClient, HttpClientException> asyncClientConnectionsFactory =
+                (routingGroup, connectionDescriptors, existing) ->
+                reconcileClients("async", routingGroup, connectionDescriptors, existing, breakers, new AsyncHttpClient[0], connection -> {
+                    AsyncHttpClientFactory asyncHttpClientFactory = asyncHttpClientFactory(asyncHttpClientFactories, connection.getSslEnabled());
+                    return asyncHttpClientFactory.createClient(
+                        (connection.getServiceAuthEnabled() ? signerProvider.get() : null),
+                        connection.getHostPort().getHost(),
+                        connection.getHostPort().getPort());
+                });
+
+            ClientsCloser<AsyncHttpClient> asyncClientsCloser = clients -> {
+                for (AsyncHttpClient client : clients) {
+                    client.close();
+                }
+            };
+
+            TenantRoutingClient<T, AsyncHttpClient, HttpClientException> asyncTenantRoutingClient = new TenantRoutingClient<>(connectionPoolProvider,
+                asyncClientConnectionsFactory, asyncClientsCloser);
+            return new TenantRoutingHttpClient<>(tenantRoutingClient, asyncTenantRoutingClient);
+        }
+
+        private interface ClientCreator<C> {
+
+            C create(ConnectionDescriptor connection) throws Exception;
+        }
+
+        /**
+         * Builds the clients for a new routing snapshot. Descriptors which match one in the existing snapshot keep that client along with
+         * its health, so only instances which joined pay for a new client. Circuit breakers are looked up by instance key so every tenant,
+         * routing group and client flavor talking to an instance sees the same breaker.
+         */
+        @SuppressWarnings("unchecked")
+        private <C> ErrorCheckingTimestampedClients<C> reconcileClients(String flavor,
+            String routingGroup,
+            ConnectionDescriptors connectionDescriptors,
+            TimestampedClients<C, HttpClientException> existing,
+            CircuitBreakers breakers,
+            C[] empty,
+            ClientCreator<C> clientCreator) throws Exception {
+
+            Map<String, Integer> existingIndexes = new HashMap<>();
+            ErrorCheckingTimestampedClients<C> existingClients = null;
+            if (existing instanceof ErrorCheckingTimestampedClients) {
+                existingClients = (ErrorCheckingTimestampedClients<C>) existing;
+                ConnectionDescriptor[] existingConnections = existingClients.getConnectionDescriptors();
+                for (int i = 0; i < existingConnections.length; i++) {
+                    existingIndexes.put(existingConnections[i].getInstanceDescriptor().instanceKey, i);
+                }
+            }
+
+            List<ConnectionDescriptor> descriptors = connectionDescriptors.getConnectionDescriptors();
+            ConnectionDescriptor[] connections = descriptors.toArray(new ConnectionDescriptor[descriptors.size()]);
+            C[] clients = Arrays.copyOf(empty, connections.length);
+            ClientHealth[] clientHealths = new ClientHealth[connections.length];
+            int reused = 0;
+            for (int i = 0; i < connections.length; i++) {
+                ConnectionDescriptor connection = connections[i];
+                Integer existingIndex = existingIndexes.get(connection.getInstanceDescriptor().instanceKey);
+                if (existingIndex != null && sameConnection(existingClients.getConnectionDescriptors()[existingIndex], connection)) {
+                    clients[i] = existingClients.getClients()[existingIndex];
+                    clientHealths[i] = existingClients.getClientHealths()[existingIndex];
+                    reused++;
+                } else {
+                    clients[i] = clientCreator.create(connection);
+                    clientHealths[i] = clientHealthProvider.get(connection);
+                }
+            }
+            CircuitBreaker[] clientBreakers = breakers.reconcile(flavor + ":" + routingGroup, connections);
+            LOG.inc("clients>reused", reused);
+            LOG.inc("clients>created", connections.length - reused);
+
+            return new ErrorCheckingTimestampedClients<>(
+                routingGroup,
+                connectionDescriptors.getTimestamp(),
+                connections,
+                clients,
+                clientHealths,
+                clientBreakers);
+        }
+
+        /**
+         * Breakers shared by instance key. Each reconcile records which instance keys its routing group uses and drops the breakers no
+         * routing group uses any more.
+         */
+        private class CircuitBreakers {
+
+            private final Map<String, CircuitBreaker> breakers = new HashMap<>();
+            private final Map<String, Set<String>> instanceKeysByRoutingGroup = new HashMap<>();
+
+            synchronized CircuitBreaker[] reconcile(String routingGroup, ConnectionDescriptor[] connections) {
+                CircuitBreaker[] clientBreakers = new CircuitBreaker[connections.length];
+                Set<String> instanceKeys = new HashSet<>();
                 for (int i = 0; i < connections.length; i++) {
-                    ConnectionDescriptor connection = connections[i];
+                    String instanceKey = connections[i].getInstanceDescriptor().instanceKey;
+                    instanceKeys.add(instanceKey);
+                    clientBreakers[i] = breakers.computeIfAbsent(instanceKey, key -> new CircuitBreaker(deadAfterNErrors,
+                        breakerFailureRatio, breakerWindowMillis, checkDeadEveryNMillis, breakerHalfOpenProbes));
+                }
+                instanceKeysByRoutingGroup.put(routingGroup, instanceKeys);
 
+                Set<String> referenced = new HashSet<>();
+                for (Set<String> keys : instanceKeysByRoutingGroup.values()) {
+                    referenced.addAll(keys);
+                }
+                int before = breakers.size();
+                breakers.keySet().retainAll(referenced);
+                LOG.inc("breakers>pruned", before - breakers.size());
+                return clientBreakers;
+            }
+        }
+
+        private static boolean sameConnection(ConnectionDescriptor a, ConnectionDescriptor b) {
+            return a.getSslEnabled() == b.getSslEnabled()
+                && a.getServiceAuthEnabled() == b.getServiceAuthEnabled()
+                && Objects.equals(a.getHostPort(), b.getHostPort())
+                && Objects.equals(a.getMonkeys(), b.getMonkeys());
+        }
+
+        /**
+         * One pool per scheme for this service, created on first use. It outlives routing refreshes so keep-alive sockets to hosts which
+         * are still present get reused, and maxConnections bounds the service as a whole rather than each host.
+         */
+        private SharedHttpClientFactory sharedHttpClientFactory(SharedHttpClientFactory[] factories, boolean sslEnabled) throws Exception {
+            int index = sslEnabled ? 1 : 0;
+            synchronized (factories) {
+                if (factories[index] == null) {
                     List<HttpClientConfiguration> config = new ArrayList<>();
                     config.add(HttpClientConfig
                         .newBuilder()
                         .setMaxConnections(maxConnections)
                         .setMaxConnectionsPerHost(maxConnectionsPerHost)
                         .setSocketTimeoutInMillis(socketTimeoutInMillis)
+                        .setRequestCompression(requestCompressionCodec, requestCompressionThresholdInBytes)
                         .build());
 
-                    if (connection.getSslEnabled()) {
+                    if (sslEnabled) {
                         HttpClientSSLConfig.Builder builder = HttpClientSSLConfig.newBuilder();
                         builder.setUseSSL(true);
                         if (true) { // expose to config? Currently always allowing self signed certs
@@ -130,42 +382,45 @@ public class TenantRoutingHttpClientInitializer<T> {
                             // Allow TLSv1 protocol only, use NoopHostnameVerifier to trust self-singed cert
                             builder.setUseSslWithCustomSSLSocketFactory(new SSLConnectionSocketFactory(sslcontext,
                                 new String[]{"TLSv1"}, null, new NoopHostnameVerifier()));
+                            builder.setUseSslWithCustomSSLContext(sslcontext, new NoopHostnameVerifier());
 
                         }
                         config.add(builder.build());
-
                     }
-
-                    boolean latentClient = connection.getMonkeys() != null && connection.getMonkeys().containsKey("RANDOM_CONNECTION_LATENCY");
-
-                    HttpClientFactory createHttpClientFactory = httpClientFactoryProvider.createHttpClientFactory(config, latentClient);
-                    httpClients[i] = createHttpClientFactory.createClient(
-                        (connection.getServiceAuthEnabled() ? signerProvider.get() : null),
-                        connection.getHostPort().getHost(),
-                        connection.getHostPort().getPort());
-
-                    clientHealths[i] = clientHealthProvider.get(connection);
+                    factories[index] = transport.createSharedHttpClientFactory(config);
                 }
+                return factories[index];
+            }
+        }
 
-                return new ErrorCheckingTimestampedClients<>(
-                    routingGroup,
-                    connectionDescriptors.getTimestamp(),
-                    connections,
-                    httpClients,
-                    clientHealths,
-                    deadAfterNErrors,
-                    checkDeadEveryNMillis);
-            };
+        /**
+         * The async reactor is created on first use and then shared by every route, one for plain and one for ssl connections.
+         */
+        private AsyncHttpClientFactory asyncHttpClientFactory(AsyncHttpClientFactory[] factories, boolean sslEnabled) throws Exception {
+            int index = sslEnabled ? 1 : 0;
+            synchronized (factories) {
+                if (factories[index] == null) {
+                    List<HttpClientConfiguration> config = new ArrayList<>();
+                    config.add(HttpClientConfig
+                        .newBuilder()
+                        .setMaxConnections(maxConnections)
+                        .setMaxConnectionsPerHost(maxConnectionsPerHost)
+                        .setSocketTimeoutInMillis(socketTimeoutInMillis)
+                        .setIoThreadCount(asyncIoThreadCount)
+                        .build());
 
-            ClientsCloser<HttpClient> clientsCloser = clients -> {
-                for (HttpClient client : clients) {
-                    client.close();
+                    if (sslEnabled) {
+                        // Currently always allowing self signed certs, same as the blocking client
+                        SSLContext sslcontext = SSLContexts.custom().loadTrustMaterial(null, new TrustSelfSignedStrategy()).build();
+                        config.add(HttpClientSSLConfig.newBuilder()
+                            .setUseSslWithCustomSSLIOSessionStrategy(new SSLIOSessionStrategy(sslcontext,
+                                new String[]{"TLSv1"}, null, new NoopHostnameVerifier()))
+                            .build());
+                    }
+                    factories[index] = new HttpClientFactoryProvider().createAsyncHttpClientFactory(config);
                 }
-            };
-
-            TenantRoutingClient<T, HttpClient, HttpClientException> tenantRoutingClient = new TenantRoutingClient<>(connectionPoolProvider,
-                clientConnectionsFactory, clientsCloser);
-            return new TenantRoutingHttpClient<>(tenantRoutingClient);
+                return factories[index];
+            }
         }
     }
 }
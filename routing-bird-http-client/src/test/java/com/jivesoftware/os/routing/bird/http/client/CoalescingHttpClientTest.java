@@ -0,0 +1,183 @@
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import com.jivesoftware.os.routing.bird.shared.HttpClientPoolStats;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class CoalescingHttpClientTest {
+
+    @Test
+    public void testConcurrentIdenticalGetsShareOneCall() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger delegateCalls = new AtomicInteger();
+        HttpResponse response = new HttpResponse(200, "OK", new byte[] { 1, 2, 3 });
+
+        HttpClient delegate = Mockito.mock(HttpClient.class);
+        Mockito.when(delegate.get(Mockito.eq("/a"), Mockito.anyMap())).thenAnswer(invocation -> {
+            delegateCalls.incrementAndGet();
+            started.countDown();
+            release.await();
+            return response;
+        });
+        Mockito.when(delegate.getPoolStats()).thenReturn(new HttpClientPoolStats(0, 0, 0, 0));
+        CoalescingHttpClient client = new CoalescingHttpClient(delegate);
+
+        int callers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<HttpResponse>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> client.get("/a", Collections.singletonMap("h", "v"))));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            for (int i = 1; i < callers; i++) {
+                futures.add(executor.submit(() -> client.get("/a", Collections.singletonMap("h", "v"))));
+            }
+            while (client.getCalls() < callers) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            for (Future<HttpResponse> future : futures) {
+                Assert.assertSame(future.get(10, TimeUnit.SECONDS), response);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(delegateCalls.get(), 1);
+        Assert.assertEquals(client.getCoalesced(), callers - 1);
+        Assert.assertEquals(client.getCoalescingRatio(), (double) (callers - 1) / callers, 0.0001);
+        Assert.assertEquals(client.getPoolStats().coalesceCalls, callers);
+        Assert.assertEquals(client.getPoolStats().coalesced, callers - 1);
+    }
+
+    @Test
+    public void testDifferentHeadersAreNotCoalesced() throws Exception {
+        HttpClient delegate = Mockito.mock(HttpClient.class);
+        Mockito.when(delegate.get(Mockito.eq("/a"), Mockito.anyMap())).thenReturn(new HttpResponse(200, "OK", new byte[0]));
+        CoalescingHttpClient client = new CoalescingHttpClient(delegate);
+
+        client.get("/a", Collections.singletonMap("h", "1"));
+        client.get("/a", Collections.singletonMap("h", "2"));
+        client.get("/a", Collections.singletonMap("h", "1"));
+
+        Mockito.verify(delegate, Mockito.times(3)).get(Mockito.eq("/a"), Mockito.anyMap());
+        Assert.assertEquals(client.getCoalesced(), 0);
+    }
+
+    @Test
+    public void testFailureIsNotRemembered() throws Exception {
+        HttpClient delegate = Mockito.mock(HttpClient.class);
+        Mockito.when(delegate.get(Mockito.eq("/a"), Mockito.anyMap()))
+            .thenThrow(new HttpClientException("boom"))
+            .thenReturn(new HttpResponse(200, "OK", new byte[0]));
+        CoalescingHttpClient client = new CoalescingHttpClient(delegate);
+
+        try {
+            client.get("/a", null);
+            Assert.fail();
+        } catch (HttpClientException e) {
+            Assert.assertEquals(e.getMessage(), "boom");
+        }
+        Assert.assertEquals(client.get("/a", null).getStatusCode(), 200);
+    }
+
+    @Test
+    public void testFollowersRetryWhenTheLeaderTimesOut() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        HttpResponse response = new HttpResponse(200, "OK", new byte[0]);
+
+        HttpClient delegate = Mockito.mock(HttpClient.class);
+        Mockito.when(delegate.get(Mockito.eq("/a"), Mockito.anyMap()))
+            .thenAnswer(invocation -> {
+                started.countDown();
+                release.await();
+                throw new HttpClientException("timed out", new SocketTimeoutException());
+            })
+            .thenReturn(response);
+        CoalescingHttpClient client = new CoalescingHttpClient(delegate);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<HttpResponse> leader = executor.submit(() -> client.get("/a", null));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<HttpResponse> follower = executor.submit(() -> client.get("/a", null));
+            while (client.getCoalesced() < 1) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            try {
+                leader.get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause().getCause() instanceof SocketTimeoutException);
+            }
+            Assert.assertSame(follower.get(10, TimeUnit.SECONDS), response);
+        } finally {
+            executor.shutdownNow();
+        }
+        Mockito.verify(delegate, Mockito.times(2)).get(Mockito.eq("/a"), Mockito.anyMap());
+    }
+
+    @Test
+    public void testFollowersGetTheirOwnFailure() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        HttpClientException shared = new HttpClientException("refused", new IOException("refused"));
+
+        HttpClient delegate = Mockito.mock(HttpClient.class);
+        Mockito.when(delegate.get(Mockito.eq("/a"), Mockito.anyMap())).thenAnswer(invocation -> {
+            started.countDown();
+            release.await();
+            throw shared;
+        });
+        CoalescingHttpClient client = new CoalescingHttpClient(delegate);
+
+        AtomicReference<Throwable> followerFailure = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> leader = executor.submit(() -> client.get("/a", null));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<?> follower = executor.submit(() -> {
+                try {
+                    return client.get("/a", null);
+                } catch (HttpClientException e) {
+                    followerFailure.set(e);
+                    return null;
+                }
+            });
+            while (client.getCoalesced() < 1) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            follower.get(10, TimeUnit.SECONDS);
+            try {
+                leader.get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertSame(e.getCause(), shared);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertNotNull(followerFailure.get());
+        Assert.assertNotSame(followerFailure.get(), shared);
+        Assert.assertTrue(followerFailure.get().getCause() instanceof IOException);
+        Mockito.verify(delegate, Mockito.times(1)).get(Mockito.eq("/a"), Mockito.anyMap());
+    }
+}
@@ -0,0 +1,39 @@
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.routing.bird.shared.ConcurrencyLimit;
+import com.jivesoftware.os.routing.bird.shared.ConcurrencyLimitExceededException;
+import java.util.Collections;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ConcurrencyLimitedHttpClientTest {
+
+    @Test
+    public void testStreamHoldsItsPermitUntilClosed() throws Exception {
+        HttpClient delegate = Mockito.mock(HttpClient.class);
+        HttpStreamResponse streamResponse = Mockito.mock(HttpStreamResponse.class);
+        Mockito.when(delegate.streamingPost(Mockito.anyString(), Mockito.anyString(), Mockito.anyMap())).thenReturn(streamResponse);
+        ConcurrencyLimit limit = new ConcurrencyLimit(1, 1, 1);
+        ConcurrencyLimitedHttpClient client = new ConcurrencyLimitedHttpClient(delegate, limit);
+
+        HttpStreamResponse response = client.streamingPost("/stream", "{}", Collections.emptyMap());
+        Assert.assertEquals(limit.getInflight(), 1);
+        try {
+            client.streamingPost("/stream", "{}", Collections.emptyMap());
+            Assert.fail("the open stream should still hold the only permit");
+        } catch (ConcurrencyLimitExceededException x) {
+            // expected
+        }
+
+        response.close();
+        Mockito.verify(streamResponse).close();
+        Assert.assertEquals(limit.getInflight(), 0);
+        response.close();
+        Assert.assertEquals(limit.getInflight(), 0);
+
+        client.streamingPost("/stream", "{}", Collections.emptyMap()).abort();
+        Mockito.verify(streamResponse).abort();
+        Assert.assertEquals(limit.getInflight(), 0);
+    }
+}
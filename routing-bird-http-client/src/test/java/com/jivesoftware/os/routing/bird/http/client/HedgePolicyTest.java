@@ -0,0 +1,64 @@
+package com.jivesoftware.os.routing.bird.http.client;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class HedgePolicyTest {
+
+    @Test
+    public void testBudgetedByDefault() {
+        HedgePolicy policy = HedgePolicy.newBuilder().build();
+        int burst = 0;
+        while (policy.tryAcquireHedge()) {
+            burst++;
+        }
+        Assert.assertEquals(burst, HedgePolicy.DEFAULT_MAX_BUDGET);
+
+        int hedges = 0;
+        for (int i = 0; i < 1_000; i++) {
+            policy.primary();
+            if (policy.tryAcquireHedge()) {
+                hedges++;
+            }
+        }
+        Assert.assertEquals(hedges, 50);
+    }
+
+    @Test
+    public void testNegativeRatioIsUnbounded() {
+        HedgePolicy policy = HedgePolicy.newBuilder().setBudget(-1, 0).build();
+        for (int i = 0; i < 1_000; i++) {
+            Assert.assertTrue(policy.tryAcquireHedge());
+        }
+    }
+
+    @Test
+    public void testBudgetCapsHedgesToRatioOfPrimaries() {
+        HedgePolicy policy = HedgePolicy.newBuilder().setBudget(0.05, 2).build();
+        Assert.assertTrue(policy.tryAcquireHedge());
+        Assert.assertTrue(policy.tryAcquireHedge());
+        Assert.assertFalse(policy.tryAcquireHedge());
+
+        int hedges = 0;
+        for (int i = 0; i < 1_000; i++) {
+            policy.primary();
+            if (policy.tryAcquireHedge()) {
+                hedges++;
+            }
+        }
+        Assert.assertEquals(hedges, 50);
+    }
+
+    @Test
+    public void testBudgetBanksAtMost() {
+        HedgePolicy policy = HedgePolicy.newBuilder().setBudget(0.5, 3).build();
+        for (int i = 0; i < 100; i++) {
+            policy.primary();
+        }
+        int hedges = 0;
+        while (policy.tryAcquireHedge()) {
+            hedges++;
+        }
+        Assert.assertEquals(hedges, 3);
+    }
+}
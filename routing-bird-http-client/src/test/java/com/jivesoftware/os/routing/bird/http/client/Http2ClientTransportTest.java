@@ -0,0 +1,178 @@
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.frames.ResetFrame;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.Callback;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class Http2ClientTransportTest {
+
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private volatile CountDownLatch release = new CountDownLatch(0);
+    private Server server;
+    private ServerConnector connector;
+
+    @BeforeClass
+    public void startServer() throws Exception {
+        server = new Server();
+        HttpConfiguration httpConfig = new HttpConfiguration();
+        connector = new ServerConnector(server, new HttpConnectionFactory(httpConfig), new HTTP2CServerConnectionFactory(httpConfig));
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                try {
+                    if (target.equals("/slow")) {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    response.getOutputStream().write(request.getProtocol().getBytes("UTF-8"));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    concurrent.decrementAndGet();
+                }
+            }
+        });
+        server.start();
+    }
+
+    @AfterClass
+    public void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testConcurrentRequestsShareConnections() throws Exception {
+        SharedHttpClientFactory factory = new Http2ClientTransport(2).createSharedHttpClientFactory(
+            Collections.singletonList(HttpClientConfig.newBuilder().setSocketTimeoutInMillis(10_000).build()));
+        HttpClient client = factory.createClient(null, "localhost", connector.getLocalPort());
+        ExecutorService executor = Executors.newFixedThreadPool(64);
+        try {
+            maxConcurrent.set(0);
+            release = new CountDownLatch(1);
+            List<Future<HttpResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                responses.add(executor.submit(() -> client.get("/slow", null)));
+            }
+            long giveUp = System.currentTimeMillis() + 10_000;
+            while (concurrent.get() < 64 && System.currentTimeMillis() < giveUp) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(client.getPoolStats().leased, 64);
+            release.countDown();
+
+            for (Future<HttpResponse> response : responses) {
+                Assert.assertEquals(new String(response.get().getResponseBody(), "UTF-8"), "HTTP/2.0");
+            }
+            Assert.assertEquals(maxConcurrent.get(), 64);
+            Assert.assertEquals(client.getPoolStats().available, 2);
+            Assert.assertEquals(connector.getConnectedEndPoints().size(), 2);
+        } finally {
+            executor.shutdownNow();
+            factory.close();
+        }
+    }
+
+    @Test
+    public void testInterruptResetsOnlyTheStream() throws Exception {
+        SharedHttpClientFactory factory = new Http2ClientTransport(1).createSharedHttpClientFactory(
+            Collections.singletonList(HttpClientConfig.newBuilder().setSocketTimeoutInMillis(10_000).build()));
+        HttpClient client = factory.createClient(null, "localhost", connector.getLocalPort());
+        try {
+            Assert.assertEquals(client.get("/fast", null).getStatusCode(), 200);
+
+            release = new CountDownLatch(1);
+            Thread caller = Thread.currentThread();
+            Executors.newSingleThreadScheduledExecutor().schedule(caller::interrupt, 200, TimeUnit.MILLISECONDS);
+            try {
+                client.get("/slow", null);
+                Assert.fail();
+            } catch (HttpClientException e) {
+                Assert.assertTrue(Thread.interrupted());
+            }
+            release.countDown();
+
+            Assert.assertEquals(client.get("/fast", null).getStatusCode(), 200);
+            Assert.assertEquals(client.getPoolStats().leased, 0);
+            Assert.assertEquals(connector.getConnectedEndPoints().size(), 1);
+        } finally {
+            factory.close();
+        }
+    }
+
+    @Test
+    public void testLastClientClosesTheConnections() throws Exception {
+        SharedHttpClientFactory factory = new Http2ClientTransport(1).createSharedHttpClientFactory(
+            Collections.singletonList(HttpClientConfig.newBuilder().setSocketTimeoutInMillis(10_000).build()));
+        try {
+            HttpClient first = factory.createClient(null, "localhost", connector.getLocalPort());
+            HttpClient second = factory.createClient(null, "localhost", connector.getLocalPort());
+            Assert.assertEquals(first.get("/fast", null).getStatusCode(), 200);
+            Assert.assertEquals(second.get("/fast", null).getStatusCode(), 200);
+
+            first.close();
+            first.close();
+            Assert.assertEquals(second.get("/fast", null).getStatusCode(), 200);
+            Assert.assertEquals(second.getPoolStats().available, 1);
+
+            second.close();
+            Assert.assertEquals(second.getPoolStats().available, 0);
+            long giveUp = System.currentTimeMillis() + 10_000;
+            while (!connector.getConnectedEndPoints().isEmpty() && System.currentTimeMillis() < giveUp) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(connector.getConnectedEndPoints().isEmpty());
+
+            HttpClient third = factory.createClient(null, "localhost", connector.getLocalPort());
+            Assert.assertEquals(third.get("/fast", null).getStatusCode(), 200);
+            third.close();
+        } finally {
+            factory.close();
+        }
+    }
+
+    @Test
+    public void testStreamsOpenedAfterTheCallerGaveUpAreReset() throws Exception {
+        Stream late = Mockito.mock(Stream.class);
+        Mockito.when(late.getId()).thenReturn(3);
+        JettyHttp2BackedHttpClient.StreamPromise promise = new JettyHttp2BackedHttpClient.StreamPromise();
+        promise.abandon();
+        Mockito.verify(late, Mockito.never()).reset(Mockito.any(ResetFrame.class), Mockito.any(Callback.class));
+
+        promise.succeeded(late);
+        Mockito.verify(late).reset(Mockito.any(ResetFrame.class), Mockito.any(Callback.class));
+
+        Stream opened = Mockito.mock(Stream.class);
+        JettyHttp2BackedHttpClient.StreamPromise openedFirst = new JettyHttp2BackedHttpClient.StreamPromise();
+        openedFirst.succeeded(opened);
+        openedFirst.abandon();
+        Mockito.verify(opened).reset(Mockito.any(ResetFrame.class), Mockito.any(Callback.class));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.http.client;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the Apache, JDK and HTTP/2 transports against a local Jetty. Throughput mode gives requests per millisecond, sample mode gives the
+ * latency percentiles (p0.99 is the one to watch) and the gc profiler started by main() reports gc.alloc.rate.norm, the bytes
+ * allocated per request. Not part of the test suite; build with -Pbenchmarks and run main() from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpClientTransportBenchmark {
+
+    @Param({ "apache", "jdk", "http2" })
+    public String transport;
+
+    @Param({ "128", "65536" })
+    public int responseBytes;
+
+    private Server server;
+    private SharedHttpClientFactory factory;
+    private HttpClient client;
+    private String requestBody;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] response = new byte[responseBytes];
+        server = new Server();
+        HttpConfiguration httpConfig = new HttpConfiguration();
+        ServerConnector connector = new ServerConnector(server, new HttpConnectionFactory(httpConfig), new HTTP2CServerConnectionFactory(httpConfig));
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse httpResponse)
+                throws IOException {
+                baseRequest.setHandled(true);
+                IOUtils.skip(request.getInputStream(), Long.MAX_VALUE);
+                httpResponse.setContentType("application/octet-stream");
+                httpResponse.setContentLength(response.length);
+                httpResponse.getOutputStream().write(response);
+            }
+        });
+        server.start();
+        int port = connector.getLocalPort();
+
+        HttpClientTransport httpClientTransport;
+        if ("jdk".equals(transport)) {
+            httpClientTransport = new JdkHttpClientTransport();
+        } else if ("http2".equals(transport)) {
+            httpClientTransport = new Http2ClientTransport();
+        } else {
+            httpClientTransport = new HttpClientFactoryProvider();
+        }
+        factory = httpClientTransport.createSharedHttpClientFactory(Collections.singletonList(HttpClientConfig.newBuilder()
+            .setMaxConnectionsPerHost(64)
+            .setSocketTimeoutInMillis(10_000)
+            .build()));
+        client = factory.createClient(null, "localhost", port);
+        requestBody = "{\"tenant\":\"benchmark\",\"values\":[1,2,3,4,5,6,7,8,9,10]}";
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        factory.close();
+        server.stop();
+    }
+
+    @Benchmark
+    public HttpResponse get() throws Exception {
+        return client.get("/get", null);
+    }
+
+    @Benchmark
+    public HttpResponse postJson() throws Exception {
+        return client.postJson("/post", requestBody, null);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[] { 1, 16 }) {
+            Options options = new OptionsBuilder()
+                .include(HttpClientTransportBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .threads(threads)
+                .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.routing.bird.shared.ContentCodec;
+import com.jivesoftware.os.routing.bird.shared.HttpClientException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class HttpClientTransportTest {
+
+    private Server server;
+    private int port;
+
+    @BeforeClass
+    public void startServer() throws Exception {
+        server = new Server();
+        HttpConfiguration httpConfig = new HttpConfiguration();
+        ServerConnector connector = new ServerConnector(server, new HttpConnectionFactory(httpConfig), new HTTP2CServerConnectionFactory(httpConfig));
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                if (target.equals("/missing")) {
+                    response.setStatus(404);
+                    response.getOutputStream().write("nope".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                if (target.equals("/gzipped")) {
+                    response.setHeader("Content-Encoding", "gzip");
+                    try (OutputStream out = ContentCodec.gzip.compress(response.getOutputStream())) {
+                        out.write("hello".getBytes(StandardCharsets.UTF_8));
+                    }
+                    return;
+                }
+                InputStream raw = request.getInputStream();
+                InputStream in = raw;
+                String contentEncoding = request.getHeader("Content-Encoding");
+                if (contentEncoding != null) {
+                    in = ContentCodec.forEncoding(contentEncoding).decompress(in);
+                    response.setHeader("X-Request-Encoding", contentEncoding);
+                }
+                response.setHeader("X-Method", request.getMethod());
+                response.setHeader("X-Custom", request.getHeader("X-Custom"));
+                response.setContentType(request.getContentType() != null ? request.getContentType() : "text/plain");
+                IOUtils.copy(in, response.getOutputStream());
+                // a decoder stops at its trailer; leaving the rest unread would cost the keep-alive connection
+                IOUtils.copy(raw, new ByteArrayOutputStream());
+            }
+        });
+        server.start();
+        port = connector.getLocalPort();
+    }
+
+    @AfterClass
+    public void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @DataProvider(name = "transports")
+    public Object[][] transports() {
+        return new Object[][] {
+            { new HttpClientFactoryProvider() },
+            { new JdkHttpClientTransport() },
+            { new Http2ClientTransport() }
+        };
+    }
+
+    private HttpClient client(HttpClientTransport transport, ContentCodec codec, int threshold) throws HttpClientException {
+        HttpClientConfig config = HttpClientConfig.newBuilder()
+            .setMaxConnectionsPerHost(2)
+            .setRequestCompression(codec, threshold)
+            .build();
+        return transport.createSharedHttpClientFactory(Collections.singletonList(config)).createClient(null, "localhost", port);
+    }
+
+    @Test(dataProvider = "transports")
+    public void testBufferedRequests(HttpClientTransport transport) throws Exception {
+        HttpClient client = client(transport, null, -1);
+        Map<String, String> headers = Collections.singletonMap("X-Custom", "yes");
+
+        HttpResponse get = client.get("/echo", headers);
+        Assert.assertEquals(get.getStatusCode(), 200);
+        Assert.assertEquals(get.getHeader("x-method"), "GET");
+        Assert.assertEquals(get.getHeader("X-Custom"), "yes");
+
+        HttpResponse post = client.postJson("/echo", "{\"a\":1}", headers);
+        Assert.assertEquals(new String(post.getResponseBody(), StandardCharsets.UTF_8), "{\"a\":1}");
+        Assert.assertTrue(post.getHeader("Content-Type").startsWith("application/json"), post.getHeader("Content-Type"));
+
+        HttpResponse missing = client.get("/missing", null);
+        Assert.assertEquals(missing.getStatusCode(), 404);
+        Assert.assertEquals(new String(missing.getResponseBody(), StandardCharsets.UTF_8), "nope");
+
+        HttpResponse gzipped = client.get("/gzipped", null);
+        Assert.assertEquals(new String(gzipped.getResponseBody(), StandardCharsets.UTF_8), "hello");
+
+        Assert.assertEquals(client.getPoolStats().leased, 0);
+        client.close();
+    }
+
+    @Test(dataProvider = "transports")
+    public void testCompressedRequests(HttpClientTransport transport) throws Exception {
+        HttpClient client = client(transport, ContentCodec.gzip, 16);
+
+        HttpResponse small = client.postBytes("/echo", "tiny".getBytes(StandardCharsets.UTF_8), null);
+        Assert.assertNull(small.getHeader("X-Request-Encoding"));
+        Assert.assertEquals(new String(small.getResponseBody(), StandardCharsets.UTF_8), "tiny");
+
+        byte[] large = new byte[10_000];
+        HttpResponse compressed = client.postBytes("/echo", large, null);
+        Assert.assertEquals(compressed.getHeader("X-Request-Encoding"), "gzip");
+        Assert.assertEquals(compressed.getResponseBody(), large);
+
+        HttpStreamResponse streamed = client.streamingPostStreamableRequest("/echo", out -> out.write(large), null);
+        Assert.assertEquals(streamed.getStatusCode(), 200);
+        Assert.assertEquals(readFully(streamed.getInputStream()), large);
+        streamed.close();
+
+        // streamed bodies are written exactly once, so their size is unknown and they are always compressed
+        HttpResponse smallStreamed = client.postStreamableRequest("/echo", out -> out.write("tiny".getBytes(StandardCharsets.UTF_8)), null);
+        Assert.assertEquals(smallStreamed.getHeader("X-Request-Encoding"), "gzip");
+        Assert.assertEquals(new String(smallStreamed.getResponseBody(), StandardCharsets.UTF_8), "tiny");
+
+        InputStream oneShot = new ByteArrayInputStream(large);
+        HttpResponse copied = client.postStreamableRequest("/echo", out -> {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = oneShot.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }, null);
+        Assert.assertEquals(copied.getResponseBody(), large);
+
+        HttpResponse trickled = client.postStreamableRequest("/echo", out -> {
+            for (byte b : large) {
+                out.write(b);
+            }
+        }, null);
+        Assert.assertEquals(trickled.getHeader("X-Request-Encoding"), "gzip");
+        Assert.assertEquals(trickled.getResponseBody(), large);
+
+        Assert.assertEquals(client.getPoolStats().leased, 0);
+        client.close();
+    }
+
+    @Test(dataProvider = "transports")
+    public void testStreamingStatus(HttpClientTransport transport) throws Exception {
+        HttpClient client = client(transport, null, -1);
+
+        HttpStreamResponse missing = client.streamingPostJson("/missing", out -> out.write('1'), null);
+        Assert.assertEquals(missing.getStatusCode(), 404);
+        Assert.assertEquals(new String(readFully(missing.getInputStream()), StandardCharsets.UTF_8), "nope");
+        missing.close();
+
+        HttpStreamResponse json = client.streamingPostJson("/echo", out -> out.write('1'), null);
+        Assert.assertEquals(json.getContentType(), "application/json");
+        json.abort();
+
+        try {
+            client.streamingPost("/missing", "{}", null);
+            Assert.fail();
+        } catch (HttpClientException e) {
+            // expected
+        }
+
+        Assert.assertEquals(client.getPoolStats().leased, 0);
+        client.close();
+    }
+
+    @Test
+    public void testJdkClientsShareHostPermits() throws Exception {
+        HttpClientConfig config = HttpClientConfig.newBuilder().setMaxConnectionsPerHost(1).build();
+        SharedHttpClientFactory factory = new JdkHttpClientTransport().createSharedHttpClientFactory(Collections.singletonList(config));
+        HttpClient first = factory.createClient(null, "localhost", port);
+        HttpClient second = factory.createClient(null, "localhost", port);
+        HttpClient otherHost = factory.createClient(null, "127.0.0.1", port);
+
+        HttpStreamResponse held = first.streamingPostJson("/echo", out -> out.write('1'), null);
+        Assert.assertEquals(second.getPoolStats().available, 0);
+        Assert.assertEquals(otherHost.getPoolStats().available, 1);
+        held.close();
+        Assert.assertEquals(second.getPoolStats().available, 1);
+        factory.close();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtils.copy(in, out);
+        return out.toByteArray();
+    }
+}
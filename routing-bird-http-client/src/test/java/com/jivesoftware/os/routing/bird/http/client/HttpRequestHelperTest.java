@@ -0,0 +1,144 @@
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jivesoftware.os.routing.bird.shared.JacksonSmile;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicHeader;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class HttpRequestHelperTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private static HttpStreamResponse streamResponse(int statusCode, String body) {
+        return streamResponse(statusCode, body.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    private static HttpStreamResponse streamResponse(int statusCode, byte[] body, String contentType) {
+        CloseableHttpResponse closeableHttpResponse = Mockito.mock(CloseableHttpResponse.class);
+        if (contentType != null) {
+            Mockito.when(closeableHttpResponse.getFirstHeader("Content-Type")).thenReturn(new BasicHeader("Content-Type", contentType));
+        }
+        return new HttpStreamResponse(statusCode,
+            "reason",
+            closeableHttpResponse,
+            new ByteArrayInputStream(body),
+            new HttpPost("http://localhost/"),
+            new AtomicLong(1));
+    }
+
+    @Test
+    public void testRequestAndResponseAreStreamed() throws Exception {
+        ByteArrayOutputStream posted = new ByteArrayOutputStream();
+        HttpClient httpClient = Mockito.mock(HttpClient.class);
+        Mockito.when(httpClient.streamingPostJson(Mockito.eq("/echo"), Mockito.any(HttpClient.StreamableRequest.class), Mockito.anyMap()))
+            .thenAnswer(invocation -> {
+                ((HttpClient.StreamableRequest) invocation.getArguments()[1]).writeRequest(posted);
+                return streamResponse(200, "{\"answer\":42}");
+            });
+        HttpRequestHelper helper = new HttpRequestHelper(httpClient, mapper);
+
+        Map result = helper.executeRequest(Collections.singletonMap("question", "?"), "/echo", Map.class, null);
+
+        Assert.assertEquals(result.get("answer"), 42);
+        Assert.assertEquals(mapper.readValue(posted.toByteArray(), Map.class), Collections.singletonMap("question", "?"));
+        Mockito.verify(httpClient, Mockito.never()).postJson(Mockito.anyString(), Mockito.anyString(), Mockito.anyMap());
+    }
+
+    @Test
+    public void testEmptyResponseReturnsEmptyResult() throws Exception {
+        HttpClient httpClient = Mockito.mock(HttpClient.class);
+        Mockito.when(httpClient.streamingPostJson(Mockito.anyString(), Mockito.any(HttpClient.StreamableRequest.class), Mockito.anyMap()))
+            .thenReturn(streamResponse(200, ""));
+        HttpRequestHelper helper = new HttpRequestHelper(httpClient, mapper);
+
+        Assert.assertEquals(helper.executeRequest("x", "/empty", String.class, "empty"), "empty");
+    }
+
+    @Test
+    public void testNonSuccessStatusIsReported() throws Exception {
+        HttpClient httpClient = Mockito.mock(HttpClient.class);
+        Mockito.when(httpClient.streamingPostJson(Mockito.anyString(), Mockito.any(HttpClient.StreamableRequest.class), Mockito.anyMap()))
+            .thenReturn(streamResponse(503, "unavailable"));
+        HttpRequestHelper helper = new HttpRequestHelper(httpClient, mapper);
+
+        try {
+            helper.executeRequest("x", "/down", new byte[0]);
+            Assert.fail();
+        } catch (NonSuccessStatusCodeException e) {
+            Assert.assertEquals(e.getStatusCode(), 503);
+            Assert.assertTrue(e.getMessage().contains("\"unavailable\""), e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLongErrorBodiesAreTruncated() throws Exception {
+        String body = new String(new char[10_000]).replace('\0', 'x');
+        HttpClient httpClient = Mockito.mock(HttpClient.class);
+        Mockito.when(httpClient.streamingPostJson(Mockito.anyString(), Mockito.any(HttpClient.StreamableRequest.class), Mockito.anyMap()))
+            .thenReturn(streamResponse(500, body));
+        HttpRequestHelper helper = new HttpRequestHelper(httpClient, mapper);
+
+        try {
+            helper.executeRequest("x", "/down", new byte[0]);
+            Assert.fail();
+        } catch (NonSuccessStatusCodeException e) {
+            Assert.assertTrue(e.getMessage().contains("... (10000 bytes)"), e.getMessage());
+            Assert.assertTrue(e.getMessage().length() < 2_000);
+        }
+    }
+
+    @Test
+    public void testStreamingPostReturnsNonSuccessResponses() throws Exception {
+        HttpStreamResponse unavailable = streamResponse(503, "unavailable");
+        HttpClient httpClient = Mockito.mock(HttpClient.class);
+        Mockito.when(httpClient.streamingPostJson(Mockito.anyString(), Mockito.any(HttpClient.StreamableRequest.class), Mockito.anyMap()))
+            .thenReturn(unavailable);
+        HttpRequestHelper helper = new HttpRequestHelper(httpClient, mapper);
+
+        Assert.assertSame(helper.executeStreamingPostRequest("x", "/down"), unavailable);
+    }
+
+    @Test
+    public void testSmileIsNegotiatedAndFallsBackToJsonOn415() throws Exception {
+        ObjectMapper smileMapper = JacksonSmile.mirror(mapper);
+        List<Map<String, String>> sentHeaders = new ArrayList<>();
+        List<byte[]> sentBodies = new ArrayList<>();
+        HttpClient httpClient = Mockito.mock(HttpClient.class);
+        Mockito.when(httpClient.streamingPostJson(Mockito.anyString(), Mockito.any(HttpClient.StreamableRequest.class), Mockito.anyMap()))
+            .thenAnswer(invocation -> {
+                Map<String, String> headers = (Map<String, String>) invocation.getArguments()[2];
+                ByteArrayOutputStream posted = new ByteArrayOutputStream();
+                ((HttpClient.StreamableRequest) invocation.getArguments()[1]).writeRequest(posted);
+                sentHeaders.add(headers);
+                sentBodies.add(posted.toByteArray());
+                if (JacksonSmile.isSmile(headers.get("Content-Type")) && sentHeaders.size() > 1) {
+                    return streamResponse(415, new byte[0], null);
+                }
+                return streamResponse(200, smileMapper.writeValueAsBytes(Collections.singletonMap("answer", 42)), JacksonSmile.CONTENT_TYPE);
+            });
+        HttpRequestHelper helper = new HttpRequestHelper(httpClient, mapper, null, true);
+
+        Map first = helper.executeRequest(Collections.singletonMap("question", "?"), "/ask", Map.class, null);
+        Assert.assertEquals(first.get("answer"), 42);
+        Assert.assertEquals(sentHeaders.get(0).get("Accept"), JacksonSmile.ACCEPT);
+        Assert.assertEquals(smileMapper.readValue(sentBodies.get(0), Map.class), Collections.singletonMap("question", "?"));
+
+        Map second = helper.executeRequest(Collections.singletonMap("question", "?"), "/ask", Map.class, null);
+        Assert.assertEquals(second.get("answer"), 42);
+        Assert.assertEquals(sentHeaders.size(), 3);
+        Assert.assertNull(sentHeaders.get(2).get("Content-Type"));
+        Assert.assertEquals(mapper.readValue(sentBodies.get(2), Map.class), Collections.singletonMap("question", "?"));
+    }
+}
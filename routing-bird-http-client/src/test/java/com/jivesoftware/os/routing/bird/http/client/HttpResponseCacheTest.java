@@ -0,0 +1,135 @@
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class HttpResponseCacheTest {
+
+    private static HttpResponse ok(String body, String cacheControl, String eTag) {
+        Map<String, String> headers = new HashMap<>();
+        if (cacheControl != null) {
+            headers.put("cache-control", cacheControl);
+        }
+        if (eTag != null) {
+            headers.put("etag", eTag);
+        }
+        return new HttpResponse(200, "OK", body.getBytes(StandardCharsets.UTF_8), headers);
+    }
+
+    @Test
+    public void testFreshResponseIsServedWithoutRequestOrParse() throws Exception {
+        HttpClient httpClient = Mockito.mock(HttpClient.class);
+        Mockito.when(httpClient.get("/a", null)).thenReturn(ok("{\"value\":\"x\"}", "max-age=60", null));
+        HttpResponseCache cache = HttpResponseCache.newBuilder().setShareValues(true).build();
+        HttpRequestHelper helper = new HttpRequestHelper(httpClient, new ObjectMapper(), cache);
+
+        Map first = helper.executeGetRequest("/a", Map.class, null);
+        Map second = helper.executeGetRequest("/a", Map.class, null);
+
+        Assert.assertEquals(first.get("value"), "x");
+        Assert.assertSame(second, first);
+        Mockito.verify(httpClient, Mockito.times(1)).get(Mockito.anyString(), Mockito.anyMap());
+        Assert.assertEquals(cache.getHits(), 1);
+        Assert.assertEquals(cache.getMisses(), 1);
+    }
+
+    @Test
+    public void testStaleResponseIsRevalidatedWithETag() throws Exception {
+        HttpClient httpClient = Mockito.mock(HttpClient.class);
+        Mockito.when(httpClient.get("/a", null)).thenReturn(ok("{\"value\":\"x\"}", "no-cache", "\"v1\""));
+        Mockito.when(httpClient.get("/a", Collections.singletonMap("If-None-Match", "\"v1\"")))
+            .thenReturn(new HttpResponse(304, "Not Modified", new byte[0]));
+        HttpResponseCache cache = HttpResponseCache.newBuilder().setShareValues(true).build();
+        HttpRequestHelper helper = new HttpRequestHelper(httpClient, new ObjectMapper(), cache);
+
+        Map first = helper.executeGetRequest("/a", Map.class, null);
+        Map second = helper.executeGetRequest("/a", Map.class, null);
+
+        Assert.assertSame(second, first);
+        Assert.assertEquals(cache.getRevalidations(), 1);
+        Mockito.verify(httpClient).get("/a", Collections.singletonMap("If-None-Match", "\"v1\""));
+    }
+
+    @Test
+    public void testValuesAndBodiesAreNotSharedByDefault() throws Exception {
+        HttpClient httpClient = Mockito.mock(HttpClient.class);
+        Mockito.when(httpClient.get("/a", null)).thenReturn(ok("{\"value\":\"x\"}", "max-age=60", null));
+        HttpResponseCache cache = HttpResponseCache.newBuilder().build();
+        HttpRequestHelper helper = new HttpRequestHelper(httpClient, new ObjectMapper(), cache);
+
+        Map first = helper.executeGetRequest("/a", Map.class, null);
+        first.put("value", "changed");
+        Map second = helper.executeGetRequest("/a", Map.class, null);
+        Assert.assertNotSame(second, first);
+        Assert.assertEquals(second.get("value"), "x");
+
+        helper.executeGet("/a")[0] = 'X';
+        Assert.assertEquals(new String(helper.executeGet("/a"), StandardCharsets.UTF_8), "{\"value\":\"x\"}");
+        Mockito.verify(httpClient, Mockito.times(1)).get(Mockito.anyString(), Mockito.anyMap());
+    }
+
+    @Test
+    public void testOnlyAdmittedBodiesGoOffHeap() {
+        HttpResponseCache cache = HttpResponseCache.newBuilder().setMaxWeightInBytes(100 * 200).setOffHeap(true).build();
+        long now = System.currentTimeMillis();
+        String body = new String(new char[100]).replace('\0', 'x');
+
+        cache.put("a", ok(body, "max-age=60", null), now);
+        Assert.assertFalse(cache.get("a", now).isOffHeap());
+        cache.put("b", ok(body, "max-age=60", null), now);
+
+        HttpResponseCache.CachedResponse admitted = cache.get("a", now);
+        Assert.assertTrue(admitted.isOffHeap());
+        Assert.assertEquals(new String(admitted.getBody(), StandardCharsets.UTF_8), body);
+        Assert.assertFalse(cache.get("b", now).isOffHeap());
+    }
+
+    @Test
+    public void testNoStoreIsNotCached() throws Exception {
+        HttpClient httpClient = Mockito.mock(HttpClient.class);
+        Mockito.when(httpClient.get("/a", null)).thenReturn(ok("abc", "no-store, max-age=60", "\"v1\""));
+        HttpResponseCache cache = HttpResponseCache.newBuilder().build();
+        HttpRequestHelper helper = new HttpRequestHelper(httpClient, new ObjectMapper(), cache);
+
+        Assert.assertEquals(new String(helper.executeGet("/a"), StandardCharsets.UTF_8), "abc");
+        Assert.assertEquals(new String(helper.executeGet("/a"), StandardCharsets.UTF_8), "abc");
+        Mockito.verify(httpClient, Mockito.times(2)).get("/a", null);
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testHotEntriesSurviveAScan() {
+        HttpResponseCache cache = HttpResponseCache.newBuilder().setMaxWeightInBytes(100 * 200).setOffHeap(true).build();
+        long now = System.currentTimeMillis();
+        String body = new String(new char[100]).replace('\0', 'x');
+        for (int i = 0; i < 50; i++) {
+            cache.put("hot" + i, ok(body, "max-age=60", null), now);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                cache.get("hot" + i, now);
+            }
+        }
+        for (int i = 0; i < 10_000; i++) {
+            cache.put("scan" + i, ok(body, "max-age=60", null), now);
+        }
+
+        int hot = 0;
+        for (int i = 0; i < 50; i++) {
+            HttpResponseCache.CachedResponse cached = cache.get("hot" + i, now);
+            if (cached != null) {
+                Assert.assertEquals(new String(cached.getBody(), StandardCharsets.UTF_8), body);
+                hot++;
+            }
+        }
+        Assert.assertTrue(hot >= 45, "Only " + hot + " hot entries survived");
+        Assert.assertTrue(cache.getWeight() <= 100 * 200);
+        Assert.assertTrue(cache.getEvictions() > 0);
+    }
+}
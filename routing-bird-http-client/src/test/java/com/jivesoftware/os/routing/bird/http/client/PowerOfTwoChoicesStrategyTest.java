@@ -0,0 +1,129 @@
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.routing.bird.shared.CircuitBreaker;
+import com.jivesoftware.os.routing.bird.shared.ClientCall.ClientResponse;
+import com.jivesoftware.os.routing.bird.shared.ClientHealth;
+import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptor;
+import com.jivesoftware.os.routing.bird.shared.HostPort;
+import com.jivesoftware.os.routing.bird.shared.InstanceDescriptor;
+import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class PowerOfTwoChoicesStrategyTest {
+
+    @Test
+    public void testPrefersFasterClient() throws Exception {
+        PowerOfTwoChoicesStrategy strategy = new PowerOfTwoChoicesStrategy();
+        ConnectionDescriptor[] connectionDescriptors = descriptors(0, 1);
+
+        completed(strategy, connectionDescriptors, 0, 1);
+        completed(strategy, connectionDescriptors, 1, 20);
+        strategy.startedClientAtIndex(connectionDescriptors, 0);
+        strategy.startedClientAtIndex(connectionDescriptors, 1);
+
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(strategy.getClients(connectionDescriptors), new int[] { 0, 1 });
+        }
+    }
+
+    @Test
+    public void testPrefersLessLoadedClient() throws Exception {
+        PowerOfTwoChoicesStrategy strategy = new PowerOfTwoChoicesStrategy();
+        ConnectionDescriptor[] connectionDescriptors = descriptors(0, 1);
+
+        completed(strategy, connectionDescriptors, 0, 10);
+        completed(strategy, connectionDescriptors, 1, 10);
+        for (int i = 0; i < 3; i++) {
+            strategy.startedClientAtIndex(connectionDescriptors, 0);
+        }
+
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(strategy.getClients(connectionDescriptors), new int[] { 1, 0 });
+        }
+    }
+
+    @Test
+    public void testLoadFollowsInstancesAcrossDescriptorArrays() throws Exception {
+        PowerOfTwoChoicesStrategy strategy = new PowerOfTwoChoicesStrategy();
+        ConnectionDescriptor[] forward = descriptors(0, 1);
+        ConnectionDescriptor[] reversed = descriptors(1, 0);
+
+        completed(strategy, forward, 0, 1);
+        completed(strategy, reversed, 0, 20);
+
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(strategy.getClients(forward), new int[] { 0, 1 });
+            Assert.assertEquals(strategy.getClients(reversed), new int[] { 1, 0 });
+        }
+    }
+
+    @Test
+    public void testAsyncCallsCountAsInflight() throws Exception {
+        PowerOfTwoChoicesStrategy strategy = new PowerOfTwoChoicesStrategy();
+        ConnectionDescriptor[] connectionDescriptors = descriptors(0, 1);
+        Integer[] clients = new Integer[] { 0, 1 };
+        ClientHealth[] clientHealths = new ClientHealth[] { Mockito.mock(ClientHealth.class), Mockito.mock(ClientHealth.class) };
+        CircuitBreaker[] clientBreakers = new CircuitBreaker[] { new CircuitBreaker(1, 10_000), new CircuitBreaker(1, 10_000) };
+        completed(strategy, connectionDescriptors, 0, 1_000);
+        completed(strategy, connectionDescriptors, 1, 1_000);
+
+        int[] called = new int[1];
+        CompletableFuture<ClientResponse<Integer>> pending = new CompletableFuture<>();
+        CompletableFuture<Integer> result = new ReturnFirstNonFailure().callAsync(strategy, "test",
+            client -> {
+                called[0] = client;
+                return pending;
+            },
+            connectionDescriptors, 1, clients, clientHealths, clientBreakers);
+
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(strategy.getClients(connectionDescriptors)[1], called[0]);
+        }
+
+        // finishing drops it back to no inflight with a latency well under the other client's
+        pending.complete(new ClientResponse<>(called[0], true));
+        Assert.assertEquals(result.get().intValue(), called[0]);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(strategy.getClients(connectionDescriptors)[0], called[0]);
+        }
+    }
+
+    private static void completed(PowerOfTwoChoicesStrategy strategy, ConnectionDescriptor[] connectionDescriptors, int index, long latency) {
+        strategy.startedClientAtIndex(connectionDescriptors, index);
+        strategy.finishedClientAtIndex(connectionDescriptors, index, latency, true);
+    }
+
+    @Test
+    public void testForgetsInstancesNoRoutingGroupUses() throws Exception {
+        PowerOfTwoChoicesStrategy strategy = new PowerOfTwoChoicesStrategy();
+        ConnectionDescriptor[] kept = descriptors(0, 1);
+        strategy.getClients(kept);
+        strategy.getClients(descriptors(2, 3));
+        Assert.assertEquals(strategy.trackedInstances(), 4);
+        Assert.assertFalse(strategy.toString().contains("ik"), strategy.toString());
+
+        long giveUp = System.currentTimeMillis() + 10_000;
+        while (strategy.trackedInstances() > 3 && System.currentTimeMillis() < giveUp) {
+            System.gc();
+            strategy.getClients(descriptors(4));
+        }
+        Assert.assertEquals(strategy.trackedInstances(), 3);
+        Assert.assertEquals(strategy.getClients(kept).length, 2);
+    }
+
+    private static ConnectionDescriptor[] descriptors(int... ids) {
+        ConnectionDescriptor[] connectionDescriptors = new ConnectionDescriptor[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            connectionDescriptors[i] = new ConnectionDescriptor(
+                new InstanceDescriptor("dc", "rk", "ph", "ck", "cn", "sk", "sn", "rgk", "rgn", "ik-" + ids[i], 1, "vn", "r", "pk", 0, true),
+                false, false,
+                new HostPort("test", ids[i] + 1),
+                Collections.EMPTY_MAP, Collections.EMPTY_MAP);
+        }
+        return connectionDescriptors;
+    }
+}
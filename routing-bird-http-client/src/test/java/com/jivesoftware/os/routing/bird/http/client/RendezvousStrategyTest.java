@@ -0,0 +1,141 @@
+package com.jivesoftware.os.routing.bird.http.client;
+
+import com.jivesoftware.os.routing.bird.shared.CircuitBreaker;
+import com.jivesoftware.os.routing.bird.shared.ClientCall.ClientResponse;
+import com.jivesoftware.os.routing.bird.shared.ClientHealth;
+import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptor;
+import com.jivesoftware.os.routing.bird.shared.HostPort;
+import com.jivesoftware.os.routing.bird.shared.InstanceDescriptor;
+import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RendezvousStrategyTest {
+
+    @Test
+    public void testRemovingAnInstanceOnlyMovesItsKeys() throws Exception {
+        RendezvousStrategy strategy = new RendezvousStrategy();
+        ConnectionDescriptor[] all = descriptors(0, 1, 2, 3, 4);
+        ConnectionDescriptor[] lessOne = descriptors(0, 1, 3, 4);
+
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            RendezvousStrategy.KeyedStrategy keyed = strategy.forKey("tenant-" + i);
+            String before = all[keyed.getClients(all)[0]].getInstanceDescriptor().instanceKey;
+            String after = lessOne[keyed.getClients(lessOne)[0]].getInstanceDescriptor().instanceKey;
+            Assert.assertEquals(all[strategy.forKey("tenant-" + i).getClients(all)[0]].getInstanceDescriptor().instanceKey, before);
+            if (!before.equals(after)) {
+                Assert.assertEquals(before, "ik-2");
+                moved++;
+            }
+        }
+        Assert.assertTrue(moved > 100 && moved < 300, "moved:" + moved);
+    }
+
+    @Test
+    public void testSpillsWhenOverloaded() throws Exception {
+        RendezvousStrategy strategy = new RendezvousStrategy();
+        ConnectionDescriptor[] connectionDescriptors = descriptors(0, 1, 2, 3);
+        Integer[] clients = new Integer[4];
+        ClientHealth[] clientHealths = new ClientHealth[4];
+        CircuitBreaker[] clientBreakers = new CircuitBreaker[4];
+        for (int i = 0; i < 4; i++) {
+            clients[i] = i;
+            clientHealths[i] = Mockito.mock(ClientHealth.class);
+            clientBreakers[i] = new CircuitBreaker(1, 10_000);
+        }
+
+        RendezvousStrategy.KeyedStrategy keyed = strategy.forKey("tenant");
+        int[] idle = keyed.getClients(connectionDescriptors);
+        int[][] busy = new int[1][];
+        Integer got = keyed.call("test",
+            client -> {
+                busy[0] = keyed.getClients(connectionDescriptors);
+                return new ClientResponse<>((Integer) client, true);
+            },
+            connectionDescriptors, 1, clients, clientHealths, clientBreakers, null);
+
+        Assert.assertEquals(got.intValue(), idle[0]);
+        Assert.assertEquals(busy[0][3], idle[0], "busy:" + Arrays.toString(busy[0]) + " idle:" + Arrays.toString(idle));
+        Assert.assertEquals(busy[0][0], idle[1]);
+        Assert.assertEquals(keyed.getClients(connectionDescriptors), idle);
+    }
+
+    @Test
+    public void testAsyncCallsCountAsInflight() throws Exception {
+        RendezvousStrategy strategy = new RendezvousStrategy();
+        ConnectionDescriptor[] connectionDescriptors = descriptors(0, 1, 2, 3);
+        Integer[] clients = new Integer[4];
+        ClientHealth[] clientHealths = new ClientHealth[4];
+        CircuitBreaker[] clientBreakers = new CircuitBreaker[4];
+        for (int i = 0; i < 4; i++) {
+            clients[i] = i;
+            clientHealths[i] = Mockito.mock(ClientHealth.class);
+            clientBreakers[i] = new CircuitBreaker(1, 10_000);
+        }
+
+        RendezvousStrategy.KeyedStrategy keyed = strategy.forKey("tenant");
+        int[] idle = keyed.getClients(connectionDescriptors);
+        CompletableFuture<ClientResponse<Integer>> pending = new CompletableFuture<>();
+        CompletableFuture<Integer> result = new ReturnFirstNonFailure().callAsync(keyed, "test", client -> pending,
+            connectionDescriptors, 1, clients, clientHealths, clientBreakers);
+
+        int[] busy = keyed.getClients(connectionDescriptors);
+        Assert.assertEquals(busy[3], idle[0], "busy:" + Arrays.toString(busy) + " idle:" + Arrays.toString(idle));
+
+        pending.complete(new ClientResponse<>(idle[0], true));
+        Assert.assertEquals(result.get().intValue(), idle[0]);
+        Assert.assertEquals(keyed.getClients(connectionDescriptors), idle);
+    }
+
+    @Test
+    public void testInflightFollowsInstancesAcrossDescriptorArrays() throws Exception {
+        RendezvousStrategy strategy = new RendezvousStrategy();
+        ConnectionDescriptor[] forward = descriptors(0, 1, 2, 3);
+        ConnectionDescriptor[] reversed = descriptors(3, 2, 1, 0);
+
+        RendezvousStrategy.KeyedStrategy keyed = strategy.forKey("tenant");
+        int first = keyed.getClients(forward)[0];
+        Assert.assertEquals(keyed.getClients(reversed)[0], 3 - first);
+
+        keyed.startedClientAtIndex(forward, first);
+        Assert.assertEquals(keyed.getClients(reversed)[3], 3 - first);
+        keyed.finishedClientAtIndex(reversed, 3 - first, 1, true);
+        Assert.assertEquals(keyed.getClients(forward)[0], first);
+    }
+
+    @Test
+    public void testForgetsInstancesNoRoutingGroupUses() throws Exception {
+        RendezvousStrategy rendezvous = new RendezvousStrategy();
+        RendezvousStrategy.KeyedStrategy strategy = rendezvous.forKey("tenant");
+        ConnectionDescriptor[] kept = descriptors(0, 1);
+        strategy.getClients(kept);
+        strategy.getClients(descriptors(2, 3));
+        Assert.assertEquals(rendezvous.trackedInstances(), 4);
+        Assert.assertFalse(rendezvous.toString().contains("ik"), rendezvous.toString());
+
+        long giveUp = System.currentTimeMillis() + 10_000;
+        while (rendezvous.trackedInstances() > 3 && System.currentTimeMillis() < giveUp) {
+            System.gc();
+            strategy.getClients(descriptors(4));
+        }
+        Assert.assertEquals(rendezvous.trackedInstances(), 3);
+        Assert.assertEquals(strategy.getClients(kept).length, 2);
+    }
+
+    private static ConnectionDescriptor[] descriptors(int... ids) {
+        ConnectionDescriptor[] connectionDescriptors = new ConnectionDescriptor[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            connectionDescriptors[i] = new ConnectionDescriptor(
+                new InstanceDescriptor("dc", "rk", "ph", "ck", "cn", "sk", "sn", "rgk", "rgn", "ik-" + ids[i], 1, "vn", "r", "pk", 0, true),
+                false, false,
+                new HostPort("test", ids[i] + 1),
+                Collections.EMPTY_MAP, Collections.EMPTY_MAP);
+        }
+        return connectionDescriptors;
+    }
+}
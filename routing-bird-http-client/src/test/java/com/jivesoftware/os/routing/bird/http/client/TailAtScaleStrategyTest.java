@@ -1,5 +1,6 @@
 package com.jivesoftware.os.routing.bird.http.client;
 
+import com.jivesoftware.os.routing.bird.shared.CircuitBreaker;
 import com.jivesoftware.os.routing.bird.shared.ClientCall.ClientResponse;
 import com.jivesoftware.os.routing.bird.shared.ClientHealth;
 import com.jivesoftware.os.routing.bird.shared.ConnectionDescriptor;
@@ -7,9 +8,14 @@ import com.jivesoftware.os.routing.bird.shared.HostPort;
 import com.jivesoftware.os.routing.bird.shared.InstanceDescriptor;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -18,15 +24,14 @@ public class TailAtScaleStrategyTest {
 
     @Test
     public void testTas() throws Exception {
-        TailAtScaleStrategy tas = new TailAtScaleStrategy(Executors.newCachedThreadPool(), 20, 95f, 0);
+        // hedges every slow call, so opt out of the default hedge budget
+        TailAtScaleStrategy tas = new TailAtScaleStrategy(Executors.newCachedThreadPool(), 20, 95f, 0,
+            HedgePolicy.newBuilder().setBudget(-1, 0).build());
 
         ConnectionDescriptor[] connectionDescriptors = new ConnectionDescriptor[3];
         Integer[] clients = new Integer[3];
         ClientHealth[] clientHealths = new ClientHealth[3];
-        int deadAfterNErrors = 1;
-        long checkDeadEveryNMillis = 10_000;
-        AtomicInteger[] clientsErrors = new AtomicInteger[3];
-        AtomicLong[] clientsDeathTimestamp = new AtomicLong[3];
+        CircuitBreaker[] clientBreakers = new CircuitBreaker[3];
 
 
         for (int i = 0; i < 3; i++) {
@@ -69,8 +74,7 @@ public class TailAtScaleStrategyTest {
 
 
             };
-            clientsErrors[i] = new AtomicInteger();
-            clientsDeathTimestamp[i] = new AtomicLong();
+            clientBreakers[i] = new CircuitBreaker(1, 10_000);
 
         }
 
@@ -93,10 +97,7 @@ public class TailAtScaleStrategyTest {
                 1,
                 clients,
                 clientHealths,
-                deadAfterNErrors,
-                checkDeadEveryNMillis,
-                clientsErrors,
-                clientsDeathTimestamp,
+                clientBreakers,
                 null
             );
             System.out.print(got + " ");
@@ -125,10 +126,7 @@ public class TailAtScaleStrategyTest {
                 1,
                 clients,
                 clientHealths,
-                deadAfterNErrors,
-                checkDeadEveryNMillis,
-                clientsErrors,
-                clientsDeathTimestamp,
+                clientBreakers,
                 null
             );
             System.out.print(got + " ");
@@ -156,10 +154,7 @@ public class TailAtScaleStrategyTest {
                 1,
                 clients,
                 clientHealths,
-                deadAfterNErrors,
-                checkDeadEveryNMillis,
-                clientsErrors,
-                clientsDeathTimestamp,
+                clientBreakers,
                 null
             );
             System.out.print(got + " ");
@@ -171,5 +166,99 @@ public class TailAtScaleStrategyTest {
         Assert.assertTrue(called[1] > called[2]);
     }
 
+    @Test
+    public void testRanksByRecordedLatency() throws Exception {
+        HedgePolicy hedgePolicy = HedgePolicy.newBuilder()
+            .setMaxHedges(0)
+            .setMinHedgeDelayMillis(100)
+            .setDragRandomReplica(true)
+            .setBudget(-1, 0)
+            .build();
+        TailAtScaleStrategy tas = new TailAtScaleStrategy(Executors.newCachedThreadPool(), 20, 95f, 1_000, hedgePolicy);
+        ConnectionDescriptor[] connectionDescriptors = connectionDescriptors(2);
+        Integer[] clients = new Integer[] { 0, 1 };
+        ClientHealth[] clientHealths = new ClientHealth[] { Mockito.mock(ClientHealth.class), Mockito.mock(ClientHealth.class) };
+        CircuitBreaker[] clientBreakers = new CircuitBreaker[] { new CircuitBreaker(1, 10_000), new CircuitBreaker(1, 10_000) };
+
+        // Whichever instance is ranked first stalls, so the other is dragged in and is the only one with a recorded latency.
+        AtomicInteger stalled = new AtomicInteger(-1);
+        Integer fast = tas.call("test",
+            client -> {
+                if (stalled.compareAndSet(-1, (Integer) client)) {
+                    try {
+                        Thread.sleep(10_000);
+                    } catch (InterruptedException x) {
+                        // SWALLOW
+                    }
+                }
+                return new ClientResponse<>((Integer) client, true);
+            },
+            connectionDescriptors, 1, clients, clientHealths, clientBreakers, null);
+        Assert.assertNotEquals(fast.intValue(), stalled.get());
+
+        List<Integer> called = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Integer got = tas.call("test",
+                client -> {
+                    called.add((Integer) client);
+                    return new ClientResponse<>((Integer) client, true);
+                },
+                connectionDescriptors, 1, clients, clientHealths, clientBreakers, null);
+            Assert.assertEquals(got, fast);
+        }
+        Assert.assertEquals(called, Collections.nCopies(10, fast));
+    }
+
+    @Test
+    public void testNeverHedgesToTheSameInstance() throws Exception {
+        HedgePolicy hedgePolicy = HedgePolicy.newBuilder()
+            .setMaxHedges(2)
+            .setMinHedgeDelayMillis(5)
+            .setDragRandomReplica(false)
+            .setBudget(-1, 0)
+            .build();
+        TailAtScaleStrategy tas = new TailAtScaleStrategy(Executors.newCachedThreadPool(), 20, 95f, 0, hedgePolicy);
+        ConnectionDescriptor[] connectionDescriptors = connectionDescriptors(3);
+        Integer[] clients = new Integer[] { 0, 1, 2 };
+        ClientHealth[] clientHealths = new ClientHealth[3];
+        CircuitBreaker[] clientBreakers = new CircuitBreaker[3];
+        for (int i = 0; i < 3; i++) {
+            clientHealths[i] = Mockito.mock(ClientHealth.class);
+            clientBreakers[i] = new CircuitBreaker(1, 10_000);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            List<Integer> called = new CopyOnWriteArrayList<>();
+            CountDownLatch everyoneCalled = new CountDownLatch(3);
+            tas.call("test",
+                client -> {
+                    called.add((Integer) client);
+                    // Re-rank while the call is still hedging.
+                    tas.favor(connectionDescriptors[2 - (Integer) client]);
+                    everyoneCalled.countDown();
+                    try {
+                        everyoneCalled.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException x) {
+                        // SWALLOW
+                    }
+                    return new ClientResponse<>((Integer) client, true);
+                },
+                connectionDescriptors, 1, clients, clientHealths, clientBreakers, null);
+            Assert.assertEquals(called.size(), 3);
+            Assert.assertEquals(new HashSet<>(called).size(), 3, "hedged to the same instance twice: " + called);
+        }
+    }
+
+    private static ConnectionDescriptor[] connectionDescriptors(int count) {
+        ConnectionDescriptor[] connectionDescriptors = new ConnectionDescriptor[count];
+        for (int i = 0; i < count; i++) {
+            connectionDescriptors[i] = new ConnectionDescriptor(
+                new InstanceDescriptor("dc", "rk", "ph", "ck", "cn", "sk", "sn", "rgk", "rgn", "ik-" + i, 1, "vn", "r", "pk", 0, true),
+                false, false,
+                new HostPort("test", i + 1),
+                Collections.EMPTY_MAP, Collections.EMPTY_MAP);
+        }
+        return connectionDescriptors;
+    }
 
 }
@@ -45,6 +45,11 @@ public class InitializeRestfulServer {
         return this;
     }
 
+    public InitializeRestfulServer enableCompression(int minCompressSizeInBytes, int compressionLevel) {
+        server.enableCompression(minCompressSizeInBytes, compressionLevel);
+        return this;
+    }
+
     public InitializeRestfulServer addClasspathResource(String path) throws Exception {
         server.addClasspathResource(path);
         return this;
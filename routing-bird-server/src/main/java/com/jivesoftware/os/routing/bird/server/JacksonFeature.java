@@ -25,22 +25,32 @@ import org.glassfish.jersey.CommonProperties;
 
 import static com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider.DEFAULT_ANNOTATIONS;
 
-/** Feature used to register Jackson JSON providers. */
+/** Feature used to register Jackson JSON providers, and optionally Smile negotiation alongside them. */
 public class JacksonFeature implements Feature {
 
     private ObjectMapper mapper;
+    private ObjectMapper smileMapper;
 
     public JacksonFeature withMapper(ObjectMapper mapper) {
         this.mapper = mapper;
         return this;
     }
 
+    public JacksonFeature withSmileMapper(ObjectMapper smileMapper) {
+        this.smileMapper = smileMapper;
+        return this;
+    }
+
     @Override
     public boolean configure(final FeatureContext context) {
         final String disableMoxy = CommonProperties.MOXY_JSON_FEATURE_DISABLE + '.' + context.getConfiguration().getRuntimeType().name().toLowerCase();
         context.property(disableMoxy, true);
 
         context.register(new JacksonJaxbJsonProvider(mapper, DEFAULT_ANNOTATIONS), MessageBodyReader.class, MessageBodyWriter.class);
+        if (smileMapper != null) {
+            context.register(new JacksonSmileProvider(smileMapper), MessageBodyReader.class, MessageBodyWriter.class);
+            context.register(new SmileContentNegotiationFilter());
+        }
         return true;
     }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+import com.jivesoftware.os.routing.bird.shared.JacksonSmile;
+import javax.ws.rs.core.MediaType;
+
+/** Reads and writes application/x-jackson-smile, leaving every other media type to the JSON provider. */
+public class JacksonSmileProvider extends JacksonJaxbJsonProvider {
+
+    public static final MediaType MEDIA_TYPE = MediaType.valueOf(JacksonSmile.CONTENT_TYPE);
+
+    public JacksonSmileProvider(ObjectMapper smileMapper) {
+        super(smileMapper, DEFAULT_ANNOTATIONS);
+    }
+
+    @Override
+    protected boolean hasMatchingMediaType(MediaType mediaType) {
+        return isSmile(mediaType);
+    }
+
+    public static boolean isSmile(MediaType mediaType) {
+        return mediaType != null && MEDIA_TYPE.isCompatible(mediaType) && !mediaType.isWildcardType() && !mediaType.isWildcardSubtype();
+    }
+}
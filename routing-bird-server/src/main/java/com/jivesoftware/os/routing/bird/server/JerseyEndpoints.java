@@ -23,7 +23,10 @@ import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
 import com.jivesoftware.os.routing.bird.server.binding.Injectable;
 import com.jivesoftware.os.routing.bird.server.binding.InjectableBinder;
+import com.jivesoftware.os.routing.bird.server.filter.ContentDecodingRequestFilter;
+import com.jivesoftware.os.routing.bird.server.filter.DeadlineRequestFilter;
 import com.jivesoftware.os.routing.bird.server.filter.NewRelicRequestFilter;
+import com.jivesoftware.os.routing.bird.shared.JacksonSmile;
 import io.swagger.jaxrs.config.BeanConfig;
 import io.swagger.jaxrs.listing.ApiListingResource;
 import java.util.Collections;
@@ -161,7 +164,7 @@ public class JerseyEndpoints implements HasServletContextHandler {
 
         rc.registerClasses(allClasses);
         rc.register(HttpMethodOverrideFilter.class);
-        rc.register(new JacksonFeature().withMapper(mapper));
+        rc.register(new JacksonFeature().withMapper(mapper).withSmileMapper(JacksonSmile.mirror(mapper)));
         rc.register(MultiPartFeature.class); // adds support for multi-part API requests
         rc.registerInstances(allBinders);
         rc.registerInstances(
@@ -195,6 +198,8 @@ public class JerseyEndpoints implements HasServletContextHandler {
         }
         servletContextHandler.addServlet(servletHolder, "/*");
         servletContextHandler.addFilter(NewRelicRequestFilter.class, "/", EnumSet.of(DispatcherType.REQUEST));
+        servletContextHandler.addFilter(DeadlineRequestFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+        servletContextHandler.addFilter(ContentDecodingRequestFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
 
         return servletContextHandler;
     }
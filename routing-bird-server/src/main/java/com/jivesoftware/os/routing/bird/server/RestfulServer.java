@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
 import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
 import org.eclipse.jetty.jmx.MBeanContainer;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.HttpConfiguration;
@@ -30,6 +31,7 @@ import org.eclipse.jetty.server.SslConnectionFactory;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.util.BlockingArrayQueue;
 import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
@@ -43,6 +45,7 @@ public class RestfulServer {
 
     private static final int MIN_THREADS = 8;
     private static final int IDLE_TIMEOUT = 60000;
+    private static final int MAX_CONCURRENT_STREAMS = 1024;
 
     private final Server server;
     private final QueuedThreadPool queuedThreadPool;
@@ -100,7 +103,10 @@ public class RestfulServer {
 
         HttpConfiguration httpConfig = buildHttpConfiguration(port);
 
-        ServerConnector connector = new ServerConnector(server, ACCEPTORS, SELECTORS, new HttpConnectionFactory(httpConfig));
+        // HTTP/1.1 by default; clients which open with the HTTP/2 preface (prior knowledge) or ask to upgrade get h2c on the same port
+        HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfig);
+        h2c.setMaxConcurrentStreams(MAX_CONCURRENT_STREAMS);
+        ServerConnector connector = new ServerConnector(server, ACCEPTORS, SELECTORS, new HttpConnectionFactory(httpConfig), h2c);
         if (loopback) {
             connector.setHost("127.0.0.1");
         }
@@ -135,7 +141,7 @@ public class RestfulServer {
         HttpConfiguration httpsConfig = new HttpConfiguration(httpConfig);
         httpsConfig.addCustomizer(new SecureRequestCustomizer());
 
-        // SSL Connector
+        // SSL Connector. Stays HTTP/1.1: negotiating h2 needs ALPN, which this Jetty only offers through alpn-boot on the boot classpath
         ServerConnector sslConnector = new ServerConnector(server,
             new SslConnectionFactory(sslContextFactory, HttpVersion.HTTP_1_1.asString()),
             new HttpConnectionFactory(httpsConfig));
@@ -159,6 +165,21 @@ public class RestfulServer {
         return httpConfig;
     }
 
+    /**
+     * Gzips responses of at least minCompressSizeInBytes for clients which send Accept-Encoding: gzip. Compressed request bodies are
+     * inflated by the endpoints' own filter regardless.
+     *
+     * @param compressionLevel 1 (fastest) to 9 (smallest), or -1 for the deflater's default
+     */
+    public void enableCompression(int minCompressSizeInBytes, int compressionLevel) {
+        GzipHandler gzipHandler = new GzipHandler();
+        gzipHandler.setMinGzipSize(minCompressSizeInBytes);
+        gzipHandler.setCompressionLevel(compressionLevel);
+        gzipHandler.setIncludedMethods("GET", "POST", "PUT", "DELETE");
+        gzipHandler.setHandler(handlers);
+        server.setHandler(gzipHandler);
+    }
+
     public void addContextHandler(String context, HasServletContextHandler contextHandler) {
         if (context == null || contextHandler == null) { // allows nulls to be ignored which works better with a chaining builder pattern
             return;
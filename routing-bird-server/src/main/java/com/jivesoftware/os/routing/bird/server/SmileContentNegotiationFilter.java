@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.server;
+
+import com.jivesoftware.os.routing.bird.shared.JacksonSmile;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.List;
+import javax.ws.rs.NotSupportedException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import javax.xml.transform.Source;
+
+/**
+ * Lets endpoints declared as consuming and producing application/json speak Smile to clients which ask for it. A Smile request body is
+ * matched as JSON and then handed to the Smile reader, provided the endpoint binds it to an object; an endpoint which takes the raw body
+ * (a String, bytes or a stream) would be handed Smile bytes labelled as JSON, so it answers 415 instead and the client falls back to JSON.
+ * A JSON response is written as Smile when the client lists Smile first in Accept, unless the endpoint already rendered the body itself.
+ */
+@PreMatching
+public class SmileContentNegotiationFilter implements ContainerRequestFilter, ContainerResponseFilter, ReaderInterceptor {
+
+    private static final String SMILE_REQUEST = SmileContentNegotiationFilter.class.getName() + ".smileRequest";
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        if (JacksonSmile.isSmile(requestContext.getHeaderString(HttpHeaders.CONTENT_TYPE))) {
+            requestContext.setProperty(SMILE_REQUEST, Boolean.TRUE);
+            requestContext.getHeaders().putSingle(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
+        }
+    }
+
+    @Override
+    public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException {
+        if (Boolean.TRUE.equals(context.getProperty(SMILE_REQUEST))) {
+            if (isRaw(context.getType())) {
+                throw new NotSupportedException(JacksonSmile.CONTENT_TYPE + " is only accepted by endpoints which bind the body to an object");
+            }
+            if (MediaType.APPLICATION_JSON_TYPE.isCompatible(context.getMediaType())) {
+                context.setMediaType(JacksonSmileProvider.MEDIA_TYPE);
+            }
+        }
+        return context.proceed();
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+        List<MediaType> acceptable = requestContext.getAcceptableMediaTypes();
+        if (acceptable.isEmpty() || !JacksonSmileProvider.isSmile(acceptable.get(0))) {
+            return;
+        }
+        responseContext.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        MediaType mediaType = responseContext.getMediaType();
+        if (responseContext.hasEntity()
+            && mediaType != null
+            && MediaType.APPLICATION_JSON_TYPE.isCompatible(mediaType)
+            && !mediaType.isWildcardType()
+            && !isRaw(responseContext.getEntity().getClass())) {
+            responseContext.getHeaders().putSingle(HttpHeaders.CONTENT_TYPE, JacksonSmileProvider.MEDIA_TYPE);
+        }
+    }
+
+    /**
+     * @return true for the types Jersey reads and writes as the raw body rather than handing to Jackson
+     */
+    static boolean isRaw(Class<?> type) {
+        return CharSequence.class.isAssignableFrom(type)
+            || byte[].class == type
+            || char[].class == type
+            || InputStream.class.isAssignableFrom(type)
+            || Reader.class.isAssignableFrom(type)
+            || File.class.isAssignableFrom(type)
+            || Source.class.isAssignableFrom(type)
+            || StreamingOutput.class.isAssignableFrom(type)
+            || MultivaluedMap.class.isAssignableFrom(type)
+            || Form.class.isAssignableFrom(type);
+    }
+}
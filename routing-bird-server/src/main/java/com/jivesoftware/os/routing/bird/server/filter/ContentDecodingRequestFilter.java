@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.server.filter;
+
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.routing.bird.shared.ContentCodec;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Inflates request bodies sent with a gzip or deflate Content-Encoding, so endpoints always read plain bytes. Jetty's GzipHandler only
+ * compresses responses. Requests in any other encoding are refused with a 415. Compressed and inflated byte counts are published as
+ * compression&gt;request counters.
+ */
+public class ContentDecodingRequestFilter implements Filter {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String CONTENT_LENGTH = "Content-Length";
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        String contentEncoding = request instanceof HttpServletRequest ? ((HttpServletRequest) request).getHeader(CONTENT_ENCODING) : null;
+        if (contentEncoding == null || contentEncoding.trim().isEmpty() || "identity".equalsIgnoreCase(contentEncoding.trim())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        ContentCodec codec = ContentCodec.forEncoding(contentEncoding);
+        if (codec == null) {
+            LOG.inc("compression>request>unsupported");
+            ((HttpServletResponse) response).sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+                "Unsupported Content-Encoding:" + contentEncoding);
+            return;
+        }
+
+        LOG.inc("compression>request>" + codec.getEncoding());
+        DecodingRequest decodingRequest = new DecodingRequest((HttpServletRequest) request, codec);
+        try {
+            chain.doFilter(decodingRequest, response);
+        } finally {
+            decodingRequest.report();
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    private static class DecodingRequest extends HttpServletRequestWrapper {
+
+        private final ContentCodec codec;
+        private CountingInputStream compressed;
+        private CountingInputStream inflated;
+        private ServletInputStream inputStream;
+        private BufferedReader reader;
+
+        DecodingRequest(HttpServletRequest request, ContentCodec codec) {
+            super(request);
+            this.codec = codec;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (inputStream == null) {
+                ServletInputStream raw = super.getInputStream();
+                compressed = new CountingInputStream(raw);
+                inflated = new CountingInputStream(codec.decompress(compressed));
+                inputStream = new ServletInputStream() {
+                    private boolean finished;
+
+                    @Override
+                    public int read() throws IOException {
+                        int b = inflated.read();
+                        finished = b == -1;
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int read = inflated.read(b, off, len);
+                        finished = read == -1;
+                        return read;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        inflated.close();
+                    }
+
+                    @Override
+                    public boolean isFinished() {
+                        return finished;
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setReadListener(ReadListener readListener) {
+                        raw.setReadListener(readListener);
+                    }
+                };
+            }
+            return inputStream;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            if (reader == null) {
+                String encoding = getCharacterEncoding();
+                reader = new BufferedReader(new InputStreamReader(getInputStream(),
+                    encoding != null ? encoding : StandardCharsets.ISO_8859_1.name()));
+            }
+            return reader;
+        }
+
+        @Override
+        public int getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return hidden(name) ? null : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            return hidden(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            List<String> names = new ArrayList<>();
+            for (Enumeration<String> e = super.getHeaderNames(); e.hasMoreElements();) {
+                String name = e.nextElement();
+                if (!hidden(name)) {
+                    names.add(name);
+                }
+            }
+            return Collections.enumeration(names);
+        }
+
+        private static boolean hidden(String name) {
+            return CONTENT_ENCODING.equalsIgnoreCase(name) || CONTENT_LENGTH.equalsIgnoreCase(name);
+        }
+
+        void report() {
+            if (compressed != null) {
+                LOG.inc("compression>request>compressedBytes", compressed.count);
+                LOG.inc("compression>request>uncompressedBytes", inflated.count);
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
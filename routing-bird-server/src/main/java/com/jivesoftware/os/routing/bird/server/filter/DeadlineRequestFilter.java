@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.server.filter;
+
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import com.jivesoftware.os.routing.bird.shared.Deadline;
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+
+/**
+ * Turns the caller's {@link Deadline#HEADER} into the request thread's {@link Deadline#current()}, measured from when jetty received
+ * the request so time spent queued counts against it. Requests whose caller has already given up are answered with a 504 without
+ * running, and endpoints can check the deadline to abandon long work. Outbound calls made on the request thread inherit it.
+ */
+public class DeadlineRequestFilter implements Filter {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        String header = request instanceof HttpServletRequest ? ((HttpServletRequest) request).getHeader(Deadline.HEADER) : null;
+        if (header == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        long remainingMillis;
+        try {
+            remainingMillis = Long.parseLong(header.trim());
+        } catch (NumberFormatException x) {
+            LOG.warn("Ignoring malformed {} header:{}", Deadline.HEADER, header);
+            chain.doFilter(request, response);
+            return;
+        }
+
+        long receivedTimestamp = request instanceof Request && ((Request) request).getTimeStamp() > 0
+            ? ((Request) request).getTimeStamp()
+            : System.currentTimeMillis();
+        Deadline deadline = Deadline.at(receivedTimestamp + remainingMillis);
+        if (deadline.isExpired()) {
+            LOG.inc("deadline>expired");
+            ((HttpServletResponse) response).sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Deadline passed before the request ran");
+            return;
+        }
+
+        Deadline previous = Deadline.set(deadline);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            Deadline.set(previous);
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
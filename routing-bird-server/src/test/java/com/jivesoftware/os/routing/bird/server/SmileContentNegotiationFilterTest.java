@@ -0,0 +1,47 @@
+package com.jivesoftware.os.routing.bird.server;
+
+import java.io.InputStream;
+import java.util.Map;
+import javax.ws.rs.NotSupportedException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SmileContentNegotiationFilterTest {
+
+    private final SmileContentNegotiationFilter filter = new SmileContentNegotiationFilter();
+
+    private static ReaderInterceptorContext smileRead(Class<?> type) {
+        ReaderInterceptorContext context = Mockito.mock(ReaderInterceptorContext.class);
+        Mockito.when(context.getProperty(SmileContentNegotiationFilter.class.getName() + ".smileRequest")).thenReturn(Boolean.TRUE);
+        Mockito.when(context.getMediaType()).thenReturn(MediaType.APPLICATION_JSON_TYPE);
+        Mockito.when((Class) context.getType()).thenReturn(type);
+        return context;
+    }
+
+    @Test
+    public void testBoundSmileBodiesAreReadAsSmile() throws Exception {
+        ReaderInterceptorContext context = smileRead(Map.class);
+
+        filter.aroundReadFrom(context);
+
+        Mockito.verify(context).setMediaType(JacksonSmileProvider.MEDIA_TYPE);
+        Mockito.verify(context).proceed();
+    }
+
+    @Test
+    public void testRawSmileBodiesAreUnsupported() throws Exception {
+        for (Class<?> type : new Class<?>[] { String.class, byte[].class, InputStream.class }) {
+            ReaderInterceptorContext context = smileRead(type);
+            try {
+                filter.aroundReadFrom(context);
+                Assert.fail(type.getName());
+            } catch (NotSupportedException x) {
+                Assert.assertEquals(x.getResponse().getStatus(), 415);
+            }
+            Mockito.verify(context, Mockito.never()).proceed();
+        }
+    }
+}
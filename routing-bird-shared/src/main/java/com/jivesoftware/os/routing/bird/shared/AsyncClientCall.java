@@ -0,0 +1,28 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import com.jivesoftware.os.routing.bird.shared.ClientCall.ClientResponse;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking counterpart to {@link ClientCall}. Implementations must not park the calling thread; failures are
+ * surfaced by completing the returned future exceptionally.
+ */
+public interface AsyncClientCall<C, R> {
+
+    CompletableFuture<ClientResponse<R>> call(C client);
+}
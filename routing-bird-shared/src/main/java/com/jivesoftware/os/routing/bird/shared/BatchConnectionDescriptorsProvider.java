@@ -0,0 +1,31 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import java.util.List;
+
+/**
+ * A {@link ConnectionDescriptorsProvider} which can resolve many tenants' routes in one round trip. The refresher in
+ * {@link TenantsServiceConnectionDescriptorProvider} uses it whenever the provider it was given implements it.
+ */
+public interface BatchConnectionDescriptorsProvider extends ConnectionDescriptorsProvider {
+
+    /**
+     * @param expectedReleaseGroups parallel to connectionsRequests, entries may be null
+     * @return responses parallel to connectionsRequests, null where a tenant could not be resolved, or null if the whole batch failed
+     */
+    List<ConnectionDescriptorsResponse> requestConnections(List<ConnectionDescriptorsRequest> connectionsRequests, List<String> expectedReleaseGroups);
+}
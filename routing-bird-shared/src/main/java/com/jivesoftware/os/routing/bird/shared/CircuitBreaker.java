@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per instance circuit breaker.
+ * <ul>
+ * <li>closed: everything goes through. Connectivity failures and successes are counted over a rolling window and the breaker opens once
+ * the window has seen at least minimumFailures failures making up at least failureRatio of its outcomes.</li>
+ * <li>open: nothing goes through for openMillis.</li>
+ * <li>half_open: at most halfOpenProbes requests go through at a time. The first probe to succeed closes the breaker, a failed probe
+ * opens it again.</li>
+ * </ul>
+ * Every request admitted by {@link #allowRequest(long)} must be followed by exactly one of {@link #success(long, Permit)},
+ * {@link #failure(long, Permit)} or {@link #ignored(Permit)} with the permit it was given. Only outcomes of {@link Permit#probe}
+ * requests move a half open breaker or hand back probe permits, so requests admitted while the breaker was still closed can't close
+ * it when they complete late. The state and the half open probe count share one atomic, so the count is reset in the same step that
+ * publishes half_open and no probe taken under it can be erased.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        closed, open, half_open;
+    }
+
+    public enum Permit {
+        denied, request, probe;
+    }
+
+    private static final int BUCKETS = 10;
+    private static final int STATE_BITS = 2;
+    private static final int STATE_MASK = (1 << STATE_BITS) - 1;
+
+    private final int minimumFailures;
+    private final double failureRatio;
+    private final long bucketMillis;
+    private final long openMillis;
+    private final int halfOpenProbes;
+
+    private final AtomicLongArray bucketEpochs = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKETS * 2); // [successes, failures] per bucket
+    private final AtomicInteger stateAndProbes = new AtomicInteger(State.closed.ordinal()); // probes << STATE_BITS | state
+    private final AtomicLong openedTimestamp = new AtomicLong();
+
+    public CircuitBreaker(int minimumFailures, long openMillis) {
+        this(minimumFailures, 0.5d, 10_000L, openMillis, 1);
+    }
+
+    public CircuitBreaker(int minimumFailures, double failureRatio, long windowMillis, long openMillis, int halfOpenProbes) {
+        this.minimumFailures = Math.max(1, minimumFailures);
+        this.failureRatio = failureRatio;
+        this.bucketMillis = Math.max(1, windowMillis / BUCKETS);
+        this.openMillis = openMillis;
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketEpochs.set(i, -1);
+        }
+    }
+
+    /**
+     * Non mutating version of {@link #allowRequest(long)} for strategies that want to skip clients which would be turned away.
+     */
+    public boolean isAvailable(long now) {
+        State current = getState();
+        if (current == State.closed) {
+            return true;
+        } else if (current == State.open) {
+            return now - openedTimestamp.get() >= openMillis;
+        } else {
+            return (stateAndProbes.get() >>> STATE_BITS) < halfOpenProbes;
+        }
+    }
+
+    public Permit allowRequest(long now) {
+        while (true) {
+            int current = stateAndProbes.get();
+            State currentState = State.values()[current & STATE_MASK];
+            if (currentState == State.closed) {
+                return Permit.request;
+            }
+            if (currentState == State.open) {
+                if (now - openedTimestamp.get() < openMillis) {
+                    return Permit.denied;
+                }
+                stateAndProbes.compareAndSet(current, State.half_open.ordinal());
+                continue;
+            }
+            int inflight = current >>> STATE_BITS;
+            if (inflight >= halfOpenProbes) {
+                return Permit.denied;
+            }
+            if (stateAndProbes.compareAndSet(current, current + (1 << STATE_BITS))) {
+                return Permit.probe;
+            }
+        }
+    }
+
+    public void success(long now, Permit permit) {
+        record(now, 0);
+        if (permit == Permit.probe) {
+            if (transition(State.half_open, State.closed)) {
+                clear();
+            } else {
+                releaseProbe();
+            }
+        }
+    }
+
+    /**
+     * @return true if this failure opened the breaker
+     */
+    public boolean failure(long now, Permit permit) {
+        record(now, 1);
+        State current = getState();
+        boolean opened = false;
+        if (permit == Permit.probe) {
+            if (current == State.half_open) {
+                openedTimestamp.set(now);
+                opened = transition(State.half_open, State.open);
+            }
+            if (!opened) {
+                releaseProbe();
+            }
+        } else if (current == State.closed) {
+            long[] window = window(now);
+            long failures = window[1];
+            long total = window[0] + window[1];
+            if (failures >= minimumFailures && failures >= failureRatio * total) {
+                openedTimestamp.set(now);
+                opened = transition(State.closed, State.open);
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * For admitted requests which said nothing about the instance's health, e.g. interrupted or rejected locally.
+     */
+    public void ignored(Permit permit) {
+        if (permit == Permit.probe) {
+            releaseProbe();
+        }
+    }
+
+    /**
+     * Leaving half_open forgets its probes, and half_open is only ever entered with none.
+     */
+    private boolean transition(State from, State to) {
+        while (true) {
+            int current = stateAndProbes.get();
+            if ((current & STATE_MASK) != from.ordinal()) {
+                return false;
+            }
+            if (stateAndProbes.compareAndSet(current, to.ordinal())) {
+                return true;
+            }
+        }
+    }
+
+    private void releaseProbe() {
+        while (true) {
+            int current = stateAndProbes.get();
+            if ((current & STATE_MASK) != State.half_open.ordinal() || (current >>> STATE_BITS) == 0) {
+                return;
+            }
+            if (stateAndProbes.compareAndSet(current, current - (1 << STATE_BITS))) {
+                return;
+            }
+        }
+    }
+
+    public State getState() {
+        return State.values()[stateAndProbes.get() & STATE_MASK];
+    }
+
+    private void record(long now, int slot) {
+        long epoch = now / bucketMillis;
+        int bucket = (int) (epoch % BUCKETS);
+        long seen = bucketEpochs.get(bucket);
+        if (seen != epoch && bucketEpochs.compareAndSet(bucket, seen, epoch)) {
+            bucketCounts.set(bucket * 2, 0);
+            bucketCounts.set(bucket * 2 + 1, 0);
+        }
+        bucketCounts.incrementAndGet(bucket * 2 + slot);
+    }
+
+    private long[] window(long now) {
+        long epoch = now / bucketMillis;
+        long[] window = new long[2];
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketEpoch = bucketEpochs.get(i);
+            if (bucketEpoch > epoch - BUCKETS && bucketEpoch <= epoch) {
+                window[0] += bucketCounts.get(i * 2);
+                window[1] += bucketCounts.get(i * 2 + 1);
+            }
+        }
+        return window;
+    }
+
+    private void clear() {
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketEpochs.set(i, -1);
+        }
+    }
+
+    @Override
+    public String toString() {
+        long[] window = window(System.currentTimeMillis());
+        return "CircuitBreaker{"
+            + "state=" + getState()
+            + ", successes=" + window[0]
+            + ", failures=" + window[1]
+            + ", openedTimestamp=" + openedTimestamp
+            + ", probes=" + (stateAndProbes.get() >>> STATE_BITS)
+            + '}';
+    }
+}
@@ -17,5 +17,9 @@ package com.jivesoftware.os.routing.bird.shared;
 
 public interface ClientConnectionsFactory<C, E extends Throwable> {
 
-    TimestampedClients<C, E> createClients(String routingGroup, ConnectionDescriptors connections) throws Exception;
+    /**
+     * @param existing the clients currently in use for this routing group, or null. Implementations should reuse the client and
+     * health state of every descriptor which is unchanged; any existing client absent from the result gets closed by the caller.
+     */
+    TimestampedClients<C, E> createClients(String routingGroup, ConnectionDescriptors connections, TimestampedClients<C, E> existing) throws Exception;
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Vegas style adaptive concurrency limit for a single downstream instance. Each completed request compares its round trip time to the
+ * smallest one seen recently to estimate how many requests are queued downstream: a short queue grows the limit by one, a long queue
+ * shrinks it by one, and a dropped request (connectivity error or timeout) cuts it by 10%. The minimum is forgotten every
+ * probeEveryNSamples so the limit can follow an instance which has gotten permanently slower or faster.
+ *
+ * Callers take a permit with {@link #tryAcquire()} and must hand it back with {@link #release(long, boolean)}. Nothing blocks.
+ */
+public class ConcurrencyLimit {
+
+    private static final int DEFAULT_PROBE_EVERY_N_SAMPLES = 1_000;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int probeEveryNSamples;
+    private final AtomicLong limitBits;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicLong minRttNanos = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public ConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, DEFAULT_PROBE_EVERY_N_SAMPLES);
+    }
+
+    public ConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, int probeEveryNSamples) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.probeEveryNSamples = probeEveryNSamples;
+        this.limitBits = new AtomicLong(Double.doubleToLongBits(Math.max(minLimit, Math.min(maxLimit, initialLimit))));
+    }
+
+    public boolean tryAcquire() {
+        int limit = getLimit();
+        while (true) {
+            int current = inflight.get();
+            if (current >= limit) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (inflight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param rttNanos how long the request held its permit
+     * @param dropped true if the request failed in a way which suggests the instance is overloaded
+     */
+    public void release(long rttNanos, boolean dropped) {
+        int inflightAtCompletion = inflight.getAndDecrement();
+        if (dropped) {
+            adjust(limit -> limit * 0.9d);
+            return;
+        }
+
+        if (samples.incrementAndGet() % probeEveryNSamples == 0) {
+            minRttNanos.set(rttNanos);
+        }
+        long minRtt = minRttNanos.get();
+        while (rttNanos < minRtt && !minRttNanos.compareAndSet(minRtt, rttNanos)) {
+            minRtt = minRttNanos.get();
+        }
+        minRtt = Math.min(minRtt, rttNanos);
+        if (rttNanos <= 0) {
+            return;
+        }
+
+        double limit = limitValue();
+        double queue = limit * (1d - (double) minRtt / rttNanos);
+        double threshold = Math.max(1d, Math.log10(limit));
+        if (queue <= 3 * threshold) {
+            if (inflightAtCompletion * 2 >= limit) {
+                // only grow when we are actually using what we have
+                adjust(current -> current + 1d);
+            }
+        } else if (queue >= 6 * threshold) {
+            adjust(current -> current - 1d);
+        }
+    }
+
+    public int getLimit() {
+        return (int) limitValue();
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private double limitValue() {
+        return Double.longBitsToDouble(limitBits.get());
+    }
+
+    private void adjust(Adjustment adjustment) {
+        while (true) {
+            long bits = limitBits.get();
+            double next = Math.max(minLimit, Math.min(maxLimit, adjustment.adjust(Double.longBitsToDouble(bits))));
+            if (limitBits.compareAndSet(bits, Double.doubleToLongBits(next))) {
+                return;
+            }
+        }
+    }
+
+    private interface Adjustment {
+
+        double adjust(double limit);
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimit{"
+            + "limit=" + getLimit()
+            + ", inflight=" + inflight
+            + ", minRttNanos=" + minRttNanos
+            + ", rejected=" + rejected
+            + '}';
+    }
+}
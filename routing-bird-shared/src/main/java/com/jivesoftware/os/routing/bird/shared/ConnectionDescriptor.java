@@ -68,6 +68,15 @@ public class ConnectionDescriptor {
         return monkeys;
     }
 
+    long fingerprint() {
+        long hash = instanceDescriptor == null ? Fingerprints.of((String) null) : instanceDescriptor.fingerprint();
+        hash = Fingerprints.combine(hash, (sslEnabled ? 2 : 0) | (serviceAuthEnabled ? 1 : 0));
+        hash = Fingerprints.combine(hash, hostPort == null ? Fingerprints.of((String) null)
+            : Fingerprints.combine(Fingerprints.of(hostPort.getHost()), hostPort.getPort()));
+        hash = Fingerprints.combine(hash, Fingerprints.of(properties));
+        return Fingerprints.combine(hash, Fingerprints.of(monkeys));
+    }
+
     @Override
     public String toString() {
         return "ConnectionDescriptor{"
@@ -16,6 +16,7 @@
 package com.jivesoftware.os.routing.bird.shared;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import java.util.List;
 import java.util.Objects;
@@ -24,12 +25,46 @@ public class ConnectionDescriptors {
 
     private final long timestamp;
     private final List<ConnectionDescriptor> connectionDescriptors;
+    private final long fingerprint;
+    private final String releaseGroup;
 
     @JsonCreator
     public ConnectionDescriptors(@JsonProperty("timestamp") long timestamp,
             @JsonProperty("connectionDescriptors") List<ConnectionDescriptor> connectionDescriptors) {
+        this(timestamp, connectionDescriptors, fingerprint(connectionDescriptors));
+    }
+
+    /**
+     * @param fingerprint must be {@link #fingerprint(List)} of connectionDescriptors
+     */
+    public ConnectionDescriptors(long timestamp, List<ConnectionDescriptor> connectionDescriptors, long fingerprint) {
+        this(timestamp, connectionDescriptors, fingerprint, null);
+    }
+
+    /**
+     * @param releaseGroup the release group these descriptors were resolved for, so that callers never have to pair them with a
+     * separately read (and possibly newer) release group
+     */
+    public ConnectionDescriptors(long timestamp, List<ConnectionDescriptor> connectionDescriptors, long fingerprint, String releaseGroup) {
         this.timestamp = timestamp;
         this.connectionDescriptors = connectionDescriptors;
+        this.fingerprint = fingerprint;
+        this.releaseGroup = releaseGroup;
+    }
+
+    /**
+     * A 64 bit hash of the descriptors' instances, hosts, ports, properties and monkeys which ignores their order, so that comparing
+     * fingerprints stands in for comparing descriptor lists.
+     */
+    public static long fingerprint(List<ConnectionDescriptor> connectionDescriptors) {
+        if (connectionDescriptors == null) {
+            return 0;
+        }
+        long sum = connectionDescriptors.size();
+        for (ConnectionDescriptor connectionDescriptor : connectionDescriptors) {
+            sum += Fingerprints.mix(connectionDescriptor.fingerprint());
+        }
+        return Fingerprints.mix(sum);
     }
 
     public long getTimestamp() {
@@ -40,6 +75,19 @@ public class ConnectionDescriptors {
         return connectionDescriptors;
     }
 
+    @JsonIgnore
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return null unless these descriptors came from a {@link TenantsServiceConnectionDescriptorProvider}
+     */
+    @JsonIgnore
+    public String getReleaseGroup() {
+        return releaseGroup;
+    }
+
     @Override
     public String toString() {
         return "ConnectionDescriptors{" + "timestamp=" + timestamp + ", connectionDescriptors=" + connectionDescriptors + '}';
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content-Encodings which routing-bird clients and servers can both produce and consume.
+ */
+public enum ContentCodec {
+
+    gzip {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+    },
+    deflate {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new DeflaterOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new InflaterInputStream(in);
+        }
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Closing the returned stream finishes the encoding and closes out.
+     */
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    public String getEncoding() {
+        return name();
+    }
+
+    /**
+     * @return the codec for a Content-Encoding header value, or null if it is absent, identity or not one we speak
+     */
+    public static ContentCodec forEncoding(String contentEncoding) {
+        if (contentEncoding == null) {
+            return null;
+        }
+        String encoding = contentEncoding.trim();
+        for (ContentCodec codec : values()) {
+            if (codec.name().equalsIgnoreCase(encoding)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+}
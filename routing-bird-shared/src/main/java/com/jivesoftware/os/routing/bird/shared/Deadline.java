@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which a request, including every retry and hedge made on its behalf, has to be done.
+ * <p>
+ * Deadlines travel between services as the {@link #HEADER} header holding the remaining millis, which keeps clock skew out of it. The
+ * deadline for the work the current thread is doing, if any, is available from {@link #current()}: the server sets it from the
+ * incoming header and outbound calls made while it is set inherit it.
+ */
+public class Deadline {
+
+    public static final String HEADER = "X-Routing-Bird-Deadline-Millis";
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long timestampMillis;
+
+    private Deadline(long timestampMillis) {
+        this.timestampMillis = timestampMillis;
+    }
+
+    public static Deadline in(long duration, TimeUnit unit) {
+        return new Deadline(System.currentTimeMillis() + unit.toMillis(duration));
+    }
+
+    public static Deadline at(long timestampMillis) {
+        return new Deadline(timestampMillis);
+    }
+
+    /**
+     * @return the deadline of the work the current thread is doing, or null if there isn't one
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes deadline the current thread's deadline and returns the one it replaced, which the caller must restore when done.
+     */
+    public static Deadline set(Deadline deadline) {
+        Deadline previous = CURRENT.get();
+        if (deadline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(deadline);
+        }
+        return previous;
+    }
+
+    /**
+     * @return whichever of a or b comes first, either may be null
+     */
+    public static Deadline earliest(Deadline a, Deadline b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return a.timestampMillis <= b.timestampMillis ? a : b;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public long remainingMillis() {
+        return timestampMillis - System.currentTimeMillis();
+    }
+
+    public boolean isExpired() {
+        return remainingMillis() <= 0;
+    }
+
+    /**
+     * @param configuredMillis a client's own timeout, zero or less meaning it has none
+     * @return configuredMillis if the deadline leaves at least that long, otherwise what is left of it but never less than 1 so the
+     * result can't be mistaken for no timeout
+     */
+    public int capTimeoutMillis(long configuredMillis) {
+        long remaining = Math.max(1, Math.min(Integer.MAX_VALUE, remainingMillis()));
+        return (int) (configuredMillis > 0 ? Math.min(configuredMillis, remaining) : remaining);
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{"
+            + "timestampMillis=" + timestampMillis
+            + ", remainingMillis=" + remainingMillis()
+            + '}';
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import com.jivesoftware.os.routing.bird.shared.ClientCall.ClientResponse;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Async counterpart to {@link DeadlineClientCall}. The deadline is the thread's {@link Deadline#current()} while the delegate issues
+ * its request, which is all the http client needs to bound its timeouts and forward it, and {@link ReturnFirstNonFailure} stops
+ * failing over once it has passed.
+ */
+public class DeadlineAsyncClientCall<C, R> implements AsyncClientCall<C, R> {
+
+    private final Deadline deadline;
+    private final AsyncClientCall<C, R> delegate;
+
+    public DeadlineAsyncClientCall(Deadline deadline, AsyncClientCall<C, R> delegate) {
+        this.deadline = deadline;
+        this.delegate = delegate;
+    }
+
+    /**
+     * Binds the earliest of the call's own deadline and the current thread's deadline to the call. Calls with neither are returned as is.
+     */
+    public static <C, R> AsyncClientCall<C, R> bind(AsyncClientCall<C, R> call) {
+        Deadline current = Deadline.current();
+        if (call instanceof DeadlineAsyncClientCall) {
+            DeadlineAsyncClientCall<C, R> deadlineCall = (DeadlineAsyncClientCall<C, R>) call;
+            Deadline earliest = Deadline.earliest(deadlineCall.deadline, current);
+            return earliest == deadlineCall.deadline ? call : new DeadlineAsyncClientCall<>(earliest, deadlineCall.delegate);
+        }
+        return current == null ? call : new DeadlineAsyncClientCall<>(current, call);
+    }
+
+    /**
+     * @return the deadline bound to call, or null if it has none
+     */
+    public static Deadline deadline(AsyncClientCall<?, ?> call) {
+        return call instanceof DeadlineAsyncClientCall ? ((DeadlineAsyncClientCall<?, ?>) call).deadline : null;
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public CompletableFuture<ClientResponse<R>> call(C client) {
+        Deadline previous = Deadline.set(deadline);
+        try {
+            return delegate.call(client);
+        } finally {
+            Deadline.set(previous);
+        }
+    }
+}
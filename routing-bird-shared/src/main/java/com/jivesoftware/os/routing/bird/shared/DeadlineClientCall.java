@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+/**
+ * Carries a {@link Deadline} along with a {@link ClientCall}. Strategies stop retrying and hedging once it has passed, and while the
+ * delegate runs the deadline is the thread's {@link Deadline#current()} so the http client can bound its timeouts and forward it.
+ */
+public class DeadlineClientCall<C, R> implements ClientCall<C, R, HttpClientException> {
+
+    private final Deadline deadline;
+    private final ClientCall<C, R, HttpClientException> delegate;
+
+    public DeadlineClientCall(Deadline deadline, ClientCall<C, R, HttpClientException> delegate) {
+        this.deadline = deadline;
+        this.delegate = delegate;
+    }
+
+    /**
+     * Binds the earliest of the call's own deadline and the current thread's deadline to the call. Calls with neither are returned as is.
+     */
+    public static <C, R> ClientCall<C, R, HttpClientException> bind(ClientCall<C, R, HttpClientException> call) {
+        Deadline current = Deadline.current();
+        if (call instanceof DeadlineClientCall) {
+            DeadlineClientCall<C, R> deadlineCall = (DeadlineClientCall<C, R>) call;
+            Deadline earliest = Deadline.earliest(deadlineCall.deadline, current);
+            return earliest == deadlineCall.deadline ? call : new DeadlineClientCall<>(earliest, deadlineCall.delegate);
+        }
+        return current == null ? call : new DeadlineClientCall<>(current, call);
+    }
+
+    /**
+     * @return the deadline bound to call, or null if it has none
+     */
+    public static Deadline deadline(ClientCall<?, ?, ?> call) {
+        return call instanceof DeadlineClientCall ? ((DeadlineClientCall<?, ?>) call).deadline : null;
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public ClientResponse<R> call(C client) throws HttpClientException {
+        Deadline previous = Deadline.set(deadline);
+        try {
+            return delegate.call(client);
+        } finally {
+            Deadline.set(previous);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import java.util.Map;
+
+/**
+ * 64 bit content hashes for routing descriptors. Maps and descriptor lists are hashed without regard to order.
+ */
+final class Fingerprints {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long NULL = 0x9e3779b97f4a7c15L;
+
+    private Fingerprints() {
+    }
+
+    static long of(String value) {
+        if (value == null) {
+            return NULL;
+        }
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    static long of(Map<String, String> map) {
+        if (map == null) {
+            return NULL;
+        }
+        long sum = map.size();
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            sum += mix(combine(of(entry.getKey()), of(entry.getValue())));
+        }
+        return mix(sum);
+    }
+
+    static long combine(long hash, long value) {
+        return mix(hash * FNV_PRIME + value);
+    }
+
+    /**
+     * MurmurHash3's 64 bit finalizer.
+     */
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -9,11 +9,43 @@ public class HttpClientPoolStats {
     public final int pending;
     public final int available;
     public final int max;
+    public final int concurrencyLimit; // -1 when the client isn't limited
+    public final int concurrencyInflight;
+    public final long concurrencyRejected;
+    public final long coalesceCalls; // -1 when the client doesn't coalesce
+    public final long coalesced;
 
     public HttpClientPoolStats(int leased, int pending, int available, int max) {
+        this(leased, pending, available, max, -1, 0, 0);
+    }
+
+    public HttpClientPoolStats(int leased,
+        int pending,
+        int available,
+        int max,
+        int concurrencyLimit,
+        int concurrencyInflight,
+        long concurrencyRejected) {
+        this(leased, pending, available, max, concurrencyLimit, concurrencyInflight, concurrencyRejected, -1, 0);
+    }
+
+    public HttpClientPoolStats(int leased,
+        int pending,
+        int available,
+        int max,
+        int concurrencyLimit,
+        int concurrencyInflight,
+        long concurrencyRejected,
+        long coalesceCalls,
+        long coalesced) {
         this.leased = leased;
         this.pending = pending;
         this.available = available;
         this.max = max;
+        this.concurrencyLimit = concurrencyLimit;
+        this.concurrencyInflight = concurrencyInflight;
+        this.concurrencyRejected = concurrencyRejected;
+        this.coalesceCalls = coalesceCalls;
+        this.coalesced = coalesced;
     }
 }
@@ -25,7 +25,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-public class InMemoryConnectionsDescriptorsProvider implements ConnectionDescriptorsProvider {
+public class InMemoryConnectionsDescriptorsProvider implements BatchConnectionDescriptorsProvider {
 
     private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
 
@@ -87,4 +87,14 @@ public class InMemoryConnectionsDescriptorsProvider implements ConnectionDescrip
             releaseGroup, connectionDescriptors, null);
         return response;
     }
+
+    @Override
+    public List<ConnectionDescriptorsResponse> requestConnections(List<ConnectionDescriptorsRequest> connectionsRequests,
+        List<String> expectedReleaseGroups) {
+        List<ConnectionDescriptorsResponse> responses = new ArrayList<>(connectionsRequests.size());
+        for (int i = 0; i < connectionsRequests.size(); i++) {
+            responses.add(requestConnections(connectionsRequests.get(i), expectedReleaseGroups.get(i)));
+        }
+        return responses;
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Keeps the last retainChanges changes in memory. Subscribers which fall further behind than that are told to resync.
+ */
+public class InMemoryRoutingChangesSource implements RoutingChangesSource {
+
+    private final int retainChanges;
+    private final Deque<Change> changes = new ArrayDeque<>();
+    private long cursor;
+
+    public InMemoryRoutingChangesSource(int retainChanges) {
+        this.retainChanges = Math.max(1, retainChanges);
+    }
+
+    public void evicted(TenancyEviction eviction) {
+        publish(new Change(eviction, null, null));
+    }
+
+    public void tenantChanged(TenantChanged tenantChanged) {
+        publish(new Change(null, tenantChanged, null));
+    }
+
+    public void instanceChanged(InstanceChanged instanceChanged) {
+        publish(new Change(null, null, instanceChanged));
+    }
+
+    private synchronized void publish(Change change) {
+        cursor++;
+        change.cursor = cursor;
+        changes.addLast(change);
+        while (changes.size() > retainChanges) {
+            changes.removeFirst();
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized RoutingChanges awaitChanges(String instanceId, long sinceCursor, long awaitMillis) throws InterruptedException {
+        if (sinceCursor < 0) {
+            return new RoutingChanges(cursor, false, null, null, null);
+        }
+        long giveUpAt = System.currentTimeMillis() + awaitMillis;
+        long remaining = awaitMillis;
+        while (cursor <= sinceCursor && remaining > 0) {
+            wait(remaining);
+            remaining = giveUpAt - System.currentTimeMillis();
+        }
+        if (cursor <= sinceCursor) {
+            return new RoutingChanges(cursor, false, null, null, null);
+        }
+        if (changes.peekFirst().cursor > sinceCursor + 1) {
+            return new RoutingChanges(cursor, true, null, null, null);
+        }
+
+        List<TenancyEviction> evictions = new ArrayList<>();
+        List<TenantChanged> tenantsChanged = new ArrayList<>();
+        List<InstanceChanged> instancesChanged = new ArrayList<>();
+        for (Change change : changes) {
+            if (change.cursor > sinceCursor) {
+                if (change.eviction != null) {
+                    evictions.add(change.eviction);
+                } else if (change.tenantChanged != null) {
+                    tenantsChanged.add(change.tenantChanged);
+                } else {
+                    instancesChanged.add(change.instanceChanged);
+                }
+            }
+        }
+        return new RoutingChanges(cursor, false,
+            evictions.isEmpty() ? Collections.emptyList() : evictions,
+            tenantsChanged.isEmpty() ? Collections.emptyList() : tenantsChanged,
+            instancesChanged.isEmpty() ? Collections.emptyList() : instancesChanged);
+    }
+
+    private static class Change {
+
+        private final TenancyEviction eviction;
+        private final TenantChanged tenantChanged;
+        private final InstanceChanged instanceChanged;
+        private long cursor;
+
+        private Change(TenancyEviction eviction, TenantChanged tenantChanged, InstanceChanged instanceChanged) {
+            this.eviction = eviction;
+            this.tenantChanged = tenantChanged;
+            this.instanceChanged = instanceChanged;
+        }
+    }
+}
@@ -152,6 +152,35 @@ public class InstanceDescriptor {
             + '}';
     }
 
+    /**
+     * Covers the same fields as equals.
+     */
+    long fingerprint() {
+        long hash = Fingerprints.of(datacenter);
+        hash = Fingerprints.combine(hash, Fingerprints.of(rack));
+        hash = Fingerprints.combine(hash, Fingerprints.of(publicHost));
+        hash = Fingerprints.combine(hash, Fingerprints.of(clusterKey));
+        hash = Fingerprints.combine(hash, Fingerprints.of(clusterName));
+        hash = Fingerprints.combine(hash, Fingerprints.of(serviceKey));
+        hash = Fingerprints.combine(hash, Fingerprints.of(serviceName));
+        hash = Fingerprints.combine(hash, Fingerprints.of(releaseGroupKey));
+        hash = Fingerprints.combine(hash, Fingerprints.of(releaseGroupName));
+        hash = Fingerprints.combine(hash, Fingerprints.of(instanceKey));
+        hash = Fingerprints.combine(hash, instanceName);
+        hash = Fingerprints.combine(hash, Fingerprints.of(versionName));
+        hash = Fingerprints.combine(hash, Fingerprints.of(repository));
+        hash = Fingerprints.combine(hash, Fingerprints.of(publicKey));
+        hash = Fingerprints.combine(hash, enabled ? 1 : 0);
+        long portsHash = ports.size();
+        for (Map.Entry<String, InstanceDescriptorPort> entry : ports.entrySet()) {
+            InstanceDescriptorPort port = entry.getValue();
+            long portHash = Fingerprints.combine(Fingerprints.of(entry.getKey()), port.port);
+            portHash = Fingerprints.combine(portHash, (port.sslEnabled ? 2 : 0) | (port.serviceAuthEnabled ? 1 : 0));
+            portsHash += Fingerprints.mix(portHash);
+        }
+        return Fingerprints.combine(hash, Fingerprints.mix(portsHash));
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.deser.DefaultDeserializationContext;
+import com.fasterxml.jackson.databind.ser.DefaultSerializerProvider;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Smile is Jackson's binary encoding of the JSON data model. Clients which can read it ask for it ahead of JSON, servers answer in it
+ * when asked, and everything else (browsers, curl, manage endpoints) keeps getting JSON.
+ */
+public class JacksonSmile {
+
+    public static final String CONTENT_TYPE = "application/x-jackson-smile";
+    public static final String ACCEPT = CONTENT_TYPE + ", application/json;q=0.9";
+
+    private JacksonSmile() {
+    }
+
+    public static boolean isSmile(String contentType) {
+        return contentType != null && contentType.regionMatches(true, 0, CONTENT_TYPE, 0, CONTENT_TYPE.length());
+    }
+
+    /**
+     * @return a Smile mapper with the JSON mapper's configuration, registered modules and cached (de)serializers
+     */
+    public static ObjectMapper mirror(ObjectMapper jsonMapper) {
+        ObjectMapper smileMapper = new ObjectMapper(new SmileFactory(),
+            (DefaultSerializerProvider) jsonMapper.getSerializerProvider(),
+            (DefaultDeserializationContext) jsonMapper.getDeserializationContext());
+        smileMapper.setSerializerFactory(jsonMapper.getSerializerFactory());
+        smileMapper.setConfig(jsonMapper.getSerializationConfig());
+        smileMapper.setConfig(jsonMapper.getDeserializationConfig());
+        return smileMapper;
+    }
+}
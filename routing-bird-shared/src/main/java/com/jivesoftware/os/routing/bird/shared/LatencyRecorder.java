@@ -0,0 +1,253 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Concurrent, fixed memory latency histogram. Values land in log-linear buckets (8 per power of two, so roughly 12% precision) spread
+ * over per-thread stripes, so writers never take a lock or sort anything. Two windows are kept and rotated once the active one has seen
+ * windowSize values, which means percentiles reflect between windowSize and twice windowSize of the most recent values.
+ *
+ * Reads are served from a merged snapshot which is rebuilt by at most one reader at a time and no more often than refreshMillis, so a
+ * percentile lookup is a binary search over a few hundred cumulative counts.
+ */
+public class LatencyRecorder {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private static final int MAX = BUCKETS + 2;
+    private static final int SLOTS = BUCKETS + 3;
+    private static final int MAX_STRIPES = 4;
+    private static final long DEFAULT_REFRESH_MILLIS = 10;
+
+    private final int windowSize;
+    private final long refreshMillis;
+    private final int stripeMask;
+    private final AtomicReference<Window[]> windows; // [active, previous]
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final AtomicBoolean rotating = new AtomicBoolean();
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    public LatencyRecorder(int windowSize) {
+        this(windowSize, DEFAULT_REFRESH_MILLIS);
+    }
+
+    public LatencyRecorder(int windowSize, long refreshMillis) {
+        this.windowSize = windowSize;
+        this.refreshMillis = refreshMillis;
+        int stripes = Math.min(MAX_STRIPES, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+        this.stripeMask = stripes - 1;
+        this.windows = new AtomicReference<>(new Window[] { new Window(stripes), new Window(stripes) });
+    }
+
+    public void record(long value) {
+        long v = Math.max(0, value);
+        Window active = windows.get()[0];
+        AtomicLongArray stripe = active.stripes[(int) Thread.currentThread().getId() & stripeMask];
+        stripe.incrementAndGet(bucket(v));
+        stripe.addAndGet(SUM, v);
+        stripe.accumulateAndGet(MAX, v, Math::max);
+        stripe.incrementAndGet(COUNT);
+        active.recorded++; // racy by design, only used as a cheap hint for when to rotate
+        if (active.recorded >= windowSize && active.count() >= windowSize) {
+            rotate(active);
+        }
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return NaN when nothing has been recorded
+     */
+    public double getPercentile(double percentile) {
+        return snapshot().percentile(percentile);
+    }
+
+    public double getMean() {
+        return snapshot().mean();
+    }
+
+    public long getMax() {
+        return snapshot().max;
+    }
+
+    public long getCount() {
+        return snapshot().count;
+    }
+
+    public void clear() {
+        for (Window window : windows.get()) {
+            window.clear();
+        }
+        snapshot = Snapshot.EMPTY;
+    }
+
+    /**
+     * Only one thread rotates at a time, and the recycled window is cleared before it is made active, so values recorded into a freshly
+     * activated window are never wiped by a late rotation.
+     */
+    private void rotate(Window active) {
+        if (rotating.compareAndSet(false, true)) {
+            try {
+                Window[] current = windows.get();
+                if (current[0] == active) {
+                    Window recycled = current[1];
+                    recycled.clear();
+                    windows.set(new Window[] { recycled, active });
+                }
+            } finally {
+                rotating.set(false);
+            }
+        }
+    }
+
+    private Snapshot snapshot() {
+        Snapshot s = snapshot;
+        long now = System.currentTimeMillis();
+        if ((s.count == 0 || now - s.timestamp >= refreshMillis) && refreshing.compareAndSet(false, true)) {
+            try {
+                s = new Snapshot(now, windows.get());
+                snapshot = s;
+            } finally {
+                refreshing.set(false);
+            }
+        }
+        return s;
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((magnitude - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+    }
+
+    static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        int sub = bucket & (SUB_BUCKETS - 1);
+        return ((long) (SUB_BUCKETS + sub)) << (magnitude - SUB_BUCKET_BITS);
+    }
+
+    static long highestValue(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowestValue(bucket + 1) - 1;
+    }
+
+    private static class Window {
+
+        private final AtomicLongArray[] stripes;
+        private volatile long recorded;
+
+        private Window(int stripes) {
+            this.stripes = new AtomicLongArray[stripes];
+            for (int i = 0; i < stripes; i++) {
+                this.stripes[i] = new AtomicLongArray(SLOTS);
+            }
+        }
+
+        private long count() {
+            long count = 0;
+            for (AtomicLongArray stripe : stripes) {
+                count += stripe.get(COUNT);
+            }
+            return count;
+        }
+
+        private void clear() {
+            for (AtomicLongArray stripe : stripes) {
+                for (int i = 0; i < SLOTS; i++) {
+                    stripe.set(i, 0);
+                }
+            }
+            recorded = 0;
+        }
+    }
+
+    private static class Snapshot {
+
+        private static final Snapshot EMPTY = new Snapshot();
+
+        private final long timestamp;
+        private final long[] cumulative;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot() {
+            this.timestamp = 0;
+            this.cumulative = new long[BUCKETS];
+            this.count = 0;
+            this.sum = 0;
+            this.max = 0;
+        }
+
+        private Snapshot(long timestamp, Window[] windows) {
+            long[] counts = new long[BUCKETS];
+            long sum = 0;
+            long max = 0;
+            for (Window window : windows) {
+                for (AtomicLongArray stripe : window.stripes) {
+                    for (int i = 0; i < BUCKETS; i++) {
+                        counts[i] += stripe.get(i);
+                    }
+                    sum += stripe.get(SUM);
+                    max = Math.max(max, stripe.get(MAX));
+                }
+            }
+            for (int i = 1; i < BUCKETS; i++) {
+                counts[i] += counts[i - 1];
+            }
+            this.timestamp = timestamp;
+            this.cumulative = counts;
+            this.count = counts[BUCKETS - 1];
+            this.sum = sum;
+            this.max = max;
+        }
+
+        private double percentile(double percentile) {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * Math.min(100d, Math.max(0d, percentile)) / 100d));
+            int lo = 0;
+            int hi = BUCKETS - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cumulative[mid] >= rank) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            long lowest = lowestValue(lo);
+            long highest = Math.min(highestValue(lo), max);
+            return lowest + (Math.max(lowest, highest) - lowest) / 2d;
+        }
+
+        private double mean() {
+            return count == 0 ? Double.NaN : (double) sum / count;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+/**
+ * An {@link IndexedClientStrategy} which keeps per client load. The async path of {@link ReturnFirstNonFailure} tells it when each
+ * attempt is handed to a client and, exactly once, when that attempt finishes, so in flight counts and latencies cover async calls too.
+ */
+public interface LoadTrackingClientStrategy extends IndexedClientStrategy {
+
+    void startedClientAtIndex(ConnectionDescriptor[] connectionDescriptors, int index);
+
+    void finishedClientAtIndex(ConnectionDescriptor[] connectionDescriptors, int index, long latencyMillis, boolean succeeded);
+}
@@ -5,8 +5,6 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.LongAdder;
-import org.apache.commons.math.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math.stat.descriptive.SynchronizedDescriptiveStatistics;
 
 /**
  * Created by jonathan.colt on 4/13/17.
@@ -15,7 +13,7 @@ public class MonitoredExecutorService extends ThreadPoolExecutor {
 
     public final LongAdder processed = new LongAdder();
     public final LongAdder submitted = new LongAdder();
-    public final DescriptiveStatistics queueLag;
+    public final LatencyRecorder queueLag;
 
 
     public MonitoredExecutorService(int windowSize,
@@ -26,7 +24,7 @@ public class MonitoredExecutorService extends ThreadPoolExecutor {
         BlockingQueue<Runnable> workQueue,
         ThreadFactory threadFactory) {
         super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory);
-        queueLag = new SynchronizedDescriptiveStatistics(windowSize);
+        queueLag = new LatencyRecorder(windowSize);
     }
 
     public void reset() {
@@ -40,7 +38,7 @@ public class MonitoredExecutorService extends ThreadPoolExecutor {
         submitted.increment();
         long startTime = System.currentTimeMillis();
         super.execute(() -> {
-                queueLag.addValue(System.currentTimeMillis() - startTime);
+                queueLag.record(System.currentTimeMillis() - startTime);
                 try {
                     runnable.run();
                 } finally {
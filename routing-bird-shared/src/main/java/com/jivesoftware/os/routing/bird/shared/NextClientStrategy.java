@@ -1,8 +1,6 @@
 package com.jivesoftware.os.routing.bird.shared;
 
 import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure.Favored;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
@@ -15,10 +13,7 @@ public interface NextClientStrategy {
         long connectionDescriptorsVersion,
         C[] clients,
         ClientHealth[] clientHealths,
-        int deadAfterNErrors,
-        long checkDeadEveryNMillis,
-        AtomicInteger[] clientsErrors,
-        AtomicLong[] clientsDeathTimestamp,
+        CircuitBreaker[] clientBreakers,
         Favored favored
     ) throws HttpClientException;
 
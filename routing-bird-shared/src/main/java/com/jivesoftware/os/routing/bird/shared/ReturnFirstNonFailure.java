@@ -7,8 +7,8 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.nio.channels.ClosedByInterruptException;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Created by jonathan.colt on 3/9/17.
@@ -28,10 +28,7 @@ public class ReturnFirstNonFailure {
         long connectionDescriptorsVersion,
         C[] clients,
         ClientHealth[] clientHealths,
-        int deadAfterNErrors,
-        long checkDeadEveryNMillis,
-        AtomicInteger[] clientsErrors,
-        AtomicLong[] clientsDeathTimestamp,
+        CircuitBreaker[] clientBreakers,
         Favored favored
     ) throws HttpClientException {
 
@@ -42,9 +39,7 @@ public class ReturnFirstNonFailure {
             if (clientIndex < 0) {
                 continue;
             }
-            ClientResponse<R> clientResponse = indexedCall(strategy, family, now, httpCall, clientIndex, clients, clientHealths, deadAfterNErrors,
-                checkDeadEveryNMillis, clientsErrors,
-                clientsDeathTimestamp);
+            ClientResponse<R> clientResponse = indexedCall(strategy, family, now, httpCall, clientIndex, clients, clientHealths, clientBreakers);
             if (clientResponse != null) {
                 if (favored != null) {
                     favored.favored(attempt, attempt, connectionDescriptors[clientIndex], System.currentTimeMillis() - now);
@@ -57,17 +52,135 @@ public class ReturnFirstNonFailure {
         StringBuilder sb = new StringBuilder();
         sb.append(strategy.getClass().getSimpleName()).append(" ").append(strategy);
         for (int i = 0; i < connectionDescriptors.length; i++) {
-            long deathTimestamp = clientsDeathTimestamp[i].get();
             sb.append(", client[").append(i).append("]={").append(connectionDescriptors[i].getHostPort())
-                .append(", isDead:").append((deathTimestamp != 0 && now < deathTimestamp))
-                .append(", errors:").append(clientsErrors[i])
-                .append(", deathTimestamp:").append(deathTimestamp)
+                .append(", breaker:").append(clientBreakers[i])
                 .append('}');
         }
 
         throw new HttpClientException("No clients are available. possible:" + sb + " filteredIndexes:" + Arrays.toString(clientIndexes));
     }
 
+    public <C, R> CompletableFuture<R> callAsync(IndexedClientStrategy strategy,
+        String family,
+        AsyncClientCall<C, R> httpCall,
+        ConnectionDescriptor[] connectionDescriptors,
+        long connectionDescriptorsVersion,
+        C[] clients,
+        ClientHealth[] clientHealths,
+        CircuitBreaker[] clientBreakers) {
+
+        CompletableFuture<R> result = new CompletableFuture<>();
+        int[] clientIndexes = strategy.getClients(connectionDescriptors);
+        nextAsyncCall(strategy, family, System.currentTimeMillis(), httpCall, clientIndexes, 0, connectionDescriptors, clients, clientHealths,
+            clientBreakers, result);
+        return result;
+    }
+
+    private <C, R> void nextAsyncCall(IndexedClientStrategy strategy,
+        String family,
+        long now,
+        AsyncClientCall<C, R> httpCall,
+        int[] clientIndexes,
+        int offset,
+        ConnectionDescriptor[] connectionDescriptors,
+        C[] clients,
+        ClientHealth[] clientHealths,
+        CircuitBreaker[] clientBreakers,
+        CompletableFuture<R> result) {
+
+        Deadline deadline = DeadlineAsyncClientCall.deadline(httpCall);
+        for (int i = offset; i < clientIndexes.length; i++) {
+            int clientIndex = clientIndexes[i];
+            if (clientIndex < 0) {
+                continue;
+            }
+            if (deadline != null && deadline.isExpired()) {
+                result.completeExceptionally(new DeadlineExceededException("Deadline passed before trying client:" + clients[clientIndex]
+                    + " family:" + family));
+                return;
+            }
+            CircuitBreaker breaker = clientBreakers[clientIndex];
+            CircuitBreaker.Permit permit = breaker.allowRequest(System.currentTimeMillis());
+            if (permit == CircuitBreaker.Permit.denied) {
+                clientHealths[clientIndex].stillDead();
+                continue;
+            }
+
+            int nextOffset = i + 1;
+            LOG.debug("Next async index:{} possibleClients:{}", clientIndex, clients.length);
+            clientHealths[clientIndex].attempt(family);
+            LoadTrackingClientStrategy loadTracking = strategy instanceof LoadTrackingClientStrategy ? (LoadTrackingClientStrategy) strategy : null;
+            if (loadTracking != null) {
+                loadTracking.startedClientAtIndex(connectionDescriptors, clientIndex);
+            }
+            long start = System.currentTimeMillis();
+            CompletableFuture<ClientResponse<R>> future;
+            try {
+                future = httpCall.call(clients[clientIndex]);
+            } catch (Exception x) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(x);
+            }
+            future.whenComplete((clientResponse, throwable) -> {
+                try {
+                    if (loadTracking != null) {
+                        loadTracking.finishedClientAtIndex(connectionDescriptors, clientIndex, System.currentTimeMillis() - start, throwable == null);
+                    }
+                    if (strategy != null) {
+                        strategy.usedClientAtIndex(clientIndex);
+                    }
+                    if (throwable == null) {
+                        clientHealths[clientIndex].success(family, System.currentTimeMillis() - start);
+                        breaker.success(System.currentTimeMillis(), permit);
+                        if (clientResponse.responseComplete) {
+                            result.complete(clientResponse.response);
+                        } else {
+                            nextAsyncCall(strategy, family, now, httpCall, clientIndexes, nextOffset, connectionDescriptors, clients, clientHealths,
+                                clientBreakers, result);
+                        }
+                        return;
+                    }
+
+                    Throwable cause = (throwable instanceof CompletionException && throwable.getCause() != null) ? throwable.getCause() : throwable;
+                    if (cause instanceof HttpClientException && deadline != null && deadline.isExpired()) {
+                        // most likely the timeout we derived from the deadline, which says nothing about the instance
+                        breaker.ignored(permit);
+                        result.completeExceptionally(new DeadlineExceededException("Deadline passed while calling client:" + clients[clientIndex]
+                            + " family:" + family, cause));
+                    } else if (cause instanceof HttpClientException && cause.getCause() instanceof IOException) {
+                        if (breaker.failure(System.currentTimeMillis(), permit)) {
+                            LOG.warn("Client:{} tripped its circuit breaker:{}", new Object[] { clients[clientIndex], breaker }, cause);
+                            clientHealths[clientIndex].markedDead();
+                        }
+                        clientHealths[clientIndex].connectivityError(family);
+                        nextAsyncCall(strategy, family, now, httpCall, clientIndexes, nextOffset, connectionDescriptors, clients, clientHealths,
+                            clientBreakers, result);
+                    } else {
+                        breaker.ignored(permit);
+                        clientHealths[clientIndex].fatalError(family,
+                            cause instanceof Exception ? (Exception) cause : new HttpClientException("Async call failed", cause));
+                        result.completeExceptionally(cause);
+                    }
+                } catch (Throwable t) {
+                    // a throwing strategy or health callback must not leave the caller waiting forever
+                    LOG.error("Failed to handle async response from client:{}", new Object[] { clients[clientIndex] }, t);
+                    result.completeExceptionally(t);
+                }
+            });
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(strategy.getClass().getSimpleName()).append(" ").append(strategy);
+        for (int i = 0; i < connectionDescriptors.length; i++) {
+            sb.append(", client[").append(i).append("]={").append(connectionDescriptors[i].getHostPort())
+                .append(", breaker:").append(clientBreakers[i])
+                .append('}');
+        }
+        result.completeExceptionally(new HttpClientException("No clients are available. possible:" + sb
+            + " filteredIndexes:" + Arrays.toString(clientIndexes)));
+    }
+
     public <C, R> ClientResponse<R> indexedCall(IndexedClientStrategy strategy,
         String family,
         long now,
@@ -75,25 +188,35 @@ public class ReturnFirstNonFailure {
         int clientIndex,
         C[] clients,
         ClientHealth[] clientHealths,
-        int deadAfterNErrors,
-        long checkDeadEveryNMillis,
-        AtomicInteger[] clientsErrors,
-        AtomicLong[] clientsDeathTimestamp) throws HttpClientException {
+        CircuitBreaker[] clientBreakers) throws HttpClientException {
+
+        Deadline deadline = DeadlineClientCall.deadline(httpCall);
+        if (deadline != null && deadline.isExpired()) {
+            throw new DeadlineExceededException("Deadline passed before trying client:" + clients[clientIndex] + " family:" + family);
+        }
 
-        long deathTimestamp = clientsDeathTimestamp[clientIndex].get();
-        if (deathTimestamp == 0 || now - deathTimestamp > checkDeadEveryNMillis) {
+        CircuitBreaker breaker = clientBreakers[clientIndex];
+        CircuitBreaker.Permit permit = breaker.allowRequest(System.currentTimeMillis());
+        if (permit != CircuitBreaker.Permit.denied) {
+            boolean recorded = false;
             try {
                 LOG.debug("Next index:{} possibleClients:{}", clientIndex, clients.length);
                 clientHealths[clientIndex].attempt(family);
                 long start = System.currentTimeMillis();
                 ClientResponse<R> clientResponse = httpCall.call(clients[clientIndex]);
                 clientHealths[clientIndex].success(family, System.currentTimeMillis() - start);
-                clientsDeathTimestamp[clientIndex].set(0);
-                clientsErrors[clientIndex].set(0);
+                breaker.success(System.currentTimeMillis(), permit);
+                recorded = true;
                 if (clientResponse.responseComplete) {
                     return clientResponse;
                 }
+            } catch (ConcurrencyLimitExceededException e) {
+                LOG.debug("Client:{} is at its concurrency limit for strategy:{} family:{}", new Object[] { clients[clientIndex], strategy, family });
             } catch (HttpClientException e) {
+                if (deadline != null && deadline.isExpired()) {
+                    // most likely the timeout we derived from the deadline, which says nothing about the instance
+                    throw new DeadlineExceededException("Deadline passed while calling client:" + clients[clientIndex] + " family:" + family, e);
+                }
                 Throwable cause = e;
                 for (int i = 0; i < 10 && cause != null; i++) {
                     if (cause instanceof InterruptedException || cause instanceof InterruptedIOException || cause instanceof ClosedByInterruptException) {
@@ -103,11 +226,9 @@ public class ReturnFirstNonFailure {
                     cause = cause.getCause();
                 }
                 if (e.getCause() instanceof IOException) {
-                    int errorCount = clientsErrors[clientIndex].incrementAndGet();
-                    if (errorCount > deadAfterNErrors) {
-                        LOG.warn("Client:{} has had {} errors and will be marked as dead for {} millis.",
-                            new Object[] { clients[clientIndex], errorCount, checkDeadEveryNMillis }, e);
-                        clientsDeathTimestamp[clientIndex].set(now + checkDeadEveryNMillis);
+                    recorded = true;
+                    if (breaker.failure(System.currentTimeMillis(), permit)) {
+                        LOG.warn("Client:{} tripped its circuit breaker:{}", new Object[] { clients[clientIndex], breaker }, e);
                         clientHealths[clientIndex].markedDead();
                     }
                     clientHealths[clientIndex].connectivityError(family);
@@ -128,6 +249,9 @@ public class ReturnFirstNonFailure {
                 clientHealths[clientIndex].fatalError(family, e);
                 throw e;
             } finally {
+                if (!recorded) {
+                    breaker.ignored(permit);
+                }
                 if (strategy != null) {
                     strategy.usedClientAtIndex(clientIndex);
                 }
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A memory mapped, read only copy of one service's tenant to release group to connection descriptors tables.
+ * <p>
+ * The layout is a fixed header (magic, version, CRC32 of everything after the header, timestamp, release group count, tenant count),
+ * then an offset per release group, then an offset per tenant sorted by tenant id, then the records those offsets point at. A release
+ * group record is its name followed by its {@link ConnectionDescriptors} encoded as Smile. A tenant record is the index of its release
+ * group followed by its id. Loading only maps the file and checks its header; the checksum is verified the first time a route is
+ * asked for, tenants are binary searched and release groups are decoded the first time they are asked for. Closing unmaps the file.
+ */
+public class RouteSnapshot implements Closeable {
+
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+
+    static final int MAGIC = 0x52425253;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+
+    private static final ObjectMapper SMILE = new ObjectMapper(new SmileFactory())
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final long crc;
+    private final long timestamp;
+    private final int releaseGroupCount;
+    private final int tenantCount;
+    private final AtomicReferenceArray<ConnectionDescriptors> decoded;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile Boolean verified;
+    private boolean closed;
+
+    private RouteSnapshot(File file, MappedByteBuffer buffer, long crc, long timestamp, int releaseGroupCount, int tenantCount) {
+        this.file = file;
+        this.buffer = buffer;
+        this.crc = crc;
+        this.timestamp = timestamp;
+        this.releaseGroupCount = releaseGroupCount;
+        this.tenantCount = tenantCount;
+        this.decoded = new AtomicReferenceArray<>(releaseGroupCount);
+    }
+
+    /**
+     * @return null when there is no snapshot or it is unreadable, truncated or from another version. A corrupt snapshot is only
+     * noticed by {@link #verify()}.
+     */
+    public static RouteSnapshot load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                LOG.warn("Ignoring route snapshot:{} with unexpected size:{}", file, size);
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int magic = buffer.getInt(0);
+            int version = buffer.getInt(4);
+            if (magic != MAGIC || version != VERSION) {
+                LOG.warn("Ignoring route snapshot:{} with magic:{} version:{}", file, Integer.toHexString(magic), version);
+                unmap(buffer);
+                return null;
+            }
+            int releaseGroupCount = buffer.getInt(24);
+            int tenantCount = buffer.getInt(28);
+            if (releaseGroupCount < 0 || tenantCount < 0 || HEADER_BYTES + 4L * (releaseGroupCount + tenantCount) > size) {
+                LOG.warn("Ignoring route snapshot:{} with releaseGroups:{} tenants:{}", file, releaseGroupCount, tenantCount);
+                unmap(buffer);
+                return null;
+            }
+            return new RouteSnapshot(file, buffer, buffer.getLong(8), buffer.getLong(16), releaseGroupCount, tenantCount);
+        } catch (IOException x) {
+            LOG.warn("Failed to load route snapshot:{} {}", file, x.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes to a sibling file and renames it over the target, so readers only ever see a complete snapshot. Tenants routed to the
+     * "unknown" release group are left out.
+     */
+    public static <T> void write(File file,
+        long timestamp,
+        Map<T, String> tenantToReleaseGroup,
+        Map<String, ConnectionDescriptors> releaseGroupToConnectionDescriptors) throws IOException {
+
+        List<String> releaseGroups = new ArrayList<>();
+        List<ConnectionDescriptors> releaseGroupConnections = new ArrayList<>();
+        Map<String, Integer> releaseGroupIndex = new HashMap<>();
+        for (Map.Entry<String, ConnectionDescriptors> entry : releaseGroupToConnectionDescriptors.entrySet()) {
+            if (!"unknown".equals(entry.getKey())) {
+                releaseGroupIndex.put(entry.getKey(), releaseGroups.size());
+                releaseGroups.add(entry.getKey());
+                releaseGroupConnections.add(entry.getValue());
+            }
+        }
+        TreeMap<String, Integer> tenants = new TreeMap<>();
+        for (Map.Entry<T, String> entry : tenantToReleaseGroup.entrySet()) {
+            Integer index = releaseGroupIndex.get(entry.getValue());
+            if (index != null) {
+                tenants.put(entry.getKey().toString(), index);
+            }
+        }
+
+        int recordsOffset = HEADER_BYTES + 4 * (releaseGroups.size() + tenants.size());
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordsOut = new DataOutputStream(records);
+        ByteArrayOutputStream offsets = new ByteArrayOutputStream();
+        DataOutputStream offsetsOut = new DataOutputStream(offsets);
+        for (int i = 0; i < releaseGroups.size(); i++) {
+            offsetsOut.writeInt(recordsOffset + recordsOut.size());
+            writeBytes(recordsOut, releaseGroups.get(i).getBytes(StandardCharsets.UTF_8));
+            writeBytes(recordsOut, SMILE.writeValueAsBytes(releaseGroupConnections.get(i)));
+        }
+        for (Map.Entry<String, Integer> entry : tenants.entrySet()) {
+            offsetsOut.writeInt(recordsOffset + recordsOut.size());
+            recordsOut.writeInt(entry.getValue());
+            writeBytes(recordsOut, entry.getKey().getBytes(StandardCharsets.UTF_8));
+        }
+        recordsOut.flush();
+        offsetsOut.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(offsets.toByteArray());
+        crc.update(records.toByteArray());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(crc.getValue());
+        header.putLong(timestamp);
+        header.putInt(releaseGroups.size());
+        header.putInt(tenants.size());
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        File tmp = new File(parent, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp.toPath()))) {
+            out.write(header.array());
+            offsets.writeTo(out);
+            records.writeTo(out);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getTenantCount() {
+        return tenantCount;
+    }
+
+    /**
+     * Checksums the whole snapshot the first time it is called and remembers the answer. A snapshot which fails serves no routes.
+     */
+    public boolean verify() {
+        lock.readLock().lock();
+        try {
+            return !closed && verified();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean verified() {
+        Boolean result = verified;
+        if (result == null) {
+            synchronized (this) {
+                result = verified;
+                if (result == null) {
+                    ByteBuffer body = buffer.duplicate();
+                    body.position(HEADER_BYTES);
+                    CRC32 actual = new CRC32();
+                    actual.update(body);
+                    result = actual.getValue() == crc;
+                    if (!result) {
+                        LOG.warn("Ignoring route snapshot:{} which failed its checksum", file);
+                    }
+                    verified = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return null when the tenant is not in the snapshot or the snapshot is corrupt or closed
+     */
+    public String getReleaseGroup(String tenantId) {
+        lock.readLock().lock();
+        try {
+            if (closed || !verified()) {
+                return null;
+            }
+            int releaseGroup = releaseGroupOf(tenantId);
+            return releaseGroup < 0 ? null : readString(buffer.getInt(HEADER_BYTES + 4 * releaseGroup));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return null when the tenant is not in the snapshot, the snapshot is corrupt or closed, or its release group could not be decoded
+     */
+    public ConnectionDescriptors getConnections(String tenantId) {
+        lock.readLock().lock();
+        try {
+            if (closed || !verified()) {
+                return null;
+            }
+            return decode(releaseGroupOf(tenantId));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Unmaps the file once no route is being read from it. Routes already handed out stay valid.
+     */
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                unmap(buffer);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private ConnectionDescriptors decode(int releaseGroup) {
+        if (releaseGroup < 0) {
+            return null;
+        }
+        ConnectionDescriptors connections = decoded.get(releaseGroup);
+        if (connections == null) {
+            int nameOffset = buffer.getInt(HEADER_BYTES + 4 * releaseGroup);
+            int offset = nameOffset + 4 + buffer.getInt(nameOffset);
+            try {
+                ConnectionDescriptors read = SMILE.readValue(readBytes(offset), ConnectionDescriptors.class);
+                connections = new ConnectionDescriptors(read.getTimestamp(), read.getConnectionDescriptors(), read.getFingerprint(),
+                    readString(nameOffset));
+            } catch (IOException x) {
+                LOG.warn("Failed to decode release group:{} from route snapshot. {}", readString(nameOffset), x.getMessage());
+                return null;
+            }
+            decoded.compareAndSet(releaseGroup, null, connections);
+            connections = decoded.get(releaseGroup);
+        }
+        return connections;
+    }
+
+    private int releaseGroupOf(String tenantId) {
+        int low = 0;
+        int high = tenantCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = buffer.getInt(HEADER_BYTES + 4 * (releaseGroupCount + mid));
+            int compared = readString(offset + 4).compareTo(tenantId);
+            if (compared < 0) {
+                low = mid + 1;
+            } else if (compared > 0) {
+                high = mid - 1;
+            } else {
+                return buffer.getInt(offset);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A mapping otherwise lives until the buffer is garbage collected. Failing to unmap early is harmless, so any failure here only
+     * leaves that to the collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException x) {
+                invokeCleaner = null;
+            }
+            if (invokeCleaner != null) {
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } else {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object clean = cleaner.invoke(buffer);
+                if (clean != null) {
+                    clean.getClass().getMethod("clean").invoke(clean);
+                }
+            }
+        } catch (Exception | LinkageError x) {
+            LOG.debug("Leaving route snapshot to be unmapped by the garbage collector. {}", x.getMessage());
+        }
+    }
+
+    private String readString(int offset) {
+        return new String(readBytes(offset), StandardCharsets.UTF_8);
+    }
+
+    private byte[] readBytes(int offset) {
+        byte[] bytes = new byte[buffer.getInt(offset)];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset + 4);
+        duplicate.get(bytes);
+        return bytes;
+    }
+}
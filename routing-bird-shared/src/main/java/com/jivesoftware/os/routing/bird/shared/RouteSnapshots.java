@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import java.io.File;
+
+/**
+ * Where each service's {@link RouteSnapshot} lives, how often it is rewritten and how old it may get before it is no longer trusted.
+ */
+public class RouteSnapshots {
+
+    private final File directory;
+    private final long writeEveryNMillis;
+    private final long maxAgeMillis;
+
+    public RouteSnapshots(File directory, long writeEveryNMillis, long maxAgeMillis) {
+        this.directory = directory;
+        this.writeEveryNMillis = writeEveryNMillis;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public File getFile(String connectToServiceNamed, String portName) {
+        return new File(directory, sanitize(connectToServiceNamed) + "." + sanitize(portName) + ".routes");
+    }
+
+    public long getWriteEveryNMillis() {
+        return writeEveryNMillis;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public boolean isStale(RouteSnapshot routeSnapshot, long now) {
+        return now - routeSnapshot.getTimestamp() > maxAgeMillis;
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^A-Za-z0-9_\\-]", "_");
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything that changed after a subscriber's cursor. When resync is set the source no longer remembers what happened after that
+ * cursor, so the subscriber has to refresh every tenant it knows about.
+ */
+public class RoutingChanges {
+
+    private final long cursor;
+    private final boolean resync;
+    private final List<TenancyEviction> evictions;
+    private final List<TenantChanged> tenantsChanged;
+    private final List<InstanceChanged> instancesChanged;
+
+    @JsonCreator
+    public RoutingChanges(@JsonProperty("cursor") long cursor,
+        @JsonProperty("resync") boolean resync,
+        @JsonProperty("evictions") List<TenancyEviction> evictions,
+        @JsonProperty("tenantsChanged") List<TenantChanged> tenantsChanged,
+        @JsonProperty("instancesChanged") List<InstanceChanged> instancesChanged) {
+        this.cursor = cursor;
+        this.resync = resync;
+        this.evictions = evictions == null ? Collections.emptyList() : evictions;
+        this.tenantsChanged = tenantsChanged == null ? Collections.emptyList() : tenantsChanged;
+        this.instancesChanged = instancesChanged == null ? Collections.emptyList() : instancesChanged;
+    }
+
+    public long getCursor() {
+        return cursor;
+    }
+
+    public boolean getResync() {
+        return resync;
+    }
+
+    public List<TenancyEviction> getEvictions() {
+        return evictions;
+    }
+
+    public List<TenantChanged> getTenantsChanged() {
+        return tenantsChanged;
+    }
+
+    public List<InstanceChanged> getInstancesChanged() {
+        return instancesChanged;
+    }
+
+    public boolean isEmpty() {
+        return !resync && evictions.isEmpty() && tenantsChanged.isEmpty() && instancesChanged.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "RoutingChanges{"
+            + "cursor=" + cursor
+            + ", resync=" + resync
+            + ", evictions=" + evictions
+            + ", tenantsChanged=" + tenantsChanged
+            + ", instancesChanged=" + instancesChanged
+            + '}';
+    }
+}
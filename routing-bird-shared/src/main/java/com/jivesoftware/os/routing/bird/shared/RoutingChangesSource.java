@@ -0,0 +1,28 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+public interface RoutingChangesSource {
+
+    /**
+     * Blocks until something changes after sinceCursor or awaitMillis elapses, whichever comes first. A negative sinceCursor asks for
+     * the current cursor without waiting.
+     *
+     * @return the changes, possibly none, along with the cursor to resume from; null when the source could not be reached
+     * @throws UnsupportedOperationException when the routes service does not offer changes at all, after which nobody asks again
+     */
+    RoutingChanges awaitChanges(String instanceId, long sinceCursor, long awaitMillis) throws InterruptedException;
+}
@@ -15,71 +15,149 @@
  */
 package com.jivesoftware.os.routing.bird.shared;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class TenantRoutingClient<T, C extends HasHttpClientPoolStats, E extends Throwable> {
 
     static private final MetricLogger LOG = MetricLoggerFactory.getLogger();
+    static private final long DEFAULT_DRAIN_REMOVED_CLIENTS_MILLIS = 30_000;
+    static private final ScheduledExecutorService CLOSER = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("tenant-routing-client-closer-%d").setDaemon(true).build());
+
     private final TenantsServiceConnectionDescriptorProvider<T> connectionPoolProvider;
     private final ClientConnectionsFactory<C, E> clientConnectionsFactory;
     private final ClientsCloser<C> clientsCloser;
-    private final ConcurrentHashMap<T, TimestampedClients<C, E>> tenantsHttpClient = new ConcurrentHashMap<>();
+    private final long drainRemovedClientsMillis;
+    private final ConcurrentHashMap<String, TimestampedClients<C, E>> routingGroupsClients = new ConcurrentHashMap<>();
 
     public TenantRoutingClient(TenantsServiceConnectionDescriptorProvider<T> connectionPoolProvider,
         ClientConnectionsFactory<C, E> clientConnectionsFactory,
         ClientsCloser<C> clientsCloser) {
+        this(connectionPoolProvider, clientConnectionsFactory, clientsCloser, DEFAULT_DRAIN_REMOVED_CLIENTS_MILLIS);
+    }
+
+    /**
+     * @param drainRemovedClientsMillis how long clients for instances which left the routing group keep serving in flight requests before
+     * they are closed in the background.
+     */
+    public TenantRoutingClient(TenantsServiceConnectionDescriptorProvider<T> connectionPoolProvider,
+        ClientConnectionsFactory<C, E> clientConnectionsFactory,
+        ClientsCloser<C> clientsCloser,
+        long drainRemovedClientsMillis) {
         this.connectionPoolProvider = connectionPoolProvider;
         this.clientConnectionsFactory = clientConnectionsFactory;
         this.clientsCloser = clientsCloser;
+        this.drainRemovedClientsMillis = drainRemovedClientsMillis;
     }
 
     public <R> R tenantAwareCall(T tenant, NextClientStrategy strategy, String family, ClientCall<C, R, E> call) throws E {
+        return timestampedClients(tenant, family).call(strategy, family, call);
+    }
+
+    public <R> CompletableFuture<R> tenantAwareCallAsync(T tenant, NextClientStrategy strategy, String family, AsyncClientCall<C, R> call) {
+        return timestampedClients(tenant, family).callAsync(strategy, family, call);
+    }
+
+    private TimestampedClients<C, E> timestampedClients(T tenant, String family) {
         if (tenant == null) {
             throw new IllegalArgumentException("tenant cannot be null.");
         }
         ConnectionDescriptors connections = connectionPoolProvider.getConnections(tenant);
-        String routingGroup = connectionPoolProvider.getRoutingGroup(tenant);
-        TimestampedClients<C, E> timestampedClients = tenantsHttpClient.compute(tenant, (key, existing) -> {
-            String existingRoutingGroup = existing == null ? null : existing.getRoutingGroup();
+        String routingGroup = connections.getReleaseGroup() != null ? connections.getReleaseGroup() : connectionPoolProvider.getRoutingGroup(tenant);
+        TimestampedClients<C, E> current = routingGroupsClients.get(routingGroup);
+        if (current != null && current.getTimestamp() >= connections.getTimestamp()) {
+            return current;
+        }
+        // Every tenant in a routing group shares one set of clients, and with it one view of which instances are dead.
+        TimestampedClients<C, E> latest = routingGroupsClients.compute(routingGroup, (key, existing) -> {
             long existingTimestamp = existing == null ? -1 : existing.getTimestamp();
             long timestamp = connections.getTimestamp();
-            if (existingRoutingGroup == null || !existingRoutingGroup.equals(routingGroup) || existingTimestamp < timestamp) {
-                LOG.info("Updating routes for service:{} tenant:{} family:{} routingGroup:{}->{} timestamp:{}->{} identity:{}",
+            if (existingTimestamp < timestamp) {
+                LOG.info("Updating routes for service:{} tenant:{} family:{} routingGroup:{} timestamp:{}->{} identity:{}",
                     connectionPoolProvider.getConnectToServiceNamed(),
                     tenant, family,
-                    existingRoutingGroup, routingGroup,
+                    routingGroup,
                     existingTimestamp, timestamp,
                     System.identityHashCode(TenantRoutingClient.this));
-                if (existing != null) {
-                    try {
-                        clientsCloser.closeClients(existing.getClients());
-                    } catch (Exception x) {
-                        LOG.warn("Failed while trying to close clients:" + Arrays.toString(existing.getClients()), x);
-                    }
-                }
                 TimestampedClients<C, E> updated;
                 try {
-                    updated = clientConnectionsFactory.createClients(routingGroup, connections);
+                    updated = clientConnectionsFactory.createClients(routingGroup, connections, existing);
                 } catch (Exception x) {
                     throw new RuntimeException("Failed to create client.", x);
                 }
                 if (updated == null) {
                     throw new IllegalStateException("clientConnectionsFactory:" + clientConnectionsFactory + " should not return a null client but did!");
                 }
+                if (existing != null) {
+                    closeRemovedClients(existing.getClients(), updated.getClients());
+                }
                 return updated;
 
             } else {
                 return existing;
             }
         });
-        return timestampedClients.call(strategy, family, call);
+        if (latest != current) {
+            closeAbandonedRoutingGroups();
+        }
+        return latest;
+    }
+
+    /**
+     * Routes only change when some routing group's clients are rebuilt, so that is when groups no tenant routes to any more are let go.
+     */
+    private void closeAbandonedRoutingGroups() {
+        Set<String> routingGroups = connectionPoolProvider.getRoutingGroups();
+        for (Map.Entry<String, TimestampedClients<C, E>> entry : routingGroupsClients.entrySet()) {
+            if (!routingGroups.contains(entry.getKey()) && routingGroupsClients.remove(entry.getKey(), entry.getValue())) {
+                LOG.info("Closing clients for service:{} routingGroup:{} which no tenant routes to.",
+                    connectionPoolProvider.getConnectToServiceNamed(), entry.getKey());
+                closeLater(entry.getValue().getClients());
+            }
+        }
+    }
+
+    private void closeRemovedClients(C[] existingClients, C[] updatedClients) {
+        Set<C> retained = Collections.newSetFromMap(new IdentityHashMap<>());
+        retained.addAll(Arrays.asList(updatedClients));
+        C[] removed = Arrays.copyOf(existingClients, existingClients.length);
+        int count = 0;
+        for (C client : existingClients) {
+            if (!retained.contains(client)) {
+                removed[count] = client;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        closeLater(Arrays.copyOf(removed, count));
+    }
+
+    private void closeLater(C[] closeable) {
+        CLOSER.schedule(() -> {
+            try {
+                clientsCloser.closeClients(closeable);
+            } catch (Exception x) {
+                LOG.warn("Failed while trying to close clients:" + Arrays.toString(closeable), x);
+            }
+        }, drainRemovedClientsMillis, TimeUnit.MILLISECONDS);
     }
 
     public void gatherPoolStats(HttpClientPoolStatsStream poolStats) {
-        for (TimestampedClients<C, E> client : tenantsHttpClient.values()) {
+        for (TimestampedClients<C, E> client : routingGroupsClients.values()) {
             for (C c : client.getClients()) {
                 poolStats.poolStats(
                     connectionPoolProvider.getConnectToServiceNamed() + ":" + connectionPoolProvider.getPortName() + ":" + connectionPoolProvider
@@ -90,6 +168,15 @@ public class TenantRoutingClient<T, C extends HasHttpClientPoolStats, E extends
     }
 
     public void closeAll() {
-        // TODO??
+        for (String routingGroup : routingGroupsClients.keySet()) {
+            TimestampedClients<C, E> removed = routingGroupsClients.remove(routingGroup);
+            if (removed != null) {
+                try {
+                    clientsCloser.closeClients(removed.getClients());
+                } catch (Exception x) {
+                    LOG.warn("Failed while trying to close clients:" + Arrays.toString(removed.getClients()), x);
+                }
+            }
+        }
     }
 }
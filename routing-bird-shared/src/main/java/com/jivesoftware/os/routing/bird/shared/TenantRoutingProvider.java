@@ -15,23 +15,54 @@
  */
 package com.jivesoftware.os.routing.bird.shared;
 
+import com.jivesoftware.os.mlogger.core.MetricLogger;
+import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class TenantRoutingProvider<T> {
 
+    private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+    private static final long MIN_SUBSCRIBE_BACKOFF_MILLIS = 1_000;
+    private static final long MAX_SUBSCRIBE_BACKOFF_MILLIS = 60_000;
+
     private final ConcurrentHashMap<String, TenantsServiceConnectionDescriptorProvider<T>> serviceConnectionDescriptorsProvider = new ConcurrentHashMap<>();
     private final ScheduledExecutorService connectionsRefresher;
     private final String instanceId;
     private final ConnectionDescriptorsProvider connectionsDescriptorProvider;
+    private final RouteSnapshots routeSnapshots;
+    private final AtomicReference<Future<?>> subscription = new AtomicReference<>();
+    private volatile long safetyNetRefreshMillis = -1;
+    private volatile Executor routeMissLookups;
+    private volatile long routeMissWaitMillis = -1;
 
     public TenantRoutingProvider(ScheduledExecutorService connectionsRefresher,
         String instanceId,
         ConnectionDescriptorsProvider connectionsDescriptorProvider) {
+        this(connectionsRefresher, instanceId, connectionsDescriptorProvider, null);
+    }
+
+    /**
+     * @param routeSnapshots where to persist routes so a restart can serve them before the routes service answers; null to not persist
+     */
+    public TenantRoutingProvider(ScheduledExecutorService connectionsRefresher,
+        String instanceId,
+        ConnectionDescriptorsProvider connectionsDescriptorProvider,
+        RouteSnapshots routeSnapshots) {
         this.connectionsRefresher = connectionsRefresher;
         this.instanceId = instanceId;
         this.connectionsDescriptorProvider = connectionsDescriptorProvider;
+        this.routeSnapshots = routeSnapshots;
     }
 
     private String key(String connectToService, String portName) {
@@ -51,6 +82,131 @@ public class TenantRoutingProvider<T> {
         }
     }
 
+    /**
+     * Applies routing changes as changesSource pushes them, refreshing only the tenants they affect, and slows polling down to
+     * safetyNetRefreshMillis. Whenever the source cannot be reached polling goes back to its usual pace until the subscription recovers.
+     * Refreshes run on the connections refresher so the subscriber is back awaiting changes right away. A source which does not support
+     * changes ends the subscription for good.
+     */
+    public void subscribe(ExecutorService subscriber, RoutingChangesSource changesSource, long awaitChangesMillis, long safetyNetRefreshMillis) {
+        Future<?> subscribed = subscriber.submit(() -> {
+            long cursor = -1;
+            long backoffMillis = MIN_SUBSCRIBE_BACKOFF_MILLIS;
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    RoutingChanges changes;
+                    try {
+                        changes = changesSource.awaitChanges(instanceId, cursor, awaitChangesMillis);
+                    } catch (InterruptedException x) {
+                        throw x;
+                    } catch (UnsupportedOperationException x) {
+                        LOG.warn("Routing changes are not supported, falling back to polling. {}", x.getMessage());
+                        LOG.inc("routing>changes>unsupported");
+                        return;
+                    } catch (Exception x) {
+                        LOG.warn("Routing changes source failed. {}", x.getMessage());
+                        changes = null;
+                    }
+
+                    if (changes == null) {
+                        LOG.inc("routing>changes>unavailable");
+                        safetyNet(-1);
+                        Thread.sleep(backoffMillis);
+                        backoffMillis = Math.min(backoffMillis * 2, MAX_SUBSCRIBE_BACKOFF_MILLIS);
+                        continue;
+                    }
+                    backoffMillis = MIN_SUBSCRIBE_BACKOFF_MILLIS;
+                    safetyNet(safetyNetRefreshMillis);
+
+                    if (cursor >= 0) {
+                        // a cursor which went backwards means the source restarted and forgot what we have seen
+                        RoutingChanges apply = changes;
+                        boolean everyTenant = changes.getResync() || changes.getCursor() < cursor;
+                        connectionsRefresher.execute(() -> {
+                            try {
+                                applyChanges(apply, everyTenant);
+                            } catch (Exception x) {
+                                LOG.error("Failed to apply routing changes:{}", new Object[]{apply}, x);
+                            }
+                        });
+                    }
+                    cursor = changes.getCursor();
+                }
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            } finally {
+                safetyNet(-1);
+            }
+        });
+        Future<?> replaced = subscription.getAndSet(subscribed);
+        if (replaced != null) {
+            replaced.cancel(true);
+        }
+    }
+
+    public void unsubscribe() {
+        Future<?> subscribed = subscription.getAndSet(null);
+        if (subscribed != null) {
+            subscribed.cancel(true);
+        }
+    }
+
+    private void safetyNet(long refreshMillis) {
+        if (safetyNetRefreshMillis != refreshMillis) {
+            safetyNetRefreshMillis = refreshMillis;
+            for (TenantsServiceConnectionDescriptorProvider<T> v : serviceConnectionDescriptorsProvider.values()) {
+                v.setSafetyNetRefreshMillis(refreshMillis);
+            }
+        }
+    }
+
+    void applyChanges(RoutingChanges changes, boolean everyTenant) {
+        if (!everyTenant && changes.isEmpty()) {
+            return;
+        }
+
+        Set<String> changedTenants = new HashSet<>();
+        for (TenantChanged tenantChanged : changes.getTenantsChanged()) {
+            changedTenants.add(tenantChanged.getTenantId());
+        }
+        Set<String> changedInstances = new HashSet<>();
+        for (InstanceChanged instanceChanged : changes.getInstancesChanged()) {
+            changedInstances.add(instanceChanged.getInstanceId());
+        }
+        Map<String, Set<String>> evictedTenants = new HashMap<>();
+        for (TenancyEviction eviction : changes.getEvictions()) {
+            if (eviction.getInstanceId() == null || eviction.getInstanceId().equals(instanceId)) {
+                evictedTenants.computeIfAbsent(key(eviction.getConnectToServiceId(), eviction.getPortName()), (key) -> new HashSet<>())
+                    .add(eviction.getTenantId());
+            }
+        }
+
+        int refreshed = 0;
+        for (Entry<String, TenantsServiceConnectionDescriptorProvider<T>> e : serviceConnectionDescriptorsProvider.entrySet()) {
+            Set<String> tenantIds = changedTenants;
+            Set<String> evicted = evictedTenants.getOrDefault(e.getKey(), Collections.emptySet());
+            if (!evicted.isEmpty()) {
+                tenantIds = new HashSet<>(changedTenants);
+                tenantIds.addAll(evicted);
+            }
+            refreshed += e.getValue().refreshAffected(tenantIds, changedInstances, everyTenant);
+        }
+        LOG.inc(everyTenant ? "routing>changes>resync" : "routing>changes>applied");
+        LOG.inc("routing>changes>tenants", refreshed);
+    }
+
+    /**
+     * Route misses are looked up on routeMissLookups and request threads wait at most routeMissWaitMillis for them before falling back
+     * to the tenant's last known routes. Concurrent misses for a tenant share one lookup either way.
+     */
+    public void setRouteMissWait(Executor routeMissLookups, long routeMissWaitMillis) {
+        this.routeMissLookups = routeMissLookups;
+        this.routeMissWaitMillis = routeMissWaitMillis;
+        for (TenantsServiceConnectionDescriptorProvider<T> v : serviceConnectionDescriptorsProvider.values()) {
+            v.setRouteMissWait(routeMissLookups, routeMissWaitMillis);
+        }
+    }
+
     public TenantsRoutingReport<T> getRoutingReport() {
         TenantsRoutingReport<T> report = new TenantsRoutingReport<>();
         for (Entry<String, TenantsServiceConnectionDescriptorProvider<T>> e : serviceConnectionDescriptorsProvider.entrySet()) {
@@ -75,6 +231,11 @@ public class TenantRoutingProvider<T> {
             TenantsServiceConnectionDescriptorProvider tenantsServiceConnectionDescriptorProvider = new TenantsServiceConnectionDescriptorProvider<>(
                 connectionsRefresher, instanceId, connectionsDescriptorProvider, connectToServiceNamed, portName,
                 refreshConnectionsAfterNMillis);
+            tenantsServiceConnectionDescriptorProvider.setSafetyNetRefreshMillis(safetyNetRefreshMillis);
+            tenantsServiceConnectionDescriptorProvider.setRouteMissWait(routeMissLookups, routeMissWaitMillis);
+            if (routeSnapshots != null) {
+                tenantsServiceConnectionDescriptorProvider.restoreFrom(routeSnapshots);
+            }
             tenantsServiceConnectionDescriptorProvider.start();
             return tenantsServiceConnectionDescriptorProvider;
         });
@@ -17,30 +17,55 @@ package com.jivesoftware.os.routing.bird.shared;
 
 import com.jivesoftware.os.mlogger.core.MetricLogger;
 import com.jivesoftware.os.mlogger.core.MetricLoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class TenantsServiceConnectionDescriptorProvider<T> {
 
     private static final MetricLogger LOG = MetricLoggerFactory.getLogger();
+    private static final int DEFAULT_REFRESH_BATCH_SIZE = 1_000;
+
     private final String instanceId;
     private final ConnectionDescriptorsProvider connectionsProvider;
     private final String connectToServiceNamed;
     private final String portName;
     private final long refreshConnectionsAfterNMillis;
+    private final int refreshBatchSize;
     private final Map<String, ConnectionDescriptors> releaseGroupToConnectionDescriptors = new ConcurrentHashMap<>();
     private final Map<T, String> tenantToReleaseGroup = new ConcurrentHashMap<>();
     private final Map<T, AtomicBoolean> activeTenants = new ConcurrentHashMap<>();
     private final ScheduledExecutorService connectionsRefresher;
+    private volatile long safetyNetRefreshMillis = -1;
+    private volatile long lastPolledTimestamp;
+    private final Set<T> staleTenants = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile RouteSnapshots routeSnapshots;
+    private volatile RouteSnapshot routeSnapshot;
+    private volatile long lastSnapshotTimestamp;
+    private final Set<T> evictedFromSnapshot = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Map<T, CompletableFuture<ConnectionDescriptors>> routeMisses = new ConcurrentHashMap<>();
+    private final Map<T, String> invalidatedReleaseGroups = new ConcurrentHashMap<>();
+    private final Map<Long, List<ConnectionDescriptor>> internedConnectionDescriptors = new ConcurrentHashMap<>();
+    private volatile Executor routeMissLookups;
+    private volatile long routeMissWaitMillis = -1;
 
     public TenantsServiceConnectionDescriptorProvider(ScheduledExecutorService connectionsRefresher,
         String instanceId,
@@ -48,6 +73,21 @@ public class TenantsServiceConnectionDescriptorProvider<T> {
         String connectToServiceNamed,
         String portName,
         long refreshConnectionsAfterNMillis) {
+        this(connectionsRefresher, instanceId, connectionsProvider, connectToServiceNamed, portName, refreshConnectionsAfterNMillis,
+            DEFAULT_REFRESH_BATCH_SIZE);
+    }
+
+    /**
+     * @param refreshBatchSize most tenants the refresher resolves per round trip when connectionsProvider is a
+     * {@link BatchConnectionDescriptorsProvider}
+     */
+    public TenantsServiceConnectionDescriptorProvider(ScheduledExecutorService connectionsRefresher,
+        String instanceId,
+        ConnectionDescriptorsProvider connectionsProvider,
+        String connectToServiceNamed,
+        String portName,
+        long refreshConnectionsAfterNMillis,
+        int refreshBatchSize) {
 
         this.connectionsRefresher = connectionsRefresher;
         this.instanceId = instanceId;
@@ -55,6 +95,7 @@ public class TenantsServiceConnectionDescriptorProvider<T> {
         this.connectToServiceNamed = connectToServiceNamed;
         this.portName = portName;
         this.refreshConnectionsAfterNMillis = refreshConnectionsAfterNMillis;
+        this.refreshBatchSize = Math.max(1, refreshBatchSize);
     }
 
     public String getInstanceId() {
@@ -72,10 +113,125 @@ public class TenantsServiceConnectionDescriptorProvider<T> {
     void invalidateAll() {
         tenantToReleaseGroup.clear();
         releaseGroupToConnectionDescriptors.clear();
+        replaceSnapshot(null);
     }
 
     public void invalidateTenant(T tenantId) {
-        tenantToReleaseGroup.remove(tenantId);
+        if (routeSnapshot != null) {
+            evictedFromSnapshot.add(tenantId);
+        }
+        String releaseGroup = tenantToReleaseGroup.remove(tenantId);
+        if (releaseGroup != null) {
+            invalidatedReleaseGroups.put(tenantId, releaseGroup);
+        }
+    }
+
+    /**
+     * Concurrent misses for the same tenant always share one lookup. With routeMissLookups the lookup runs there and callers wait at
+     * most routeMissWaitMillis for it, after which they are handed the tenant's last known release group's descriptors (or none) while
+     * the lookup carries on. Without it the first caller does the lookup and everyone waits for as long as it takes.
+     */
+    void setRouteMissWait(Executor routeMissLookups, long routeMissWaitMillis) {
+        this.routeMissLookups = routeMissLookups;
+        this.routeMissWaitMillis = routeMissWaitMillis;
+    }
+
+    /**
+     * While routing changes are being pushed the refresher only needs to poll as a safety net. A non-positive value polls every
+     * refreshConnectionsAfterNMillis again.
+     */
+    void setSafetyNetRefreshMillis(long safetyNetRefreshMillis) {
+        this.safetyNetRefreshMillis = safetyNetRefreshMillis;
+    }
+
+    /**
+     * Tenants found in the last snapshot are served its routes straight away and queued for revalidation, as are tenants the routes
+     * service later fails to answer for. Snapshot routes are served until the refresher has revalidated them, the tenant is invalidated
+     * or the snapshot is older than {@link RouteSnapshots#getMaxAgeMillis()}. The live tables are written back every
+     * {@link RouteSnapshots#getWriteEveryNMillis()}. Only tenants which have been asked for since boot make it into the next snapshot.
+     */
+    void restoreFrom(RouteSnapshots routeSnapshots) {
+        File file = routeSnapshots.getFile(connectToServiceNamed, portName);
+        long now = System.currentTimeMillis();
+        RouteSnapshot loaded = RouteSnapshot.load(file);
+        if (loaded != null) {
+            if (routeSnapshots.isStale(loaded, now)) {
+                LOG.warn("Ignoring route snapshot:{} from {} which is older than {} millis", file, loaded.getTimestamp(),
+                    routeSnapshots.getMaxAgeMillis());
+                LOG.inc("snapshot>stale");
+                loaded.close();
+                loaded = null;
+            } else {
+                LOG.info("Loaded route snapshot:{} with {} tenants from {}", file, loaded.getTenantCount(), loaded.getTimestamp());
+            }
+        }
+        this.routeSnapshots = routeSnapshots;
+        this.lastSnapshotTimestamp = now;
+        replaceSnapshot(loaded);
+    }
+
+    private void replaceSnapshot(RouteSnapshot replacement) {
+        RouteSnapshot replaced;
+        synchronized (evictedFromSnapshot) {
+            replaced = routeSnapshot;
+            routeSnapshot = replacement;
+            evictedFromSnapshot.clear();
+        }
+        if (replaced != null && replaced != replacement) {
+            replaced.close();
+        }
+    }
+
+    private void expireSnapshotIfStale(long now) {
+        RouteSnapshots snapshots = routeSnapshots;
+        RouteSnapshot snapshot = routeSnapshot;
+        if (snapshots != null && snapshot != null && snapshots.isStale(snapshot, now)) {
+            LOG.info("Dropping route snapshot from {} which is older than {} millis", snapshot.getTimestamp(), snapshots.getMaxAgeMillis());
+            LOG.inc("snapshot>expired");
+            replaceSnapshot(null);
+        }
+    }
+
+    /**
+     * Re-resolves the known tenants named in tenantIds plus every tenant whose release group includes one of instanceKeys.
+     *
+     * @return how many tenants were refreshed
+     */
+    int refreshAffected(Set<String> tenantIds, Set<String> instanceKeys, boolean everyTenant) {
+        Set<String> affectedReleaseGroups = new HashSet<>();
+        if (!instanceKeys.isEmpty()) {
+            for (Map.Entry<String, ConnectionDescriptors> entry : releaseGroupToConnectionDescriptors.entrySet()) {
+                for (ConnectionDescriptor connectionDescriptor : entry.getValue().getConnectionDescriptors()) {
+                    InstanceDescriptor instanceDescriptor = connectionDescriptor.getInstanceDescriptor();
+                    if (instanceDescriptor != null && instanceKeys.contains(instanceDescriptor.instanceKey)) {
+                        affectedReleaseGroups.add(entry.getKey());
+                        break;
+                    }
+                }
+            }
+        }
+
+        List<T> affected = new ArrayList<>();
+        for (Map.Entry<T, String> entry : tenantToReleaseGroup.entrySet()) {
+            if (everyTenant || tenantIds.contains(entry.getKey().toString()) || affectedReleaseGroups.contains(entry.getValue())) {
+                affected.add(entry.getKey());
+            }
+        }
+
+        refreshTenants(affected);
+        return affected.size();
+    }
+
+    private void refreshTenants(List<T> tenantIds) {
+        if (connectionsProvider instanceof BatchConnectionDescriptorsProvider) {
+            for (int i = 0; i < tenantIds.size(); i += refreshBatchSize) {
+                refreshBatch(tenantIds.subList(i, Math.min(tenantIds.size(), i + refreshBatchSize)));
+            }
+        } else {
+            for (T tenantId : tenantIds) {
+                refreshTenant(tenantId);
+            }
+        }
     }
 
     public TenantsRoutingServiceReport<T> getRoutingReport() {
@@ -85,33 +241,173 @@ public class TenantsServiceConnectionDescriptorProvider<T> {
         return report;
     }
 
+    /**
+     * @return every release group which at least one tenant currently routes to
+     */
+    public Set<String> getRoutingGroups() {
+        return new HashSet<>(tenantToReleaseGroup.values());
+    }
+
+    /**
+     * Prefer {@link ConnectionDescriptors#getReleaseGroup()} on the result of {@link #getConnections(Object)}, which cannot disagree
+     * with the descriptors it came with.
+     */
     public String getRoutingGroup(T tenantId) {
         return tenantId == null ? "unknown" : tenantToReleaseGroup.getOrDefault(tenantId, "unknown");
     }
 
     public ConnectionDescriptors getConnections(T tenantId) {
         if (tenantId == null) {
-            return new ConnectionDescriptors(System.currentTimeMillis(), Collections.<ConnectionDescriptor>emptyList());
+            return emptyConnections("unknown");
         }
         ConnectionDescriptors connectionDescriptors;
         String releaseGroup = tenantToReleaseGroup.get(tenantId);
         if (releaseGroup != null) {
-            connectionDescriptors = releaseGroupToConnectionDescriptors.computeIfAbsent(releaseGroup, (key) -> {
-                return new ConnectionDescriptors(System.currentTimeMillis(), Collections.<ConnectionDescriptor>emptyList());
-            });
+            connectionDescriptors = releaseGroupToConnectionDescriptors.computeIfAbsent(releaseGroup, this::emptyConnections);
         } else {
-            connectionDescriptors = refreshConnections(tenantId);
+            connectionDescriptors = restoreConnections(tenantId);
+            if (connectionDescriptors == null) {
+                connectionDescriptors = lookupConnections(tenantId);
+            }
         }
         activeTenants.computeIfAbsent(tenantId, (T t) -> new AtomicBoolean()).set(true);
         return connectionDescriptors;
     }
 
-    private ConnectionDescriptors refreshConnections(T tenantId) {
-        ConnectionDescriptorsRequest connectionDescriptorsRequest = new ConnectionDescriptorsRequest(
-            tenantId.toString(), instanceId, connectToServiceNamed, portName, UUID.randomUUID().toString());
+    private ConnectionDescriptors lookupConnections(T tenantId) {
+        CompletableFuture<ConnectionDescriptors> lookup = new CompletableFuture<>();
+        CompletableFuture<ConnectionDescriptors> inFlight = routeMisses.putIfAbsent(tenantId, lookup);
+        Executor lookups = routeMissLookups;
+        if (inFlight == null) {
+            inFlight = lookup;
+            LOG.inc("routeMiss>lookup");
+            Runnable runnable = () -> {
+                try {
+                    lookup.complete(refreshConnections(tenantId));
+                } catch (Throwable t) {
+                    lookup.completeExceptionally(t);
+                } finally {
+                    invalidatedReleaseGroups.remove(tenantId);
+                    routeMisses.remove(tenantId, lookup);
+                }
+            };
+            if (lookups == null) {
+                runnable.run();
+            } else {
+                try {
+                    lookups.execute(runnable);
+                } catch (RejectedExecutionException x) {
+                    runnable.run();
+                }
+            }
+        } else {
+            LOG.inc("routeMiss>joined");
+        }
+
+        long waitMillis = routeMissWaitMillis;
+        try {
+            return lookups != null && waitMillis >= 0 ? inFlight.get(waitMillis, TimeUnit.MILLISECONDS) : inFlight.get();
+        } catch (TimeoutException x) {
+            LOG.inc("routeMiss>timedOut");
+            return lastKnownConnections(tenantId);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            return lastKnownConnections(tenantId);
+        } catch (ExecutionException x) {
+            ConnectionDescriptors restored = restoreConnections(tenantId);
+            if (restored != null) {
+                return restored;
+            }
+            Throwable cause = x.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private ConnectionDescriptors lastKnownConnections(T tenantId) {
+        String releaseGroup = invalidatedReleaseGroups.get(tenantId);
+        ConnectionDescriptors connectionDescriptors = releaseGroup == null ? null : releaseGroupToConnectionDescriptors.get(releaseGroup);
+        if (connectionDescriptors == null) {
+            connectionDescriptors = restoreConnections(tenantId);
+        }
+        return connectionDescriptors != null ? connectionDescriptors : unknownConnections();
+    }
+
+    /**
+     * Every tenant without routes shares one empty "unknown" entry, so repeated misses do not move its timestamp and rebuild clients.
+     */
+    private ConnectionDescriptors unknownConnections() {
+        return releaseGroupToConnectionDescriptors.computeIfAbsent("unknown", this::emptyConnections);
+    }
+
+    private ConnectionDescriptors emptyConnections(String releaseGroup) {
+        List<ConnectionDescriptor> none = Collections.emptyList();
+        return new ConnectionDescriptors(System.currentTimeMillis(), none, ConnectionDescriptors.fingerprint(none), releaseGroup);
+    }
+
+    /**
+     * Serves the snapshot's routes for a tenant which is not in the live tables yet and queues it for revalidation by the refresher.
+     * Tenants invalidated since the snapshot was loaded are left to the routes service.
+     */
+    private ConnectionDescriptors restoreConnections(T tenantId) {
+        RouteSnapshot snapshot = routeSnapshot;
+        if (snapshot == null || evictedFromSnapshot.contains(tenantId)) {
+            return null;
+        }
+        String releaseGroup = snapshot.getReleaseGroup(tenantId.toString());
+        if (releaseGroup == null) {
+            return null;
+        }
+        ConnectionDescriptors connectionDescriptors = releaseGroupToConnectionDescriptors.computeIfAbsent(releaseGroup,
+            (key) -> snapshot.getConnections(tenantId.toString()));
+        if (connectionDescriptors == null) {
+            return null;
+        }
+        tenantToReleaseGroup.putIfAbsent(tenantId, releaseGroup);
+        staleTenants.add(tenantId);
+        LOG.inc("snapshot>restored");
+        return connectionDescriptors;
+    }
 
+    private ConnectionDescriptors refreshConnections(T tenantId) {
         String existingReleaseGroup = tenantToReleaseGroup.get(tenantId);
-        ConnectionDescriptorsResponse connectionsResponse = connectionsProvider.requestConnections(connectionDescriptorsRequest, existingReleaseGroup);
+        ConnectionDescriptorsResponse connectionsResponse = connectionsProvider.requestConnections(connectionsRequest(tenantId), existingReleaseGroup);
+        return applyConnections(tenantId, existingReleaseGroup, connectionsResponse);
+    }
+
+    /**
+     * Resolves every tenant in one round trip. A batch which fails outright leaves each tenant on the routes it already had.
+     */
+    private void refreshConnections(List<T> tenantIds) {
+        List<ConnectionDescriptorsRequest> requests = new ArrayList<>(tenantIds.size());
+        List<String> existingReleaseGroups = new ArrayList<>(tenantIds.size());
+        for (T tenantId : tenantIds) {
+            requests.add(connectionsRequest(tenantId));
+            existingReleaseGroups.add(tenantToReleaseGroup.get(tenantId));
+        }
+
+        List<ConnectionDescriptorsResponse> responses = ((BatchConnectionDescriptorsProvider) connectionsProvider)
+            .requestConnections(requests, existingReleaseGroups);
+        if (responses != null && responses.size() != requests.size()) {
+            LOG.warn("Expected {} responses to a batched connections request but got {}", requests.size(), responses.size());
+            responses = null;
+        }
+        LOG.inc("refresh>batch>requests");
+        LOG.inc("refresh>batch>tenants", tenantIds.size());
+        for (int i = 0; i < tenantIds.size(); i++) {
+            applyConnections(tenantIds.get(i), existingReleaseGroups.get(i), responses == null ? null : responses.get(i));
+        }
+    }
+
+    private ConnectionDescriptorsRequest connectionsRequest(T tenantId) {
+        return new ConnectionDescriptorsRequest(tenantId.toString(), instanceId, connectToServiceNamed, portName, UUID.randomUUID().toString());
+    }
+
+    private ConnectionDescriptors applyConnections(T tenantId, String existingReleaseGroup, ConnectionDescriptorsResponse connectionsResponse) {
         if (connectionsResponse == null && existingReleaseGroup != null) {
             ConnectionDescriptors connectionDescriptors = releaseGroupToConnectionDescriptors.get(existingReleaseGroup);
             if (connectionDescriptors != null) {
@@ -122,44 +418,27 @@ public class TenantsServiceConnectionDescriptorProvider<T> {
         String releaseGroup;
         ConnectionDescriptors connections = null;
         if (connectionsResponse == null) {
+            ConnectionDescriptors restored = restoreConnections(tenantId);
+            if (restored != null) {
+                return restored;
+            }
             releaseGroup = "unknown";
-            connections = new ConnectionDescriptors(System.currentTimeMillis(), Collections.<ConnectionDescriptor>emptyList());
-            releaseGroupToConnectionDescriptors.put(releaseGroup, connections);
+            connections = unknownConnections();
             tenantToReleaseGroup.putIfAbsent(tenantId, releaseGroup);
         } else if (connectionsResponse.getReturnCode() < 0) {
             releaseGroup = "unknown";
             LOG.warn(Arrays.deepToString(connectionsResponse.getMessages().toArray()));
-            connections = new ConnectionDescriptors(System.currentTimeMillis(), Collections.<ConnectionDescriptor>emptyList());
-            releaseGroupToConnectionDescriptors.put(releaseGroup, connections);
+            connections = unknownConnections();
             tenantToReleaseGroup.put(tenantId, releaseGroup);
         } else {
             releaseGroup = connectionsResponse.getReleaseGroup();
             List<ConnectionDescriptor> latest = connectionsResponse.getConnections();
+            long fingerprint = ConnectionDescriptors.fingerprint(latest);
             ConnectionDescriptors current = releaseGroupToConnectionDescriptors.get(releaseGroup);
-            if (current != null) {
-                tenantToReleaseGroup.put(tenantId, releaseGroup);
-                if (latest.size() == current.getConnectionDescriptors().size()) {
-                    Map<ConnectionDescriptorKey, ConnectionDescriptor> currentConnectionDescriptors = new HashMap<>();
-                    for (ConnectionDescriptor connectionDescriptor : current.getConnectionDescriptors()) {
-                        currentConnectionDescriptors.put(new ConnectionDescriptorKey(connectionDescriptor.getInstanceDescriptor(),
-                                connectionDescriptor.getHostPort(),
-                                connectionDescriptor.getProperties(),
-                                connectionDescriptor.getMonkeys()),
-                            connectionDescriptor);
-                    }
-                    for (ConnectionDescriptor connectionDescriptor : latest) {
-                        currentConnectionDescriptors.remove(new ConnectionDescriptorKey(connectionDescriptor.getInstanceDescriptor(),
-                            connectionDescriptor.getHostPort(),
-                            connectionDescriptor.getProperties(),
-                            connectionDescriptor.getMonkeys()));
-                    }
-                    if (currentConnectionDescriptors.isEmpty()) {
-                        connections = current;
-                    }
-                }
-            }
-            if (connections == null) {
-                connections = new ConnectionDescriptors(System.currentTimeMillis(), latest);
+            if (current != null && current.getFingerprint() == fingerprint && sameConnections(current.getConnectionDescriptors(), latest)) {
+                connections = current;
+            } else {
+                connections = new ConnectionDescriptors(System.currentTimeMillis(), intern(fingerprint, latest), fingerprint, releaseGroup);
             }
             releaseGroupToConnectionDescriptors.put(releaseGroup, connections);
             tenantToReleaseGroup.put(tenantId, releaseGroup);
@@ -167,27 +446,107 @@ public class TenantsServiceConnectionDescriptorProvider<T> {
         return connections;
     }
 
+    /**
+     * Release groups which route to the same instances share one descriptor list. Each keeps its own {@link ConnectionDescriptors}
+     * since clients are only rebuilt when a routing group's timestamp moves forward. A list whose fingerprint collides with a
+     * different interned list is kept as is.
+     */
+    private List<ConnectionDescriptor> intern(long fingerprint, List<ConnectionDescriptor> connectionDescriptors) {
+        if (connectionDescriptors == null) {
+            return null;
+        }
+        List<ConnectionDescriptor> interned = internedConnectionDescriptors.putIfAbsent(fingerprint, connectionDescriptors);
+        if (interned != null && sameConnections(interned, connectionDescriptors)) {
+            LOG.inc("intern>shared");
+            return interned;
+        }
+        return connectionDescriptors;
+    }
+
+    /**
+     * Equal fingerprints only make a match likely, so this confirms it field by field. Order does not matter.
+     */
+    static boolean sameConnections(List<ConnectionDescriptor> current, List<ConnectionDescriptor> latest) {
+        if (current == latest) {
+            return true;
+        }
+        if (current == null || latest == null || current.size() != latest.size()) {
+            return false;
+        }
+        Map<ConnectionDescriptorKey, Integer> unmatched = new HashMap<>();
+        for (ConnectionDescriptor connectionDescriptor : current) {
+            unmatched.merge(new ConnectionDescriptorKey(connectionDescriptor), 1, Integer::sum);
+        }
+        for (ConnectionDescriptor connectionDescriptor : latest) {
+            ConnectionDescriptorKey key = new ConnectionDescriptorKey(connectionDescriptor);
+            Integer count = unmatched.get(key);
+            if (count == null) {
+                return false;
+            } else if (count == 1) {
+                unmatched.remove(key);
+            } else {
+                unmatched.put(key, count - 1);
+            }
+        }
+        return unmatched.isEmpty();
+    }
+
+    private void pruneInterned() {
+        Set<Long> live = new HashSet<>();
+        for (ConnectionDescriptors connectionDescriptors : releaseGroupToConnectionDescriptors.values()) {
+            live.add(connectionDescriptors.getFingerprint());
+        }
+        internedConnectionDescriptors.keySet().retainAll(live);
+    }
+
     public static class ConnectionDescriptorKey {
 
         private final InstanceDescriptor instanceDescriptor;
+        private final boolean sslEnabled;
+        private final boolean serviceAuthEnabled;
         private final HostPort hostPort;
         private final Map<String, String> properties;
         private final Map<String, String> monkeys;
+        private final int hashCode;
+
+        public ConnectionDescriptorKey(ConnectionDescriptor connectionDescriptor) {
+            this(connectionDescriptor.getInstanceDescriptor(),
+                connectionDescriptor.getSslEnabled(),
+                connectionDescriptor.getServiceAuthEnabled(),
+                connectionDescriptor.getHostPort(),
+                connectionDescriptor.getProperties(),
+                connectionDescriptor.getMonkeys());
+        }
 
         public ConnectionDescriptorKey(InstanceDescriptor instanceDescriptor,
+            HostPort hostPort,
+            Map<String, String> properties,
+            Map<String, String> monkeys) {
+            this(instanceDescriptor, false, false, hostPort, properties, monkeys);
+        }
+
+        public ConnectionDescriptorKey(InstanceDescriptor instanceDescriptor,
+            boolean sslEnabled,
+            boolean serviceAuthEnabled,
             HostPort hostPort,
             Map<String, String> properties,
             Map<String, String> monkeys) {
             this.instanceDescriptor = instanceDescriptor;
+            this.sslEnabled = sslEnabled;
+            this.serviceAuthEnabled = serviceAuthEnabled;
             this.hostPort = hostPort;
             this.properties = properties;
             this.monkeys = monkeys;
+            long hash = instanceDescriptor == null ? Fingerprints.of((String) null) : instanceDescriptor.fingerprint();
+            hash = Fingerprints.combine(hash, (sslEnabled ? 2 : 0) | (serviceAuthEnabled ? 1 : 0));
+            hash = Fingerprints.combine(hash, hostPort == null ? 0 : hostPort.hashCode());
+            hash = Fingerprints.combine(hash, Fingerprints.of(properties));
+            this.hashCode = Long.hashCode(Fingerprints.combine(hash, Fingerprints.of(monkeys)));
         }
 
         @Override
         public int hashCode() {
-            int hash = 5;
-            return hash;
+            return hashCode;
         }
 
         @Override
@@ -205,6 +564,9 @@ public class TenantsServiceConnectionDescriptorProvider<T> {
             if (!Objects.equals(this.instanceDescriptor, other.instanceDescriptor)) {
                 return false;
             }
+            if (this.sslEnabled != other.sslEnabled || this.serviceAuthEnabled != other.serviceAuthEnabled) {
+                return false;
+            }
             if (!Objects.equals(this.hostPort, other.hostPort)) {
                 return false;
             }
@@ -222,16 +584,42 @@ public class TenantsServiceConnectionDescriptorProvider<T> {
     public void start() {
         connectionsRefresher.scheduleWithFixedDelay(() -> {
             try {
-                for (Map.Entry<T, AtomicBoolean> entry : activeTenants.entrySet()) {
-                    try {
+                if (!staleTenants.isEmpty()) {
+                    List<T> stale = new ArrayList<>(staleTenants);
+                    staleTenants.removeAll(stale);
+                    refreshTenants(stale);
+                    LOG.inc("snapshot>revalidated", stale.size());
+                }
+
+                pruneInterned();
+                long now = System.currentTimeMillis();
+                expireSnapshotIfStale(now);
+                writeSnapshotIfDue(now);
+
+                long safetyNet = safetyNetRefreshMillis;
+                if (safetyNet > 0 && now - lastPolledTimestamp < safetyNet) {
+                    return;
+                }
+                lastPolledTimestamp = now;
+
+                if (connectionsProvider instanceof BatchConnectionDescriptorsProvider) {
+                    List<T> batch = new ArrayList<>(refreshBatchSize);
+                    for (Map.Entry<T, AtomicBoolean> entry : activeTenants.entrySet()) {
                         if (entry.getValue().compareAndSet(true, false)) {
-                            refreshConnections(entry.getKey());
+                            batch.add(entry.getKey());
+                            if (batch.size() == refreshBatchSize) {
+                                refreshBatch(batch);
+                                batch.clear();
+                            }
                         }
-                    } catch (Exception x) {
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("Error refreshing connections.", x);
-                        } else {
-                            LOG.warn("failure refreshing connections.");
+                    }
+                    if (!batch.isEmpty()) {
+                        refreshBatch(batch);
+                    }
+                } else {
+                    for (Map.Entry<T, AtomicBoolean> entry : activeTenants.entrySet()) {
+                        if (entry.getValue().compareAndSet(true, false)) {
+                            refreshTenant(entry.getKey());
                         }
                     }
                 }
@@ -245,4 +633,42 @@ public class TenantsServiceConnectionDescriptorProvider<T> {
         }, refreshConnectionsAfterNMillis, refreshConnectionsAfterNMillis, TimeUnit.MILLISECONDS);
     }
 
+    private void writeSnapshotIfDue(long now) {
+        RouteSnapshots snapshots = routeSnapshots;
+        if (snapshots != null && now - lastSnapshotTimestamp >= snapshots.getWriteEveryNMillis()) {
+            lastSnapshotTimestamp = now;
+            File file = snapshots.getFile(connectToServiceNamed, portName);
+            try {
+                RouteSnapshot.write(file, now, tenantToReleaseGroup, releaseGroupToConnectionDescriptors);
+                LOG.inc("snapshot>written");
+            } catch (IOException x) {
+                LOG.warn("Failed to write route snapshot:{} {}", file, x.getMessage());
+            }
+        }
+    }
+
+    private void refreshTenant(T tenantId) {
+        try {
+            refreshConnections(tenantId);
+        } catch (Exception x) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Error refreshing connections.", x);
+            } else {
+                LOG.warn("failure refreshing connections.");
+            }
+        }
+    }
+
+    private void refreshBatch(List<T> batch) {
+        try {
+            refreshConnections(batch);
+        } catch (Exception x) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Error refreshing connections for a batch of {} tenants.", new Object[] { batch.size() }, x);
+            } else {
+                LOG.warn("failure refreshing connections for a batch of {} tenants.", batch.size());
+            }
+        }
+    }
+
 }
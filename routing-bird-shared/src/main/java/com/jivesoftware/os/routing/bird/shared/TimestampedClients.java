@@ -1,5 +1,7 @@
 package com.jivesoftware.os.routing.bird.shared;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  *
  */
@@ -7,6 +9,8 @@ public interface TimestampedClients<C, E extends Throwable> {
 
     <R> R call(NextClientStrategy strategy, String family, ClientCall<C, R, E> httpCall) throws E;
 
+    <R> CompletableFuture<R> callAsync(NextClientStrategy strategy, String family, AsyncClientCall<C, R> httpCall);
+
     long getTimestamp();
 
     String getRoutingGroup();
@@ -0,0 +1,131 @@
+package com.jivesoftware.os.routing.bird.shared;
+
+import com.jivesoftware.os.routing.bird.shared.CircuitBreaker.Permit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testTripsOnErrorRate() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, 0.5d, 10_000, 1_000, 1);
+        long now = 1_000_000;
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(breaker.allowRequest(now), Permit.request);
+            breaker.success(now, Permit.request);
+        }
+        for (int i = 0; i < 9; i++) {
+            Assert.assertEquals(breaker.allowRequest(now), Permit.request);
+            Assert.assertFalse(breaker.failure(now, Permit.request));
+        }
+        Assert.assertEquals(breaker.getState(), CircuitBreaker.State.closed);
+
+        Assert.assertEquals(breaker.allowRequest(now), Permit.request);
+        Assert.assertTrue(breaker.failure(now, Permit.request));
+        Assert.assertEquals(breaker.getState(), CircuitBreaker.State.open);
+        Assert.assertEquals(breaker.allowRequest(now + 999), Permit.denied);
+        Assert.assertFalse(breaker.isAvailable(now + 999));
+    }
+
+    @Test
+    public void testHalfOpenAdmitsBoundedProbes() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 0.5d, 10_000, 1_000, 2);
+        long now = 1_000_000;
+        Assert.assertEquals(breaker.allowRequest(now), Permit.request);
+        Assert.assertTrue(breaker.failure(now, Permit.request));
+
+        now += 1_000;
+        Assert.assertTrue(breaker.isAvailable(now));
+        Assert.assertEquals(breaker.allowRequest(now), Permit.probe);
+        Assert.assertEquals(breaker.allowRequest(now), Permit.probe);
+        Assert.assertEquals(breaker.allowRequest(now), Permit.denied);
+        Assert.assertEquals(breaker.getState(), CircuitBreaker.State.half_open);
+
+        Assert.assertTrue(breaker.failure(now, Permit.probe));
+        Assert.assertEquals(breaker.getState(), CircuitBreaker.State.open);
+        breaker.ignored(Permit.probe);
+
+        now += 1_000;
+        Assert.assertEquals(breaker.allowRequest(now), Permit.probe);
+        breaker.success(now, Permit.probe);
+        Assert.assertEquals(breaker.getState(), CircuitBreaker.State.closed);
+        Assert.assertEquals(breaker.allowRequest(now), Permit.request);
+    }
+
+    @Test
+    public void testLateClosedCompletionsDontMoveHalfOpen() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 0.5d, 10_000, 1_000, 1);
+        long now = 1_000_000;
+        Permit slowSuccess = breaker.allowRequest(now);
+        Permit slowFailure = breaker.allowRequest(now);
+        Assert.assertEquals(breaker.allowRequest(now), Permit.request);
+        Assert.assertTrue(breaker.failure(now, Permit.request));
+
+        now += 1_000;
+        Assert.assertEquals(breaker.allowRequest(now), Permit.probe);
+        Assert.assertEquals(breaker.getState(), CircuitBreaker.State.half_open);
+
+        breaker.success(now, slowSuccess);
+        Assert.assertEquals(breaker.getState(), CircuitBreaker.State.half_open);
+        Assert.assertFalse(breaker.failure(now, slowFailure));
+        Assert.assertEquals(breaker.getState(), CircuitBreaker.State.half_open);
+        Assert.assertEquals(breaker.allowRequest(now), Permit.denied, "late completions must not hand back the probe permit");
+
+        breaker.success(now, Permit.probe);
+        Assert.assertEquals(breaker.getState(), CircuitBreaker.State.closed);
+    }
+
+    @Test
+    public void testLateClosedCompletionsDontReleaseProbes() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 0.5d, 10_000, 1_000, 1);
+        long now = 1_000_000;
+        Permit slow = breaker.allowRequest(now);
+        Assert.assertEquals(breaker.allowRequest(now), Permit.request);
+        Assert.assertTrue(breaker.failure(now, Permit.request));
+
+        now += 1_000;
+        Assert.assertEquals(breaker.allowRequest(now), Permit.probe);
+        breaker.ignored(slow);
+        Assert.assertEquals(breaker.allowRequest(now), Permit.denied);
+
+        Assert.assertTrue(breaker.failure(now, Permit.probe));
+        Assert.assertEquals(breaker.getState(), CircuitBreaker.State.open);
+    }
+
+    @Test
+    public void testConcurrentReopeningNeverAdmitsExtraProbes() throws Exception {
+        for (int round = 0; round < 100; round++) {
+            CircuitBreaker breaker = new CircuitBreaker(1, 0.5d, 10_000, 1_000, 1);
+            long now = 1_000_000;
+            breaker.failure(now, breaker.allowRequest(now));
+
+            long later = now + 1_000;
+            AtomicInteger probes = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException x) {
+                        return;
+                    }
+                    if (breaker.allowRequest(later) == Permit.probe) {
+                        probes.incrementAndGet();
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals(probes.get(), 1);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.jivesoftware.os.routing.bird.shared;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ConcurrencyLimitTest {
+
+    @Test
+    public void testRejectsOverLimit() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(2, 1, 10);
+        Assert.assertTrue(limit.tryAcquire());
+        Assert.assertTrue(limit.tryAcquire());
+        Assert.assertFalse(limit.tryAcquire());
+        Assert.assertEquals(limit.getRejected(), 1);
+        Assert.assertEquals(limit.getInflight(), 2);
+
+        limit.release(1_000, false);
+        Assert.assertEquals(limit.getInflight(), 1);
+        Assert.assertTrue(limit.tryAcquire());
+    }
+
+    @Test
+    public void testAdaptsToLatency() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(10, 1, 100);
+        for (int i = 0; i < 50; i++) {
+            saturate(limit, 1_000);
+        }
+        int grown = limit.getLimit();
+        Assert.assertTrue(grown > 10, "grown:" + grown);
+
+        for (int i = 0; i < 50; i++) {
+            saturate(limit, 10_000);
+        }
+        int shrunk = limit.getLimit();
+        Assert.assertTrue(shrunk < grown, "grown:" + grown + " shrunk:" + shrunk);
+
+        limit.tryAcquire();
+        limit.release(1_000, true);
+        Assert.assertTrue(limit.getLimit() < shrunk, "shrunk:" + shrunk + " dropped:" + limit.getLimit());
+    }
+
+    private static void saturate(ConcurrencyLimit limit, long rttNanos) {
+        int acquired = 0;
+        while (limit.tryAcquire()) {
+            acquired++;
+        }
+        for (int i = 0; i < acquired; i++) {
+            limit.release(rttNanos, false);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.jivesoftware.os.routing.bird.shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ContentCodecTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] body = new String(new char[10_000]).replace('\0', 'a').getBytes(StandardCharsets.UTF_8);
+        for (ContentCodec codec : ContentCodec.values()) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream out = codec.compress(compressed)) {
+                out.write(body);
+            }
+            Assert.assertTrue(compressed.size() < body.length / 10, codec + " compressed to " + compressed.size());
+
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+            try (InputStream in = codec.decompress(new ByteArrayInputStream(compressed.toByteArray()))) {
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    inflated.write(buffer, 0, read);
+                }
+            }
+            Assert.assertEquals(inflated.toByteArray(), body);
+        }
+    }
+
+    @Test
+    public void testForEncoding() {
+        Assert.assertEquals(ContentCodec.forEncoding(" GZIP "), ContentCodec.gzip);
+        Assert.assertEquals(ContentCodec.forEncoding("deflate"), ContentCodec.deflate);
+        Assert.assertNull(ContentCodec.forEncoding("identity"));
+        Assert.assertNull(ContentCodec.forEncoding("zstd"));
+        Assert.assertNull(ContentCodec.forEncoding(null));
+    }
+}
@@ -0,0 +1,132 @@
+package com.jivesoftware.os.routing.bird.shared;
+
+import com.jivesoftware.os.routing.bird.shared.ClientCall.ClientResponse;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class DeadlineClientCallTest {
+
+    private final ReturnFirstNonFailure returnFirstNonFailure = new ReturnFirstNonFailure();
+    private final IndexedClientStrategy inOrder = new IndexedClientStrategy() {
+        @Override
+        public int[] getClients(ConnectionDescriptor[] connectionDescriptors) {
+            return new int[] { 0, 1 };
+        }
+
+        @Override
+        public void usedClientAtIndex(int index) {
+        }
+    };
+
+    @Test
+    public void testInheritsEarliestDeadline() throws Exception {
+        ClientCall<String, String, HttpClientException> call = client -> new ClientResponse<>(client, true);
+        Assert.assertSame(DeadlineClientCall.bind(call), call);
+
+        Deadline soon = Deadline.in(10, TimeUnit.MILLISECONDS);
+        Deadline later = Deadline.in(10, TimeUnit.SECONDS);
+        Deadline previous = Deadline.set(soon);
+        try {
+            Assert.assertSame(DeadlineClientCall.deadline(DeadlineClientCall.bind(call)), soon);
+            Assert.assertSame(DeadlineClientCall.deadline(DeadlineClientCall.bind(new DeadlineClientCall<>(later, call))), soon);
+        } finally {
+            Deadline.set(previous);
+        }
+
+        Deadline[] seen = new Deadline[1];
+        new DeadlineClientCall<String, String>(later, client -> {
+            seen[0] = Deadline.current();
+            return new ClientResponse<>(client, true);
+        }).call("a");
+        Assert.assertSame(seen[0], later);
+        Assert.assertNull(Deadline.current());
+    }
+
+    @Test
+    public void testStopsRetryingOnceDeadlinePasses() throws Exception {
+        CircuitBreaker[] breakers = { new CircuitBreaker(1, 10_000), new CircuitBreaker(1, 10_000) };
+        ClientHealth[] healths = { Mockito.mock(ClientHealth.class), Mockito.mock(ClientHealth.class) };
+        AtomicInteger calls = new AtomicInteger();
+
+        ClientCall<String, String, HttpClientException> call = new DeadlineClientCall<>(Deadline.in(20, TimeUnit.MILLISECONDS), client -> {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new HttpClientException("timed out", new SocketTimeoutException());
+        });
+
+        try {
+            returnFirstNonFailure.call(inOrder, "test", call, new ConnectionDescriptor[2], 1, new String[] { "a", "b" }, healths, breakers, null);
+            Assert.fail();
+        } catch (DeadlineExceededException x) {
+            // expected
+        }
+        Assert.assertEquals(calls.get(), 1);
+        Assert.assertEquals(breakers[0].getState(), CircuitBreaker.State.closed);
+    }
+
+    @Test
+    public void testAsyncFailsFastOnceDeadlinePasses() throws Exception {
+        CircuitBreaker[] breakers = { new CircuitBreaker(1, 10_000), new CircuitBreaker(1, 10_000) };
+        ClientHealth[] healths = { Mockito.mock(ClientHealth.class), Mockito.mock(ClientHealth.class) };
+        AtomicInteger calls = new AtomicInteger();
+
+        AsyncClientCall<String, String> call = new DeadlineAsyncClientCall<>(Deadline.in(-1, TimeUnit.MILLISECONDS), client -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture(new ClientResponse<>(client, true));
+        });
+
+        CompletableFuture<String> result = returnFirstNonFailure.callAsync(inOrder, "test", call, new ConnectionDescriptor[2], 1,
+            new String[] { "a", "b" }, healths, breakers);
+        try {
+            result.get();
+            Assert.fail();
+        } catch (ExecutionException x) {
+            Assert.assertTrue(x.getCause() instanceof DeadlineExceededException);
+        }
+        Assert.assertEquals(calls.get(), 0);
+    }
+
+    @Test
+    public void testAsyncStopsRetryingOnceDeadlinePasses() throws Exception {
+        CircuitBreaker[] breakers = { new CircuitBreaker(1, 10_000), new CircuitBreaker(1, 10_000) };
+        ClientHealth[] healths = { Mockito.mock(ClientHealth.class), Mockito.mock(ClientHealth.class) };
+        AtomicInteger calls = new AtomicInteger();
+        Deadline[] seen = new Deadline[1];
+
+        Deadline deadline = Deadline.in(20, TimeUnit.MILLISECONDS);
+        AsyncClientCall<String, String> call = new DeadlineAsyncClientCall<>(deadline, client -> {
+            calls.incrementAndGet();
+            seen[0] = Deadline.current();
+            CompletableFuture<ClientResponse<String>> timedOut = new CompletableFuture<>();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            timedOut.completeExceptionally(new HttpClientException("timed out", new SocketTimeoutException()));
+            return timedOut;
+        });
+
+        CompletableFuture<String> result = returnFirstNonFailure.callAsync(inOrder, "test", call, new ConnectionDescriptor[2], 1,
+            new String[] { "a", "b" }, healths, breakers);
+        try {
+            result.get();
+            Assert.fail();
+        } catch (ExecutionException x) {
+            Assert.assertTrue(x.getCause() instanceof DeadlineExceededException);
+        }
+        Assert.assertEquals(calls.get(), 1);
+        Assert.assertSame(seen[0], deadline);
+        Assert.assertEquals(breakers[0].getState(), CircuitBreaker.State.closed);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LatencyRecorderTest {
+
+    @Test
+    public void testBucketsRoundTrip() {
+        for (long value : new long[] { 0, 1, 7, 8, 15, 16, 17, 100, 1_000, 65_535, 1L << 40, Long.MAX_VALUE }) {
+            int bucket = LatencyRecorder.bucket(value);
+            Assert.assertTrue(LatencyRecorder.lowestValue(bucket) <= value, "value:" + value);
+            Assert.assertTrue(LatencyRecorder.highestValue(bucket) >= value, "value:" + value);
+        }
+        for (int bucket = 1; bucket <= LatencyRecorder.bucket(Long.MAX_VALUE); bucket++) {
+            Assert.assertEquals(LatencyRecorder.lowestValue(bucket), LatencyRecorder.highestValue(bucket - 1) + 1);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyRecorder recorder = new LatencyRecorder(10_000, 0);
+        Assert.assertTrue(Double.isNaN(recorder.getPercentile(50)));
+
+        for (int i = 1; i <= 1_000; i++) {
+            recorder.record(i);
+        }
+        assertWithin(recorder.getPercentile(50), 500, 0.125);
+        assertWithin(recorder.getPercentile(95), 950, 0.125);
+        Assert.assertEquals(recorder.getMax(), 1_000);
+        Assert.assertEquals(recorder.getMean(), 500.5, 0.001);
+        Assert.assertEquals(recorder.getCount(), 1_000);
+
+        recorder.clear();
+        Assert.assertEquals(recorder.getCount(), 0);
+    }
+
+    @Test
+    public void testWindowForgetsOldValues() {
+        LatencyRecorder recorder = new LatencyRecorder(100, 0);
+        for (int i = 0; i < 1_000; i++) {
+            recorder.record(1_000);
+        }
+        for (int i = 0; i < 200; i++) {
+            recorder.record(10);
+        }
+        Assert.assertEquals(recorder.getPercentile(99), 10d, 1d);
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        LatencyRecorder recorder = new LatencyRecorder(Integer.MAX_VALUE, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            executor.submit(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    recorder.record(42);
+                }
+            });
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        Assert.assertEquals(recorder.getCount(), 80_000);
+        Assert.assertEquals(recorder.getMax(), 42);
+    }
+
+    private static void assertWithin(double actual, double expected, double relativeError) {
+        Assert.assertTrue(Math.abs(actual - expected) <= expected * relativeError, "expected:" + expected + " actual:" + actual);
+    }
+}
@@ -0,0 +1,41 @@
+package com.jivesoftware.os.routing.bird.shared;
+
+import com.jivesoftware.os.routing.bird.shared.ClientCall.ClientResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ReturnFirstNonFailureTest {
+
+    private final ReturnFirstNonFailure returnFirstNonFailure = new ReturnFirstNonFailure();
+
+    @Test
+    public void testAsyncCallbackFailureCompletesResult() throws Exception {
+        IndexedClientStrategy throwing = new IndexedClientStrategy() {
+            @Override
+            public int[] getClients(ConnectionDescriptor[] connectionDescriptors) {
+                return new int[] { 0 };
+            }
+
+            @Override
+            public void usedClientAtIndex(int index) {
+                throw new IllegalStateException("broken strategy");
+            }
+        };
+        CircuitBreaker[] breakers = { new CircuitBreaker(1, 10_000) };
+        ClientHealth[] healths = { Mockito.mock(ClientHealth.class) };
+
+        CompletableFuture<String> result = returnFirstNonFailure.callAsync(throwing, "test",
+            client -> CompletableFuture.completedFuture(new ClientResponse<>(client, true)),
+            new ConnectionDescriptor[1], 1, new String[] { "a" }, healths, breakers);
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException x) {
+            Assert.assertTrue(x.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.jivesoftware.os.routing.bird.shared;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RouteSnapshotTest {
+
+    private File directory;
+    private Map<String, String> tenantToReleaseGroup;
+    private Map<String, ConnectionDescriptors> releaseGroupToConnectionDescriptors;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("routes").toFile();
+        tenantToReleaseGroup = new HashMap<>();
+        releaseGroupToConnectionDescriptors = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            tenantToReleaseGroup.put("tenant" + i, "releaseGroup" + (i % 3));
+        }
+        tenantToReleaseGroup.put("lost", "unknown");
+        for (int i = 0; i < 3; i++) {
+            InstanceDescriptor instanceDescriptor = new InstanceDescriptor("dc", "rk", "ph", "ck", "cn", "sk", "sn", "rgk", "rgn", "ik" + i, i,
+                "vn", "r", "pk", 0, true);
+            ConnectionDescriptor connection = new ConnectionDescriptor(instanceDescriptor, false, false, new HostPort("host" + i, 10_000 + i),
+                Collections.singletonMap("k", "v"), Collections.EMPTY_MAP);
+            releaseGroupToConnectionDescriptors.put("releaseGroup" + i, new ConnectionDescriptors(1_000 + i, Collections.singletonList(connection)));
+        }
+        releaseGroupToConnectionDescriptors.put("unknown", new ConnectionDescriptors(0, Collections.<ConnectionDescriptor>emptyList()));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = new File(directory, "service.port.routes");
+        RouteSnapshot.write(file, 1234L, tenantToReleaseGroup, releaseGroupToConnectionDescriptors);
+
+        RouteSnapshot snapshot = RouteSnapshot.load(file);
+        Assert.assertNotNull(snapshot);
+        Assert.assertEquals(snapshot.getTimestamp(), 1234L);
+        Assert.assertEquals(snapshot.getTenantCount(), 100);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(snapshot.getReleaseGroup("tenant" + i), "releaseGroup" + (i % 3));
+            ConnectionDescriptors connections = snapshot.getConnections("tenant" + i);
+            Assert.assertEquals(connections.getTimestamp(), 1_000 + (i % 3));
+            Assert.assertEquals(connections.getConnectionDescriptors().get(0).getHostPort(), new HostPort("host" + (i % 3), 10_000 + (i % 3)));
+            Assert.assertEquals(connections.getConnectionDescriptors().get(0).getInstanceDescriptor().instanceKey, "ik" + (i % 3));
+        }
+        Assert.assertSame(snapshot.getConnections("tenant0"), snapshot.getConnections("tenant3"));
+        Assert.assertNull(snapshot.getReleaseGroup("lost"));
+        Assert.assertNull(snapshot.getConnections("missing"));
+    }
+
+    @Test
+    public void testRejectsCorruptAndForeignFiles() throws Exception {
+        File file = new File(directory, "service.port.routes");
+        Assert.assertNull(RouteSnapshot.load(file));
+
+        RouteSnapshot.write(file, 1234L, tenantToReleaseGroup, releaseGroupToConnectionDescriptors);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xFF);
+        }
+        RouteSnapshot corrupt = RouteSnapshot.load(file);
+        Assert.assertNotNull(corrupt);
+        Assert.assertEquals(corrupt.getTimestamp(), 1234L);
+        Assert.assertFalse(corrupt.verify());
+        Assert.assertNull(corrupt.getReleaseGroup("tenant0"));
+        Assert.assertNull(corrupt.getConnections("tenant0"));
+        corrupt.close();
+
+        RouteSnapshot.write(file, 1234L, tenantToReleaseGroup, releaseGroupToConnectionDescriptors);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.writeInt(RouteSnapshot.VERSION + 1);
+        }
+        Assert.assertNull(RouteSnapshot.load(file));
+    }
+
+    @Test
+    public void testClosedSnapshotsServeNothing() throws Exception {
+        File file = new File(directory, "service.port.routes");
+        RouteSnapshot.write(file, 1234L, tenantToReleaseGroup, releaseGroupToConnectionDescriptors);
+
+        RouteSnapshot snapshot = RouteSnapshot.load(file);
+        Assert.assertNotNull(snapshot.getConnections("tenant0"));
+        snapshot.close();
+        snapshot.close();
+        Assert.assertFalse(snapshot.verify());
+        Assert.assertNull(snapshot.getReleaseGroup("tenant0"));
+        Assert.assertNull(snapshot.getConnections("tenant0"));
+    }
+
+    @Test
+    public void testServesSnapshotUntilRevalidated() throws Exception {
+        RouteSnapshots routeSnapshots = new RouteSnapshots(directory, 60_000, 60_000);
+        RouteSnapshot.write(routeSnapshots.getFile("serviceA", "port1"), System.currentTimeMillis(), tenantToReleaseGroup,
+            releaseGroupToConnectionDescriptors);
+
+        AtomicInteger requested = new AtomicInteger();
+        ConnectionDescriptorsProvider connectionsProvider = (connectionsRequest, expectedReleaseGroup) -> {
+            requested.incrementAndGet();
+            return null;
+        };
+
+        ScheduledExecutorService refresher = Executors.newScheduledThreadPool(1);
+        try {
+            TenantRoutingProvider<String> routingProvider = new TenantRoutingProvider<>(refresher, "1234", connectionsProvider, routeSnapshots);
+            TenantsServiceConnectionDescriptorProvider<String> descriptorProvider = routingProvider.getConnections("serviceA", "port1", 50);
+
+            // served from the snapshot without waiting on the routes service
+            ConnectionDescriptors connections = descriptorProvider.getConnections("tenant4");
+            Assert.assertEquals(requested.get(), 0);
+            Assert.assertEquals(connections.getConnectionDescriptors().get(0).getHostPort(), new HostPort("host1", 10_001));
+            Assert.assertEquals(descriptorProvider.getRoutingGroup("tenant4"), "releaseGroup1");
+
+            long giveUp = System.currentTimeMillis() + 5_000;
+            while (requested.get() == 0 && System.currentTimeMillis() < giveUp) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(requested.get() > 0);
+            // the routes service still did not answer so the snapshot's routes are kept
+            Assert.assertSame(descriptorProvider.getConnections("tenant4"), connections);
+
+            descriptorProvider.getConnections("brandNew");
+            Assert.assertEquals(descriptorProvider.getRoutingGroup("brandNew"), "unknown");
+
+            descriptorProvider.invalidateTenant("tenant5");
+            descriptorProvider.getConnections("tenant5");
+            Assert.assertEquals(descriptorProvider.getRoutingGroup("tenant5"), "unknown");
+        } finally {
+            refresher.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRevalidationReplacesSnapshotRoutes() throws Exception {
+        RouteSnapshots routeSnapshots = new RouteSnapshots(directory, 60_000, 60_000);
+        RouteSnapshot.write(routeSnapshots.getFile("serviceA", "port1"), System.currentTimeMillis(), tenantToReleaseGroup,
+            releaseGroupToConnectionDescriptors);
+
+        ConnectionDescriptorsProvider connectionsProvider = (connectionsRequest, expectedReleaseGroup) -> new ConnectionDescriptorsResponse(1,
+            Collections.<String>emptyList(), "live", Collections.<ConnectionDescriptor>emptyList(), connectionsRequest.getRequestUuid());
+
+        ScheduledExecutorService refresher = Executors.newScheduledThreadPool(1);
+        try {
+            TenantRoutingProvider<String> routingProvider = new TenantRoutingProvider<>(refresher, "1234", connectionsProvider, routeSnapshots);
+            TenantsServiceConnectionDescriptorProvider<String> descriptorProvider = routingProvider.getConnections("serviceA", "port1", 50);
+
+            Assert.assertEquals(descriptorProvider.getConnections("tenant4").getReleaseGroup(), "releaseGroup1");
+            long giveUp = System.currentTimeMillis() + 5_000;
+            while (!descriptorProvider.getRoutingGroup("tenant4").equals("live") && System.currentTimeMillis() < giveUp) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(descriptorProvider.getConnections("tenant4").getReleaseGroup(), "live");
+            Assert.assertEquals(descriptorProvider.getConnections("brandNew").getReleaseGroup(), "live");
+        } finally {
+            refresher.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStaleSnapshotsAreIgnored() throws Exception {
+        RouteSnapshots routeSnapshots = new RouteSnapshots(directory, 60_000, 60_000);
+        RouteSnapshot.write(routeSnapshots.getFile("serviceA", "port1"), System.currentTimeMillis() - 120_000, tenantToReleaseGroup,
+            releaseGroupToConnectionDescriptors);
+
+        ConnectionDescriptorsProvider connectionsProvider = (connectionsRequest, expectedReleaseGroup) -> null;
+
+        ScheduledExecutorService refresher = Executors.newScheduledThreadPool(1);
+        try {
+            TenantRoutingProvider<String> routingProvider = new TenantRoutingProvider<>(refresher, "1234", connectionsProvider, routeSnapshots);
+            TenantsServiceConnectionDescriptorProvider<String> descriptorProvider = routingProvider.getConnections("serviceA", "port1", 60_000);
+
+            Assert.assertTrue(descriptorProvider.getConnections("tenant4").getConnectionDescriptors().isEmpty());
+            Assert.assertEquals(descriptorProvider.getRoutingGroup("tenant4"), "unknown");
+        } finally {
+            refresher.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 Jive Software, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.jivesoftware.os.routing.bird.shared;
+
+import com.jivesoftware.os.routing.bird.shared.ClientCall.ClientResponse;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures how tenantAwareCall scales from 1 to 64 threads when routes are stable and a handful of tenants are hot.
+ * Not part of the test suite; build with -Pbenchmarks and run main() from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TenantRoutingClientBenchmark {
+
+    @Param({ "1", "4" })
+    public int hotTenants;
+
+    private TenantRoutingClient<String, BenchmarkClient, RuntimeException> client;
+    private String[] tenants;
+    private final ClientCall<BenchmarkClient, Boolean, RuntimeException> call = c -> new ClientResponse<>(Boolean.TRUE, true);
+
+    @Setup
+    public void setup() {
+        ConnectionDescriptors connectionDescriptors = new ConnectionDescriptors(System.currentTimeMillis(), Collections.emptyList());
+        TenantsServiceConnectionDescriptorProvider<String> provider = new TenantsServiceConnectionDescriptorProvider<>(
+            Executors.newSingleThreadScheduledExecutor(),
+            "instance",
+            (request, expectedReleaseGroup) -> new ConnectionDescriptorsResponse(1, Collections.emptyList(), "releaseGroup",
+                connectionDescriptors.getConnectionDescriptors(), request.getRequestUuid()),
+            "service",
+            "main",
+            Long.MAX_VALUE);
+
+        BenchmarkClient[] clients = new BenchmarkClient[] { new BenchmarkClient() };
+        client = new TenantRoutingClient<>(provider,
+            (routingGroup, connections, existing) -> new BenchmarkTimestampedClients(connections.getTimestamp(), clients),
+            closeable -> {
+            });
+
+        tenants = new String[hotTenants];
+        for (int i = 0; i < hotTenants; i++) {
+            tenants[i] = "tenant-" + i;
+        }
+    }
+
+    @Benchmark
+    public Boolean tenantAwareCall() {
+        String tenant = tenants[(int) (Thread.currentThread().getId() % tenants.length)];
+        return client.tenantAwareCall(tenant, null, "benchmark", call);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[] { 1, 2, 4, 8, 16, 32, 64 }) {
+            Options options = new OptionsBuilder()
+                .include(TenantRoutingClientBenchmark.class.getSimpleName())
+                .threads(threads)
+                .build();
+            new Runner(options).run();
+        }
+    }
+
+    private static class BenchmarkClient implements HasHttpClientPoolStats {
+
+        @Override
+        public HttpClientPoolStats getPoolStats() {
+            return new HttpClientPoolStats(0, 0, 0, 0);
+        }
+    }
+
+    private static class BenchmarkTimestampedClients implements TimestampedClients<BenchmarkClient, RuntimeException> {
+
+        private final long timestamp;
+        private final BenchmarkClient[] clients;
+
+        BenchmarkTimestampedClients(long timestamp, BenchmarkClient[] clients) {
+            this.timestamp = timestamp;
+            this.clients = clients;
+        }
+
+        @Override
+        public <R> R call(NextClientStrategy strategy, String family, ClientCall<BenchmarkClient, R, RuntimeException> httpCall) {
+            return httpCall.call(clients[0]).response;
+        }
+
+        @Override
+        public <R> CompletableFuture<R> callAsync(NextClientStrategy strategy, String family, AsyncClientCall<BenchmarkClient, R> httpCall) {
+            return httpCall.call(clients[0]).thenApply(clientResponse -> clientResponse.response);
+        }
+
+        @Override
+        public String getRoutingGroup() {
+            return "releaseGroup";
+        }
+
+        @Override
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public BenchmarkClient[] getClients() {
+            return clients;
+        }
+    }
+}
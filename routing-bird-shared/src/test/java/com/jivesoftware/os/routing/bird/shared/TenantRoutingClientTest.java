@@ -20,8 +20,8 @@ import com.jivesoftware.os.routing.bird.shared.ReturnFirstNonFailure.Favored;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.IntStream;
 import org.mockito.Matchers;
 import org.mockito.Mock;
@@ -59,32 +59,120 @@ public class TenantRoutingClientTest {
     }
 
     private void initDescriptorsPool(long timestamp) throws Exception {
+        initDescriptorsPool(timestamp, testClients);
+    }
+
+    private void initDescriptorsPool(long timestamp, TestClient[] clients) throws Exception {
+        initDescriptorsPool(timestamp, clients, "routingGroup");
+    }
+
+    private void initDescriptorsPool(long timestamp, TestClient[] clients, String routingGroup) throws Exception {
         InstanceDescriptor instanceDescriptor = new InstanceDescriptor("dc", "rk", "ph", "ck", "cn", "sk", "sn", "rgk", "rgn", "ik", 1, "vn", "r", "pk", 0,
             true);
         ConnectionDescriptor descriptor = new ConnectionDescriptor(instanceDescriptor, false, false, new HostPort("localhost", 7777), Collections.EMPTY_MAP,
             Collections.EMPTY_MAP);
-        ConnectionDescriptors connectionDescriptors = new ConnectionDescriptors(timestamp, Arrays.asList(descriptor));
+        List<ConnectionDescriptor> descriptors = Arrays.asList(descriptor);
+        ConnectionDescriptors connectionDescriptors = new ConnectionDescriptors(timestamp, descriptors,
+            ConnectionDescriptors.fingerprint(descriptors), routingGroup);
         strategy = new TestStrategy();
-        Mockito.when(tenantsServiceConnectionDescriptorProvider.getConnections(tenantId)).thenReturn(connectionDescriptors);
-        Mockito.when(clientConnectionsFactory.createClients(Matchers.anyString(), Matchers.same(connectionDescriptors))).thenReturn(new TestTimestampedClients(
-            testClients));
+        Mockito.when(tenantsServiceConnectionDescriptorProvider.getConnections(Matchers.anyString())).thenReturn(connectionDescriptors);
+        Mockito.when(tenantsServiceConnectionDescriptorProvider.getRoutingGroup(Matchers.anyString())).thenReturn("staleRoutingGroup");
+        Mockito.when(tenantsServiceConnectionDescriptorProvider.getRoutingGroups()).thenReturn(Collections.singleton(routingGroup));
+        Mockito.when(clientConnectionsFactory.createClients(Matchers.eq(routingGroup), Matchers.same(connectionDescriptors), Matchers.any()))
+            .thenReturn(new TestTimestampedClients(timestamp, clients));
     }
 
     @Test
     public void testTenantAwareCall() throws Exception {
         TenantRoutingClient<String, TestClient, IOException> instance = new TenantRoutingClient<>(
-            tenantsServiceConnectionDescriptorProvider, clientConnectionsFactory, closer);
+            tenantsServiceConnectionDescriptorProvider, clientConnectionsFactory, closer, 0);
         Boolean expResult = true;
         Boolean result = instance.tenantAwareCall(tenantId, strategy, "a", clientCall);
 
         Assert.assertEquals(result, expResult);
         Mockito.verifyZeroInteractions(closer);
 
-        initDescriptorsPool(System.currentTimeMillis() + 1000);
+        initDescriptorsPool(System.currentTimeMillis() + 1000, new TestClient[] { new TestClient() });
 
         result = instance.tenantAwareCall(tenantId, strategy, "a", clientCall);
         Assert.assertEquals(result, expResult);
+        Mockito.verify(closer, Mockito.timeout(5_000)).closeClients(testClients);
+    }
+
+    @Test
+    public void testRetainedClientsAreNotClosed() throws Exception {
+        TenantRoutingClient<String, TestClient, IOException> instance = new TenantRoutingClient<>(
+            tenantsServiceConnectionDescriptorProvider, clientConnectionsFactory, closer, 0);
+        instance.tenantAwareCall(tenantId, strategy, "a", clientCall);
+
+        TestClient added = new TestClient();
+        initDescriptorsPool(System.currentTimeMillis() + 1000, new TestClient[] { testClients[0], added });
+
+        Assert.assertEquals(instance.tenantAwareCall(tenantId, strategy, "a", clientCall), Boolean.TRUE);
+        Thread.sleep(100);
+        Mockito.verifyZeroInteractions(closer);
+    }
+
+    @Test
+    public void testTenantAwareCallAsync() throws Exception {
+        TenantRoutingClient<String, TestClient, IOException> instance = new TenantRoutingClient<>(
+            tenantsServiceConnectionDescriptorProvider, clientConnectionsFactory, closer);
+        AsyncClientCall<TestClient, Boolean> asyncCall = client -> CompletableFuture.completedFuture(new ClientResponse<>(Boolean.TRUE, true));
+        Boolean result = instance.tenantAwareCallAsync(tenantId, strategy, "a", asyncCall).get();
+
+        Assert.assertEquals(result, Boolean.TRUE);
+        Mockito.verifyZeroInteractions(closer);
+    }
+
+    @Test
+    public void testTenantsInRoutingGroupShareClients() throws Exception {
+        TenantRoutingClient<String, TestClient, IOException> instance = new TenantRoutingClient<>(
+            tenantsServiceConnectionDescriptorProvider, clientConnectionsFactory, closer, 0);
+        ClientCall<TestClient, TestClient, IOException> whichClient = client -> new ClientResponse<>(client, true);
+
+        TestClient a = instance.tenantAwareCall("tenantA", strategy, "a", whichClient);
+        TestClient b = instance.tenantAwareCall("tenantB", strategy, "a", whichClient);
+
+        Assert.assertSame(a, b);
+        Mockito.verify(clientConnectionsFactory, Mockito.times(1)).createClients(Matchers.anyString(), Matchers.any(), Matchers.any());
+    }
+
+    @Test
+    public void testClientsAreKeyedByTheDescriptorsReleaseGroup() throws Exception {
+        TenantRoutingClient<String, TestClient, IOException> instance = new TenantRoutingClient<>(
+            tenantsServiceConnectionDescriptorProvider, clientConnectionsFactory, closer, 0);
+        instance.tenantAwareCall(tenantId, strategy, "a", clientCall);
+
+        Mockito.verify(clientConnectionsFactory).createClients(Matchers.eq("routingGroup"), Matchers.any(), Matchers.any());
+        Mockito.verify(tenantsServiceConnectionDescriptorProvider, Mockito.never()).getRoutingGroup(Matchers.anyString());
+    }
+
+    @Test
+    public void testAbandonedRoutingGroupsAreClosed() throws Exception {
+        TenantRoutingClient<String, TestClient, IOException> instance = new TenantRoutingClient<>(
+            tenantsServiceConnectionDescriptorProvider, clientConnectionsFactory, closer, 0);
+        instance.tenantAwareCall(tenantId, strategy, "a", clientCall);
+        Mockito.verifyZeroInteractions(closer);
+
+        TestClient[] movedTo = new TestClient[] { new TestClient() };
+        initDescriptorsPool(System.currentTimeMillis() + 1000, movedTo, "otherRoutingGroup");
+        instance.tenantAwareCall(tenantId, strategy, "a", clientCall);
+
+        Mockito.verify(closer, Mockito.timeout(5_000)).closeClients(testClients);
+        Mockito.verify(closer, Mockito.never()).closeClients(movedTo);
+    }
+
+    @Test
+    public void testCloseAll() throws Exception {
+        TenantRoutingClient<String, TestClient, IOException> instance = new TenantRoutingClient<>(
+            tenantsServiceConnectionDescriptorProvider, clientConnectionsFactory, closer);
+        instance.tenantAwareCall(tenantId, strategy, "a", clientCall);
+
+        instance.closeAll();
         Mockito.verify(closer).closeClients(testClients);
+
+        instance.tenantAwareCall(tenantId, strategy, "a", clientCall);
+        Mockito.verify(clientConnectionsFactory, Mockito.times(2)).createClients(Matchers.anyString(), Matchers.any(), Matchers.any());
     }
 
     private static class TestClient implements HasHttpClientPoolStats {
@@ -104,10 +192,7 @@ public class TenantRoutingClientTest {
             long connectionDescriptorsVersion,
             C[] clients,
             ClientHealth[] clientHealths,
-            int deadAfterNErrors,
-            long checkDeadEveryNMillis,
-            AtomicInteger[] clientsErrors,
-            AtomicLong[] clientsDeathTimestamp,
+            CircuitBreaker[] clientBreakers,
             Favored favored) throws HttpClientException {
             return returnFirstNonFailure.call(this,
                 family,
@@ -116,10 +201,7 @@ public class TenantRoutingClientTest {
                 connectionDescriptorsVersion,
                 clients,
                 clientHealths,
-                deadAfterNErrors,
-                checkDeadEveryNMillis,
-                clientsErrors,
-                clientsDeathTimestamp,
+                clientBreakers,
                 favored);
         }
 
@@ -135,9 +217,11 @@ public class TenantRoutingClientTest {
 
     private static class TestTimestampedClients implements TimestampedClients<TestClient, IOException> {
 
+        private final long timestamp;
         private final TestClient[] clients;
 
-        public TestTimestampedClients(TestClient[] clients) {
+        public TestTimestampedClients(long timestamp, TestClient[] clients) {
+            this.timestamp = timestamp;
             this.clients = clients;
         }
 
@@ -146,9 +230,14 @@ public class TenantRoutingClientTest {
             return httpCall.call(clients[0]).response;
         }
 
+        @Override
+        public <R> CompletableFuture<R> callAsync(NextClientStrategy strategy, String family, AsyncClientCall<TestClient, R> httpCall) {
+            return httpCall.call(clients[0]).thenApply(clientResponse -> clientResponse.response);
+        }
+
         @Override
         public long getTimestamp() {
-            return 0;
+            return timestamp;
         }
 
         @Override
@@ -18,7 +18,14 @@ package com.jivesoftware.os.routing.bird.shared;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
@@ -87,4 +94,102 @@ public class TenantRoutingProviderTest {
         Assert.assertTrue(routingReport.serviceReport.size() == 1);
 
     }
+
+    @Test
+    public void testRoutingChangesRefreshOnlyAffectedTenants() throws Exception {
+        Map<String, AtomicInteger> requested = new ConcurrentHashMap<>();
+        ConnectionDescriptorsProvider countingProvider = (connectionsRequest, expectedReleaseGroup) -> {
+            String tenantId = connectionsRequest.getTenantId();
+            requested.computeIfAbsent(tenantId, (key) -> new AtomicInteger()).incrementAndGet();
+            String instanceKey = tenantId.equals("t3") ? "ikB" : "ikA";
+            InstanceDescriptor instanceDescriptor = new InstanceDescriptor("dc", "rk", "ph", "ck", "cn", "sk", "sn", "rgk", "rgn", instanceKey, 1,
+                "vn", "r", "pk", 0, true);
+            ConnectionDescriptor connection = new ConnectionDescriptor(instanceDescriptor, false, false, new HostPort("a", 1),
+                Collections.EMPTY_MAP, Collections.EMPTY_MAP);
+            return new ConnectionDescriptorsResponse(0, null, "releaseGroup-" + instanceKey, Collections.singletonList(connection),
+                connectionsRequest.getRequestUuid());
+        };
+
+        CountDownLatch subscribed = new CountDownLatch(1);
+        InMemoryRoutingChangesSource changesSource = new InMemoryRoutingChangesSource(16) {
+            @Override
+            public synchronized RoutingChanges awaitChanges(String instanceId, long sinceCursor, long awaitMillis) throws InterruptedException {
+                if (sinceCursor >= 0) {
+                    subscribed.countDown();
+                }
+                return super.awaitChanges(instanceId, sinceCursor, awaitMillis);
+            }
+        };
+
+        ScheduledExecutorService refresher = Executors.newScheduledThreadPool(1);
+        ExecutorService subscriber = Executors.newSingleThreadExecutor();
+        try {
+            TenantRoutingProvider<String> routingProvider = new TenantRoutingProvider<>(refresher, "1234", countingProvider);
+            TenantsServiceConnectionDescriptorProvider<String> descriptorProvider = routingProvider.getConnections("serviceA", "port1", 60_000);
+            descriptorProvider.getConnections("t1");
+            descriptorProvider.getConnections("t2");
+            descriptorProvider.getConnections("t3");
+
+            routingProvider.subscribe(subscriber, changesSource, 100, 600_000);
+            Assert.assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+
+            changesSource.tenantChanged(new TenantChanged("t1"));
+            awaitRequested(requested, "t1", 2);
+            Assert.assertEquals(requested.get("t2").get(), 1);
+            Assert.assertEquals(requested.get("t3").get(), 1);
+
+            changesSource.instanceChanged(new InstanceChanged("hostKey", "ikA"));
+            awaitRequested(requested, "t2", 2);
+            awaitRequested(requested, "t1", 3);
+            Assert.assertEquals(requested.get("t3").get(), 1);
+
+            changesSource.evicted(new TenancyEviction(0, "someoneElse", "serviceA", "port1", "t3"));
+            changesSource.evicted(new TenancyEviction(0, "1234", "serviceB", "port1", "t3"));
+            changesSource.tenantChanged(new TenantChanged("t2"));
+            awaitRequested(requested, "t2", 3);
+            Assert.assertEquals(requested.get("t3").get(), 1);
+
+            changesSource.evicted(new TenancyEviction(0, "1234", "serviceA", "port1", "t3"));
+            awaitRequested(requested, "t3", 2);
+            Assert.assertEquals(requested.get("t1").get(), 3);
+            Assert.assertEquals(requested.get("t2").get(), 3);
+
+            routingProvider.unsubscribe();
+        } finally {
+            subscriber.shutdownNow();
+            refresher.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testUnsupportedChangesEndTheSubscription() throws Exception {
+        AtomicInteger awaited = new AtomicInteger();
+        RoutingChangesSource unsupported = (instanceId, sinceCursor, awaitMillis) -> {
+            awaited.incrementAndGet();
+            throw new UnsupportedOperationException("404");
+        };
+
+        ScheduledExecutorService refresher = Executors.newScheduledThreadPool(1);
+        ExecutorService subscriber = Executors.newSingleThreadExecutor();
+        try {
+            TenantRoutingProvider<String> routingProvider = new TenantRoutingProvider<>(refresher, "1234",
+                (connectionsRequest, expectedReleaseGroup) -> null);
+            routingProvider.subscribe(subscriber, unsupported, 100, 600_000);
+
+            // the subscriber thread is free again once the subscription gave up
+            Assert.assertTrue(subscriber.submit(() -> true).get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(awaited.get(), 1);
+        } finally {
+            subscriber.shutdownNow();
+            refresher.shutdownNow();
+        }
+    }
+
+    private static void awaitRequested(Map<String, AtomicInteger> requested, String tenantId, int count) throws InterruptedException {
+        long giveUp = System.currentTimeMillis() + 5_000;
+        while (requested.get(tenantId).get() < count && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(requested.get(tenantId).get(), count, tenantId);
+    }
 }
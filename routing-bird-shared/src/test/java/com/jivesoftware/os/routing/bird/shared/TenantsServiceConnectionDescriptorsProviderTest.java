@@ -15,11 +15,21 @@
  */
 package com.jivesoftware.os.routing.bird.shared;
 
+import java.util.ArrayList;
+import com.jivesoftware.os.routing.bird.shared.TenantsServiceConnectionDescriptorProvider.ConnectionDescriptorKey;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.mockito.MockitoAnnotations;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
@@ -124,4 +134,217 @@ public class TenantsServiceConnectionDescriptorsProviderTest {
         Assert.assertTrue(idtoPools.get(userId).getTimestamp() == connections.getTimestamp());
         Assert.assertTrue(idtoPools.get(userId).getConnectionDescriptors() == connections.getConnectionDescriptors());
     }
+
+    @Test
+    public void testRefresherBatchesTenants() throws Exception {
+        AtomicInteger singleCalls = new AtomicInteger();
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        BatchConnectionDescriptorsProvider batchProvider = new BatchConnectionDescriptorsProvider() {
+            @Override
+            public ConnectionDescriptorsResponse requestConnections(ConnectionDescriptorsRequest connectionsRequest, String expectedReleaseGroup) {
+                singleCalls.incrementAndGet();
+                return new ConnectionDescriptorsResponse(1, Collections.<String>emptyList(),
+                    connectionsRequest.getTenantId(), Arrays.asList(descriptor), connectionsRequest.getRequestUuid());
+            }
+
+            @Override
+            public List<ConnectionDescriptorsResponse> requestConnections(List<ConnectionDescriptorsRequest> connectionsRequests,
+                List<String> expectedReleaseGroups) {
+                batchSizes.add(connectionsRequests.size());
+                List<ConnectionDescriptorsResponse> responses = new ArrayList<>();
+                for (ConnectionDescriptorsRequest connectionsRequest : connectionsRequests) {
+                    responses.add(new ConnectionDescriptorsResponse(1, Collections.<String>emptyList(),
+                        connectionsRequest.getTenantId(), Arrays.asList(descriptor), connectionsRequest.getRequestUuid()));
+                }
+                return responses;
+            }
+        };
+
+        ScheduledExecutorService refresher = Executors.newScheduledThreadPool(1);
+        try {
+            TenantsServiceConnectionDescriptorProvider<String> tenantsServiceConnectionPoolProvider = new TenantsServiceConnectionDescriptorProvider<>(
+                refresher,
+                instanceId,
+                batchProvider,
+                serviceId,
+                port,
+                10,
+                4);
+            for (int i = 0; i < 10; i++) {
+                tenantsServiceConnectionPoolProvider.getConnections("tenant" + i);
+            }
+            Assert.assertEquals(singleCalls.get(), 10);
+
+            tenantsServiceConnectionPoolProvider.start();
+            long giveUp = System.currentTimeMillis() + 5_000;
+            while (batchSizes.size() < 3 && System.currentTimeMillis() < giveUp) {
+                Thread.sleep(10);
+            }
+
+            Assert.assertEquals(singleCalls.get(), 10);
+            Assert.assertTrue(batchSizes.size() >= 3, batchSizes.toString());
+            int refreshed = 0;
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(batchSizes.get(i) <= 4, batchSizes.toString());
+                refreshed += batchSizes.get(i);
+            }
+            Assert.assertEquals(refreshed, 10);
+            Assert.assertEquals(tenantsServiceConnectionPoolProvider.getRoutingGroup("tenant7"), "tenant7");
+        } finally {
+            refresher.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLookup() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ConnectionDescriptorsProvider slowProvider = (connectionsRequest, expectedReleaseGroup) -> {
+            calls.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ConnectionDescriptorsResponse(1, Collections.<String>emptyList(), userId, Arrays.asList(descriptor), null);
+        };
+        TenantsServiceConnectionDescriptorProvider<String> tenantsServiceConnectionPoolProvider = new TenantsServiceConnectionDescriptorProvider<>(
+            Executors.newScheduledThreadPool(1),
+            instanceId,
+            slowProvider,
+            serviceId,
+            port,
+            60_000);
+
+        ExecutorService callers = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<ConnectionDescriptors>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(callers.submit(() -> tenantsServiceConnectionPoolProvider.getConnections(tenantId)));
+            }
+            long giveUp = System.currentTimeMillis() + 5_000;
+            while (calls.get() == 0 && System.currentTimeMillis() < giveUp) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            release.countDown();
+
+            for (Future<ConnectionDescriptors> future : futures) {
+                Assert.assertEquals(future.get().getConnectionDescriptors().size(), 1);
+            }
+            Assert.assertEquals(calls.get(), 1);
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBoundedMissWaitFallsBackToLastKnownRoutes() throws Exception {
+        AtomicReference<CountDownLatch> release = new AtomicReference<>(new CountDownLatch(0));
+        ConnectionDescriptorsProvider slowProvider = (connectionsRequest, expectedReleaseGroup) -> {
+            try {
+                release.get().await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ConnectionDescriptorsResponse(1, Collections.<String>emptyList(), userId, Arrays.asList(descriptor), null);
+        };
+        TenantsServiceConnectionDescriptorProvider<String> tenantsServiceConnectionPoolProvider = new TenantsServiceConnectionDescriptorProvider<>(
+            Executors.newScheduledThreadPool(1),
+            instanceId,
+            slowProvider,
+            serviceId,
+            port,
+            60_000);
+        ExecutorService lookups = Executors.newCachedThreadPool();
+        tenantsServiceConnectionPoolProvider.setRouteMissWait(lookups, 50);
+        try {
+            ConnectionDescriptors known = tenantsServiceConnectionPoolProvider.getConnections(tenantId);
+            Assert.assertEquals(known.getConnectionDescriptors().size(), 1);
+
+            release.set(new CountDownLatch(1));
+            tenantsServiceConnectionPoolProvider.invalidateTenant(tenantId);
+            long start = System.currentTimeMillis();
+            Assert.assertSame(tenantsServiceConnectionPoolProvider.getConnections(tenantId), known);
+            ConnectionDescriptors unknown = tenantsServiceConnectionPoolProvider.getConnections("newTenant");
+            Assert.assertTrue(unknown.getConnectionDescriptors().isEmpty());
+            // repeated timeouts share one entry rather than handing out ever newer empty routes
+            Assert.assertSame(tenantsServiceConnectionPoolProvider.getConnections("newTenant"), unknown);
+            Assert.assertSame(tenantsServiceConnectionPoolProvider.getConnections("otherTenant"), unknown);
+            Assert.assertTrue(System.currentTimeMillis() - start < 5_000);
+
+            release.get().countDown();
+            long giveUp = System.currentTimeMillis() + 5_000;
+            while (tenantsServiceConnectionPoolProvider.getRoutingGroup("newTenant").equals("unknown") && System.currentTimeMillis() < giveUp) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(tenantsServiceConnectionPoolProvider.getRoutingGroup("newTenant"), userId);
+            Assert.assertEquals(tenantsServiceConnectionPoolProvider.getConnections("newTenant").getConnectionDescriptors().size(), 1);
+        } finally {
+            lookups.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFingerprintsDetectChangesAndShareDescriptorLists() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("weight", "1");
+        AtomicReference<List<ConnectionDescriptor>> routes = new AtomicReference<>(Arrays.asList(newDescriptor("a", properties),
+            newDescriptor("b", properties)));
+        ConnectionDescriptorsProvider provider = (connectionsRequest, expectedReleaseGroup) -> new ConnectionDescriptorsResponse(1,
+            Collections.<String>emptyList(), "releaseGroup-" + connectionsRequest.getTenantId(), routes.get(), null);
+        TenantsServiceConnectionDescriptorProvider<String> tenantsServiceConnectionPoolProvider = new TenantsServiceConnectionDescriptorProvider<>(
+            Executors.newScheduledThreadPool(1),
+            instanceId,
+            provider,
+            serviceId,
+            port,
+            60_000);
+
+        ConnectionDescriptors first = tenantsServiceConnectionPoolProvider.getConnections("tenant1");
+        ConnectionDescriptors other = tenantsServiceConnectionPoolProvider.getConnections("tenant2");
+        Assert.assertNotSame(other, first);
+        Assert.assertSame(other.getConnectionDescriptors(), first.getConnectionDescriptors());
+        Assert.assertEquals(other.getFingerprint(), first.getFingerprint());
+
+        routes.set(Arrays.asList(newDescriptor("b", new HashMap<>(properties)), newDescriptor("a", properties)));
+        tenantsServiceConnectionPoolProvider.invalidateTenant("tenant1");
+        Assert.assertSame(tenantsServiceConnectionPoolProvider.getConnections("tenant1"), first);
+
+        routes.set(Arrays.asList(newDescriptor("a", properties), newDescriptor("b", Collections.singletonMap("weight", "2"))));
+        tenantsServiceConnectionPoolProvider.invalidateTenant("tenant1");
+        ConnectionDescriptors changed = tenantsServiceConnectionPoolProvider.getConnections("tenant1");
+        Assert.assertNotSame(changed, first);
+        Assert.assertNotEquals(changed.getFingerprint(), first.getFingerprint());
+
+        ConnectionDescriptorKey key1 = new ConnectionDescriptorKey(
+            routes.get().get(0).getInstanceDescriptor(), new HostPort("a", 1), properties, Collections.EMPTY_MAP);
+        ConnectionDescriptorKey key2 = new ConnectionDescriptorKey(
+            newDescriptor("a", properties).getInstanceDescriptor(), new HostPort("a", 1), new HashMap<>(properties), Collections.EMPTY_MAP);
+        Assert.assertEquals(key1, key2);
+        Assert.assertEquals(key1.hashCode(), key2.hashCode());
+    }
+
+    @Test
+    public void testSameConnectionsComparesEveryField() throws Exception {
+        Map<String, String> properties = Collections.singletonMap("weight", "1");
+        ConnectionDescriptor a = newDescriptor("a", properties);
+        ConnectionDescriptor b = newDescriptor("b", properties);
+        ConnectionDescriptor sslA = new ConnectionDescriptor(a.getInstanceDescriptor(), true, false, a.getHostPort(), properties,
+            Collections.EMPTY_MAP);
+
+        Assert.assertTrue(TenantsServiceConnectionDescriptorProvider.sameConnections(Arrays.asList(a, b),
+            Arrays.asList(newDescriptor("b", new HashMap<>(properties)), newDescriptor("a", properties))));
+        Assert.assertFalse(TenantsServiceConnectionDescriptorProvider.sameConnections(Arrays.asList(a, b), Arrays.asList(a, a)));
+        Assert.assertFalse(TenantsServiceConnectionDescriptorProvider.sameConnections(Arrays.asList(a, b), Arrays.asList(sslA, b)));
+        Assert.assertFalse(TenantsServiceConnectionDescriptorProvider.sameConnections(Arrays.asList(a, b), Arrays.asList(a)));
+        Assert.assertFalse(TenantsServiceConnectionDescriptorProvider.sameConnections(Arrays.asList(a, b),
+            Arrays.asList(a, newDescriptor("b", Collections.singletonMap("weight", "2")))));
+    }
+
+    private static ConnectionDescriptor newDescriptor(String host, Map<String, String> properties) {
+        InstanceDescriptor instanceDescriptor = new InstanceDescriptor("dc", "rk", "ph", "ck", "cn", "sk", "sn", "rgk", "rgn", "ik-" + host, 1, "vn",
+            "r", "pk", System.nanoTime(), true);
+        return new ConnectionDescriptor(instanceDescriptor, false, false, new HostPort(host, 7776), properties, Collections.EMPTY_MAP);
+    }
 }